@@ -0,0 +1,180 @@
+/*
+    JSPWiki - a JSP-based WikiWiki clone.
+
+    Copyright (C) 2001-2005 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 2.1 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.ecyrd.jspwiki;
+
+/**
+ *  Fast, hand-written replacements for the regular expressions
+ *  TranslatorReader used to find CamelCase words and external links.
+ *  Nothing is allocated unless a match is found.
+ *
+ *  @author Janne Jalkanen
+ *  @since 2.2.29
+ */
+final class LinkScanner
+{
+    /** The root of the trie of external link prefixes. */
+    private static final TrieNode c_protocols = new TrieNode();
+
+    static
+    {
+        for( int i = 0; i < TranslatorReader.c_externalLinks.length; i++ )
+        {
+            c_protocols.add( TranslatorReader.c_externalLinks[i], 0 );
+        }
+    }
+
+    private LinkScanner()
+    {
+    }
+
+    /**
+     *  Finds a CamelCase link in a word.  The word must consist of optional
+     *  punctuation, a CamelCase name made of letters and digits, and optional
+     *  punctuation, in this order.  The name must start with one or more
+     *  uppercase letters, followed by one or more lowercase letters, and then
+     *  an uppercase letter.  For example, if the word is "__HyperLink__",
+     *  this returns "HyperLink".
+     *  <p>
+     *  This is the same as matching the word against the regular expression
+     *  <code>^([[:^alnum:]]*|\~)([[:upper:]]+[[:lower:]]+[[:upper:]]+[[:alnum:]]*)[[:^alnum:]]*$</code>,
+     *  and refusing the match if the punctuation before the name is "~" or
+     *  contains a "[".
+     *
+     *  @param word The word to look in.
+     *  @return The CamelCase name, or null, if there is none.
+     */
+    static String findCamelCase( CharSequence word )
+    {
+        int len   = word.length();
+        int start = 0;
+        boolean hasBracket = false;
+
+        //
+        //  Leading punctuation.
+        //
+        while( start < len && !Character.isLetterOrDigit( word.charAt(start) ) )
+        {
+            if( word.charAt(start) == '[' ) hasBracket = true;
+            start++;
+        }
+
+        if( hasBracket || (start == 1 && word.charAt(0) == '~') ) return null;
+
+        int i = start;
+
+        while( i < len && Character.isUpperCase( word.charAt(i) ) ) i++;
+        if( i == start ) return null;
+
+        int lower = i;
+
+        while( i < len && Character.isLowerCase( word.charAt(i) ) ) i++;
+        if( i == lower ) return null;
+
+        if( i == len || !Character.isUpperCase( word.charAt(i) ) ) return null;
+
+        while( i < len && Character.isLetterOrDigit( word.charAt(i) ) ) i++;
+
+        int end = i;
+
+        //
+        //  Only punctuation may follow.
+        //
+        while( i < len )
+        {
+            if( Character.isLetterOrDigit( word.charAt(i++) ) ) return null;
+        }
+
+        return word.subSequence( start, end ).toString();
+    }
+
+    /**
+     *  Returns true, if the text starts with one of the known
+     *  external link prefixes, like "http:".
+     *
+     *  @param text The text to check.
+     */
+    static boolean isExternalLink( CharSequence text )
+    {
+        TrieNode node = c_protocols;
+        int len = text.length();
+
+        for( int i = 0; i < len; i++ )
+        {
+            node = node.get( text.charAt(i) );
+
+            if( node == null ) return false;
+            if( node.m_isPrefix ) return true;
+        }
+
+        return false;
+    }
+
+    /**
+     *  A node in the prefix trie.  The children are kept in two parallel
+     *  arrays, which are short enough to be searched through linearly.
+     */
+    private static final class TrieNode
+    {
+        private char[]     m_chars    = new char[0];
+        private TrieNode[] m_children = new TrieNode[0];
+        private boolean    m_isPrefix = false;
+
+        TrieNode get( char ch )
+        {
+            for( int i = 0; i < m_chars.length; i++ )
+            {
+                if( m_chars[i] == ch ) return m_children[i];
+            }
+
+            return null;
+        }
+
+        void add( String prefix, int pos )
+        {
+            if( pos == prefix.length() )
+            {
+                m_isPrefix = true;
+                return;
+            }
+
+            char ch = prefix.charAt( pos );
+            TrieNode child = get( ch );
+
+            if( child == null )
+            {
+                child = new TrieNode();
+
+                char[]     chars    = new char[m_chars.length+1];
+                TrieNode[] children = new TrieNode[m_children.length+1];
+
+                System.arraycopy( m_chars, 0, chars, 0, m_chars.length );
+                System.arraycopy( m_children, 0, children, 0, m_children.length );
+
+                chars[m_chars.length] = ch;
+                children[m_children.length] = child;
+
+                m_chars    = chars;
+                m_children = children;
+            }
+
+            child.add( prefix, pos+1 );
+        }
+    }
+}
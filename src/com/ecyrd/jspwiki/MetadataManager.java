@@ -0,0 +1,381 @@
+/*
+    JSPWiki - a JSP-based WikiWiki clone.
+
+    Copyright (C) 2001-2005 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 2.1 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.ecyrd.jspwiki;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+
+import com.ecyrd.jspwiki.acl.AccessControlList;
+import com.ecyrd.jspwiki.auth.UserManager;
+import com.ecyrd.jspwiki.auth.WikiSecurityException;
+import com.ecyrd.jspwiki.auth.modules.PageAuthorizer;
+import com.opensymphony.module.oscache.base.Cache;
+import com.opensymphony.module.oscache.base.NeedsRefreshException;
+
+/**
+ *  Finds the metadata of a page - the [{SET name=value}] directives and
+ *  the [{ALLOW ...}] and [{DENY ...}] access rules - without rendering
+ *  the page.  The WikiText is only skimmed through looking for those
+ *  constructs, skipping preformatted blocks and escaped brackets just
+ *  like TranslatorReader does.
+ *  <p>
+ *  The metadata is cached per page version, so that it needs to be found
+ *  only once for each version, no matter who asks for it.
+ *
+ *  @author Janne Jalkanen
+ *  @since 2.2.29
+ */
+public class MetadataManager
+{
+    private static final Logger log = Logger.getLogger( MetadataManager.class );
+
+    /** The maximum number of page versions whose metadata is cached. */
+    public static final String PROP_CACHESIZE  = "jspwiki.metadataManager.cacheSize";
+
+    private static final int   DEFAULT_CACHESIZE = 1000;
+
+    private static final String OSCACHE_ALGORITHM = "com.opensymphony.module.oscache.base.algorithm.LRUCache";
+
+    /**
+     *  Entries are validated against the page modification date,
+     *  so they can live for a long time.
+     */
+    private static final int   CACHE_EXPIRY_PERIOD = 24*60*60;
+
+    private WikiEngine         m_engine;
+
+    /** Contains CachedMetadata objects, keyed by page name and version. */
+    private Cache              m_cache;
+
+    /**
+     *  Creates a new MetadataManager.
+     *
+     *  @param engine The WikiEngine which owns this manager.
+     *  @param props  The properties to initialize from.
+     */
+    public MetadataManager( WikiEngine engine, Properties props )
+    {
+        m_engine = engine;
+
+        int capacity = TextUtil.getIntegerProperty( props,
+                                                    PROP_CACHESIZE,
+                                                    DEFAULT_CACHESIZE );
+
+        m_cache = new Cache( true, false, OSCACHE_ALGORITHM, capacity );
+    }
+
+    /**
+     *  Gives the page its metadata, reading the WikiText of the page
+     *  version from the engine if it is not cached.
+     *
+     *  @param page The page.
+     */
+    public void parseMetadata( WikiPage page )
+    {
+        CachedMetadata cached = getFromCache( page );
+
+        if( cached != null )
+        {
+            cached.applyTo( page );
+            return;
+        }
+
+        String pagedata = m_engine.getPureText( page.getName(), page.getVersion() );
+
+        if( pagedata != null )
+        {
+            parseMetadata( page, pagedata );
+        }
+    }
+
+    /**
+     *  Gives the page its metadata, using the given WikiText if the metadata
+     *  of this page version is not cached.  The text must be the text of
+     *  the version of the page.
+     *
+     *  @param page The page.
+     *  @param pagedata The WikiText of the page.
+     */
+    public void parseMetadata( WikiPage page, String pagedata )
+    {
+        CachedMetadata cached = getFromCache( page );
+
+        if( cached != null )
+        {
+            cached.applyTo( page );
+            return;
+        }
+
+        WikiContext context = new WikiContext( m_engine, page );
+
+        boolean cacheable = extractMetadata( context, pagedata );
+
+        if( cacheable && page.getLastModified() != null )
+        {
+            m_cache.putInCache( getKey( page ), new CachedMetadata( page ) );
+        }
+    }
+
+    /**
+     *  Finds the metadata in the given WikiText, and sets it to the page
+     *  of the context.  Nothing is cached; use this when the text is not
+     *  the stored text of any page version, for example while saving.
+     *
+     *  @param context The context, whose page gets the metadata.
+     *  @param pagedata The WikiText.
+     *  @return False, if the metadata depends on the context, because
+     *          it used variables, or if access rules could not be parsed
+     *          yet, because there was no authenticator.
+     */
+    public boolean extractMetadata( WikiContext context, String pagedata )
+    {
+        WikiPage page = context.getPage();
+        boolean cacheable = true;
+        boolean isPre = false;
+        int len = pagedata.length();
+
+        page.setHasMetadata();
+
+        for( int i = 0; i < len; i++ )
+        {
+            char ch = pagedata.charAt( i );
+
+            if( isPre )
+            {
+                if( pagedata.startsWith( "}}}", i ) )
+                {
+                    isPre = false;
+                    i += 2;
+                }
+                continue;
+            }
+
+            switch( ch )
+            {
+              case '~':
+                //
+                //  Skips the escaped characters, like TranslatorReader.handleTilde().
+                //
+                if( i+1 < len )
+                {
+                    char next = pagedata.charAt( i+1 );
+
+                    if( "|~\\*#-!'_[{]}".indexOf( next ) != -1 )
+                    {
+                        i++;
+                        while( i+1 < len && pagedata.charAt( i+1 ) == next ) i++;
+                    }
+                    else if( Character.isUpperCase( next ) )
+                    {
+                        i++;
+                    }
+                }
+                break;
+
+              case '{':
+                if( pagedata.startsWith( "{{{", i ) )
+                {
+                    isPre = true;
+                    i += 2;
+                }
+                break;
+
+              case '[':
+                if( i+1 < len && pagedata.charAt( i+1 ) == '[' )
+                {
+                    //  Escaped brackets
+                    while( i+1 < len && pagedata.charAt( i+1 ) == '[' ) i++;
+                    break;
+                }
+
+                int end = findLinkEnd( pagedata, i+1 );
+
+                if( end == -1 ) return cacheable;
+
+                String link = pagedata.substring( i+1, end );
+
+                if( link.startsWith("{ALLOW") || link.startsWith("{DENY") )
+                {
+                    cacheable &= handleAccessRule( context, link );
+                }
+                else if( link.startsWith("{SET") )
+                {
+                    cacheable &= handleMetadata( context, link );
+                }
+
+                i = end;
+                break;
+            }
+        }
+
+        return cacheable;
+    }
+
+    /**
+     *  Finds the end of a link, the same way TranslatorReader does:
+     *  plugin links must end with "}]".
+     */
+    private static int findLinkEnd( String pagedata, int start )
+    {
+        boolean isPlugin = start < pagedata.length() && pagedata.charAt( start ) == '{';
+
+        for( int i = start; i < pagedata.length(); i++ )
+        {
+            if( pagedata.charAt( i ) == ']' &&
+                (!isPlugin || (i > start && pagedata.charAt( i-1 ) == '}')) )
+            {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     *  Handles [{SET foo=bar}].
+     *
+     *  @return False, if variables were used in the value.
+     */
+    private boolean handleMetadata( WikiContext context, String link )
+    {
+        try
+        {
+            String args = link.substring( link.indexOf(' '), link.length()-1 );
+
+            String name = args.substring( 0, args.indexOf('=') );
+            String val  = args.substring( args.indexOf('=')+1, args.length() );
+
+            name = name.trim();
+            val  = val.trim();
+
+            if( val.startsWith("'") ) val = val.substring( 1 );
+            if( val.endsWith("'") )   val = val.substring( 0, val.length()-1 );
+
+            if( name.length() > 0 && val.length() > 0 )
+            {
+                String expanded = m_engine.getVariableManager().expandVariables( context, val );
+
+                context.getPage().setAttribute( name, expanded );
+
+                return expanded.equals( val );
+            }
+        }
+        catch( Exception e )
+        {
+            log.debug( "Invalid SET found: "+link );
+        }
+
+        return true;
+    }
+
+    /**
+     *  Handles [{ALLOW ...}] and [{DENY ...}].  Access rules are parsed only
+     *  if there is an authenticator.
+     *
+     *  @return False, if the rule could not be parsed because there was
+     *          no authenticator.
+     */
+    private boolean handleAccessRule( WikiContext context, String ruleLine )
+    {
+        UserManager mgr = m_engine.getUserManager();
+
+        if( mgr == null || mgr.getAuthenticator() == null ) return false;
+
+        if( ruleLine.startsWith( "{" ) )
+            ruleLine = ruleLine.substring( 1 );
+        if( ruleLine.endsWith( "}" ) )
+            ruleLine = ruleLine.substring( 0, ruleLine.length() - 1 );
+
+        try
+        {
+            PageAuthorizer.parseAcl( context.getPage(), mgr, ruleLine );
+        }
+        catch( WikiSecurityException e )
+        {
+            log.debug( "Invalid access rule on page "+context.getPage().getName()+": "+e.getMessage() );
+        }
+
+        return true;
+    }
+
+    private static String getKey( WikiPage page )
+    {
+        return page.getName()+":"+page.getVersion();
+    }
+
+    /**
+     *  Returns the cached metadata of this page version, or null.
+     */
+    private CachedMetadata getFromCache( WikiPage page )
+    {
+        if( page.getLastModified() == null ) return null;
+
+        try
+        {
+            CachedMetadata cached = (CachedMetadata) m_cache.getFromCache( getKey(page),
+                                                                           CACHE_EXPIRY_PERIOD );
+
+            if( cached != null && cached.m_lastModified == page.getLastModified().getTime() )
+            {
+                return cached;
+            }
+        }
+        catch( NeedsRefreshException e )
+        {
+            // Not in the cache, or expired.
+        }
+
+        return null;
+    }
+
+    /**
+     *  The metadata of a single page version.
+     */
+    private static class CachedMetadata
+    {
+        final long              m_lastModified;
+        final Map               m_attributes;
+        final AccessControlList m_acl;
+
+        CachedMetadata( WikiPage page )
+        {
+            m_lastModified = page.getLastModified().getTime();
+            m_attributes   = new HashMap( page.getAttributes() );
+            m_acl          = page.getAcl();
+        }
+
+        void applyTo( WikiPage page )
+        {
+            for( Iterator i = m_attributes.entrySet().iterator(); i.hasNext(); )
+            {
+                Map.Entry e = (Map.Entry) i.next();
+
+                page.setAttribute( (String)e.getKey(), e.getValue() );
+            }
+
+            if( m_acl != null ) page.setAcl( m_acl );
+            page.setHasMetadata();
+        }
+    }
+}
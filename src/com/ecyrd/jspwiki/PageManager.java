@@ -30,6 +30,7 @@ import java.util.ArrayList;
 
 import org.apache.log4j.Logger;
 
+import com.ecyrd.jspwiki.providers.CachingProvider;
 import com.ecyrd.jspwiki.providers.WikiPageProvider;
 import com.ecyrd.jspwiki.providers.ProviderException;
 import com.ecyrd.jspwiki.providers.RepositoryModifiedException;
@@ -61,6 +62,9 @@ public class PageManager
 
     private WikiEngine m_engine;
 
+    /** Built when first needed. */
+    private PageNameIndex m_nameIndex;
+
     /**
      *  The expiry time.  Default is 60 minutes.
      */
@@ -151,6 +155,86 @@ public class PageManager
         return m_provider.getAllPages();
     }
 
+    /**
+     *  Called by the WikiEngine once all of its managers are running.
+     *  Updates the references and the search index of the pages which
+     *  were changed while JSPWiki was not running.
+     *
+     *  @since 2.2.29
+     */
+    public void engineStarted()
+        throws ProviderException
+    {
+        if( m_provider instanceof CachingProvider )
+        {
+            ((CachingProvider) m_provider).engineStarted();
+        }
+    }
+
+    /**
+     *  Stops the background threads of the page provider.
+     *
+     *  @since 2.2.29
+     */
+    public void shutdown()
+    {
+        if( m_provider instanceof CachingProvider )
+        {
+            ((CachingProvider) m_provider).shutdown();
+        }
+    }
+
+    /**
+     *  Returns the index of existing page names, building it first if
+     *  necessary.  The index is only used with the CachingProvider, since
+     *  like the CachingProvider, it does not notice pages which are added
+     *  to the repository outside of JSPWiki until they are accessed.
+     *
+     *  @return The index, or null, if no index is used.
+     *  @since 2.2.29
+     */
+    public synchronized PageNameIndex getPageNameIndex()
+        throws ProviderException
+    {
+        if( m_nameIndex == null && m_provider instanceof CachingProvider )
+        {
+            ArrayList names = new ArrayList();
+
+            for( Iterator i = m_provider.getAllPages().iterator(); i.hasNext(); )
+            {
+                names.add( ((WikiPage) i.next()).getName() );
+            }
+
+            m_nameIndex = new PageNameIndex( names, m_engine.getMatchEnglishPlurals() );
+        }
+
+        return m_nameIndex;
+    }
+
+    /**
+     *  Updates the page name index after a page has been added or removed.
+     */
+    private void updateNameIndex( String pageName, boolean exists )
+    {
+        PageNameIndex index;
+
+        synchronized( this )
+        {
+            index = m_nameIndex;
+        }
+
+        if( index == null ) return;
+
+        if( exists )
+        {
+            index.addPage( pageName );
+        }
+        else
+        {
+            index.removePage( pageName );
+        }
+    }
+
     /**
      *  Fetches the page text from the repository.  This method also does some sanity checks,
      *  like checking for the pageName validity, etc.  Also, if the page repository has been
@@ -177,28 +261,59 @@ public class PageManager
             //
             log.info("Repository has been modified externally while fetching page "+pageName );
 
-            //
-            //  Empty the references and yay, it shall be recalculated
-            //
-            //WikiPage p = new WikiPage( pageName );
-            WikiPage p = m_provider.getPageInfo( pageName, version );
-
-            m_engine.updateReferences( p );
+            WikiPage p = pageChangedExternally( pageName );
 
             if( p != null )
             {
-                m_engine.getSearchManager().reindexPage( p );
                 text = m_provider.getPageText( pageName, version );
             }
-            else
-            {
-                m_engine.getSearchManager().pageRemoved(new WikiPage(pageName));
-            }
         }
 
         return text;
     }
 
+    /**
+     *  Updates the references, the rendering cache, the page name index
+     *  and the search index of a page which has been added, modified or
+     *  removed outside of JSPWiki.
+     *
+     *  @param pageName The name of the page.
+     *  @return The info of the latest version of the page, or null, if the
+     *          page no longer exists.
+     *  @since 2.2.29
+     */
+    public WikiPage pageChangedExternally( String pageName )
+        throws ProviderException
+    {
+        WikiPage p = m_provider.getPageInfo( pageName, WikiPageProvider.LATEST_VERSION );
+
+        //
+        //  Empty the references and yay, it shall be recalculated
+        //
+        if( p != null )
+        {
+            m_engine.updateReferences( p );
+        }
+        else
+        {
+            m_engine.getReferenceManager().pageRemoved( new WikiPage(pageName) );
+        }
+
+        m_engine.getRenderingManager().flushPage( p != null ? p : new WikiPage(pageName) );
+        updateNameIndex( pageName, p != null );
+
+        if( p != null )
+        {
+            m_engine.getSearchManager().reindexPage( p );
+        }
+        else
+        {
+            m_engine.getSearchManager().pageRemoved(new WikiPage(pageName));
+        }
+
+        return p;
+    }
+
     public void putPageText( WikiPage page, String content )
         throws ProviderException
     {
@@ -209,6 +324,8 @@ public class PageManager
 
         m_provider.putPageText( page, content );
         
+        updateNameIndex( page.getName(), true );
+
         m_engine.getSearchManager().reindexPage( page );
     }
 
@@ -333,8 +450,11 @@ public class PageManager
             WikiPage p = new WikiPage( pageName );
             
             m_engine.updateReferences( p );
+            m_engine.getRenderingManager().flushPage( p );
 
             page = m_provider.getPageInfo( pageName, version );
+
+            updateNameIndex( pageName, page != null );
         }
 
         return page;
@@ -395,6 +515,10 @@ public class PageManager
     {
         m_provider.deleteVersion( page.getName(), page.getVersion() );
 
+        updateNameIndex( page.getName(), m_provider.pageExists( page.getName() ) );
+
+        m_engine.getRenderingManager().flushPage( page );
+
         // FIXME: If this was the latest, reindex Lucene
         // FIXME: Update RefMgr
     }
@@ -407,8 +531,12 @@ public class PageManager
     {
         m_provider.deletePage( page.getName() );
 
+        updateNameIndex( page.getName(), false );
+
         m_engine.getSearchManager().pageRemoved( page );
 
+        m_engine.getRenderingManager().flushPage( page );
+
         m_engine.getReferenceManager().pageRemoved( page );
     }
 
@@ -0,0 +1,182 @@
+/*
+    JSPWiki - a JSP-based WikiWiki clone.
+
+    Copyright (C) 2001-2005 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 2.1 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.ecyrd.jspwiki;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ *  Keeps the names of all existing pages in memory, so that the existence
+ *  of a page can be checked without asking the page provider.  For each
+ *  name, the index knows the final page name it resolves to, as returned
+ *  by WikiEngine.getFinalPageName(): if English plurals are matched, both
+ *  "Foobar" and "Foobars" resolve to the page "Foobar", unless there is
+ *  a page called "Foobars" as well.
+ *  <p>
+ *  The index is filled from the list of all pages the first time it is
+ *  needed, and updated by the PageManager when pages are saved or removed.
+ *  Names are case sensitive, just like the page providers.
+ *
+ *  @author Janne Jalkanen
+ *  @since 2.2.29
+ */
+public class PageNameIndex
+{
+    private boolean m_matchEnglishPlurals;
+
+    /** The names of the existing pages. */
+    private Set     m_pages = new HashSet();
+
+    /** Maps page names and their plural variants into the final page names. */
+    private Map     m_finalNames = new HashMap();
+
+    /**
+     *  Creates an index.
+     *
+     *  @param pages The names of all existing pages.
+     *  @param matchEnglishPlurals If true, plural variants are resolved as well.
+     */
+    public PageNameIndex( Collection pages, boolean matchEnglishPlurals )
+    {
+        m_matchEnglishPlurals = matchEnglishPlurals;
+
+        m_pages.addAll( pages );
+
+        for( Iterator i = m_pages.iterator(); i.hasNext(); )
+        {
+            String name = (String) i.next();
+
+            m_finalNames.put( name, name );
+        }
+
+        if( m_matchEnglishPlurals )
+        {
+            for( Iterator i = m_pages.iterator(); i.hasNext(); )
+            {
+                String name = (String) i.next();
+                String variant = getVariant( name );
+
+                if( !m_finalNames.containsKey( variant ) )
+                {
+                    m_finalNames.put( variant, name );
+                }
+            }
+        }
+    }
+
+    /**
+     *  Returns the other form of an English page name: Foobar -&gt; Foobars,
+     *  and Foobars -&gt; Foobar.
+     */
+    private static String getVariant( String name )
+    {
+        if( name.endsWith("s") )
+        {
+            return name.substring( 0, name.length()-1 );
+        }
+
+        return name+"s";
+    }
+
+    /**
+     *  Returns the final page name, or null, if there is no such page.
+     *
+     *  @param name The page name.
+     */
+    public synchronized String getFinalPageName( String name )
+    {
+        return (String) m_finalNames.get( name );
+    }
+
+    /**
+     *  Resolves many page names at once.
+     *
+     *  @param names A Collection of page names.
+     *  @return A Map from each of the names to its final page name.  The
+     *          names of pages that do not exist are not in the Map.
+     */
+    public synchronized Map getFinalPageNames( Collection names )
+    {
+        HashMap result = new HashMap();
+
+        for( Iterator i = names.iterator(); i.hasNext(); )
+        {
+            Object name = i.next();
+            Object finalName = m_finalNames.get( name );
+
+            if( finalName != null ) result.put( name, finalName );
+        }
+
+        return result;
+    }
+
+    /**
+     *  Adds a page to the index.  Does nothing, if the page is already there.
+     *
+     *  @param name The name of the new page.
+     */
+    public synchronized void addPage( String name )
+    {
+        if( !m_pages.add( name ) ) return;
+
+        m_finalNames.put( name, name );
+
+        if( m_matchEnglishPlurals )
+        {
+            String variant = getVariant( name );
+
+            if( !m_pages.contains( variant ) )
+            {
+                m_finalNames.put( variant, name );
+            }
+        }
+    }
+
+    /**
+     *  Removes a page from the index.  Does nothing, if the page is not there.
+     *
+     *  @param name The name of the removed page.
+     */
+    public synchronized void removePage( String name )
+    {
+        if( !m_pages.remove( name ) ) return;
+
+        m_finalNames.remove( name );
+
+        if( m_matchEnglishPlurals )
+        {
+            String variant = getVariant( name );
+
+            if( m_pages.contains( variant ) )
+            {
+                //  The name now refers to the other form.
+                m_finalNames.put( name, variant );
+            }
+            else
+            {
+                m_finalNames.remove( variant );
+            }
+        }
+    }
+}
@@ -117,6 +117,9 @@ public class ReferenceManager
 
     private boolean        m_matchEnglishPlurals = false;
 
+    /** Incremented every time the references change. */
+    private long           m_modificationCount = 0;
+
     private static Logger log = Logger.getLogger(ReferenceManager.class);
 
     private static final String SERIALIZATION_FILE = "refmgr.ser";
@@ -337,6 +340,8 @@ public class ReferenceManager
         
         m_refersTo.remove( pageName );
         clearPageEntries( pageName );
+
+        m_modificationCount++;
     }
     
     /**
@@ -357,6 +362,12 @@ public class ReferenceManager
         // Create a new entry in m_refersTo.
         //
         Collection oldRefTo = (Collection)m_refersTo.get( page );
+
+        if( oldRefTo == null || !new HashSet( oldRefTo ).equals( new HashSet( references ) ) )
+        {
+            m_modificationCount++;
+        }
+
         m_refersTo.remove( page );
         m_refersTo.put( page, references );
 
@@ -659,4 +670,16 @@ public class ReferenceManager
         }
     }
 
+    /**
+     *  Returns a number which changes every time the references between
+     *  pages change, or pages are created or removed.  This can be used to
+     *  find out whether something computed from the references is still
+     *  valid.
+     *
+     *  @since 2.2.29
+     */
+    public synchronized long getModificationCount()
+    {
+        return m_modificationCount;
+    }
 }
@@ -0,0 +1,40 @@
+/*
+    JSPWiki - a JSP-based WikiWiki clone.
+
+    Copyright (C) 2001-2005 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 2.1 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.ecyrd.jspwiki;
+
+import java.io.IOException;
+
+/**
+ *  Thrown by the TranslatorReader when translating a page takes too
+ *  long or produces too much HTML.  It is an IOException, so that it
+ *  passes through the reading methods; the RenderingManager catches it
+ *  and shows the page as plain text instead.
+ *
+ *  @author Janne Jalkanen
+ *  @since 2.2.29
+ */
+public class RenderBudgetException
+    extends IOException
+{
+    public RenderBudgetException( String msg )
+    {
+        super( msg );
+    }
+}
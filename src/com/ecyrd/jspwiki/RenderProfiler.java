@@ -0,0 +1,548 @@
+/*
+    JSPWiki - a JSP-based WikiWiki clone.
+
+    Copyright (C) 2001-2005 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 2.1 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.ecyrd.jspwiki;
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ *  Measures where the time goes when pages are rendered.  The durations of
+ *  the rendering phases - page filters, parsing, link resolution, each
+ *  plugin by class name, and so on - are collected into histograms.
+ *  <p>
+ *  Only one in every N renders is profiled, so that the profiler can be
+ *  kept on in production.  A render is started with begin() and ended
+ *  with end() in the thread doing it; the phases within it are timed with
+ *  start() and stop().  Everything is a no-op when the render is not
+ *  sampled.
+ *  <p>
+ *  Durations are measured in microseconds, when the Java runtime has
+ *  System.nanoTime(); otherwise in milliseconds.  The results are
+ *  available through the "renderprofile" WikiVariable, and as an MBean
+ *  on runtimes which have a platform MBean server.
+ *
+ *  @author Janne Jalkanen
+ *  @since 2.2.29
+ */
+public class RenderProfiler
+    implements RenderProfilerMBean
+{
+    private static final Logger log = Logger.getLogger( RenderProfiler.class );
+
+    /**
+     *  Profile one in this many renders.  Zero, the default, turns the
+     *  profiler off.
+     */
+    public static final String PROP_SAMPLERATE = "jspwiki.renderProfiler.sampleRate";
+
+    /** The whole render, as seen by WikiEngine. */
+    public static final String PHASE_TOTAL       = "total";
+
+    /** Running the pre-translate filters. */
+    public static final String PHASE_PREFILTERS  = "preTranslateFilters";
+
+    /** Parsing WikiText into a WikiDocument. */
+    public static final String PHASE_PARSE       = "parse";
+
+    /** Rendering a WikiDocument, including links and plugins. */
+    public static final String PHASE_RENDER      = "render";
+
+    /** Translating WikiText straight into HTML, including links and plugins. */
+    public static final String PHASE_TRANSLATE   = "translate";
+
+    /** Finding out which of the linked pages exist. */
+    public static final String PHASE_LINKS       = "linkResolution";
+
+    /** Executing a plugin.  The class name of the plugin is appended. */
+    public static final String PHASE_PLUGIN      = "plugin:";
+
+    /** Running the post-translate filters. */
+    public static final String PHASE_POSTFILTERS = "postTranslateFilters";
+
+    /** System.nanoTime(), or null, if this runtime does not have it. */
+    private static final Method c_nanoTime = findNanoTime();
+
+    /** The profilers registered as MBeans, keyed by their MBean names. */
+    private static final Map    c_registered = new HashMap();
+
+    /** The MBean name of this profiler, or null, if it is not registered. */
+    private String       m_mbeanName = null;
+
+    private volatile int m_sampleRate;
+
+    private long         m_renders  = 0;
+    private long         m_sampled  = 0;
+
+    /** Renders which were stopped for exceeding their budget.  Counted
+        even when the profiler is off. */
+    private long         m_overBudget = 0;
+
+    /** Contains Histograms, keyed by the phase name. */
+    private Map          m_histograms = new TreeMap();
+
+    private ThreadLocal  m_state = new ThreadLocal();
+
+    /**
+     *  Creates a new profiler.
+     *
+     *  @param props The properties to initialize from.
+     *  @param appName The name of the application.  If the profiler is on,
+     *         it is registered as an MBean with this name.
+     */
+    public RenderProfiler( Properties props, String appName )
+    {
+        m_sampleRate = TextUtil.getIntegerProperty( props, PROP_SAMPLERATE, 0 );
+
+        if( m_sampleRate > 0 )
+        {
+            registerMBean( appName );
+        }
+    }
+
+    private static Method findNanoTime()
+    {
+        try
+        {
+            return System.class.getMethod( "nanoTime", (Class[]) null );
+        }
+        catch( Exception e )
+        {
+            return null;
+        }
+    }
+
+    /**
+     *  Returns the current time in microseconds, from an arbitrary origin.
+     */
+    private static long now()
+    {
+        if( c_nanoTime != null )
+        {
+            try
+            {
+                return ((Long) c_nanoTime.invoke( null, (Object[]) null )).longValue() / 1000L;
+            }
+            catch( Exception e )
+            {
+                // Falls through to the millisecond clock.
+            }
+        }
+
+        return System.currentTimeMillis() * 1000L;
+    }
+
+    /**
+     *  Registers this profiler with the platform MBean server, if there is
+     *  one.  This is done through reflection, since the JMX classes are not
+     *  part of all runtimes this code runs on.
+     */
+    private void registerMBean( String appName )
+    {
+        String name = "JSPWiki:type=RenderProfiler,name="+
+                      appName.replaceAll( "[^A-Za-z0-9._-]", "_" );
+
+        try
+        {
+            synchronized( c_registered )
+            {
+                //
+                //  A restarted WikiEngine replaces the old profiler.
+                //
+                invokeMBeanServer( "unregisterMBean", name, null );
+                invokeMBeanServer( "registerMBean", name, this );
+
+                c_registered.put( name, this );
+                m_mbeanName = name;
+            }
+
+            log.info( "Registered render profiler as "+name );
+        }
+        catch( ClassNotFoundException e )
+        {
+            log.info( "No JMX available, render profile is only shown by the "+
+                      "renderprofile variable." );
+        }
+        catch( Exception e )
+        {
+            log.warn( "Could not register the render profiler with JMX", e );
+        }
+    }
+
+    /**
+     *  Registers or unregisters an MBean with the platform MBean server.
+     *  Unregistering a name which is not registered does nothing.
+     *
+     *  @param method Either "registerMBean" or "unregisterMBean".
+     *  @param name The name of the MBean.
+     *  @param mbean The MBean to register.  Not used when unregistering.
+     */
+    private static void invokeMBeanServer( String method, String name, Object mbean )
+        throws Exception
+    {
+        Class factory     = Class.forName( "java.lang.management.ManagementFactory" );
+        Class serverClass = Class.forName( "javax.management.MBeanServer" );
+        Class nameClass   = Class.forName( "javax.management.ObjectName" );
+
+        Object server = factory.getMethod( "getPlatformMBeanServer", (Class[]) null ).invoke( null, (Object[]) null );
+
+        Object objectName = nameClass.getConstructor( new Class[] { String.class } )
+            .newInstance( new Object[] { name } );
+
+        Boolean registered = (Boolean) serverClass.getMethod( "isRegistered",
+                                                              new Class[] { nameClass } )
+            .invoke( server, new Object[] { objectName } );
+
+        if( mbean != null )
+        {
+            serverClass.getMethod( method, new Class[] { Object.class, nameClass } )
+                .invoke( server, new Object[] { mbean, objectName } );
+        }
+        else if( registered.booleanValue() )
+        {
+            serverClass.getMethod( method, new Class[] { nameClass } )
+                .invoke( server, new Object[] { objectName } );
+        }
+    }
+
+    /**
+     *  Unregisters this profiler from the MBean server, unless a newer
+     *  profiler has taken its name already.  The MBean server is shared
+     *  by the whole JVM, so a profiler left there would keep the classes
+     *  of the web application in memory after it has been undeployed.
+     *
+     *  @since 2.2.29
+     */
+    public void shutdown()
+    {
+        synchronized( c_registered )
+        {
+            if( m_mbeanName == null || c_registered.get( m_mbeanName ) != this ) return;
+
+            try
+            {
+                invokeMBeanServer( "unregisterMBean", m_mbeanName, null );
+
+                log.info( "Unregistered render profiler "+m_mbeanName );
+            }
+            catch( Exception e )
+            {
+                log.warn( "Could not unregister the render profiler from JMX", e );
+            }
+
+            c_registered.remove( m_mbeanName );
+            m_mbeanName = null;
+        }
+    }
+
+    /**
+     *  Returns true, if this profiler is registered as an MBean.
+     *
+     *  @since 2.2.29
+     */
+    public boolean isRegistered()
+    {
+        synchronized( c_registered )
+        {
+            return m_mbeanName != null && c_registered.get( m_mbeanName ) == this;
+        }
+    }
+
+    /**
+     *  Returns true, if renders are being profiled.
+     */
+    public boolean isEnabled()
+    {
+        return m_sampleRate > 0;
+    }
+
+    /**
+     *  Marks the start of a render in this thread.  Renders within renders
+     *  are treated as a part of the outermost one.  Every call must be
+     *  matched by a call to end().
+     */
+    public void begin()
+    {
+        if( m_sampleRate <= 0 ) return;
+
+        State state = getState();
+
+        if( state.m_depth++ == 0 )
+        {
+            synchronized( this )
+            {
+                state.m_sampled = m_renders++ % m_sampleRate == 0;
+
+                if( state.m_sampled ) m_sampled++;
+            }
+
+            state.m_start = state.m_sampled ? now() : -1;
+        }
+    }
+
+    /**
+     *  Marks the start of work done in this thread on behalf of a render
+     *  in another thread, such as a plugin running in the background.  It
+     *  is profiled, if the render is.  Every call must be matched by
+     *  a call to end().
+     *
+     *  @param sampled The value of isSampling() in the thread of the render.
+     */
+    public void begin( boolean sampled )
+    {
+        if( m_sampleRate <= 0 ) return;
+
+        State state = getState();
+
+        if( state.m_depth++ == 0 )
+        {
+            state.m_sampled = sampled;
+            state.m_start   = -1;
+        }
+    }
+
+    /**
+     *  Marks the end of a render in this thread.
+     */
+    public void end()
+    {
+        if( m_sampleRate <= 0 ) return;
+
+        State state = (State) m_state.get();
+
+        if( state == null || state.m_depth == 0 ) return;
+
+        if( --state.m_depth == 0 )
+        {
+            if( state.m_start >= 0 ) stop( PHASE_TOTAL, state.m_start );
+
+            state.m_sampled = false;
+        }
+    }
+
+    /**
+     *  Returns true, if the render going on in this thread is profiled.
+     */
+    public boolean isSampling()
+    {
+        if( m_sampleRate <= 0 ) return false;
+
+        State state = (State) m_state.get();
+
+        return state != null && state.m_sampled;
+    }
+
+    /**
+     *  Starts timing a phase.
+     *
+     *  @return The start time to give to stop(), or -1, if the render is
+     *          not profiled.
+     */
+    public long start()
+    {
+        return isSampling() ? now() : -1;
+    }
+
+    /**
+     *  Stops timing a phase, and records its duration.
+     *
+     *  @param phase The name of the phase.
+     *  @param start The value returned by start().  If it is negative,
+     *         nothing is recorded.
+     */
+    public void stop( String phase, long start )
+    {
+        if( start < 0 ) return;
+
+        long duration = now() - start;
+
+        synchronized( this )
+        {
+            Histogram h = (Histogram) m_histograms.get( phase );
+
+            if( h == null )
+            {
+                h = new Histogram();
+                m_histograms.put( phase, h );
+            }
+
+            h.add( duration );
+        }
+    }
+
+    private State getState()
+    {
+        State state = (State) m_state.get();
+
+        if( state == null )
+        {
+            state = new State();
+            m_state.set( state );
+        }
+
+        return state;
+    }
+
+    public int getSampleRate()
+    {
+        return m_sampleRate;
+    }
+
+    public void setSampleRate( int rate )
+    {
+        m_sampleRate = rate;
+    }
+
+    public synchronized long getSampledRenders()
+    {
+        return m_sampled;
+    }
+
+    /**
+     *  Records that a render was stopped, because it took too long or
+     *  produced too much HTML.
+     */
+    public synchronized void overBudget()
+    {
+        m_overBudget++;
+    }
+
+    public synchronized long getRendersOverBudget()
+    {
+        return m_overBudget;
+    }
+
+    public synchronized String[] getPhases()
+    {
+        return (String[]) m_histograms.keySet().toArray( new String[m_histograms.size()] );
+    }
+
+    public synchronized String getPhaseSummary( String phase )
+    {
+        Histogram h = (Histogram) m_histograms.get( phase );
+
+        return h != null ? phase+": "+h.toString() : null;
+    }
+
+    public synchronized String getReport()
+    {
+        StringBuffer sb = new StringBuffer();
+
+        sb.append( "Sampled renders: "+m_sampled+" (one in "+m_sampleRate+")\n" );
+
+        if( m_overBudget > 0 )
+        {
+            sb.append( "Renders over budget: "+m_overBudget+"\n" );
+        }
+
+        for( Iterator i = m_histograms.keySet().iterator(); i.hasNext(); )
+        {
+            sb.append( getPhaseSummary( (String) i.next() ) );
+            sb.append( "\n" );
+        }
+
+        return sb.toString();
+    }
+
+    public synchronized void reset()
+    {
+        m_histograms.clear();
+        m_renders = 0;
+        m_sampled = 0;
+        m_overBudget = 0;
+    }
+
+    /**
+     *  The profiling state of the thread.
+     */
+    private static final class State
+    {
+        int     m_depth   = 0;
+        boolean m_sampled = false;
+        long    m_start   = -1;
+    }
+
+    /**
+     *  Counts durations in buckets whose upper limits grow in powers
+     *  of two: 1, 2, 4, 8... microseconds.
+     */
+    private static final class Histogram
+    {
+        private long[] m_buckets = new long[40];
+        private long   m_count   = 0;
+        private long   m_total   = 0;
+        private long   m_max     = 0;
+
+        void add( long micros )
+        {
+            if( micros < 0 ) micros = 0;
+
+            int bucket = 0;
+
+            while( bucket < m_buckets.length-1 && (1L << bucket) < micros ) bucket++;
+
+            m_buckets[bucket]++;
+            m_count++;
+            m_total += micros;
+            if( micros > m_max ) m_max = micros;
+        }
+
+        /**
+         *  Returns the upper limit of the bucket which contains the given
+         *  fraction of the durations.
+         */
+        long percentile( double fraction )
+        {
+            long wanted = (long) Math.ceil( m_count * fraction );
+            long seen   = 0;
+
+            for( int i = 0; i < m_buckets.length; i++ )
+            {
+                seen += m_buckets[i];
+
+                if( seen >= wanted ) return Math.min( 1L << i, m_max );
+            }
+
+            return m_max;
+        }
+
+        public String toString()
+        {
+            return "count="+m_count+
+                   ", mean="+formatMicros( m_count > 0 ? m_total / m_count : 0 )+
+                   ", p50<="+formatMicros( percentile( 0.50 ) )+
+                   ", p90<="+formatMicros( percentile( 0.90 ) )+
+                   ", p99<="+formatMicros( percentile( 0.99 ) )+
+                   ", max="+formatMicros( m_max );
+        }
+
+        private static String formatMicros( long micros )
+        {
+            if( micros < 1000 ) return micros+"us";
+
+            return (micros / 1000)+"."+((micros % 1000) / 100)+"ms";
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+    JSPWiki - a JSP-based WikiWiki clone.
+
+    Copyright (C) 2001-2005 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 2.1 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.ecyrd.jspwiki;
+
+/**
+ *  The management interface of the RenderProfiler.  It follows the JMX
+ *  standard MBean conventions, so the profiler can be registered with
+ *  an MBean server when one is available.
+ *
+ *  @author Janne Jalkanen
+ *  @since 2.2.29
+ */
+public interface RenderProfilerMBean
+{
+    /**
+     *  Returns how often renders are profiled: 1 means every render,
+     *  N means one in N renders, and 0 means never.
+     */
+    public int getSampleRate();
+
+    /**
+     *  Sets how often renders are profiled.
+     *
+     *  @param rate 1 for every render, N for one in N renders, 0 for never.
+     */
+    public void setSampleRate( int rate );
+
+    /**
+     *  Returns the number of renders which have been profiled.
+     */
+    public long getSampledRenders();
+
+    /**
+     *  Returns the number of renders which were stopped, because they
+     *  took too long or produced too much HTML.  These are counted even
+     *  when no renders are profiled.
+     */
+    public long getRendersOverBudget();
+
+    /**
+     *  Returns the names of the phases which have been timed.
+     */
+    public String[] getPhases();
+
+    /**
+     *  Returns a one-line summary of the durations of a phase.
+     *
+     *  @param phase The name of the phase.
+     *  @return The summary, or null, if the phase has not been timed.
+     */
+    public String getPhaseSummary( String phase );
+
+    /**
+     *  Returns the summaries of all phases, one per line.
+     */
+    public String getReport();
+
+    /**
+     *  Forgets everything that has been measured.
+     */
+    public void reset();
+}
@@ -0,0 +1,1455 @@
+/*
+    JSPWiki - a JSP-based WikiWiki clone.
+
+    Copyright (C) 2001-2005 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 2.1 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.ecyrd.jspwiki;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+
+import com.ecyrd.jspwiki.attachment.Attachment;
+import com.ecyrd.jspwiki.filters.BasicPageFilter;
+import com.ecyrd.jspwiki.filters.FilterException;
+import com.ecyrd.jspwiki.plugin.PluginCache;
+import com.opensymphony.module.oscache.base.Cache;
+import com.opensymphony.module.oscache.base.NeedsRefreshException;
+
+/**
+ *  Manages the conversion of WikiText into HTML.
+ *  <p>
+ *  Each page is parsed into a WikiDocument, which is kept in a cache, so
+ *  that the same page does not need to be parsed over and over again.
+ *  The cached copy is used only if it was made from the same version of
+ *  the page, with the same set of page filters.  If the document has no
+ *  plugins or variables, the rendered HTML is cached as well.  Since the
+ *  HTML also depends on whether the pages it links to exist or not, the
+ *  cached copies of all pages that refer to a page are flushed whenever
+ *  that page is saved, created or removed.  The ReferenceManager is used
+ *  to find the referring pages.
+ *  <p>
+ *  Pages which insert variables, or execute plugins that are not
+ *  CacheablePlugins, are re-rendered from the cached document every time,
+ *  since their output depends on things outside the page.  If all plugins
+ *  on a page are cacheable, the HTML is kept for as long as the plugin
+ *  outputs stay valid.
+ *  <p>
+ *  Pages are parsed in sections, which end at rulers and headings.  The
+ *  parsed sections of the latest parse of each page are kept as well, so
+ *  that when a page is edited, only the sections that changed need to be
+ *  parsed again.
+ *  <p>
+ *  If translating a page takes too long or produces too much HTML, the
+ *  TranslatorReader gives up, and the page is shown as preformatted text
+ *  with a warning instead.  Such renders are counted by the RenderProfiler.
+ *
+ *  @author Janne Jalkanen
+ *  @since 2.2.29
+ */
+public class RenderingManager
+    extends BasicPageFilter
+{
+    private static final Logger log = Logger.getLogger( RenderingManager.class );
+
+    /** If set to false, rendered pages are not cached.  Default is true. */
+    public static final String PROP_USECACHE   = "jspwiki.renderingManager.useCache";
+
+    /** The maximum number of rendered pages to keep in memory. */
+    public static final String PROP_CACHESIZE  = "jspwiki.renderingManager.cacheSize";
+
+    /** If set to false, pages are always parsed as a whole.  Default is true. */
+    public static final String PROP_USESECTIONS = "jspwiki.renderingManager.useSectionCache";
+
+    private static final int   DEFAULT_CACHESIZE = 1000;
+
+    /** At most this many idle TranslatorReaders are kept for reuse. */
+    private static final int   MAX_POOLED_READERS = 20;
+
+    private static final String OSCACHE_ALGORITHM = "com.opensymphony.module.oscache.base.algorithm.LRUCache";
+
+    /**
+     *  Everything is flushed explicitly, so cached copies can live for a long time.
+     */
+    private static final int   CACHE_EXPIRY_PERIOD = 24*60*60;
+
+    private WikiEngine         m_engine;
+
+    /** Contains CachedPage objects, keyed by the page name.  Null, if caching is off. */
+    private Cache              m_cache;
+
+    /**
+     *  Incremented every time something is flushed from the cache.  A
+     *  render which was started before a flush may have seen stale data,
+     *  and its result is not put in the cache.
+     */
+    private long               m_flushCount = 0;
+
+    private long               m_cacheHits   = 0;
+    private long               m_cacheMisses = 0;
+
+    /** Contains SectionedPage objects, keyed by the page name.  Null, if
+        pages are not parsed in sections. */
+    private Cache              m_sectionCache;
+
+    private long               m_sectionsReused = 0;
+    private long               m_sectionsParsed = 0;
+
+    /** Idle TranslatorReaders. */
+    private ArrayList          m_readerPool = new ArrayList();
+
+    /**
+     *  Creates a new RenderingManager.
+     *
+     *  @param engine The WikiEngine which owns this manager.
+     *  @param props  The properties to initialize from.
+     */
+    public RenderingManager( WikiEngine engine, Properties props )
+    {
+        m_engine = engine;
+
+        if( TextUtil.getBooleanProperty( props, PROP_USECACHE, true ) )
+        {
+            int capacity = TextUtil.getIntegerProperty( props,
+                                                        PROP_CACHESIZE,
+                                                        DEFAULT_CACHESIZE );
+
+            m_cache = new Cache( true, false, OSCACHE_ALGORITHM, capacity );
+
+            log.debug( "Rendering cache capacity "+capacity+" pages." );
+
+            if( TextUtil.getBooleanProperty( props, PROP_USESECTIONS, true ) )
+            {
+                m_sectionCache = new Cache( true, false, OSCACHE_ALGORITHM, capacity );
+            }
+        }
+    }
+
+    /**
+     *  Returns the rendered HTML of the given page, using the cached copy
+     *  if there is a valid one.
+     *
+     *  @param context The WikiContext in which the page is rendered.
+     *  @param page    The page to render.
+     *  @return HTML.
+     */
+    public String getHTML( WikiContext context, WikiPage page )
+    {
+        if( m_cache == null || page.getLastModified() == null )
+        {
+            String pagedata = m_engine.getPureText( page.getName(), page.getVersion() );
+
+            return textToHTML( context, pagedata, null, null, null, true );
+        }
+
+        String  variant  = getVariant( context );
+
+        CachedPage cached = getFromCache( page, variant );
+
+        long flushCount = getFlushCount();
+
+        WikiDocument doc;
+
+        if( cached != null )
+        {
+            cached.m_document.applyMetadata( page );
+
+            if( cached.hasValidHTML() ) return cached.m_html;
+
+            doc = cached.m_document;
+        }
+        else
+        {
+            doc = getDocument( context, page );
+
+            if( doc == null ) return null;
+        }
+
+        RenderResult result = render( context, doc );
+
+        //
+        //  A cached document is only put back, if the HTML can now be kept.
+        //
+        if( doc.isReusable() && (cached == null || result.m_pluginOutputs != null) )
+        {
+            putInCache( page, variant, doc, result, flushCount );
+        }
+
+        return result.m_html;
+    }
+
+    /**
+     *  Writes the rendered HTML of the given page to the given Writer,
+     *  using the cached copy if there is a valid one.  Unless the HTML
+     *  itself can be cached, it is written out as it is rendered.
+     *
+     *  @param context The WikiContext in which the page is rendered.
+     *  @param page    The page to render.
+     *  @param out     Where the HTML is written to.
+     *  @throws IOException If writing fails.
+     *  @since 2.2.29
+     */
+    public void getHTML( WikiContext context, WikiPage page, Writer out )
+        throws IOException
+    {
+        if( m_cache == null || page.getLastModified() == null )
+        {
+            String pagedata = m_engine.getPureText( page.getName(), page.getVersion() );
+
+            textToHTML( context, pagedata, out );
+            return;
+        }
+
+        String  variant  = getVariant( context );
+
+        CachedPage cached = getFromCache( page, variant );
+
+        long flushCount = getFlushCount();
+
+        WikiDocument doc;
+
+        if( cached != null )
+        {
+            cached.m_document.applyMetadata( page );
+
+            if( cached.hasValidHTML() )
+            {
+                out.write( cached.m_html );
+                return;
+            }
+
+            doc = cached.m_document;
+        }
+        else
+        {
+            doc = getDocument( context, page );
+
+            if( doc == null ) return;
+        }
+
+        //
+        //  If the HTML can be kept, we need it for the cache anyway.  This
+        //  is also the case, when it depends only on cached plugin outputs,
+        //  which were found out when the document was last rendered.
+        //
+        if( doc.isCacheable() || (cached != null && cached.m_pluginOutputs != null) )
+        {
+            RenderResult result = render( context, doc );
+
+            if( doc.isReusable() && (cached == null || result.m_pluginOutputs != null) )
+            {
+                putInCache( page, variant, doc, result, flushCount );
+            }
+
+            out.write( result.m_html );
+        }
+        else
+        {
+            Collection outputs = streamDocument( context, doc, out );
+
+            if( cached == null && doc.isReusable() )
+            {
+                RenderResult result = new RenderResult();
+                result.m_html          = null;
+                result.m_pluginOutputs = outputs;
+
+                putInCache( page, variant, doc, result, flushCount );
+            }
+        }
+    }
+
+    /**
+     *  Parses the given page into a WikiDocument, running the pre-translate
+     *  filters first.  The document is not cached.
+     *
+     *  @param context The WikiContext in which the page is parsed.
+     *  @param page    The page to parse.
+     *  @return A WikiDocument, or null, if the page could not be read or parsed.
+     */
+    public WikiDocument getDocument( WikiContext context, WikiPage page )
+    {
+        String pagedata = m_engine.getPureText( page.getName(), page.getVersion() );
+
+        if( pagedata == null )
+        {
+            log.error("NULL pagedata to getDocument()");
+            return null;
+        }
+
+        TranslatorReader in = null;
+        RenderProfiler   profiler = m_engine.getRenderProfiler();
+
+        try
+        {
+            if( runFilters( context ) )
+                pagedata = doPreTranslateFiltering( context, pagedata );
+
+            long start = profiler.start();
+
+            try
+            {
+                if( m_sectionCache != null )
+                {
+                    WikiDocument doc = parseSections( context, page, pagedata );
+
+                    if( doc != null ) return doc;
+                }
+
+                in = getTranslatorReader( context, new StringReader( pagedata ) );
+
+                return in.parse();
+            }
+            finally
+            {
+                profiler.stop( RenderProfiler.PHASE_PARSE, start );
+            }
+        }
+        catch( RenderBudgetException e )
+        {
+            return makeOverBudgetDocument( context, pagedata, e );
+        }
+        catch( IOException e )
+        {
+            log.error("Failed to parse page data: ", e);
+        }
+        catch( FilterException e )
+        {
+            logFilterFailure( context, e );
+        }
+        finally
+        {
+            if( in != null ) releaseTranslatorReader( in );
+        }
+
+        return null;
+    }
+
+    /**
+     *  Returns the headings of the given page.  The cached parse of the
+     *  page is used, if there is a valid one; otherwise the page is parsed.
+     *
+     *  @param context The WikiContext in which the page is parsed.
+     *  @param page    The page.
+     *  @return A List of TranslatorReader.Heading objects.
+     *  @since 2.2.29
+     */
+    public List getHeadings( WikiContext context, WikiPage page )
+    {
+        if( m_cache != null && page.getLastModified() != null )
+        {
+            CachedPage cached = getFromCache( page, getVariant( context ) );
+
+            if( cached != null ) return cached.m_document.getHeadings();
+        }
+
+        WikiDocument doc = getDocument( context, page );
+
+        return doc != null ? doc.getHeadings() : Collections.EMPTY_LIST;
+    }
+
+    /**
+     *  Finds the places where a page may be split into sections: right after
+     *  a run of four or more dashes which start a line and end it, and
+     *  right after a line which starts with "!".  Whether a place really is
+     *  a section break is only known once the section has been parsed.
+     *
+     *  @return A List of Integers, the positions where the sections start.
+     */
+    static List findSectionBreaks( String pagedata )
+    {
+        ArrayList breaks = new ArrayList();
+        int len = pagedata.length();
+        int pos = 0;
+
+        while( pos < len )
+        {
+            int eol = pagedata.indexOf( '\n', pos );
+
+            if( eol == -1 ) break;
+
+            if( pagedata.startsWith( "----", pos ) )
+            {
+                int end = pos+4;
+
+                while( end < len && pagedata.charAt(end) == '-' ) end++;
+
+                char next = pagedata.charAt( end );
+
+                if( next == '\n' || next == '\r' ) breaks.add( new Integer(end) );
+            }
+            else if( pagedata.startsWith( "!", pos ) && eol+1 < len )
+            {
+                breaks.add( new Integer(eol+1) );
+            }
+
+            pos = eol+1;
+        }
+
+        return breaks;
+    }
+
+    /**
+     *  Parses the page in sections, reusing the sections which were parsed
+     *  the last time.  If a section does not end at a clean section break,
+     *  the rest of the page is parsed as a single section.
+     *
+     *  @return A WikiDocument, or null, if the page cannot be parsed in
+     *          sections, because there are access rules in more than one.
+     */
+    private WikiDocument parseSections( WikiContext context, WikiPage page, String pagedata )
+        throws IOException
+    {
+        List breaks = findSectionBreaks( pagedata );
+
+        if( breaks.size() == 0 ) return null;
+
+        String variant = getVariant( context )+"|"+
+                         page.getAttribute( TranslatorReader.PROP_CAMELCASELINKS )+"|"+
+                         m_engine.getFilterManager().getModificationCount();
+
+        SectionedPage previous = null;
+
+        try
+        {
+            previous = (SectionedPage) m_sectionCache.getFromCache( page.getName(),
+                                                                    CACHE_EXPIRY_PERIOD );
+        }
+        catch( NeedsRefreshException e )
+        {
+            // Not in the cache, or expired.
+        }
+
+        if( previous != null && !previous.m_variant.equals( variant ) )
+        {
+            previous = null;
+        }
+
+        SectionedPage current = new SectionedPage( variant );
+        ArrayList     parts   = new ArrayList();
+        int           start   = 0;
+        int           len     = pagedata.length();
+        int           acls    = 0;
+
+        for( Iterator i = breaks.iterator(); start < len; )
+        {
+            boolean midLine = start > 0 && pagedata.charAt( start-1 ) == '-';
+            int     end     = i.hasNext() ? ((Integer) i.next()).intValue() : len;
+
+            Section section = getSection( context, page, previous,
+                                          pagedata.substring( start, end ), midLine );
+
+            if( !section.m_endsAtBreak && end < len )
+            {
+                section = getSection( context, page, previous,
+                                      pagedata.substring( start ), midLine );
+                end = len;
+            }
+
+            if( section.m_document.isReusable() ) current.put( section );
+
+            if( section.m_document.getAcl() != null ) acls++;
+
+            parts.add( section.m_document );
+            start = end;
+        }
+
+        if( acls > 1 ) return null;
+
+        m_sectionCache.putInCache( page.getName(), current );
+
+        WikiDocument doc = WikiDocument.join( page.getName(), parts );
+
+        doc.copyMetadata( page );
+
+        return doc;
+    }
+
+    /**
+     *  Returns a parsed section, either from the earlier parse of the page,
+     *  or by parsing it now.
+     */
+    private Section getSection( WikiContext context, WikiPage page, SectionedPage previous,
+                                String text, boolean midLine )
+        throws IOException
+    {
+        Section section = previous != null ? previous.get( text, midLine ) : null;
+
+        if( section != null )
+        {
+            synchronized( this )
+            {
+                m_sectionsReused++;
+            }
+
+            return section;
+        }
+
+        //
+        //  The metadata found in the section goes to a page of its own,
+        //  but it must see the page attributes which affect parsing.
+        //
+        WikiPage sectionPage = new WikiPage( page.getName() );
+        String[] attributes = { TranslatorReader.PROP_CAMELCASELINKS,
+                                TranslatorReader.PROP_RUNPLUGINS };
+
+        for( int i = 0; i < attributes.length; i++ )
+        {
+            Object value = page.getAttribute( attributes[i] );
+
+            if( value != null ) sectionPage.setAttribute( attributes[i], value );
+        }
+
+        WikiContext sectionContext = (WikiContext) context.clone();
+        sectionContext.setPage( sectionPage );
+
+        TranslatorReader in = getTranslatorReader( sectionContext, new StringReader( text ) );
+
+        try
+        {
+            WikiDocument doc = in.parseSection( midLine );
+
+            synchronized( this )
+            {
+                m_sectionsParsed++;
+            }
+
+            return new Section( text, midLine, doc, in.endedAtSectionBreak() );
+        }
+        finally
+        {
+            releaseTranslatorReader( in );
+        }
+    }
+
+    /**
+     *  Renders a WikiDocument in the given context, and runs the
+     *  post-translate filters on the result.
+     *
+     *  @param context The WikiContext in which the document is rendered.
+     *  @param doc     The document.
+     *  @return HTML.
+     */
+    public String renderDocument( WikiContext context, WikiDocument doc )
+    {
+        return render( context, doc ).m_html;
+    }
+
+    /**
+     *  Renders a WikiDocument, and finds out which cached plugin outputs
+     *  the result depends on.
+     */
+    private RenderResult render( WikiContext context, WikiDocument doc )
+    {
+        RenderResult result = new RenderResult();
+        StringWriter out = new StringWriter();
+        TranslatorReader in = getTranslatorReader( context, null );
+        RenderProfiler profiler = m_engine.getRenderProfiler();
+
+        try
+        {
+            long start = profiler.start();
+
+            in.render( doc, out );
+
+            profiler.stop( RenderProfiler.PHASE_RENDER, start );
+
+            result.m_html = out.toString();
+
+            if( runFilters( context ) )
+                result.m_html = doPostTranslateFiltering( context, result.m_html );
+
+            result.m_isCacheable   = doc.isCacheable();
+            result.m_pluginOutputs = in.getPluginOutputs();
+
+            return result;
+        }
+        catch( IOException e )
+        {
+            log.error("Failed to render document: ", e);
+        }
+        catch( FilterException e )
+        {
+            logFilterFailure( context, e );
+        }
+        finally
+        {
+            releaseTranslatorReader( in );
+        }
+
+        result.m_html = out.toString();
+
+        return result;
+    }
+
+    /**
+     *  Renders a WikiDocument in the given context, and writes the result
+     *  to the given Writer.  The post-translate filters are run on the fly,
+     *  if they all can do it; otherwise the HTML is first rendered into
+     *  a String.
+     *
+     *  @param context The WikiContext in which the document is rendered.
+     *  @param doc     The document.
+     *  @param out     Where the HTML is written to.
+     *  @throws IOException If writing fails.
+     *  @since 2.2.29
+     */
+    public void renderDocument( WikiContext context, WikiDocument doc, Writer out )
+        throws IOException
+    {
+        streamDocument( context, doc, out );
+    }
+
+    /**
+     *  Renders a WikiDocument into the given Writer, and returns the cached
+     *  plugin outputs the result depends on, or null.
+     */
+    private Collection streamDocument( WikiContext context, WikiDocument doc, Writer out )
+        throws IOException
+    {
+        Writer filtered = getFilteredWriter( context, out );
+
+        if( filtered == null )
+        {
+            RenderResult result = render( context, doc );
+
+            out.write( result.m_html );
+
+            return result.m_pluginOutputs;
+        }
+
+        TranslatorReader in = getTranslatorReader( context, null );
+        RenderProfiler profiler = m_engine.getRenderProfiler();
+
+        try
+        {
+            //
+            //  The post-translate filters run as the HTML is written,
+            //  so they are timed as a part of the render.
+            //
+            long start = profiler.start();
+
+            in.render( doc, filtered );
+            if( filtered != out ) filtered.close();
+
+            profiler.stop( RenderProfiler.PHASE_RENDER, start );
+
+            return in.getPluginOutputs();
+        }
+        finally
+        {
+            releaseTranslatorReader( in );
+        }
+    }
+
+    /**
+     *  Converts raw page data into HTML, and writes it to the given
+     *  Writer as it is produced.  The post-translate filters are run on
+     *  the fly, if they all can do it; otherwise the HTML is first
+     *  rendered into a String.  The result is not cached.
+     *
+     *  @param context  The WikiContext in which the rendering happens.
+     *  @param pagedata The WikiText to convert.
+     *  @param out      Where the HTML is written to.
+     *  @throws IOException If writing fails.
+     *  @since 2.2.29
+     */
+    public void textToHTML( WikiContext context, String pagedata, Writer out )
+        throws IOException
+    {
+        if( pagedata == null )
+        {
+            log.error("NULL pagedata to textToHTML()");
+            return;
+        }
+
+        Writer filtered = getFilteredWriter( context, out );
+
+        if( filtered == null )
+        {
+            out.write( textToHTML( context, pagedata, null, null, null, true ) );
+            return;
+        }
+
+        TranslatorReader in = null;
+
+        try
+        {
+            if( runFilters( context ) )
+                pagedata = doPreTranslateFiltering( context, pagedata );
+
+            in = getTranslatorReader( context, new StringReader( pagedata ) );
+
+            RenderProfiler profiler = m_engine.getRenderProfiler();
+            long start = profiler.start();
+
+            in.translate( filtered );
+            if( filtered != out ) filtered.close();
+
+            profiler.stop( RenderProfiler.PHASE_TRANSLATE, start );
+        }
+        catch( RenderBudgetException e )
+        {
+            //
+            //  What has been written already cannot be taken back,
+            //  so the text follows it.
+            //
+            if( filtered != out ) filtered.close();
+
+            out.write( makeOverBudgetHTML( context, pagedata, e ) );
+        }
+        catch( FilterException e )
+        {
+            logFilterFailure( context, e );
+        }
+        finally
+        {
+            if( in != null ) releaseTranslatorReader( in );
+        }
+    }
+
+    /**
+     *  Finds all the links in the given raw page data, and calls the hooks
+     *  for them.  This does not produce any HTML, run any plugins or check
+     *  whether linked pages exist; the pre-translate filters are run, though,
+     *  since they may add or remove links.  Access rules are not parsed.
+     *
+     *  @param context The WikiContext of the page.
+     *  @param pagedata The WikiText to scan.
+     *  @param localLinkHook Gets called for each local link.  May be null.
+     *  @param extLinkHook   Gets called for each external link.  May be null.
+     *  @param attLinkHook   Gets called for each attachment link.  May be null.
+     *  @since 2.2.29
+     */
+    public void scanLinks( WikiContext context,
+                           String pagedata,
+                           StringTransmutator localLinkHook,
+                           StringTransmutator extLinkHook,
+                           StringTransmutator attLinkHook )
+    {
+        scanLinks( context, pagedata, localLinkHook, extLinkHook, attLinkHook, null );
+    }
+
+    /**
+     *  Finds all the links and plugin command lines in the given raw page
+     *  data, and calls the hooks for them.  The plugins are not run.
+     *
+     *  @param context The WikiContext of the page.
+     *  @param pagedata The WikiText to scan.
+     *  @param localLinkHook Gets called for each local link.  May be null.
+     *  @param extLinkHook   Gets called for each external link.  May be null.
+     *  @param attLinkHook   Gets called for each attachment link.  May be null.
+     *  @param pluginHook    Gets called for each plugin command line.  May be null.
+     *  @since 2.2.29
+     */
+    public void scanLinks( WikiContext context,
+                           String pagedata,
+                           StringTransmutator localLinkHook,
+                           StringTransmutator extLinkHook,
+                           StringTransmutator attLinkHook,
+                           StringTransmutator pluginHook )
+    {
+        if( pagedata == null )
+        {
+            log.error("NULL pagedata to scanLinks()");
+            return;
+        }
+
+        TranslatorReader in = null;
+
+        try
+        {
+            if( runFilters( context ) )
+                pagedata = doPreTranslateFiltering( context, pagedata );
+
+            in = getTranslatorReader( context, new StringReader( pagedata ) );
+
+            in.addLocalLinkHook( localLinkHook );
+            in.addExternalLinkHook( extLinkHook );
+            in.addAttachmentLinkHook( attLinkHook );
+            in.addPluginHook( pluginHook );
+            in.disableAccessRules();
+
+            in.scanLinks();
+        }
+        catch( RenderBudgetException e )
+        {
+            m_engine.getRenderProfiler().overBudget();
+
+            log.warn( "Stopped looking for links on page '"+context.getPage().getName()+"': "+e.getMessage() );
+        }
+        catch( IOException e )
+        {
+            log.error("Failed to scan page data: ", e);
+        }
+        catch( FilterException e )
+        {
+            logFilterFailure( context, e );
+        }
+        finally
+        {
+            if( in != null ) releaseTranslatorReader( in );
+        }
+    }
+
+    /**
+     *  Converts WikiText into plain text, with all the markup removed.
+     *  Links are replaced by their texts, and plugins, variables and access
+     *  rules are left out.  This is much cheaper than producing HTML, and
+     *  is meant for search indexes and summaries.  The pre-translate
+     *  filters are run, but the post-translate filters are not, since
+     *  they work on HTML.
+     *
+     *  @param context   The WikiContext of the page.  Metadata found in the
+     *                   text is given to its page.
+     *  @param pagedata  The WikiText to convert.
+     *  @param maxLength The largest number of characters to produce.  The
+     *                   text is read only as far as needed.  Zero means
+     *                   no limit.
+     *  @return Plain text, or null, if the pagedata was null.
+     *  @since 2.2.29
+     */
+    public String textToPlainText( WikiContext context, String pagedata, int maxLength )
+    {
+        if( pagedata == null )
+        {
+            log.error("NULL pagedata to textToPlainText()");
+            return null;
+        }
+
+        TranslatorReader in = null;
+
+        try
+        {
+            if( runFilters( context ) )
+                pagedata = doPreTranslateFiltering( context, pagedata );
+
+            in = getTranslatorReader( context, new StringReader( pagedata ) );
+
+            return in.toPlainText( maxLength );
+        }
+        catch( RenderBudgetException e )
+        {
+            m_engine.getRenderProfiler().overBudget();
+
+            log.warn( "Page '"+context.getPage().getName()+"' used as plain text as is: "+e.getMessage() );
+        }
+        catch( IOException e )
+        {
+            log.error("Failed to convert page data: ", e);
+        }
+        catch( FilterException e )
+        {
+            logFilterFailure( context, e );
+        }
+        finally
+        {
+            if( in != null ) releaseTranslatorReader( in );
+        }
+
+        return maxLength > 0 && pagedata.length() > maxLength ? pagedata.substring( 0, maxLength ) : pagedata;
+    }
+
+    /**
+     *  Logs a page filter which failed while the page was being read, so
+     *  that a page which comes out empty or unfiltered can be explained.
+     */
+    private void logFilterFailure( WikiContext context, FilterException e )
+    {
+        String name = (context.getPage() != null) ? context.getPage().getName() : null;
+
+        log.error( "Page filters failed on page '"+name+"': "+e.getMessage(), e );
+    }
+
+    /**
+     *  Returns a Writer which runs the post-translate filters on everything
+     *  written to it, or null, if the filters cannot be run on the fly.
+     *  The returned Writer must be closed, unless it is the given Writer
+     *  itself.
+     */
+    private Writer getFilteredWriter( WikiContext context, Writer out )
+    {
+        if( !runFilters( context ) ) return out;
+
+        try
+        {
+            return m_engine.getFilterManager().getPostTranslateWriter( context, out );
+        }
+        catch( FilterException e )
+        {
+            log.info( "Page filters cannot stream, falling back to String", e );
+        }
+
+        return null;
+    }
+
+    /**
+     *  Converts raw page data into HTML.  The result is not cached.
+     *
+     *  @param context The WikiContext in which the rendering happens.
+     *  @param pagedata The WikiText to convert.
+     *  @param localLinkHook Gets called for each local link.  May be null.
+     *  @param extLinkHook   Gets called for each external link.  May be null.
+     *  @param attLinkHook   Gets called for each attachment link.  May be null.
+     *  @param parseAccessRules If false, access rules are not parsed.
+     *  @return HTML, or null, if the pagedata was null.
+     */
+    public String textToHTML( WikiContext context,
+                              String pagedata,
+                              StringTransmutator localLinkHook,
+                              StringTransmutator extLinkHook,
+                              StringTransmutator attLinkHook,
+                              boolean            parseAccessRules )
+    {
+        if( pagedata == null )
+        {
+            log.error("NULL pagedata to textToHTML()");
+            return null;
+        }
+
+        return render( context, pagedata,
+                       localLinkHook, extLinkHook, attLinkHook,
+                       parseAccessRules ).m_html;
+    }
+
+    /**
+     *  Does the actual translation, including the running of the page filters.
+     */
+    private RenderResult render( WikiContext context,
+                                 String pagedata,
+                                 StringTransmutator localLinkHook,
+                                 StringTransmutator extLinkHook,
+                                 StringTransmutator attLinkHook,
+                                 boolean            parseAccessRules )
+    {
+        RenderResult result = new RenderResult();
+        TranslatorReader in = null;
+
+        boolean runFilters = runFilters( context );
+
+        try
+        {
+            if( runFilters )
+                pagedata = doPreTranslateFiltering( context, pagedata );
+
+            in = getTranslatorReader( context, new StringReader( pagedata ) );
+
+            in.addLocalLinkHook( localLinkHook );
+            in.addExternalLinkHook( extLinkHook );
+            in.addAttachmentLinkHook( attLinkHook );
+
+            if( !parseAccessRules ) in.disableAccessRules();
+            StringWriter out = new StringWriter();
+
+            RenderProfiler profiler = m_engine.getRenderProfiler();
+            long start = profiler.start();
+
+            in.translate( out );
+
+            profiler.stop( RenderProfiler.PHASE_TRANSLATE, start );
+
+            result.m_html = out.toString();
+
+            if( runFilters )
+                result.m_html = doPostTranslateFiltering( context, result.m_html );
+
+            result.m_isCacheable = in.isCacheable();
+        }
+        catch( RenderBudgetException e )
+        {
+            result.m_html = makeOverBudgetHTML( context, pagedata, e );
+        }
+        catch( IOException e )
+        {
+            log.error("Failed to scan page data: ", e);
+        }
+        catch( FilterException e )
+        {
+            logFilterFailure( context, e );
+        }
+        finally
+        {
+            if( in != null ) releaseTranslatorReader( in );
+        }
+
+        return result;
+    }
+
+    /**
+     *  Makes the HTML which is shown instead of a page that could not be
+     *  translated within its budget: a warning, followed by the WikiText
+     *  as preformatted text.  The text is cut, if it is too long.
+     */
+    private String makeOverBudgetHTML( WikiContext context, String pagedata, RenderBudgetException e )
+    {
+        m_engine.getRenderProfiler().overBudget();
+
+        log.warn( "Page '"+context.getPage().getName()+"' is shown as plain text: "+e.getMessage() );
+
+        int     max = m_engine.getTranslatorSettings().getMaxOutputSize();
+        boolean cut = max > 0 && pagedata.length() > max;
+
+        if( cut ) pagedata = pagedata.substring( 0, max );
+
+        return "<div class=\"error\">This page is too large or complex to be rendered, "+
+               "so it is shown as plain text"+(cut ? ", cut short" : "")+".</div>\n"+
+               "<pre>"+TextUtil.replaceEntities( pagedata )+(cut ? "\n..." : "")+"</pre>\n";
+    }
+
+    /**
+     *  Makes a WikiDocument of the page shown as plain text.  The metadata
+     *  is still found, so that the access rules of the page apply.
+     */
+    private WikiDocument makeOverBudgetDocument( WikiContext context, String pagedata,
+                                                 RenderBudgetException e )
+    {
+        WikiDocument doc = new WikiDocument( context.getPage().getName() );
+
+        doc.setContent( makeOverBudgetHTML( context, pagedata, e ) );
+
+        boolean contextFree = m_engine.getMetadataManager().extractMetadata( context, pagedata );
+
+        doc.setMetadata( context.getPage() );
+        doc.setContextFree( contextFree );
+
+        return doc;
+    }
+
+    /**
+     *  Returns a TranslatorReader for the given context and input.  An idle
+     *  reader is reused, if there is one.  The reader should be given back
+     *  with releaseTranslatorReader() when it is no longer needed.
+     *
+     *  @param context The WikiContext for the translation.
+     *  @param in      The WikiText to translate.  May be null.
+     *  @return A TranslatorReader using the default HTML renderer.
+     */
+    public TranslatorReader getTranslatorReader( WikiContext context, Reader in )
+    {
+        TranslatorReader reader = null;
+
+        synchronized( m_readerPool )
+        {
+            if( m_readerPool.size() > 0 )
+            {
+                reader = (TranslatorReader) m_readerPool.remove( m_readerPool.size()-1 );
+            }
+        }
+
+        if( reader == null )
+        {
+            return new TranslatorReader( context, in );
+        }
+
+        reader.reset( context, in );
+
+        return reader;
+    }
+
+    /**
+     *  Gives back a TranslatorReader acquired with getTranslatorReader(),
+     *  so that it can be reused.  The reader may not be used after this.
+     *
+     *  @param reader The reader.
+     */
+    public void releaseTranslatorReader( TranslatorReader reader )
+    {
+        reader.close();
+
+        synchronized( m_readerPool )
+        {
+            if( m_readerPool.size() < MAX_POOLED_READERS )
+            {
+                m_readerPool.add( reader );
+            }
+        }
+    }
+
+    /**
+     *  Runs the pre-translate filters.
+     */
+    private String doPreTranslateFiltering( WikiContext context, String pagedata )
+        throws FilterException
+    {
+        RenderProfiler profiler = m_engine.getRenderProfiler();
+        long start = profiler.start();
+
+        pagedata = m_engine.getFilterManager().doPreTranslateFiltering( context, pagedata );
+
+        profiler.stop( RenderProfiler.PHASE_PREFILTERS, start );
+
+        return pagedata;
+    }
+
+    /**
+     *  Runs the post-translate filters.
+     */
+    private String doPostTranslateFiltering( WikiContext context, String html )
+        throws FilterException
+    {
+        RenderProfiler profiler = m_engine.getRenderProfiler();
+        long start = profiler.start();
+
+        html = m_engine.getFilterManager().doPostTranslateFiltering( context, html );
+
+        profiler.stop( RenderProfiler.PHASE_POSTFILTERS, start );
+
+        return html;
+    }
+
+    private boolean runFilters( WikiContext context )
+    {
+        return "true".equals( m_engine.getVariableManager().getValue( context,
+                                                                      WikiEngine.PROP_RUNFILTERS,
+                                                                      "true" ) );
+    }
+
+    /**
+     *  Returns a string which describes those parts of the context that
+     *  affect the rendering of a page.  Cached copies are only good for
+     *  contexts with the same variant.
+     */
+    private String getVariant( WikiContext context )
+    {
+        return m_engine.getVariable( context, WikiEngine.PROP_REFSTYLE )+"|"+
+               m_engine.getVariable( context, TranslatorReader.PROP_RUNPLUGINS )+"|"+
+               m_engine.getVariable( context, WikiEngine.PROP_RUNFILTERS );
+    }
+
+    private synchronized long getFlushCount()
+    {
+        return m_flushCount;
+    }
+
+    /**
+     *  Returns a valid cached copy of the page, or null, if there is none.
+     */
+    private CachedPage getFromCache( WikiPage page, String variant )
+    {
+        CachedPage cached = null;
+
+        try
+        {
+            cached = (CachedPage) m_cache.getFromCache( page.getName(), CACHE_EXPIRY_PERIOD );
+        }
+        catch( NeedsRefreshException e )
+        {
+            // Not in the cache, or expired.
+        }
+
+        if( cached != null && !cached.isValidFor( page, variant,
+                                                  m_engine.getFilterManager().getModificationCount() ) )
+        {
+            cached = null;
+        }
+
+        synchronized( this )
+        {
+            if( cached != null ) m_cacheHits++; else m_cacheMisses++;
+        }
+
+        return cached;
+    }
+
+    /**
+     *  Returns true, if the cache has a newer version of the page.
+     */
+    private boolean hasNewerVersion( WikiPage page )
+    {
+        try
+        {
+            CachedPage cached = (CachedPage) m_cache.getFromCache( page.getName(), CACHE_EXPIRY_PERIOD );
+
+            return cached != null && cached.m_version > page.getVersion();
+        }
+        catch( NeedsRefreshException e )
+        {
+            return false;
+        }
+    }
+
+    /**
+     *  Puts a document in the cache, along with its HTML, if the HTML can
+     *  be used again.  Since the cache is keyed by the page name, an old
+     *  version is not put in the place of a newer one, so that viewing old
+     *  versions does not push the latest one out.
+     *
+     *  @param result The result of rendering the document.  May be null.
+     *         If it has plugin outputs but no HTML, the document was
+     *         streamed, and the HTML can be kept the next time.
+     */
+    private void putInCache( WikiPage page, String variant,
+                             WikiDocument doc, RenderResult result, long flushCount )
+    {
+        String     html    = null;
+        Collection outputs = null;
+
+        if( result != null )
+        {
+            if( result.m_isCacheable )
+            {
+                html = result.m_html;
+            }
+            else if( result.m_pluginOutputs != null )
+            {
+                html    = result.m_html;
+                outputs = result.m_pluginOutputs;
+            }
+        }
+
+        CachedPage cached = new CachedPage( page,
+                                            variant,
+                                            m_engine.getFilterManager().getModificationCount(),
+                                            doc,
+                                            html,
+                                            outputs );
+
+        synchronized( this )
+        {
+            //
+            //  If something was flushed while we were rendering, the links
+            //  in the HTML may already be wrong.
+            //
+            if( flushCount == m_flushCount && !hasNewerVersion( page ) )
+            {
+                m_cache.putInCache( page.getName(), cached );
+            }
+        }
+    }
+
+    /**
+     *  Removes a single page from the cache.
+     *
+     *  @param sections If true, the parsed sections of the page are removed as well.
+     */
+    private void flushEntry( String name, boolean sections )
+    {
+        m_cache.flushEntry( name );
+
+        if( sections && m_sectionCache != null ) m_sectionCache.flushEntry( name );
+    }
+
+    /**
+     *  Removes the cached copies of the given page and all pages which refer to it.
+     *  If the page is an attachment, the page it is attached to is flushed as well.
+     *  This should be called whenever a page is created, modified or removed.
+     *  <p>
+     *  The parsed sections of the page itself are kept, since they are only
+     *  reused for exactly the same text.  The sections of the other pages are
+     *  removed, since they may contain links to attachments of this page.
+     *
+     *  @param page The page which was changed.
+     */
+    public void flushPage( WikiPage page )
+    {
+        if( page == null ) return;
+
+        m_engine.getPluginManager().pageChanged( page );
+
+        if( m_cache == null ) return;
+
+        synchronized( this )
+        {
+            m_flushCount++;
+        }
+
+        flushEntry( page.getName(), false );
+
+        if( page instanceof Attachment )
+        {
+            flushEntry( ((Attachment)page).getParentName(), true );
+        }
+
+        ReferenceManager mgr = m_engine.getReferenceManager();
+
+        if( mgr != null )
+        {
+            Collection referrers = mgr.findReferrers( page.getName() );
+
+            if( referrers != null )
+            {
+                for( Iterator i = new ArrayList(referrers).iterator(); i.hasNext(); )
+                {
+                    flushEntry( (String) i.next(), true );
+                }
+            }
+        }
+    }
+
+    /**
+     *  Removes everything from the cache.
+     */
+    public void flushAll()
+    {
+        if( m_cache == null ) return;
+
+        synchronized( this )
+        {
+            m_flushCount++;
+        }
+
+        Date now = new Date();
+
+        m_cache.flushAll( now );
+
+        if( m_sectionCache != null ) m_sectionCache.flushAll( now );
+    }
+
+    /**
+     *  Flushes the cached copies affected by the save.
+     */
+    public void postSave( WikiContext context, String content )
+    {
+        flushPage( context.getPage() );
+    }
+
+    /**
+     *  Returns a human-readable description of the cache status.
+     */
+    public synchronized String getCacheInfo()
+    {
+        if( m_cache == null ) return "Rendering cache is disabled.";
+
+        String info = "Rendering cache hits: "+m_cacheHits+", misses: "+m_cacheMisses;
+
+        if( m_sectionCache != null )
+        {
+            info += ", sections reused: "+m_sectionsReused+", parsed: "+m_sectionsParsed;
+        }
+
+        return info;
+    }
+
+    /**
+     *  The result of a single translation.
+     */
+    private static class RenderResult
+    {
+        String     m_html = "";
+        boolean    m_isCacheable = false;
+
+        /** The cached plugin outputs the HTML depends on, or null. */
+        Collection m_pluginOutputs = null;
+    }
+
+    /**
+     *  A parsed section of a page.
+     */
+    private static class Section
+    {
+        final String       m_text;
+        final boolean      m_midLine;
+        final WikiDocument m_document;
+        final boolean      m_endsAtBreak;
+
+        Section( String text, boolean midLine, WikiDocument doc, boolean endsAtBreak )
+        {
+            m_text        = text;
+            m_midLine     = midLine;
+            m_document    = doc;
+            m_endsAtBreak = endsAtBreak;
+        }
+    }
+
+    /**
+     *  The sections of the latest parse of a page, keyed by their WikiText.
+     *  They are only good for contexts with the same variant.
+     */
+    private static class SectionedPage
+    {
+        final String m_variant;
+        final Map    m_sections = new HashMap();
+
+        SectionedPage( String variant )
+        {
+            m_variant = variant;
+        }
+
+        void put( Section section )
+        {
+            m_sections.put( section.m_text, section );
+        }
+
+        Section get( String text, boolean midLine )
+        {
+            Section section = (Section) m_sections.get( text );
+
+            if( section != null && section.m_midLine == midLine ) return section;
+
+            return null;
+        }
+    }
+
+    /**
+     *  A parsed page, along with the information which is needed
+     *  to figure out if it is still valid.  The rendered HTML is
+     *  stored too, if it does not depend on the context, or only depends
+     *  on cached plugin outputs.
+     */
+    private static class CachedPage
+    {
+        final WikiDocument      m_document;
+        final String            m_html;
+        final int               m_version;
+        final long              m_lastModified;
+        final String            m_variant;
+        final int               m_filterCount;
+        final Collection        m_pluginOutputs;
+
+        CachedPage( WikiPage page, String variant, int filterCount,
+                    WikiDocument doc, String html, Collection pluginOutputs )
+        {
+            m_document     = doc;
+            m_html         = html;
+            m_pluginOutputs = pluginOutputs;
+            m_version      = page.getVersion();
+            m_lastModified = page.getLastModified().getTime();
+            m_variant      = variant;
+            m_filterCount  = filterCount;
+        }
+
+        /**
+         *  Returns true, if the HTML was stored and can still be used.
+         */
+        boolean hasValidHTML()
+        {
+            return m_html != null &&
+                   (m_pluginOutputs == null || PluginCache.isValid( m_pluginOutputs ));
+        }
+
+        boolean isValidFor( WikiPage page, String variant, int filterCount )
+        {
+            return page.getVersion() == m_version &&
+                   page.getLastModified() != null &&
+                   page.getLastModified().getTime() == m_lastModified &&
+                   m_variant.equals( variant ) &&
+                   m_filterCount == filterCount;
+        }
+    }
+}
@@ -26,6 +26,7 @@ import org.apache.log4j.Logger;
 import org.apache.oro.text.*;
 import org.apache.oro.text.regex.*;
 
+import com.ecyrd.jspwiki.plugin.PluginExecutor;
 import com.ecyrd.jspwiki.plugin.PluginManager;
 import com.ecyrd.jspwiki.plugin.PluginException;
 import com.ecyrd.jspwiki.attachment.AttachmentManager;
@@ -70,7 +71,19 @@ public class TranslatorReader extends Reader
     /** Allow this many characters to be pushed back in the stream.  In effect,
         this limits the size of a single heading line.  */
     private static final int              PUSHBACK_BUFFER_SIZE = 10*1024;
-    private PushbackReader m_in;
+
+    /** The time and output budget is checked after this many characters of input. */
+    private static final int              BUDGET_CHECK_INTERVAL = 1024;
+
+    private static final int              DEFAULT_MAXTIME       = 10*1000;
+    private static final int              DEFAULT_MAXOUTPUTSIZE = 5*1024*1024;
+
+    private Reader         m_in;
+
+    /** Characters pushed back to the input, last one on top.  The buffer is
+        allocated once, and reused when the input is replaced. */
+    private char[]         m_pushback;
+    private int            m_pushbackPos = 0;
 
     private StringReader   m_data = new StringReader("");
 
@@ -106,10 +119,11 @@ public class TranslatorReader extends Reader
     private ArrayList      m_localLinkMutatorChain    = new ArrayList();
     private ArrayList      m_externalLinkMutatorChain = new ArrayList();
     private ArrayList      m_attachmentLinkMutatorChain = new ArrayList();
+    private ArrayList      m_pluginMutatorChain       = new ArrayList();
     private ArrayList      m_headingListenerChain     = new ArrayList();
 
     /** Keeps image regexp Patterns */
-    private ArrayList      m_inlineImagePatterns;
+    private List           m_inlineImagePatterns;
 
     private PatternMatcher m_inlineMatcher = new Perl5Matcher();
 
@@ -141,6 +155,35 @@ public class TranslatorReader extends Reader
 
     /** If set to "true", enables plugins during parsing */
     public static final String     PROP_RUNPLUGINS       = "jspwiki.translatorReader.runPlugins";
+
+    /** If set to "true", CamelCase links and external links are recognized
+        using the old regular expression code instead of LinkScanner. */
+    public static final String     PROP_USEREGEXPSCANNER = "jspwiki.translatorReader.useRegexpScanner";
+
+    /**
+     *  The longest time in milliseconds that the translation of a page may
+     *  take.  Zero means no limit.  Default is 10 seconds.
+     *
+     *  @since 2.2.29
+     */
+    public static final String     PROP_MAXTIME          = "jspwiki.translatorReader.maxTime";
+
+    /**
+     *  The largest number of characters of HTML that the translation of
+     *  a page may produce.  Zero means no limit.  Default is 5 MB.
+     *
+     *  @since 2.2.29
+     */
+    public static final String     PROP_MAXOUTPUTSIZE    = "jspwiki.translatorReader.maxOutputSize";
+
+    /**
+     *  While a WikiDocument is rendered with render(), it is available
+     *  in this WikiContext variable, so that plugins can use what was
+     *  found when the page was parsed, like the headings.
+     *
+     *  @since 2.2.29
+     */
+    public static final String     VAR_DOCUMENT          = "jspwiki.translatorReader.document";
     
     /** If true, then considers CamelCase links as well. */
     private boolean                m_camelCaseLinks      = false;
@@ -161,13 +204,76 @@ public class TranslatorReader extends Reader
     private boolean                m_useRelNofollow      = false;
 
     private boolean                m_inlineImages        = true;
+
+    /** If true, uses the regexp patterns instead of LinkScanner. */
+    private boolean                m_useRegexpScanner    = false;
+
+    /** Becomes false, if the output depends on something else than the page itself. */
+    private boolean                m_isCacheable         = true;
+
+    /** If not null, we are parsing into this document instead of resolving
+        links, plugins and variables right away. */
+    private WikiDocument           m_document            = null;
+
+    /** If true, we are only looking for links, and the output is thrown away. */
+    private boolean                m_scanOnly            = false;
+
+    /** If true, we are producing plain text instead of HTML. */
+    private boolean                m_plainText           = false;
+
+    /** Stop reading the input, once this many characters have been
+        produced.  Zero for no limit. */
+    private int                    m_outputLimit         = 0;
+
+    /** If true, the input starts in the middle of a line, right after a ruler. */
+    private boolean                m_startMidLine        = false;
+
+    /** True, if the last thing read was a ruler at the start of a line,
+        or the end of a heading line. */
+    private boolean                m_sectionBreak        = false;
+
+    /** True, if the current line is a heading. */
+    private boolean                m_isHeading           = false;
+
+    /** True, if the input ended at a section break, with nothing left open. */
+    private boolean                m_endedAtBreak        = false;
+
+    /** While rendering a WikiDocument, the page names which were resolved
+        in one go, mapped to their final names.  Null otherwise. */
+    private Map                    m_resolvedLinks       = null;
+
+    /** While rendering a WikiDocument, the cached plugin outputs which were
+        used.  Set to null as soon as something else depends on the context. */
+    private ArrayList              m_pluginOutputs       = null;
+
+    /** While rendering a WikiDocument, the plugins running in the
+        background, keyed by their PluginNodes.  Null otherwise. */
+    private Map                    m_pluginJobs          = null;
+
+    /** When to stop waiting for the plugins running in the background. */
+    private long                   m_pluginDeadline      = 0;
+
+    private int                    m_maxTime             = DEFAULT_MAXTIME;
+    private int                    m_maxOutputSize       = DEFAULT_MAXOUTPUTSIZE;
+
+    /** When the translation must be stopped; zero for never, and -1,
+        if the translation has not yet started. */
+    private long                   m_deadline            = -1;
+
+    /** The number of characters of HTML produced so far. */
+    private long                   m_outputSize          = 0;
+
+    /** How many characters may still be read before checking the budget. */
+    private int                    m_budgetCountdown     = BUDGET_CHECK_INTERVAL;
     
     private PatternMatcher         m_matcher  = new Perl5Matcher();
-    private PatternCompiler        m_compiler = new Perl5Compiler();
     private Pattern                m_camelCasePtrn;
 
     private TextRenderer           m_renderer;
 
+    /** Collects the current word while looking for CamelCase links. */
+    private StringBuffer           m_word     = new StringBuffer();
+
     /**
      *  The default inlining pattern.  Currently "*.png"
      */
@@ -226,8 +332,16 @@ public class TranslatorReader extends Reader
 
         if( in != null )
         {
-            m_in = new PushbackReader( new BufferedReader( in ),
-                                       PUSHBACK_BUFFER_SIZE );
+            if( in instanceof StringReader || in instanceof BufferedReader )
+            {
+                m_in = in;
+            }
+            else
+            {
+                m_in = new BufferedReader( in );
+            }
+
+            m_pushbackPos = 0;
         }
 
         return old;
@@ -237,56 +351,86 @@ public class TranslatorReader extends Reader
      *  @param engine The WikiEngine this reader is attached to.  Is
      * used to figure out of a page exits.
      */
-
-    // FIXME: TranslatorReaders should be pooled for better performance.
     private void initialize( WikiContext context, 
                              Reader in, 
                              TextRenderer renderer )
     {
-        PatternCompiler compiler         = new GlobCompiler();
-        ArrayList       compiledpatterns = new ArrayList();
+        m_renderer = renderer;
 
+        reset( context, in );
+    }
+
+    /**
+     *  Makes this TranslatorReader ready to translate a new page, as if
+     *  it had just been created with the given context and input.  All
+     *  hooks and heading listeners are removed, and the settings are
+     *  read again from the engine.  This allows TranslatorReaders to be
+     *  reused, so that they need not be set up again for every page.
+     *
+     *  @param context The WikiContext of the new page.
+     *  @param in      The new input.  May be null.
+     *  @since 2.2.29
+     */
+    public void reset( WikiContext context, Reader in )
+    {
         m_engine = context.getEngine();
         m_context = context;
 
-        m_renderer = renderer;
-
+        m_in = null;
+        m_pushbackPos = 0;
         setInputReader( in );
 
-        Collection ptrns = getImagePatterns( m_engine );
-
-        //
-        //  Make them into Regexp Patterns.  Unknown patterns
-        //  are ignored.
-        //
-        for( Iterator i = ptrns.iterator(); i.hasNext(); )
-        {
-            try
-            {       
-                compiledpatterns.add( compiler.compile( (String)i.next() ) );
-            }
-            catch( MalformedPatternException e )
-            {
-                log.error("Malformed pattern in properties: ", e );
-            }
-        }
-
-        m_inlineImagePatterns = compiledpatterns;
-
-        try
-        {
-            m_camelCasePtrn = m_compiler.compile( "^([[:^alnum:]]*|\\~)([[:upper:]]+[[:lower:]]+[[:upper:]]+[[:alnum:]]*)[[:^alnum:]]*$" );
-        }
-        catch( MalformedPatternException e )
-        {
-            log.fatal("Internal error: Someone put in a faulty pattern.",e);
-            throw new InternalWikiException("Faulty camelcasepattern in TranslatorReader");
+        m_data                = new StringReader("");
+        m_isbold              = false;
+        m_isitalic            = false;
+        m_isTypedText         = false;
+        m_istable             = false;
+        m_isPre               = false;
+        m_isEscaping          = false;
+        m_isdefinition        = false;
+        m_styleStack.clear();
+        m_genlistlevel        = 0;
+        m_genlistBulletBuffer.setLength( 0 );
+        m_isOpenParagraph     = false;
+        m_closeTag            = null;
+        m_enablePlugins       = true;
+        m_inlineImages        = true;
+        m_isCacheable         = true;
+        m_document            = null;
+        m_scanOnly            = false;
+        m_plainText           = false;
+        m_outputLimit         = 0;
+        m_resolvedLinks       = null;
+        m_pluginOutputs       = null;
+        m_pluginJobs          = null;
+        m_startMidLine        = false;
+        m_sectionBreak        = false;
+        m_isHeading           = false;
+        m_endedAtBreak        = false;
+        m_parseAccessRules    = true;
+        m_deadline            = -1;
+        m_outputSize          = 0;
+        m_budgetCountdown     = BUDGET_CHECK_INTERVAL;
+
+        m_localLinkMutatorChain.clear();
+        m_externalLinkMutatorChain.clear();
+        m_attachmentLinkMutatorChain.clear();
+        m_pluginMutatorChain.clear();
+        m_headingListenerChain.clear();
+        m_linkMutators.clear();
+
+        if( m_renderer instanceof HTMLRenderer )
+        {
+            ((HTMLRenderer)m_renderer).reset();
         }
 
         //
         //  Set the properties.
         //
-        Properties props      = m_engine.getWikiProperties();
+        Settings settings = m_engine.getTranslatorSettings();
+
+        m_inlineImagePatterns = settings.m_inlineImagePatterns;
+        m_camelCasePtrn       = settings.m_camelCasePtrn;
 
         String cclinks = (String)m_context.getPage().getAttribute( PROP_CAMELCASELINKS );
 
@@ -296,24 +440,16 @@ public class TranslatorReader extends Reader
         }
         else
         {
-            m_camelCaseLinks  = TextUtil.getBooleanProperty( props,
-                                                             PROP_CAMELCASELINKS, 
-                                                             m_camelCaseLinks );
+            m_camelCaseLinks = settings.m_camelCaseLinks;
         }
 
-        m_plainUris           = TextUtil.getBooleanProperty( props,
-                                                             PROP_PLAINURIS,
-                                                             m_plainUris );
-        m_useOutlinkImage     = TextUtil.getBooleanProperty( props,
-                                                             PROP_USEOUTLINKIMAGE, 
-                                                             m_useOutlinkImage );
-        m_allowHTML           = TextUtil.getBooleanProperty( props,
-                                                             PROP_ALLOWHTML, 
-                                                             m_allowHTML );
-
-        m_useRelNofollow      = TextUtil.getBooleanProperty( props,
-                                                             PROP_USERELNOFOLLOW,
-                                                             m_useRelNofollow );
+        m_plainUris           = settings.m_plainUris;
+        m_useOutlinkImage     = settings.m_useOutlinkImage;
+        m_allowHTML           = settings.m_allowHTML;
+        m_useRelNofollow      = settings.m_useRelNofollow;
+        m_useRegexpScanner    = settings.m_useRegexpScanner;
+        m_maxTime             = settings.m_maxTime;
+        m_maxOutputSize       = settings.m_maxOutputSize;
     
         String runplugins = m_engine.getVariable( m_context, PROP_RUNPLUGINS );
         if( runplugins != null ) enablePlugins( TextUtil.isPositive(runplugins));
@@ -394,6 +530,22 @@ public class TranslatorReader extends Reader
         }
     }
 
+    /**
+     *  Adds a hook for processing plugin command lines.  The hook gets
+     *  the whole command line, including the plugin name, whether or
+     *  not plugins are run.
+     *
+     *  @param mutator The hook to call.  Null is safe.
+     *  @since 2.2.29
+     */
+    public void addPluginHook( StringTransmutator mutator )
+    {
+        if( mutator != null )
+        {
+            m_pluginMutatorChain.add( mutator );
+        }
+    }
+
     public void addHeadingListener( HeadingListener listener )
     {
         if( listener != null )
@@ -417,6 +569,34 @@ public class TranslatorReader extends Reader
         m_enablePlugins = toggle;
     }
 
+    /**
+     *  Returns true, if the output produced so far depends only on the
+     *  page text and the existence of the pages it links to.  Plugins and
+     *  variables make the output dependent on the context, so it may not
+     *  be cached.
+     *
+     *  @since 2.2.29
+     */
+    public boolean isCacheable()
+    {
+        return m_isCacheable;
+    }
+
+    /**
+     *  Returns the cached plugin outputs which the last WikiDocument
+     *  rendered with render() depends on.  If they all stay valid, the
+     *  same HTML can be used again.
+     *
+     *  @return A Collection of PluginCache.Outputs, or null, if the HTML
+     *          also depends on plugins which could not be cached, or on
+     *          variables.
+     *  @since 2.2.29
+     */
+    public Collection getPluginOutputs()
+    {
+        return m_pluginOutputs;
+    }
+
     /**
      *  Use this to turn on or off image inlining.
      *  @param toggle If true, images are inlined (as per set in jspwiki.properties)
@@ -459,6 +639,104 @@ public class TranslatorReader extends Reader
         return ptrnlist;
     }
 
+    /**
+     *  Contains those settings of a TranslatorReader which come from the
+     *  WikiEngine properties, including the compiled patterns.  The
+     *  settings are immutable, and are created only once per WikiEngine,
+     *  instead of once per TranslatorReader.
+     *
+     *  @see WikiEngine#getTranslatorSettings()
+     *  @since 2.2.29
+     */
+    public static final class Settings
+    {
+        private final List    m_inlineImagePatterns;
+        private final Pattern m_camelCasePtrn;
+        private final boolean m_camelCaseLinks;
+        private final boolean m_plainUris;
+        private final boolean m_useOutlinkImage;
+        private final boolean m_allowHTML;
+        private final boolean m_useRelNofollow;
+        private final boolean m_useRegexpScanner;
+        private final int     m_maxTime;
+        private final int     m_maxOutputSize;
+
+        /**
+         *  Reads the settings from the properties of the given engine.
+         */
+        public Settings( WikiEngine engine )
+        {
+            PatternCompiler compiler         = new GlobCompiler();
+            ArrayList       compiledpatterns = new ArrayList();
+
+            Collection ptrns = getImagePatterns( engine );
+
+            //
+            //  Make them into Regexp Patterns.  Unknown patterns
+            //  are ignored.
+            //
+            for( Iterator i = ptrns.iterator(); i.hasNext(); )
+            {
+                try
+                {       
+                    compiledpatterns.add( compiler.compile( (String)i.next() ) );
+                }
+                catch( MalformedPatternException e )
+                {
+                    log.error("Malformed pattern in properties: ", e );
+                }
+            }
+
+            m_inlineImagePatterns = Collections.unmodifiableList( compiledpatterns );
+
+            try
+            {
+                m_camelCasePtrn = new Perl5Compiler().compile( "^([[:^alnum:]]*|\\~)([[:upper:]]+[[:lower:]]+[[:upper:]]+[[:alnum:]]*)[[:^alnum:]]*$" );
+            }
+            catch( MalformedPatternException e )
+            {
+                log.fatal("Internal error: Someone put in a faulty pattern.",e);
+                throw new InternalWikiException("Faulty camelcasepattern in TranslatorReader");
+            }
+
+            Properties props = engine.getWikiProperties();
+
+            m_camelCaseLinks  = TextUtil.getBooleanProperty( props,
+                                                             PROP_CAMELCASELINKS, 
+                                                             false );
+            m_plainUris       = TextUtil.getBooleanProperty( props,
+                                                             PROP_PLAINURIS,
+                                                             false );
+            m_useOutlinkImage = TextUtil.getBooleanProperty( props,
+                                                             PROP_USEOUTLINKIMAGE, 
+                                                             true );
+            m_allowHTML       = TextUtil.getBooleanProperty( props,
+                                                             PROP_ALLOWHTML, 
+                                                             false );
+            m_useRelNofollow  = TextUtil.getBooleanProperty( props,
+                                                             PROP_USERELNOFOLLOW,
+                                                             false );
+            m_useRegexpScanner = TextUtil.getBooleanProperty( props,
+                                                              PROP_USEREGEXPSCANNER,
+                                                              false );
+            m_maxTime          = TextUtil.getIntegerProperty( props,
+                                                              PROP_MAXTIME,
+                                                              DEFAULT_MAXTIME );
+            m_maxOutputSize    = TextUtil.getIntegerProperty( props,
+                                                              PROP_MAXOUTPUTSIZE,
+                                                              DEFAULT_MAXOUTPUTSIZE );
+        }
+
+        /**
+         *  Returns the largest number of characters of HTML a page may
+         *  produce, or zero, if there is no limit.
+         */
+        public int getMaxOutputSize()
+        {
+            return m_maxOutputSize;
+        }
+    }
+
     /**
      *  Returns link name, if it exists; otherwise it returns null.
      */
@@ -467,6 +745,11 @@ public class TranslatorReader extends Reader
         try
 		{
 			if( page == null || page.length() == 0 ) return null;
+
+            if( m_resolvedLinks != null && m_resolvedLinks.containsKey( page ) )
+            {
+                return (String) m_resolvedLinks.get( page );
+            }
 			
             return m_engine.getFinalPageName( page );
         }
@@ -487,6 +770,37 @@ public class TranslatorReader extends Reader
      *  @return The result of the mutation.
      */
 
+    /**
+     *  Replaces the node placeholder characters of WikiDocument with
+     *  character references, which show the same characters.
+     */
+    private static String escapePlaceholders( String text )
+    {
+        if( text.indexOf( WikiDocument.NODE_START ) == -1 &&
+            text.indexOf( WikiDocument.NODE_END ) == -1 )
+        {
+            return text;
+        }
+
+        StringBuffer sb = new StringBuffer( text.length()+16 );
+
+        for( int i = 0; i < text.length(); i++ )
+        {
+            char ch = text.charAt( i );
+
+            if( ch == WikiDocument.NODE_START || ch == WikiDocument.NODE_END )
+            {
+                sb.append( "&#" ).append( (int)ch ).append( ';' );
+            }
+            else
+            {
+                sb.append( ch );
+            }
+        }
+
+        return sb.toString();
+    }
+
     private String callMutatorChain( Collection list, String text )
     {
         if( list == null || list.size() == 0 )
@@ -610,13 +924,16 @@ public class TranslatorReader extends Reader
      *  the most common protocols by checking how it starts.
      */
 
-    // FIXME: Should really put the external link types to a sorted set,
-    //        then searching for them would be faster.
-    private boolean isExternalLink( String link )
+    private boolean isExternalLink( CharSequence link )
     {
+        if( !m_useRegexpScanner )
+        {
+            return LinkScanner.isExternalLink( link );
+        }
+
         for( int i = 0; i < c_externalLinks.length; i++ )
         {
-            if( link.startsWith( c_externalLinks[i] ) ) return true;
+            if( link.toString().startsWith( c_externalLinks[i] ) ) return true;
         }
 
         return false;
@@ -689,11 +1006,16 @@ public class TranslatorReader extends Reader
      *  @return The match within the phrase.  Returns null, if no CamelCase
      *          hyperlink exists within this phrase.
      */
-    private String checkForCamelCaseLink( String word )
+    private String checkForCamelCaseLink( StringBuffer word )
     {
+        if( !m_useRegexpScanner )
+        {
+            return LinkScanner.findCamelCase( word );
+        }
+
         PatternMatcherInput input;
 
-        input = new PatternMatcherInput( word );
+        input = new PatternMatcherInput( word.toString() );
 
         if( m_matcher.contains( input, m_camelCasePtrn ) )
         {
@@ -729,21 +1051,46 @@ public class TranslatorReader extends Reader
      */
     private String makeCamelCaseLink( String wikiname )
     {
-        String matchedLink;
-        String link;
-
         callMutatorChain( m_localLinkMutatorChain, wikiname );
 
-        if( (matchedLink = linkExists( wikiname )) != null )
+        return makeLocalLink( wikiname, wikiname, null );
+    }
+
+    /**
+     *  Makes a link to a local WikiPage, checking whether the page exists.
+     *  When parsing into a WikiDocument, the check is postponed until
+     *  the document is rendered.
+     *
+     *  @param page    The cleaned page name.
+     *  @param text    The link text.
+     *  @param section The named section within the page, or null.
+     */
+    private String makeLocalLink( String page, String text, String section )
+    {
+        if( m_scanOnly ) return "";
+
+        if( m_plainText ) return text;
+
+        if( m_document != null )
         {
-            link = makeLink( READ, matchedLink, wikiname );
+            return m_document.addNode( new LocalLinkNode( page, text, section ), false );
         }
-        else
+
+        String matchedLink = linkExists( page );
+
+        if( matchedLink != null )
         {
-            link = makeLink( EDIT, wikiname, wikiname );
+            if( section != null )
+            {
+                String sectref = "section-"+m_engine.encodeName(matchedLink)+"-"+section;
+                sectref = sectref.replace('%', '_');
+                return makeLink( READ, matchedLink, text, sectref );
+            }
+
+            return makeLink( READ, matchedLink, text );
         }
 
-        return link;
+        return makeLink( EDIT, page, text );
     }
 
     private String makeDirectURILink( String url )
@@ -797,6 +1144,10 @@ public class TranslatorReader extends Reader
         {
             res = makeLink( IMAGELINK, reallink, link );
         }
+        else if( m_document != null && hasLinkText )
+        {
+            res = m_document.addNode( new ImageLinkNode( reallink, link ), false );
+        }
         else if( (matchedLink = linkExists( possiblePage )) != null &&
                  hasLinkText )
         {
@@ -865,8 +1216,11 @@ public class TranslatorReader extends Reader
 
             if( name.length() > 0 && val.length() > 0 )
             {
-                val = m_engine.getVariableManager().expandVariables( m_context,
-                                                                     val );
+                String expanded = m_engine.getVariableManager().expandVariables( m_context,
+                                                                                 val );
+
+                if( !expanded.equals(val) ) m_isCacheable = false;
+                val = expanded;
             
                 m_context.getPage().setAttribute( name, val );
             }
@@ -900,27 +1254,19 @@ public class TranslatorReader extends Reader
 
         if( PluginManager.isPluginLink( link ) )
         {
-            String included = "";
-            try
-            {
-                if( m_enablePlugins )
-                {
-                    included = m_engine.getPluginManager().execute( m_context, link );
-                }
-            }
-            catch( PluginException e )
+            callMutatorChain( m_pluginMutatorChain, link );
+
+            if( m_scanOnly || m_plainText ) return "";
+
+            if( m_document != null )
             {
-                log.info( "Failed to insert plugin", e );
-                log.info( "Root cause:",e.getRootThrowable() );
-                included = m_renderer.makeError("Plugin insertion failed: "+e.getMessage());
+                return m_document.addNode( new PluginNode( link ), true );
             }
-                            
-            sb.append( included );
 
-            return sb.toString();
+            return insertPlugin( link );
         }
 
-        link = TextUtil.replaceEntities( link );
+        if( !m_plainText ) link = escapePlaceholders( TextUtil.replaceEntities( link ) );
 
         if( (cutpoint = link.indexOf('|')) != -1 )
         {                    
@@ -943,22 +1289,18 @@ public class TranslatorReader extends Reader
         //  
         if( VariableManager.isVariableLink( link ) )
         {
-            String value;
-            
-            try
+            if( m_scanOnly || m_plainText )
             {
-                value = m_engine.getVariableManager().parseAndGetValue( m_context, link );
+                // Variables cannot contain links, and may contain HTML.
             }
-            catch( NoSuchVariableException e )
+            else if( m_document != null )
             {
-                value = m_renderer.makeError(e.getMessage());
+                sb.append( m_document.addNode( new VariableNode( link ), true ) );
             }
-            catch( IllegalArgumentException e )
+            else
             {
-                value = m_renderer.makeError(e.getMessage());
+                sb.append( insertVariable( link ) );
             }
-
-            sb.append( value );
         }
         else if( isExternalLink( reallink ) )
         {
@@ -1054,17 +1396,7 @@ public class TranslatorReader extends Reader
 
                 callMutatorChain( m_localLinkMutatorChain, reallink );
 
-                String matchedLink;
-                if( (matchedLink = linkExists( reallink )) != null )
-                {
-                    String sectref = "section-"+m_engine.encodeName(matchedLink)+"-"+namedSection;
-                    sectref = sectref.replace('%', '_');
-                    sb.append( makeLink( READ, matchedLink, link, sectref ) );
-                }
-                else
-                {
-                    sb.append( makeLink( EDIT, reallink, link ) );
-                }
+                sb.append( makeLocalLink( reallink, link, namedSection ) );
             }
             else
             {
@@ -1073,22 +1405,62 @@ public class TranslatorReader extends Reader
 
                 callMutatorChain( m_localLinkMutatorChain, reallink );
 
-                String matchedLink = linkExists( reallink );
-				
-                if( matchedLink != null )
-				{
-                    sb.append( makeLink( READ, matchedLink, link ) );
-                }
-                else
-                {
-                    sb.append( makeLink( EDIT, reallink, link ) );
-                }
+                sb.append( makeLocalLink( reallink, link, null ) );
             }
         }
 
         return sb.toString();
     }
 
+    /**
+     *  Executes a plugin and returns its output.
+     */
+    private String insertPlugin( String link )
+    {
+        String included = "";
+        try
+        {
+            if( m_enablePlugins )
+            {
+                m_isCacheable = false;
+                included = m_engine.getPluginManager().execute( m_context, link, m_pluginOutputs );
+            }
+        }
+        catch( PluginException e )
+        {
+            log.info( "Failed to insert plugin", e );
+            log.info( "Root cause:",e.getRootThrowable() );
+            included = m_renderer.makeError("Plugin insertion failed: "+e.getMessage());
+        }
+
+        return included;
+    }
+
+    /**
+     *  Returns the value of a variable.
+     */
+    private String insertVariable( String link )
+    {
+        String value;
+
+        m_isCacheable = false;
+
+        try
+        {
+            value = m_engine.getVariableManager().parseAndGetValue( m_context, link );
+        }
+        catch( NoSuchVariableException e )
+        {
+            value = m_renderer.makeError(e.getMessage());
+        }
+        catch( IllegalArgumentException e )
+        {
+            value = m_renderer.makeError(e.getMessage());
+        }
+
+        return value;
+    }
+
     private String findAttachment( String link )
     {
         AttachmentManager mgr = m_engine.getAttachmentManager();
@@ -1215,6 +1587,9 @@ public class TranslatorReader extends Reader
         throws IOException
     {
         if( m_in == null ) return -1;
+
+        if( m_pushbackPos > 0 ) return m_pushback[--m_pushbackPos];
+
         return m_in.read();
     }
 
@@ -1227,7 +1602,17 @@ public class TranslatorReader extends Reader
     {        
         if( c != -1 && m_in != null )
         {
-            m_in.unread( c );
+            if( m_pushback == null )
+            {
+                m_pushback = new char[PUSHBACK_BUFFER_SIZE];
+            }
+
+            if( m_pushbackPos == m_pushback.length )
+            {
+                throw new RenderBudgetException("Pushback buffer overflow: a line is too long to be looked at");
+            }
+
+            m_pushback[m_pushbackPos++] = (char) c;
         }
     }
 
@@ -1393,7 +1778,7 @@ public class TranslatorReader extends Reader
         return res;
     }
 
-    private String handleDash()
+    private String handleDash( boolean newLine )
         throws IOException
     {
         int ch = nextToken();
@@ -1413,6 +1798,10 @@ public class TranslatorReader extends Reader
                     while( (ch = nextToken()) == '-' );
                     
                     pushBack(ch);
+
+                    //  A ruler on its own line separates sections.
+                    m_sectionBreak = newLine;
+
                     return startBlockLevel()+m_renderer.makeRuler();
                 }
         
@@ -1478,6 +1867,8 @@ public class TranslatorReader extends Reader
 
         callHeadingListenerChain( hd );
 
+        if( m_document != null ) m_document.addHeading( hd );
+
         return buf.toString();
     }
 
@@ -2013,18 +2404,53 @@ public class TranslatorReader extends Reader
         throws IOException
     {
         StringBuffer buf = new StringBuffer();
-        StringBuffer word = null;
-        int previousCh = -2;
-        int start = 0;
-        
-        boolean quitReading = false;
-        boolean newLine     = true; // FIXME: not true if reading starts in middle of buffer
 
-        while(!quitReading)
-        {
-            int ch = nextToken();
+        fillBuffer( buf );
+
+        m_data = new StringReader( buf.toString() );
+    }
+
+    /**
+     *  Translates the next piece of the input, usually a line, and
+     *  appends the HTML to the given buffer.  Nothing is appended,
+     *  if the input has ended.
+     */
+    private void fillBuffer( StringBuffer buf )
+        throws IOException
+    {
+        StringBuffer word = null;
+        int previousCh = -2;
+        int start = 0;
+        int base  = buf.length();
+        
+        boolean quitReading = false;
+        boolean newLine     = !m_startMidLine; // FIXME: not true if reading starts in middle of buffer
+
+        m_startMidLine = false;
+
+        if( m_deadline == -1 )
+        {
+            m_deadline = m_maxTime > 0 ? System.currentTimeMillis() + m_maxTime : 0;
+        }
+
+        while(!quitReading)
+        {
+            int ch = nextToken();
             String s = null;
 
+            if( --m_budgetCountdown <= 0 )
+            {
+                checkBudget( buf.length()-base );
+            }
+
+            if( m_outputLimit > 0 && m_outputSize+buf.length()-base >= m_outputLimit )
+            {
+                pushBack( ch );
+                break;
+            }
+
+            if( ch != -1 ) m_sectionBreak = false;
+
             //
             //  Check if we're actually ending the preformatted mode.
             //  We still must do an entity transformation here.
@@ -2065,7 +2491,8 @@ public class TranslatorReader extends Reader
                      newLine ) &&
                     !Character.isWhitespace( (char) ch ) )
                 {
-                    word = new StringBuffer();
+                    word = m_word;
+                    word.setLength( 0 );
                 }
 
                 // Are we currently tracking a word?
@@ -2079,16 +2506,14 @@ public class TranslatorReader extends Reader
                         ch == -1 ||
                         WORD_SEPARATORS.indexOf( (char) ch ) != -1 )
                     {
-                        String potentialLink = word.toString();
-
-                        String camelCase = checkForCamelCaseLink(potentialLink);
+                        String camelCase = checkForCamelCaseLink(word);
 
                         if( camelCase != null )
                         {
                             // System.out.println("Buffer is "+buf);
 
                             // System.out.println("  Replacing "+camelCase+" with proper link.");
-                            start = buf.toString().lastIndexOf( camelCase );
+                            start = buf.lastIndexOf( camelCase );
                             buf.replace(start,
                                         start+camelCase.length(),
                                         makeCamelCaseLink(camelCase) );
@@ -2098,10 +2523,12 @@ public class TranslatorReader extends Reader
                         else
                         {
                             // System.out.println("Checking for potential URI: "+potentialLink);
-                            if( isExternalLink( potentialLink ) )
+                            if( isExternalLink( word ) )
                             {
+                                String potentialLink = word.toString();
+
                                 // System.out.println("buf="+buf);
-                                start = buf.toString().lastIndexOf( potentialLink );
+                                start = buf.lastIndexOf( potentialLink );
 
                                 if( start >= 0 )
                                 {
@@ -2170,8 +2597,12 @@ public class TranslatorReader extends Reader
                 {
                     buf.append( m_closeTag );
                     m_closeTag = null;
+
+                    m_sectionBreak = m_isHeading;
                 }
 
+                m_isHeading = false;
+
                 m_isdefinition = false;
 
                 if( newLine )
@@ -2224,13 +2655,14 @@ public class TranslatorReader extends Reader
                 break;
 
               case '-':
-                s = handleDash();
+                s = handleDash( newLine );
                 break;
 
               case '!':
                 if( newLine )
                 {
                     s = handleHeading();
+                    m_isHeading = true;
                 }
                 else
                 {
@@ -2294,15 +2726,15 @@ public class TranslatorReader extends Reader
                 break;
 
               case '<':
-                s = m_allowHTML ? "<" : "&lt;";
+                s = m_allowHTML || m_plainText ? "<" : "&lt;";
                 break;
 
               case '>':
-                s = m_allowHTML ? ">" : "&gt;";
+                s = m_allowHTML || m_plainText ? ">" : "&gt;";
                 break;
 
               case '\"':
-                s = m_allowHTML ? "\"" : "&quot;";
+                s = m_allowHTML || m_plainText ? "\"" : "&quot;";
                 break;
 
                 /*
@@ -2314,6 +2746,12 @@ public class TranslatorReader extends Reader
                 s = handleTilde();
                 break;
 
+              case WikiDocument.NODE_START:
+              case WikiDocument.NODE_END:
+                m_renderer.doChar( buf, (char)ch );
+                newLine = false;
+                break;
+
               case '%':
                 s = handleDiv( newLine );
                 break;
@@ -2341,7 +2779,73 @@ public class TranslatorReader extends Reader
 
          }
 
-        m_data = new StringReader( buf.toString() );
+        m_outputSize += buf.length()-base;
+
+        checkBudget( 0 );
+    }
+
+    /**
+     *  Stops the translation, if it has taken too long or produced
+     *  too much HTML.
+     *
+     *  @param pending HTML produced, but not yet counted in m_outputSize.
+     *  @throws RenderBudgetException If the budget has been exceeded.
+     */
+    private void checkBudget( int pending )
+        throws RenderBudgetException
+    {
+        m_budgetCountdown = BUDGET_CHECK_INTERVAL;
+
+        if( m_deadline > 0 && System.currentTimeMillis() > m_deadline )
+        {
+            throw new RenderBudgetException( "Translation took longer than "+m_maxTime+" ms" );
+        }
+
+        if( m_maxOutputSize > 0 && m_outputSize+pending > m_maxOutputSize )
+        {
+            throw new RenderBudgetException( "Translation produced more than "+m_maxOutputSize+" characters" );
+        }
+    }
+
+    /**
+     *  Translates the rest of the input, writing the HTML to the given
+     *  Writer as it is produced.  This is faster than reading the
+     *  TranslatorReader, and never holds the whole page in memory.
+     *
+     *  @param out Where the HTML is written to.
+     *  @throws IOException If the input cannot be read or the output written.
+     *  @since 2.2.29
+     */
+    public void translate( Writer out )
+        throws IOException
+    {
+        //
+        //  Anything that has already been filled in but not read.
+        //
+        int ch;
+        while( (ch = m_data.read()) != -1 )
+        {
+            out.write( ch );
+        }
+
+        StringBuffer buf = new StringBuffer();
+
+        while( true )
+        {
+            buf.setLength( 0 );
+
+            fillBuffer( buf );
+
+            if( buf.length() == 0 ) break;
+
+            out.write( buf.toString() );
+        }
+
+        m_endedAtBreak = m_sectionBreak && isClean();
+
+        out.write( closeAll() );
+
+        m_data = new StringReader("");
     }
 
 
@@ -2369,7 +2873,27 @@ public class TranslatorReader extends Reader
     public int read( char[] buf, int off, int len )
         throws IOException
     {
-        return m_data.read( buf, off, len );
+        int val = m_data.read( buf, off, len );
+
+        if( val == -1 )
+        {
+            int ch = read();
+
+            if( ch == -1 ) return -1;
+
+            buf[off] = (char) ch;
+
+            if( len > 1 )
+            {
+                int more = m_data.read( buf, off+1, len-1 );
+
+                if( more > 0 ) return more+1;
+            }
+
+            return 1;
+        }
+
+        return val;
     }
 
     public boolean ready()
@@ -2388,6 +2912,434 @@ public class TranslatorReader extends Reader
     {
     }
 
+    /**
+     *  Goes through the entire input only to find the links, calling
+     *  the link hooks for each of them.  No HTML is produced, plugins
+     *  are not run, variables are not evaluated and links to WikiPages
+     *  are not checked for existence, so this is a lot faster than
+     *  reading the TranslatorReader and throwing the HTML away.
+     *  Metadata (SET) is still parsed.
+     *
+     *  @throws IOException If the input cannot be read.
+     *  @since 2.2.29
+     */
+    public void scanLinks()
+        throws IOException
+    {
+        TextRenderer renderer = m_renderer;
+
+        m_renderer = new TextRenderer();
+        m_scanOnly = true;
+
+        try
+        {
+            StringBuffer buf = new StringBuffer();
+
+            do
+            {
+                buf.setLength( 0 );
+                fillBuffer( buf );
+            }
+            while( buf.length() > 0 );
+        }
+        finally
+        {
+            m_scanOnly = false;
+            m_renderer = renderer;
+        }
+    }
+
+    /**
+     *  Converts the rest of the input into plain text, with all markup
+     *  removed: links are replaced by their texts, and plugins, variables
+     *  and access rules are left out.  The input is read only as far as
+     *  needed to produce the wanted amount of text.  Metadata (SET) found
+     *  on the way is still given to the page.
+     *
+     *  @param maxLength The largest number of characters to return.  Zero
+     *         means that the whole input is converted.
+     *  @return Plain text.
+     *  @throws IOException If the input cannot be read.
+     *  @since 2.2.29
+     */
+    public String toPlainText( int maxLength )
+        throws IOException
+    {
+        TextRenderer renderer = m_renderer;
+
+        m_renderer    = new TextRenderer();
+        m_plainText   = true;
+        m_outputLimit = maxLength > 0 ? (int) m_outputSize + maxLength : 0;
+
+        disableAccessRules();
+
+        try
+        {
+            StringBuffer buf = new StringBuffer();
+
+            while( maxLength <= 0 || buf.length() < maxLength )
+            {
+                int length = buf.length();
+
+                fillBuffer( buf );
+
+                if( buf.length() == length ) break;
+            }
+
+            if( maxLength <= 0 || buf.length() < maxLength )
+            {
+                buf.append( closeAll() );
+            }
+
+            if( maxLength > 0 && buf.length() > maxLength )
+            {
+                buf.setLength( maxLength );
+            }
+
+            return buf.toString();
+        }
+        finally
+        {
+            m_plainText   = false;
+            m_outputLimit = 0;
+            m_renderer    = renderer;
+        }
+    }
+
+    /**
+     *  Parses the entire input into a WikiDocument, which can then be
+     *  rendered with render(), as many times as needed.  Links to other
+     *  WikiPages, plugins and variables are resolved only when the
+     *  document is rendered.  The link hooks are called while parsing,
+     *  except for the local link hook of image links with a link text.
+     *
+     *  @return A new WikiDocument.
+     *  @throws IOException If the input cannot be read.
+     *  @since 2.2.29
+     */
+    public WikiDocument parse()
+        throws IOException
+    {
+        m_document = new WikiDocument( m_context.getPage().getName() );
+
+        try
+        {
+            WikiDocument doc = m_document;
+            StringWriter out = new StringWriter();
+
+            translate( out );
+
+            doc.setContent( out.toString() );
+            doc.setMetadata( m_context.getPage() );
+            doc.setContextFree( m_isCacheable );
+
+            return doc;
+        }
+        finally
+        {
+            m_document = null;
+        }
+    }
+
+    /**
+     *  Parses a section of a page into a WikiDocument.  A page may be parsed
+     *  in pieces which end at section breaks - rulers on their own lines, and
+     *  ends of heading lines - and the documents joined, as long as each
+     *  piece really ended at a section break.  Use endedAtSectionBreak()
+     *  to find that out.
+     *
+     *  @param midLine True, if the section starts right after a ruler, instead
+     *         of at the start of a line.
+     *  @return A new WikiDocument.
+     *  @throws IOException If the input cannot be read.
+     *  @since 2.2.29
+     */
+    WikiDocument parseSection( boolean midLine )
+        throws IOException
+    {
+        m_startMidLine = midLine;
+
+        return parse();
+    }
+
+    /**
+     *  Returns true, if the input parsed last ended right after a section
+     *  break, with no text effects, lists, tables, paragraphs, preformatted
+     *  blocks or divs left open.  Parsing the text that follows separately
+     *  then gives the same result as parsing them together.
+     */
+    boolean endedAtSectionBreak()
+    {
+        return m_endedAtBreak;
+    }
+
+    private boolean isClean()
+    {
+        return !m_isbold && !m_isitalic && !m_isTypedText &&
+               !m_isPre && !m_isEscaping && !m_istable && !m_isdefinition &&
+               !m_isOpenParagraph && m_closeTag == null &&
+               m_genlistlevel == 0 && m_styleStack.isEmpty();
+    }
+
+    /**
+     *  Renders a WikiDocument made by parse() in the context of this
+     *  TranslatorReader, and writes the result.  The input of this
+     *  TranslatorReader is not used.
+     *
+     *  @param doc The document to render.
+     *  @param out Where the HTML is written to.
+     *  @throws IOException If writing fails.
+     *  @since 2.2.29
+     */
+    public void render( WikiDocument doc, Writer out )
+        throws IOException
+    {
+        m_pluginOutputs = new ArrayList();
+
+        //
+        //  Documents may be rendered within each other, for example
+        //  by the WeblogPlugin.
+        //
+        Object previousDocument = m_context.getVariable( VAR_DOCUMENT );
+
+        m_context.setVariable( VAR_DOCUMENT, doc );
+
+        try
+        {
+            resolveLinks( doc );
+            startPlugins( doc );
+
+            for( Iterator i = doc.getChunks().iterator(); i.hasNext(); )
+            {
+                Object chunk = i.next();
+
+                if( chunk instanceof String )
+                {
+                    out.write( (String) chunk );
+                }
+                else
+                {
+                    out.write( renderNode( chunk ) );
+                }
+            }
+        }
+        finally
+        {
+            m_resolvedLinks = null;
+            m_pluginJobs    = null;
+
+            m_context.setVariable( VAR_DOCUMENT, previousDocument );
+        }
+    }
+
+    /**
+     *  Starts the ConcurrentPlugins of the document in the background, if
+     *  there is more than one plugin.  Their output is fetched when the
+     *  rendering gets to them.
+     */
+    private void startPlugins( WikiDocument doc )
+    {
+        if( !m_enablePlugins ) return;
+
+        ArrayList plugins = new ArrayList();
+
+        for( Iterator i = doc.getChunks().iterator(); i.hasNext(); )
+        {
+            Object chunk = i.next();
+
+            if( chunk instanceof PluginNode ) plugins.add( chunk );
+        }
+
+        if( plugins.size() < 2 ) return;
+
+        PluginManager mgr = m_engine.getPluginManager();
+
+        m_pluginDeadline = System.currentTimeMillis() + mgr.getTimeout();
+
+        for( Iterator i = plugins.iterator(); i.hasNext(); )
+        {
+            PluginNode node = (PluginNode) i.next();
+            PluginExecutor.Job job = mgr.executeLater( m_context, node.m_command );
+
+            if( job != null )
+            {
+                if( m_pluginJobs == null ) m_pluginJobs = new HashMap();
+
+                m_pluginJobs.put( node, job );
+            }
+        }
+    }
+
+    /**
+     *  Returns the output of a plugin started in the background.
+     */
+    private String finishPlugin( PluginExecutor.Job job )
+    {
+        m_isCacheable = false;
+
+        try
+        {
+            String html = job.getResult( m_pluginDeadline );
+
+            if( m_pluginOutputs != null ) m_pluginOutputs.addAll( job.getCachedOutputs() );
+
+            return html;
+        }
+        catch( PluginException e )
+        {
+            log.info( "Failed to insert plugin", e );
+            return m_renderer.makeError("Plugin insertion failed: "+e.getMessage());
+        }
+    }
+
+    /**
+     *  Finds out in one go which of the pages the document links to exist,
+     *  instead of asking once per link.
+     */
+    private void resolveLinks( WikiDocument doc )
+    {
+        HashSet names = new HashSet();
+
+        for( Iterator i = doc.getChunks().iterator(); i.hasNext(); )
+        {
+            Object chunk = i.next();
+
+            if( chunk instanceof LocalLinkNode )
+            {
+                names.add( ((LocalLinkNode) chunk).m_page );
+            }
+            else if( chunk instanceof ImageLinkNode )
+            {
+                names.add( cleanLink( ((ImageLinkNode) chunk).m_link ) );
+            }
+        }
+
+        if( names.isEmpty() ) return;
+
+        RenderProfiler profiler = m_engine.getRenderProfiler();
+        long start = profiler.start();
+
+        try
+        {
+            Map found = m_engine.getFinalPageNames( names );
+
+            //
+            //  Pages which were not found are remembered as well, by
+            //  mapping them to null.
+            //
+            m_resolvedLinks = new HashMap();
+
+            for( Iterator i = names.iterator(); i.hasNext(); )
+            {
+                Object name = i.next();
+
+                m_resolvedLinks.put( name, found.get( name ) );
+            }
+        }
+        catch( ProviderException e )
+        {
+            log.warn( "Unable to resolve links in one go, checking them one by one", e );
+        }
+        finally
+        {
+            profiler.stop( RenderProfiler.PHASE_LINKS, start );
+        }
+    }
+
+    /**
+     *  Resolves a single node of a WikiDocument.
+     */
+    private String renderNode( Object node )
+    {
+        if( node instanceof LocalLinkNode )
+        {
+            LocalLinkNode n = (LocalLinkNode) node;
+
+            return makeLocalLink( n.m_page, n.m_text, n.m_section );
+        }
+        else if( node instanceof ImageLinkNode )
+        {
+            ImageLinkNode n = (ImageLinkNode) node;
+
+            return handleImageLink( n.m_reallink, n.m_link, true );
+        }
+        else if( node instanceof PluginNode )
+        {
+            int outputs = m_pluginOutputs != null ? m_pluginOutputs.size() : 0;
+
+            PluginExecutor.Job job = m_pluginJobs != null ?
+                (PluginExecutor.Job) m_pluginJobs.get( node ) : null;
+
+            String html = job != null ? finishPlugin( job ) : insertPlugin( ((PluginNode) node).m_command );
+
+            if( m_pluginOutputs != null && m_pluginOutputs.size() == outputs )
+            {
+                //  The plugin was not cacheable.
+                m_pluginOutputs = null;
+            }
+
+            return html;
+        }
+        else if( node instanceof VariableNode )
+        {
+            m_pluginOutputs = null;
+
+            return insertVariable( ((VariableNode) node).m_command );
+        }
+
+        throw new InternalWikiException( "Unknown node in WikiDocument: "+node );
+    }
+
+    /** A link to a local WikiPage. */
+    private static final class LocalLinkNode
+    {
+        final String m_page;
+        final String m_text;
+        final String m_section;
+
+        LocalLinkNode( String page, String text, String section )
+        {
+            m_page    = page;
+            m_text    = text;
+            m_section = section;
+        }
+    }
+
+    /** An image with a link text, which might be the name of a WikiPage. */
+    private static final class ImageLinkNode
+    {
+        final String m_reallink;
+        final String m_link;
+
+        ImageLinkNode( String reallink, String link )
+        {
+            m_reallink = reallink;
+            m_link     = link;
+        }
+    }
+
+    /** A plugin invocation, [{...}] */
+    private static final class PluginNode
+    {
+        final String m_command;
+
+        PluginNode( String command )
+        {
+            m_command = command;
+        }
+    }
+
+    /** A variable, [{$...}] */
+    private static final class VariableNode
+    {
+        final String m_command;
+
+        VariableNode( String command )
+        {
+            m_command = command;
+        }
+    }
+
     /**
      *  All HTML output stuff is here.  This class is a helper class, and will
      *  be spawned later on with a proper API of its own so that we can have
@@ -2429,6 +3381,23 @@ public class TranslatorReader extends Reader
             return m_cleanTranslator;
         }
 
+        /**
+         *  Forgets the state of the previous page.  The clean translator
+         *  is kept, but moved to the new page.
+         */
+        void reset()
+        {
+            m_isPreBlock = false;
+
+            if( m_cleanTranslator != null )
+            {
+                WikiContext dummyContext = new WikiContext( m_engine, 
+                                                            m_context.getPage() );
+                m_cleanTranslator.reset( dummyContext, null );
+                m_cleanTranslator.m_allowHTML = true;
+            }
+        }
+
         public void doChar( StringBuffer buf, char ch )
         {
             if( ch == '<' )
@@ -2443,6 +3412,11 @@ public class TranslatorReader extends Reader
             {
                 buf.append("&amp;");
             }
+            else if( ch == WikiDocument.NODE_START || ch == WikiDocument.NODE_END )
+            {
+                //  Only the parser itself may produce node placeholders.
+                buf.append("&#"+(int)ch+";");
+            }
             else
             {
                 buf.append( ch );
@@ -3058,20 +4032,20 @@ public class TranslatorReader extends Reader
             hd.m_titleSection = "";
             hd.m_titleAnchor = "";
 
+            //
+            //  The title itself follows as ordinary text.
+            //
             switch( level )
             {
               case Heading.HEADING_SMALL:
-                res = title;
                 m_closeTag = "\n\n";
                 break;
 
               case Heading.HEADING_MEDIUM:
-                res = title;                
                 m_closeTag = "\n"+TextUtil.repeatString("-",title.length())+"\n\n";
                 break;
 
               case Heading.HEADING_LARGE:
-                res = title.toUpperCase();
                 m_closeTag= "\n"+TextUtil.repeatString("=",title.length())+"\n\n";
                 break;
             }
@@ -3182,7 +4156,7 @@ public class TranslatorReader extends Reader
      *  This class is used to store the headings in a manner which
      *  allow the building of a Table Of Contents.
      */
-    public class Heading
+    public static class Heading
     {
         public static final int HEADING_SMALL  = 1;
         public static final int HEADING_MEDIUM = 2;
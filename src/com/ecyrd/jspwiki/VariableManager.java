@@ -291,6 +291,15 @@ public class VariableManager
         {
             return context.getRequestContext();
         }
+        else if( name.equals("renderprofile") )
+        {
+            RenderProfiler profiler = context.getEngine().getRenderProfiler();
+
+            if( !profiler.isEnabled() ) return "Render profiling is off.";
+
+            return TextUtil.replaceString( TextUtil.replaceEntities( profiler.getReport() ),
+                                           "\n", "<br />\n" );
+        }
         else if( name.equals("pagefilters") )
         {
             List filters = context.getEngine().getFilterManager().getFilterList();
@@ -19,6 +19,7 @@
  */
 package com.ecyrd.jspwiki;
 
+import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -56,6 +57,9 @@ public class WikiContext
 
     HttpServletRequest m_request = null;
 
+    /** The request parameters of a deep clone, which has no request. */
+    Map        m_httpParameters = null;
+
     UserProfile m_currentUser;
 
     /** The VIEW context - the user just wants to view the page
@@ -214,6 +218,10 @@ public class WikiContext
         {
             result = m_engine.safeGetParameter( m_request, paramName );
         }
+        else if( m_httpParameters != null )
+        {
+            result = (String) m_httpParameters.get( paramName );
+        }
 
         return result;
     }
@@ -318,8 +326,49 @@ public class WikiContext
         copy.m_template       = m_template;
         copy.m_variableMap    = m_variableMap;
         copy.m_request        = m_request;
+        copy.m_httpParameters = m_httpParameters;
         copy.m_currentUser    = m_currentUser;
 
         return copy;
     }
+
+    /**
+     *  Returns a clone of the WikiContext which has a copy of the variables
+     *  and of the page.  Unlike with clone(), changes made to the copy are
+     *  not seen in this context, so the copy can be used in another thread.
+     *  <p>
+     *  The copy has no HTTP request, since the request must not be used
+     *  once it has been served.  The request parameters are still available
+     *  with getHttpParameter().
+     *
+     *  @since 2.2.29
+     */
+    public WikiContext deepClone()
+    {
+        WikiContext copy = (WikiContext) clone();
+
+        copy.m_variableMap = new HashMap( m_variableMap );
+
+        if( m_page != null )
+        {
+            copy.m_page = (WikiPage) m_page.clone();
+        }
+
+        if( m_request != null )
+        {
+            HashMap params = new HashMap();
+
+            for( Enumeration e = m_request.getParameterNames(); e.hasMoreElements(); )
+            {
+                String name = (String) e.nextElement();
+
+                params.put( name, m_engine.safeGetParameter( m_request, name ) );
+            }
+
+            copy.m_request        = null;
+            copy.m_httpParameters = params;
+        }
+
+        return copy;
+    }
 }
@@ -0,0 +1,271 @@
+/*
+    JSPWiki - a JSP-based WikiWiki clone.
+
+    Copyright (C) 2001-2005 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 2.1 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.ecyrd.jspwiki;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.ecyrd.jspwiki.acl.AccessControlList;
+
+/**
+ *  A compiled WikiPage.  A WikiDocument is created by TranslatorReader.parse(),
+ *  and it contains the HTML of the page split into chunks: pieces of static
+ *  HTML and nodes for the things which need to be resolved each time the
+ *  document is rendered (links to other WikiPages, plugins and variables).
+ *  Thus the same WikiDocument can be rendered many times, in different
+ *  WikiContexts, without parsing the WikiText again.
+ *  <p>
+ *  The document also remembers the metadata (SET directives and access
+ *  rules) that was found while parsing, as well as the headings.
+ *
+ *  @author Janne Jalkanen
+ *  @since 2.2.29
+ */
+public class WikiDocument
+{
+    /** Starts a node placeholder in the HTML produced while parsing. */
+    static final char        NODE_START = '\uE000';
+
+    /** Ends a node placeholder. */
+    static final char        NODE_END   = '\uE001';
+
+    private String           m_pageName;
+
+    /** Contains Strings and node Objects, in order. */
+    private List             m_chunks    = new ArrayList();
+
+    /** The nodes, in the order they were added. */
+    private List             m_nodes     = new ArrayList();
+
+    private List             m_headings  = new ArrayList();
+
+    private Map              m_attributes = new HashMap();
+
+    private AccessControlList m_acl;
+
+    private boolean          m_isContextFree = true;
+
+    private boolean          m_hasContextNodes = false;
+
+    /**
+     *  Creates an empty document for the given page.
+     */
+    WikiDocument( String pageName )
+    {
+        m_pageName = pageName;
+    }
+
+    /**
+     *  Makes a single document out of documents made from consecutive
+     *  sections of a page.  The metadata of the later sections overrides
+     *  that of the earlier ones.
+     *
+     *  @param pageName The name of the page.
+     *  @param parts A List of WikiDocuments, in order.
+     *  @return A new WikiDocument.
+     */
+    static WikiDocument join( String pageName, List parts )
+    {
+        WikiDocument doc = new WikiDocument( pageName );
+
+        for( Iterator i = parts.iterator(); i.hasNext(); )
+        {
+            WikiDocument part = (WikiDocument) i.next();
+
+            doc.m_chunks.addAll( part.m_chunks );
+            doc.m_nodes.addAll( part.m_nodes );
+            doc.m_headings.addAll( part.m_headings );
+            doc.m_attributes.putAll( part.m_attributes );
+
+            if( part.m_acl != null ) doc.m_acl = part.m_acl;
+
+            doc.m_isContextFree   &= part.m_isContextFree;
+            doc.m_hasContextNodes |= part.m_hasContextNodes;
+        }
+
+        return doc;
+    }
+
+    /**
+     *  Returns the name of the page from which this document was made.
+     */
+    public String getPageName()
+    {
+        return m_pageName;
+    }
+
+    /**
+     *  Adds a node, and returns the placeholder which should be
+     *  put in the HTML in its place.
+     *
+     *  @param node The node.
+     *  @param dependsOnContext True, if the rendered node depends on something
+     *         else than the existence of other pages.
+     */
+    String addNode( Object node, boolean dependsOnContext )
+    {
+        m_nodes.add( node );
+
+        if( dependsOnContext ) m_hasContextNodes = true;
+
+        return NODE_START + Integer.toString( m_nodes.size()-1 ) + NODE_END;
+    }
+
+    void addHeading( TranslatorReader.Heading hd )
+    {
+        m_headings.add( hd );
+    }
+
+    /**
+     *  Sets the HTML, splitting it at the node placeholders.  Placeholder
+     *  lookalikes which do not refer to a real node are kept as-is.
+     */
+    void setContent( String html )
+    {
+        m_chunks.clear();
+
+        int last = 0;
+        int start;
+
+        while( (start = html.indexOf( NODE_START, last )) != -1 )
+        {
+            int end = html.indexOf( NODE_END, start );
+
+            if( end == -1 ) break;
+
+            int idx = -1;
+
+            try
+            {
+                idx = Integer.parseInt( html.substring( start+1, end ) );
+            }
+            catch( NumberFormatException e ) {}
+
+            if( idx >= 0 && idx < m_nodes.size() )
+            {
+                if( start > last ) m_chunks.add( html.substring( last, start ) );
+                m_chunks.add( m_nodes.get( idx ) );
+                last = end+1;
+            }
+            else
+            {
+                if( end > last ) m_chunks.add( html.substring( last, end ) );
+                last = end;
+            }
+        }
+
+        if( last < html.length() ) m_chunks.add( html.substring( last ) );
+    }
+
+    /**
+     *  Returns the chunks: Strings and nodes.
+     */
+    List getChunks()
+    {
+        return m_chunks;
+    }
+
+    /**
+     *  Remembers the metadata that the page had after parsing.
+     */
+    void setMetadata( WikiPage page )
+    {
+        m_attributes = new HashMap( page.getAttributes() );
+        m_acl        = page.getAcl();
+    }
+
+    /**
+     *  Gives the page the metadata it would have gotten, had it been parsed.
+     *  Does nothing, if the page already has metadata.
+     *
+     *  @param page The page to modify.
+     */
+    public void applyMetadata( WikiPage page )
+    {
+        if( !page.hasMetadata() )
+        {
+            copyMetadata( page );
+        }
+    }
+
+    /**
+     *  Gives the page the metadata of this document, no matter
+     *  whether it already has metadata or not.
+     */
+    void copyMetadata( WikiPage page )
+    {
+        for( Iterator i = m_attributes.entrySet().iterator(); i.hasNext(); )
+        {
+            Map.Entry e = (Map.Entry) i.next();
+
+            page.setAttribute( (String)e.getKey(), e.getValue() );
+        }
+
+        page.setAcl( m_acl );
+        page.setHasMetadata();
+    }
+
+    /**
+     *  Returns the access rules found while parsing, or null.
+     */
+    AccessControlList getAcl()
+    {
+        return m_acl;
+    }
+
+    /**
+     *  Returns the headings of the document, in order.
+     *
+     *  @return A List of TranslatorReader.Heading objects.
+     */
+    public List getHeadings()
+    {
+        return Collections.unmodifiableList( m_headings );
+    }
+
+    void setContextFree( boolean contextFree )
+    {
+        m_isContextFree = contextFree;
+    }
+
+    /**
+     *  Returns true, if the document can be rendered again in another
+     *  context.  This is false, if the parsing itself depended on the context,
+     *  for example because a SET directive used a variable.
+     */
+    public boolean isReusable()
+    {
+        return m_isContextFree;
+    }
+
+    /**
+     *  Returns true, if rendering the document gives the same result
+     *  in all contexts, as long as the set of existing pages stays
+     *  the same.  This is false, if the document has plugins or variables.
+     */
+    public boolean isCacheable()
+    {
+        return m_isContextFree && !m_hasContextNodes;
+    }
+}
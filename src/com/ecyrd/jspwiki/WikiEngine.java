@@ -183,6 +183,18 @@ public class WikiEngine
     /** Handlers page filters. */
     private FilterManager    m_filterManager;
 
+    /** Does all the rendering and keeps the rendered pages cached. */
+    private RenderingManager m_renderingManager;
+
+    /** Finds and caches the metadata of pages. */
+    private MetadataManager  m_metadataManager;
+
+    /** Measures where the time goes when pages are rendered. */
+    private RenderProfiler   m_renderProfiler = new RenderProfiler( new Properties(), null );
+
+    /** The TranslatorReader settings, created when first needed. */
+    private TranslatorReader.Settings m_translatorSettings;
+
     /** Stores the Search manager */
     private SearchManager    m_searchManager = null;
 
@@ -490,12 +502,15 @@ public class WikiEngine
             m_urlConstructor = (URLConstructor) urlclass.newInstance();               
             m_urlConstructor.initialize( this, props );
 
+            m_renderProfiler    = new RenderProfiler( props, getApplicationName() );
+            m_metadataManager   = new MetadataManager( this, props );
             m_pageManager       = new PageManager( this, props );
             m_pluginManager     = new PluginManager( props );
             m_differenceManager = new DifferenceManager( this, props );
             m_attachmentManager = new AttachmentManager( this, props );
             m_variableManager   = new VariableManager( props );
             m_filterManager     = new FilterManager( this, props );
+            m_renderingManager  = new RenderingManager( this, props );
             m_searchManager     = new SearchManager( this, props );
 
             //
@@ -509,6 +524,7 @@ public class WikiEngine
             m_userManager       = new UserManager( this, props );
             m_authorizationManager = new AuthorizationManager( this, props );
 
+            m_pageManager.engineStarted();
         }
         catch( Exception e )
         {
@@ -545,6 +561,24 @@ public class WikiEngine
         m_isConfigured = true;
     }
 
+    /**
+     *  Shuts down the WikiEngine: stops the background threads of the
+     *  managers and lets them save their state.  The engine must not be
+     *  used after this.
+     *
+     *  @since 2.2.29
+     */
+    public void shutdown()
+    {
+        log.info("Shutting down WikiEngine "+getApplicationName());
+
+        if( m_pageManager != null ) m_pageManager.shutdown();
+        if( m_attachmentManager != null ) m_attachmentManager.shutdown();
+        if( m_pluginManager != null ) m_pluginManager.shutdown();
+
+        m_renderProfiler.shutdown();
+    }
+
     /**
      *  Initializes the reference manager. Scans all existing WikiPages for
      *  internal links and adds them to the ReferenceManager object.
@@ -575,6 +609,7 @@ public class WikiEngine
         m_pluginManager.setInitStage( false );
 
         m_filterManager.addPageFilter( m_referenceManager, -1000 ); // FIXME: Magic number.
+        m_filterManager.addPageFilter( m_renderingManager, -1001 );
     }
 
 
@@ -724,6 +759,17 @@ public class WikiEngine
         return m_frontPage;
     }
 
+    /**
+     *  Returns true, if English plurals are considered a match
+     *  for page names.
+     *
+     *  @since 2.2.29
+     */
+    public boolean getMatchEnglishPlurals()
+    {
+        return m_matchEnglishPlurals;
+    }
+
     /**
      *  Returns the ServletContext that this particular WikiEngine was
      *  initialized with.  <B>It may return null</B>, if the WikiEngine is not
@@ -864,6 +910,22 @@ public class WikiEngine
         return TranslatorReader.getImagePatterns( this );
     }
 
+    /**
+     *  Returns the settings which all TranslatorReaders of this engine
+     *  share, such as the compiled inline image patterns.
+     *
+     *  @since 2.2.29
+     */
+    public synchronized TranslatorReader.Settings getTranslatorSettings()
+    {
+        if( m_translatorSettings == null )
+        {
+            m_translatorSettings = new TranslatorReader.Settings( this );
+        }
+
+        return m_translatorSettings;
+    }
+
     /**
      *  If the page is a special page, then returns a direct URL
      *  to that page.  Otherwise returns null.
@@ -1050,6 +1112,24 @@ public class WikiEngine
     public String getFinalPageName( String page )
         throws ProviderException
     {
+        PageNameIndex index = m_pageManager.getPageNameIndex();
+
+        if( index != null )
+        {
+            if( isSpecialPage( page ) ) return page;
+
+            String finalName = index.getFinalPageName( page );
+
+            if( finalName == null && m_matchEnglishPlurals )
+            {
+                String variant = page.endsWith("s") ? page.substring( 0, page.length()-1 ) : page+"s";
+
+                if( isSpecialPage( variant ) ) return variant;
+            }
+
+            return finalName;
+        }
+
         boolean isThere = simplePageExists( page );
 
         if( !isThere && m_matchEnglishPlurals )
@@ -1069,6 +1149,64 @@ public class WikiEngine
         return isThere ? page : null ;
     }
 
+    /**
+     *  Resolves the final page names of many pages at once.  This is
+     *  faster than calling getFinalPageName() for each of them.
+     *
+     *  @param pages A Collection of page names.
+     *  @return A Map from the page names to their final page names.  Pages
+     *          that do not exist are not included.
+     *  @since 2.2.29
+     */
+    public Map getFinalPageNames( Collection pages )
+        throws ProviderException
+    {
+        PageNameIndex index = m_pageManager.getPageNameIndex();
+        Map result;
+
+        if( index != null )
+        {
+            result = index.getFinalPageNames( pages );
+
+            //
+            //  Special pages are not in the index.
+            //
+            for( Iterator i = pages.iterator(); i.hasNext(); )
+            {
+                String page = (String) i.next();
+
+                if( !result.containsKey( page ) )
+                {
+                    String finalName = getFinalPageName( page );
+
+                    if( finalName != null ) result.put( page, finalName );
+                }
+            }
+        }
+        else
+        {
+            result = new HashMap();
+
+            for( Iterator i = pages.iterator(); i.hasNext(); )
+            {
+                String page = (String) i.next();
+                String finalName = getFinalPageName( page );
+
+                if( finalName != null ) result.put( page, finalName );
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     *  Returns true, if the page has been overridden in jspwiki.properties.
+     */
+    private boolean isSpecialPage( String page )
+    {
+        return m_properties.getProperty( PROP_SPECIALPAGE+page ) != null;
+    }
+
     /**
      *  Just queries the existing pages directly from the page manager.
      *  We also check overridden pages from jspwiki.properties
@@ -1076,7 +1214,7 @@ public class WikiEngine
     private boolean simplePageExists( String page )
         throws ProviderException
     {
-        if( getSpecialPageReference(page) != null ) return true;
+        if( isSpecialPage(page) ) return true;
 
         return m_pageManager.pageExists( page );
     }
@@ -1238,13 +1376,42 @@ public class WikiEngine
 
     public String getHTML( WikiContext context, WikiPage page )
     {
-        String pagedata = null;
+        m_renderProfiler.begin();
 
-        pagedata = getPureText( page.getName(), page.getVersion() );
+        try
+        {
+            return m_renderingManager.getHTML( context, page );
+        }
+        finally
+        {
+            m_renderProfiler.end();
+        }
+    }
 
-        String res = textToHTML( context, pagedata );
+    /**
+     *  Writes the converted HTML of the page to the given Writer.  This
+     *  is the preferred way of rendering large pages, since the HTML is
+     *  streamed out instead of being built into a String first.
+     *
+     *  @param context The WikiContext in which the page is rendered.
+     *  @param page    The page to render.
+     *  @param out     Where the HTML is written to.
+     *  @throws IOException If writing fails.
+     *  @since 2.2.29
+     */
+    public void getHTML( WikiContext context, WikiPage page, Writer out )
+        throws IOException
+    {
+        m_renderProfiler.begin();
 
-        return res;
+        try
+        {
+            m_renderingManager.getHTML( context, page, out );
+        }
+        finally
+        {
+            m_renderProfiler.end();
+        }
     }
     
     /**
@@ -1288,6 +1455,31 @@ public class WikiEngine
         return textToHTML( context, pagedata, null, null );
     }
 
+    /**
+     *  Converts raw page data to HTML, and writes it to the given Writer
+     *  as it is produced.
+     *
+     *  @param context The WikiContext in which the rendering happens.
+     *  @param pagedata Raw page data to convert.
+     *  @param out Where the HTML is written to.
+     *  @throws IOException If writing fails.
+     *  @since 2.2.29
+     */
+    public void textToHTML( WikiContext context, String pagedata, Writer out )
+        throws IOException
+    {
+        m_renderProfiler.begin();
+
+        try
+        {
+            m_renderingManager.textToHTML( context, pagedata, out );
+        }
+        finally
+        {
+            m_renderProfiler.end();
+        }
+    }
+
     /**
      *  Reads a WikiPageful of data from a String and returns all links
      *  internal to this Wiki in a Collection.
@@ -1296,12 +1488,11 @@ public class WikiEngine
     {
         LinkCollector localCollector = new LinkCollector();        
 
-        textToHTML( new WikiContext(this,page),
-                    pagedata,
-                    localCollector,
-                    null,
-                    localCollector,
-                    false );
+        m_renderingManager.scanLinks( new WikiContext(this,page),
+                                      pagedata,
+                                      localCollector,
+                                      null,
+                                      localCollector );
 
         return localCollector.getLinks();
     }
@@ -1341,58 +1532,18 @@ public class WikiEngine
                                StringTransmutator attLinkHook,
                                boolean            parseAccessRules )
     {
-        String result = "";
-
-        if( pagedata == null ) 
-        {
-            log.error("NULL pagedata to textToHTML()");
-            return null;
-        }
+        m_renderProfiler.begin();
 
-        TranslatorReader in = null;
-        Collection links = null;
-
-        boolean runFilters = "true".equals(m_variableManager.getValue(context,PROP_RUNFILTERS,"true"));
-        
         try
         {
-            if( runFilters )
-                pagedata = m_filterManager.doPreTranslateFiltering( context, pagedata );
-
-            in = new TranslatorReader( context,
-                                       new StringReader( pagedata ) );
-
-            in.addLocalLinkHook( localLinkHook );
-            in.addExternalLinkHook( extLinkHook );
-            in.addAttachmentLinkHook( attLinkHook );
-
-            if( !parseAccessRules ) in.disableAccessRules();
-            result = FileUtil.readContents( in );
-
-            if( runFilters )
-                result = m_filterManager.doPostTranslateFiltering( context, result );
-        }
-        catch( IOException e )
-        {
-            log.error("Failed to scan page data: ", e);
-        }
-        catch( FilterException e )
-        {
-            // FIXME: Don't yet know what to do
+            return m_renderingManager.textToHTML( context, pagedata, 
+                                                  localLinkHook, extLinkHook, attLinkHook,
+                                                  parseAccessRules );
         }
         finally
         {
-            try
-            {
-                if( in  != null ) in.close();
-            }
-            catch( Exception e ) 
-            {
-                log.fatal("Closing failed",e);
-            }
+            m_renderProfiler.end();
         }
-
-        return( result );
     }
 
     /**
@@ -1646,6 +1797,37 @@ public class WikiEngine
         }
     }
 
+    /**
+     *  Returns the current RenderingManager.
+     *
+     *  @since 2.2.29
+     */
+    public RenderingManager getRenderingManager()
+    {
+        return m_renderingManager;
+    }
+
+    /**
+     *  Returns the RenderProfiler, which measures where the time goes
+     *  when pages are rendered.
+     *
+     *  @since 2.2.29
+     */
+    public RenderProfiler getRenderProfiler()
+    {
+        return m_renderProfiler;
+    }
+
+    /**
+     *  Returns the current MetadataManager.
+     *
+     *  @since 2.2.29
+     */
+    public MetadataManager getMetadataManager()
+    {
+        return m_metadataManager;
+    }
+
     /**
      *  Returns the current PageManager.
      */
@@ -21,6 +21,7 @@ package com.ecyrd.jspwiki;
 
 import java.util.Date;
 import java.util.HashMap;
+import java.util.Map;
 import com.ecyrd.jspwiki.acl.AccessControlList;
 
 import com.ecyrd.jspwiki.providers.WikiPageProvider;
@@ -90,6 +91,17 @@ public class WikiPage
         m_attributes.put( key, attribute );
     }
 
+    /**
+     *  Returns all attributes of this page.  The returned Map is the
+     *  live copy, so be careful.
+     *
+     *  @since 2.2.29
+     */
+    public Map getAttributes()
+    {
+        return m_attributes;
+    }
+
     /**
      *  Removes an attribute from the page, if it exists.
      *  @return If the attribute existed, returns the object.
@@ -210,7 +222,10 @@ public class WikiPage
 
         p.m_author       = m_author;
         p.m_version      = m_version;
-        p.m_lastModified = (Date)m_lastModified.clone();
+        p.m_fileSize     = m_fileSize;
+        p.m_lastModified = m_lastModified != null ? (Date)m_lastModified.clone() : null;
+        p.m_attributes   = new HashMap( m_attributes );
+        p.m_accessList   = m_accessList;
 
         return p;
     }
@@ -47,6 +47,18 @@ public class WikiServlet
         log.info("WikiServlet initialized.");
     }
 
+    /**
+     *  Shuts down the WikiEngine when the web application is stopped.
+     */
+    public void destroy()
+    {
+        log.info("WikiServlet destroyed.");
+
+        m_engine.shutdown();
+
+        super.destroy();
+    }
+
     public void doPost( HttpServletRequest req, HttpServletResponse res )
         throws IOException, ServletException
     {
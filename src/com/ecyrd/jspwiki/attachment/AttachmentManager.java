@@ -37,6 +37,7 @@ import com.ecyrd.jspwiki.WikiProvider;
 import com.ecyrd.jspwiki.WikiContext;
 import com.ecyrd.jspwiki.PageManager;
 import com.ecyrd.jspwiki.NoRequiredPropertyException;
+import com.ecyrd.jspwiki.providers.CachingAttachmentProvider;
 import com.ecyrd.jspwiki.providers.WikiAttachmentProvider;
 import com.ecyrd.jspwiki.providers.ProviderException;
 import com.ecyrd.jspwiki.util.ClassUtil;
@@ -148,6 +149,19 @@ public class AttachmentManager
         }
     }
 
+    /**
+     *  Stops the background threads of the attachment provider.
+     *
+     *  @since 2.2.29
+     */
+    public void shutdown()
+    {
+        if( m_provider instanceof CachingAttachmentProvider )
+        {
+            ((CachingAttachmentProvider) m_provider).shutdown();
+        }
+    }
+
     /**
      *  Returns true, if attachments are enabled and running.
      */
@@ -377,6 +391,8 @@ public class AttachmentManager
                                                          new java.util.Vector() );
 
         m_engine.updateReferences( new WikiPage( att.getParentName() ) );
+
+        m_engine.getRenderingManager().flushPage( att );
         
         m_engine.getSearchManager().reindexPage( att );
     }
@@ -443,6 +459,8 @@ public class AttachmentManager
     	throws ProviderException
     {
         m_provider.deleteVersion( att );
+
+        m_engine.getRenderingManager().flushPage( att );
     }
 
     /** 
@@ -453,6 +471,8 @@ public class AttachmentManager
     {
         m_provider.deleteAttachment( att );
 
+        m_engine.getRenderingManager().flushPage( att );
+
         m_engine.getSearchManager().pageRemoved( att );
     }
 }
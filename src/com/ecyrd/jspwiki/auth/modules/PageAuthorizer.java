@@ -176,9 +176,7 @@ public class PageAuthorizer
         //
         if( acl == null )
         {
-            WikiContext context = new WikiContext( m_engine, page );
-            context.setVariable( TranslatorReader.PROP_RUNPLUGINS, "false" );
-            String html = m_engine.getHTML( context, page );
+            m_engine.getMetadataManager().parseMetadata( page );
 
             acl = page.getAcl();
         }
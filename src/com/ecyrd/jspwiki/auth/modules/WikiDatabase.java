@@ -153,6 +153,11 @@ public class WikiDatabase
                 // because the authentication information must be 
                 // present on wiki initialization
 
+                if( !p.hasMetadata() )
+                {
+                    m_engine.getMetadataManager().parseMetadata( p );
+                }
+
                 List memberList = parseMemberList( (String)p.getAttribute(ATTR_MEMBERLIST) );
 
                 if( memberList != null )
@@ -265,7 +270,7 @@ public class WikiDatabase
 
             log.debug("Skimming through page "+p.getName()+" to see if there are new users...");
 
-            m_engine.textToHTML( context, content );
+            m_engine.getMetadataManager().extractMetadata( context, content );
 
             String members = (String) p.getAttribute(ATTR_MEMBERLIST);            
 
@@ -23,6 +23,11 @@ import java.io.InputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.File;
+import java.io.FilterWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Iterator;
 import java.util.List;
@@ -90,6 +95,12 @@ public class FilterManager
 {
     private PriorityList     m_pageFilters = new PriorityList();
 
+    /** Incremented every time the set of filters changes. */
+    private int              m_modificationCount = 0;
+
+    /** Maps filter classes to Booleans telling whether they modify the HTML. */
+    private Map              m_modifiesHTML = new HashMap();
+
     private static final Logger log = Logger.getLogger(WikiEngine.class);
 
     public static final String PROP_FILTERXML = "jspwiki.filterConfig";
@@ -123,6 +134,19 @@ public class FilterManager
         }
 
         m_pageFilters.add( f, priority );
+        m_modificationCount++;
+    }
+
+    /**
+     *  Returns a counter which changes every time a filter is added.  This
+     *  can be used to figure out whether something which was filtered earlier
+     *  might now be filtered differently.
+     *
+     *  @since 2.2.29
+     */
+    public int getModificationCount()
+    {
+        return m_modificationCount;
     }
 
     private void initPageFilter( String className, Properties props )
@@ -308,6 +332,106 @@ public class FilterManager
         return pageData;
     }
 
+    /**
+     *  Returns a Writer which does the filtering after HTML translation
+     *  on the fly, and writes the result to the given Writer.  This is
+     *  possible only, if all filters which modify the HTML are
+     *  StreamingPageFilters.  The returned Writer must be closed once
+     *  all HTML has been written to it; this does not close the given
+     *  Writer.
+     *
+     *  @param context The current WikiContext.
+     *  @param out Where the filtered HTML is written.
+     *  @return A Writer, or null, if streaming is not possible.
+     *  @since 2.2.29
+     */
+    public Writer getPostTranslateWriter( WikiContext context, Writer out )
+        throws FilterException
+    {
+        ArrayList filters = new ArrayList();
+
+        for( Iterator i = m_pageFilters.iterator(); i.hasNext(); )
+        {
+            PageFilter f = (PageFilter) i.next();
+
+            if( f instanceof StreamingPageFilter )
+            {
+                filters.add( f );
+            }
+            else if( modifiesHTML( f ) )
+            {
+                return null;
+            }
+        }
+
+        //
+        //  The first filter gets the HTML first, so it must be
+        //  at the head of the chain.
+        //
+        Writer w = new NonClosingWriter( out );
+
+        for( int i = filters.size()-1; i >= 0; i-- )
+        {
+            w = ((StreamingPageFilter)filters.get(i)).postTranslate( context, w );
+        }
+
+        return w;
+    }
+
+    /**
+     *  Returns false, if the filter does not override the postTranslate()
+     *  method of BasicPageFilter, and thus leaves the HTML alone.
+     */
+    private boolean modifiesHTML( PageFilter f )
+    {
+        Class cl = f.getClass();
+
+        synchronized( m_modifiesHTML )
+        {
+            Boolean result = (Boolean) m_modifiesHTML.get( cl );
+
+            if( result == null )
+            {
+                result = Boolean.TRUE;
+
+                try
+                {
+                    Class declarer = cl.getMethod( "postTranslate",
+                                                   new Class[] { WikiContext.class, String.class } ).getDeclaringClass();
+
+                    if( declarer == BasicPageFilter.class ) result = Boolean.FALSE;
+                }
+                catch( NoSuchMethodException e )
+                {
+                    // Cannot happen, it's in the interface.
+                }
+
+                m_modifiesHTML.put( cl, result );
+            }
+
+            return result.booleanValue();
+        }
+    }
+
+    /**
+     *  Passes everything through, except that it does not close
+     *  the underlying Writer.
+     */
+    private static class NonClosingWriter
+        extends FilterWriter
+    {
+        NonClosingWriter( Writer out )
+        {
+            super( out );
+        }
+
+        public void close()
+            throws IOException
+        {
+            flush();
+        }
+    }
+
     /**
      *  Does the filtering before a save to the page repository.
      */
@@ -0,0 +1,54 @@
+/*
+    JSPWiki - a JSP-based WikiWiki clone.
+
+    Copyright (C) 2001-2005 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 2.1 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.ecyrd.jspwiki.filters;
+
+import java.io.Writer;
+
+import com.ecyrd.jspwiki.WikiContext;
+
+/**
+ *  A PageFilter which can do its post-translate filtering on the fly,
+ *  while the HTML is being written out.  If all the page filters which
+ *  modify the translated HTML are StreamingPageFilters, a page can be
+ *  rendered straight into the output, without ever holding the whole
+ *  page in memory.
+ *  <p>
+ *  The postTranslate(WikiContext,String) method must still work, since
+ *  it is used whenever the output is not streamed.
+ *
+ *  @author Janne Jalkanen
+ *  @since 2.2.29
+ */
+public interface StreamingPageFilter
+    extends PageFilter
+{
+    /**
+     *  Returns a Writer which filters everything written to it, and writes
+     *  the result to the given Writer.  When the returned Writer is closed,
+     *  it must write out anything it has buffered, and then close the
+     *  given Writer.
+     *
+     *  @param wikiContext The current wikicontext.
+     *  @param out Where the filtered HTML should go.
+     *  @return A Writer to which the translated HTML is written.
+     */
+    public Writer postTranslate( WikiContext wikiContext, Writer out )
+        throws FilterException;
+}
@@ -0,0 +1,88 @@
+/*
+    JSPWiki - a JSP-based WikiWiki clone.
+
+    Copyright (C) 2001-2005 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 2.1 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.ecyrd.jspwiki.plugin;
+
+import java.util.Collection;
+import java.util.Map;
+
+import com.ecyrd.jspwiki.WikiContext;
+
+/**
+ *  A plugin whose output can be cached.  The PluginManager asks the plugin
+ *  for a cache key before executing it, and if it has valid output for
+ *  that key, uses it instead of executing the plugin.  Pages which only
+ *  contain cacheable plugins can be cached as a whole, too.
+ *  <p>
+ *  The cache key must cover everything the output depends on, except for
+ *  the things given as invalidation triggers.  The name of the plugin class
+ *  is added to the key by the PluginManager.
+ *
+ *  @author Janne Jalkanen
+ *  @since 2.2.29
+ */
+public interface CacheablePlugin
+    extends WikiPlugin
+{
+    /** The output becomes invalid when any page is saved, created or removed. */
+    public static final int ANY_PAGE_CHANGE  = 1;
+
+    /** The output becomes invalid when the references between pages change,
+        or pages are created or removed. */
+    public static final int REFERENCE_CHANGE = 2;
+
+    /**
+     *  Returns the key under which the output of this invocation is cached.
+     *
+     *  @param context The current WikiContext.
+     *  @param params  The parameters of the plugin.
+     *  @return A key, or null, if the output of this invocation must not
+     *          be cached.
+     */
+    public String getCacheKey( WikiContext context, Map params );
+
+    /**
+     *  Returns how long the output may be used.
+     *
+     *  @param context The current WikiContext.
+     *  @param params  The parameters of the plugin.
+     *  @return Time in seconds, or zero, if the output is good until
+     *          something invalidates it.
+     */
+    public int getCacheTime( WikiContext context, Map params );
+
+    /**
+     *  Returns the events which invalidate the output.
+     *
+     *  @param context The current WikiContext.
+     *  @param params  The parameters of the plugin.
+     *  @return A combination of ANY_PAGE_CHANGE and REFERENCE_CHANGE, or zero.
+     */
+    public int getInvalidation( WikiContext context, Map params );
+
+    /**
+     *  Returns the pages which the output depends on.  The output becomes
+     *  invalid, when any of them is saved or removed.
+     *
+     *  @param context The current WikiContext.
+     *  @param params  The parameters of the plugin.
+     *  @return A Collection of page names, or null.
+     */
+    public Collection getDependencies( WikiContext context, Map params );
+}
@@ -0,0 +1,41 @@
+/*
+    JSPWiki - a JSP-based WikiWiki clone.
+
+    Copyright (C) 2001-2005 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 2.1 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.ecyrd.jspwiki.plugin;
+
+/**
+ *  A plugin which can be executed at the same time as the other plugins
+ *  on the same page.  When a page is rendered, such plugins are started
+ *  in the background right away, and their output is put in place when
+ *  the renderer gets to them.
+ *  <p>
+ *  The plugin gets a copy of the WikiContext and of its page, and any
+ *  variables or page attributes it sets are not seen by the rest of the
+ *  page.  Therefore it must not depend on anything the plugins before it
+ *  on the page may do to the context.  The copy has no HTTP request, but
+ *  the request parameters can be read with WikiContext.getHttpParameter().
+ *  If the page takes too long to render, the plugin is interrupted.
+ *
+ *  @author Janne Jalkanen
+ *  @since 2.2.29
+ */
+public interface ConcurrentPlugin
+    extends WikiPlugin
+{
+}
@@ -42,7 +42,7 @@ import java.util.*;
  *  @author Janne Jalkanen
  *  @since 1.9.9
  */
-public class IndexPlugin implements WikiPlugin
+public class IndexPlugin implements CacheablePlugin, ConcurrentPlugin
 {
     protected static Logger   log = Logger.getLogger(IndexPlugin.class);
 
@@ -112,6 +112,29 @@ public class IndexPlugin implements WikiPlugin
         return res.toString();
     }
 
+    /**
+     *  The index only depends on the parameters and the list of pages.
+     */
+    public String getCacheKey( WikiContext context, Map params )
+    {
+        return new TreeMap( params ).toString();
+    }
+
+    public int getCacheTime( WikiContext context, Map params )
+    {
+        return 0;
+    }
+
+    public int getInvalidation( WikiContext context, Map params )
+    {
+        return ANY_PAGE_CHANGE;
+    }
+
+    public Collection getDependencies( WikiContext context, Map params )
+    {
+        return null;
+    }
+
 
     private void buildIndexPageHeaderAndBody( WikiContext context, 
                                               final Collection i_allPages , 
@@ -32,7 +32,7 @@ import java.util.*;
  *  @author Janne Jalkanen
  */
 public class InsertPage
-    implements WikiPlugin
+    implements ConcurrentPlugin
 {
     private static Logger log = Logger.getLogger( InsertPage.class );
 
@@ -101,10 +101,13 @@ public class InsertPage
                         return "<span class=\"error\">Error: Circular reference - you can't include a page in itself!";
                     }
                 }
-                else
-                {
-                    previousIncludes = new ArrayList();
-                }
+
+                //
+                //  The list is copied, since it may be shared by other
+                //  plugins running at the same time.
+                //
+                previousIncludes = previousIncludes != null ?
+                    new ArrayList( previousIncludes ) : new ArrayList();
                
                 previousIncludes.add( page.getName() );
                 context.setVariable( ATTR_RECURSE, previousIncludes );
@@ -119,12 +122,14 @@ public class InsertPage
 
                 String pageData = engine.getPureText( page );
                 String moreLink = "";
+                boolean wholePage = true;
 
                 if( section != -1 )
                 {
                     try
                     {
                         pageData = TextUtil.getSection( pageData, section );
+                        wholePage = false;
                     }
                     catch( IllegalArgumentException e )
                     {
@@ -135,11 +140,22 @@ public class InsertPage
                 if( pageData.length() > maxlen ) 
                 {
                     pageData = pageData.substring( 0, maxlen )+" ...";
+                    wholePage = false;
                     moreLink = "<p><a href=\""+context.getURL(WikiContext.VIEW,includedPage)+"\">More...</a></p>";
                 }
 
                 res.append("<div style=\""+style+"\""+(clazz != null ? " class=\""+clazz+"\"" : "")+">");
-                res.append( engine.textToHTML( includedContext, pageData ) );
+                //
+                //  The whole page can come from the rendering cache.
+                //
+                if( wholePage )
+                {
+                    res.append( engine.getHTML( includedContext, page ) );
+                }
+                else
+                {
+                    res.append( engine.textToHTML( includedContext, pageData ) );
+                }
                 res.append( moreLink );
                 res.append("</div>");
                 
@@ -0,0 +1,278 @@
+/*
+    JSPWiki - a JSP-based WikiWiki clone.
+
+    Copyright (C) 2001-2005 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 2.1 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.ecyrd.jspwiki.plugin;
+
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Set;
+
+import com.ecyrd.jspwiki.ReferenceManager;
+
+/**
+ *  Keeps the output of CacheablePlugins.  The least recently used outputs
+ *  are dropped when the cache is full.
+ *  <p>
+ *  Each output knows by itself whether it is still valid, so that anyone
+ *  who has used it - like the rendering cache, which keeps pages containing
+ *  plugins - can find out when it needs to be recomputed.
+ *
+ *  @author Janne Jalkanen
+ *  @since 2.2.29
+ */
+public class PluginCache
+{
+    private final int     m_capacity;
+
+    /** Contains Outputs, keyed by the cache key; least recently used first. */
+    private LinkedHashMap m_outputs = new LinkedHashMap( 16, 0.75f, true );
+
+    /** Incremented every time a page changes. */
+    private long          m_changeCount = 0;
+
+    private long          m_hits   = 0;
+    private long          m_misses = 0;
+
+    /**
+     *  Creates a new cache.
+     *
+     *  @param capacity The maximum number of outputs to keep.
+     */
+    public PluginCache( int capacity )
+    {
+        m_capacity = capacity;
+    }
+
+    /**
+     *  Returns a valid output for the given key, or null.
+     */
+    public synchronized Output get( String key )
+    {
+        Output output = (Output) m_outputs.get( key );
+
+        if( output != null && !output.isValid() )
+        {
+            m_outputs.remove( key );
+            output = null;
+        }
+
+        if( output != null ) m_hits++; else m_misses++;
+
+        return output;
+    }
+
+    /**
+     *  Returns a number which must be given to put(), so that an output
+     *  computed while pages were changing is not cached.  Call this before
+     *  executing the plugin.
+     */
+    public synchronized long getChangeCount()
+    {
+        return m_changeCount;
+    }
+
+    /**
+     *  Stores the output of a plugin.
+     *
+     *  @param key The cache key.
+     *  @param html The output.
+     *  @param cacheTime How many seconds the output is valid; zero for no limit.
+     *  @param invalidation Flags from CacheablePlugin.
+     *  @param dependencies Names of the pages the output depends on.  May be null.
+     *  @param refmgr The ReferenceManager.  May be null, unless the output
+     *         depends on references.
+     *  @param changeCount The value of getChangeCount() before the plugin was executed.
+     *  @param refCount The modification count of the ReferenceManager before
+     *         the plugin was executed.
+     *  @return The new Output.
+     */
+    public synchronized Output put( String key, String html,
+                                    int cacheTime, int invalidation,
+                                    Collection dependencies,
+                                    ReferenceManager refmgr,
+                                    long changeCount, long refCount )
+    {
+        Output output = new Output( html, cacheTime, invalidation, dependencies,
+                                    refmgr, refCount );
+
+        //
+        //  If a page changed while the plugin was running, the output
+        //  may already be stale.
+        //
+        if( !output.isValid() ||
+            (changeCount != m_changeCount &&
+             ((invalidation & CacheablePlugin.ANY_PAGE_CHANGE) != 0 || dependencies != null)) )
+        {
+            output.invalidate();
+            return output;
+        }
+
+        m_outputs.put( key, output );
+
+        if( m_outputs.size() > m_capacity )
+        {
+            Iterator i = m_outputs.keySet().iterator();
+            i.next();
+            i.remove();
+        }
+
+        return output;
+    }
+
+    /**
+     *  Invalidates the outputs which depend on the given page, or on any page.
+     *
+     *  @param pageName The name of the page which was saved, created or removed.
+     */
+    public synchronized void pageChanged( String pageName )
+    {
+        m_changeCount++;
+
+        for( Iterator i = m_outputs.values().iterator(); i.hasNext(); )
+        {
+            Output output = (Output) i.next();
+
+            if( (output.m_invalidation & CacheablePlugin.ANY_PAGE_CHANGE) != 0 ||
+                (output.m_dependencies != null && output.m_dependencies.contains( pageName )) )
+            {
+                output.invalidate();
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     *  Removes everything from the cache.
+     */
+    public synchronized void flushAll()
+    {
+        m_changeCount++;
+
+        for( Iterator i = m_outputs.values().iterator(); i.hasNext(); )
+        {
+            ((Output) i.next()).invalidate();
+        }
+
+        m_outputs.clear();
+    }
+
+    /**
+     *  Returns a human-readable description of the cache status.
+     */
+    public synchronized String getCacheInfo()
+    {
+        return "Plugin cache hits: "+m_hits+", misses: "+m_misses;
+    }
+
+    /**
+     *  Returns the number of seconds until the next midnight.  Useful as
+     *  the cache time of outputs which show dates relative to today.
+     */
+    public static int getSecondsUntilMidnight()
+    {
+        Calendar now = Calendar.getInstance();
+        Calendar midnight = (Calendar) now.clone();
+
+        midnight.set( Calendar.HOUR_OF_DAY, 0 );
+        midnight.set( Calendar.MINUTE, 0 );
+        midnight.set( Calendar.SECOND, 0 );
+        midnight.set( Calendar.MILLISECOND, 0 );
+        midnight.add( Calendar.DAY_OF_MONTH, 1 );
+
+        return (int) ((midnight.getTime().getTime() - now.getTime().getTime() + 999) / 1000);
+    }
+
+    /**
+     *  Returns true, if all of the given outputs are still valid.
+     *
+     *  @param outputs A Collection of Outputs.
+     */
+    public static boolean isValid( Collection outputs )
+    {
+        for( Iterator i = outputs.iterator(); i.hasNext(); )
+        {
+            if( !((Output) i.next()).isValid() ) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     *  The output of a single plugin invocation.
+     */
+    public static final class Output
+    {
+        private final String           m_html;
+        private final long             m_expires;
+        private final int              m_invalidation;
+        private final Set              m_dependencies;
+        private final ReferenceManager m_refmgr;
+        private final long             m_refCount;
+        private volatile boolean       m_isValid = true;
+
+        Output( String html, int cacheTime, int invalidation, Collection dependencies,
+                ReferenceManager refmgr, long refCount )
+        {
+            m_html         = html;
+            m_expires      = cacheTime > 0 ? System.currentTimeMillis() + cacheTime*1000L : 0;
+            m_invalidation = invalidation;
+            m_dependencies = dependencies != null ? new HashSet( dependencies ) : null;
+            m_refmgr       = (invalidation & CacheablePlugin.REFERENCE_CHANGE) != 0 ? refmgr : null;
+            m_refCount     = refCount;
+
+            //
+            //  Changes in references cannot be noticed without a ReferenceManager.
+            //
+            if( m_refmgr == null && (invalidation & CacheablePlugin.REFERENCE_CHANGE) != 0 )
+            {
+                m_isValid = false;
+            }
+        }
+
+        /**
+         *  Returns the HTML produced by the plugin.
+         */
+        public String getHTML()
+        {
+            return m_html;
+        }
+
+        /**
+         *  Returns true, if the output has not expired or been invalidated.
+         */
+        public boolean isValid()
+        {
+            if( !m_isValid ) return false;
+
+            if( m_expires != 0 && System.currentTimeMillis() >= m_expires ) return false;
+
+            if( m_refmgr != null && m_refmgr.getModificationCount() != m_refCount ) return false;
+
+            return true;
+        }
+
+        void invalidate()
+        {
+            m_isValid = false;
+        }
+    }
+}
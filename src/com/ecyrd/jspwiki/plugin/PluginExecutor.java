@@ -0,0 +1,335 @@
+/*
+    JSPWiki - a JSP-based WikiWiki clone.
+
+    Copyright (C) 2001-2005 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 2.1 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.ecyrd.jspwiki.plugin;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedList;
+
+import org.apache.log4j.Logger;
+
+import com.ecyrd.jspwiki.RenderProfiler;
+import com.ecyrd.jspwiki.WikiContext;
+
+/**
+ *  Runs plugins in a bounded set of background threads.  Threads are
+ *  started when there is work, up to the given maximum, and stop after
+ *  being idle for a while.
+ *  <p>
+ *  A Job which no thread has started yet is run by whoever asks for its
+ *  result.  So if all threads are busy, or the queue is full, the renderer
+ *  just runs the plugin itself, and nested renders can never deadlock.
+ *  A Job which does not finish in time is interrupted.
+ *
+ *  @author Janne Jalkanen
+ *  @since 2.2.29
+ */
+public class PluginExecutor
+{
+    private static final Logger log = Logger.getLogger( PluginExecutor.class );
+
+    /** Idle threads stop after this many milliseconds. */
+    private static final long IDLE_TIME = 60*1000L;
+
+    private final int        m_maxThreads;
+    private final int        m_maxQueued;
+
+    private LinkedList       m_queue = new LinkedList();
+    private int              m_threads = 0;
+    private int              m_idle    = 0;
+    private boolean          m_shutdown = false;
+
+    /**
+     *  Creates a new executor.
+     *
+     *  @param maxThreads The maximum number of threads.
+     *  @param maxQueued  The maximum number of jobs waiting for a thread.
+     */
+    public PluginExecutor( int maxThreads, int maxQueued )
+    {
+        m_maxThreads = maxThreads;
+        m_maxQueued  = maxQueued;
+    }
+
+    /**
+     *  Queues a job to be run by a background thread.
+     *
+     *  @param job The job.
+     *  @return False, if the queue was full.  The job is then run when
+     *          its result is asked for.
+     */
+    public synchronized boolean submit( Job job )
+    {
+        if( m_shutdown || m_queue.size() >= m_maxQueued ) return false;
+
+        m_queue.add( job );
+
+        if( m_idle > 0 )
+        {
+            notify();
+        }
+        else if( m_threads < m_maxThreads )
+        {
+            Thread t = new Thread( new Worker(), "JSPWiki plugin executor" );
+            t.setDaemon( true );
+
+            m_threads++;
+            t.start();
+        }
+
+        return true;
+    }
+
+    /**
+     *  Stops the threads once they have finished their current jobs.  The
+     *  jobs still in the queue are run by whoever asks for their results,
+     *  and new jobs are not queued any more.
+     */
+    public synchronized void shutdown()
+    {
+        m_shutdown = true;
+        m_queue.clear();
+
+        notifyAll();
+    }
+
+    /**
+     *  Returns the next job, or null, if the thread has been idle long
+     *  enough and should stop.
+     */
+    private synchronized Job take()
+    {
+        if( m_queue.isEmpty() && !m_shutdown )
+        {
+            m_idle++;
+
+            try
+            {
+                wait( IDLE_TIME );
+            }
+            catch( InterruptedException e )
+            {
+                // Treated as a timeout.
+            }
+            finally
+            {
+                m_idle--;
+            }
+        }
+
+        if( m_queue.isEmpty() || m_shutdown )
+        {
+            m_threads--;
+            return null;
+        }
+
+        return (Job) m_queue.removeFirst();
+    }
+
+    private class Worker
+        implements Runnable
+    {
+        public void run()
+        {
+            Job job;
+
+            while( (job = take()) != null )
+            {
+                job.runIfNew();
+            }
+        }
+    }
+
+    /**
+     *  A single plugin invocation, which may be running in another thread.
+     */
+    public static final class Job
+    {
+        private static final int NEW     = 0;
+        private static final int RUNNING = 1;
+        private static final int DONE    = 2;
+
+        private final PluginManager m_manager;
+        private final WikiContext   m_context;
+        private final String        m_commandline;
+        private final ArrayList     m_cachedOutputs = new ArrayList();
+
+        /** True, if the render which started this job is profiled. */
+        private final boolean       m_profiled;
+
+        private int                 m_state = NEW;
+        private String              m_result;
+        private PluginException     m_exception;
+
+        /** The thread running the job, while it is RUNNING. */
+        private Thread              m_thread;
+
+        /** True, if nobody waits for the result any more. */
+        private boolean             m_abandoned = false;
+
+        Job( PluginManager manager, WikiContext context, String commandline )
+        {
+            m_manager     = manager;
+            m_context     = context;
+            m_commandline = commandline;
+            m_profiled    = context.getEngine().getRenderProfiler().isSampling();
+        }
+
+        void runIfNew()
+        {
+            synchronized( this )
+            {
+                if( m_state != NEW ) return;
+
+                m_state  = RUNNING;
+                m_thread = Thread.currentThread();
+            }
+
+            long start = System.currentTimeMillis();
+
+            String          result    = null;
+            PluginException exception = null;
+
+            RenderProfiler profiler = m_context.getEngine().getRenderProfiler();
+
+            profiler.begin( m_profiled );
+
+            try
+            {
+                result = m_manager.execute( m_context, m_commandline, m_cachedOutputs );
+            }
+            catch( PluginException e )
+            {
+                exception = e;
+            }
+            catch( RuntimeException e )
+            {
+                log.info( "Plugin failed while executing:", e );
+                exception = new PluginException( "Plugin failed", e );
+            }
+            finally
+            {
+                profiler.end();
+            }
+
+            synchronized( this )
+            {
+                m_result    = result;
+                m_exception = exception;
+                m_state     = DONE;
+                m_thread    = null;
+
+                notifyAll();
+
+                if( m_abandoned )
+                {
+                    log.warn( "Plugin finished "+(System.currentTimeMillis()-start)+
+                              " ms after it was given up: "+m_commandline );
+
+                    //  Clear the interrupt meant for this job, so
+                    //  that it does not hit the next one.
+                    Thread.interrupted();
+                }
+            }
+        }
+
+        /**
+         *  Gives up on the job: interrupts it, if it is running in another
+         *  thread.  Called with the lock held.
+         */
+        private void abandon()
+        {
+            if( m_abandoned ) return;
+
+            m_abandoned = true;
+
+            if( m_thread != null && m_thread != Thread.currentThread() )
+            {
+                m_thread.interrupt();
+            }
+        }
+
+        /**
+         *  Returns the output of the plugin, waiting for it to finish if
+         *  it is running in another thread.  If it has not been started,
+         *  it is run in this thread.
+         *
+         *  @param deadline The time in milliseconds after which the
+         *         result is no longer waited for.
+         *  @return The output of the plugin.
+         *  @throws PluginException If the plugin failed, or did not
+         *          finish before the deadline.
+         */
+        public String getResult( long deadline )
+            throws PluginException
+        {
+            synchronized( this )
+            {
+                if( m_state == NEW && System.currentTimeMillis() >= deadline )
+                {
+                    m_state     = DONE;
+                    m_exception = new PluginException( "Plugin was not run, because "+
+                                                       "the page took too long to render." );
+                }
+            }
+
+            runIfNew();
+
+            synchronized( this )
+            {
+                while( m_state != DONE )
+                {
+                    long left = deadline - System.currentTimeMillis();
+
+                    if( left <= 0 )
+                    {
+                        abandon();
+                        throw new PluginException( "Plugin did not finish in time." );
+                    }
+
+                    try
+                    {
+                        wait( left );
+                    }
+                    catch( InterruptedException e )
+                    {
+                        abandon();
+                        throw new PluginException( "Interrupted while waiting for the plugin." );
+                    }
+                }
+
+                if( m_exception != null ) throw m_exception;
+
+                return m_result;
+            }
+        }
+
+        /**
+         *  Returns the cached plugin outputs which were used.  Only
+         *  valid after getResult() has returned.
+         *
+         *  @return A Collection of PluginCache.Outputs.
+         */
+        public Collection getCachedOutputs()
+        {
+            return m_cachedOutputs;
+        }
+    }
+}
@@ -27,6 +27,7 @@ import java.io.StringReader;
 import java.io.StringWriter;
 import java.io.PrintWriter;
 import java.io.IOException;
+import java.util.Collection;
 import java.util.NoSuchElementException;
 import java.util.Map;
 import java.util.Vector;
@@ -35,7 +36,11 @@ import java.util.Properties;
 import java.util.StringTokenizer;
 import java.util.HashMap;
 
+import com.ecyrd.jspwiki.ReferenceManager;
+import com.ecyrd.jspwiki.RenderProfiler;
 import com.ecyrd.jspwiki.WikiContext;
+import com.ecyrd.jspwiki.WikiEngine;
+import com.ecyrd.jspwiki.WikiPage;
 import com.ecyrd.jspwiki.FileUtil;
 import com.ecyrd.jspwiki.TextUtil;
 import com.ecyrd.jspwiki.InternalWikiException;
@@ -125,6 +130,33 @@ public class PluginManager
      */
     public static final String PARAM_DEBUG     = "debug";
 
+    /**
+     *  The maximum number of cached plugin outputs.  Zero turns the
+     *  cache off.  Default is 200.
+     */
+    public static final String PROP_CACHESIZE  = "jspwiki.pluginManager.cacheSize";
+
+    private static final int   DEFAULT_CACHESIZE = 200;
+
+    /**
+     *  The maximum number of threads used for running ConcurrentPlugins
+     *  in the background.  Zero runs all plugins one after another, as
+     *  they are met on the page.  Default is 4.
+     */
+    public static final String PROP_THREADS    = "jspwiki.pluginManager.threads";
+
+    /**
+     *  How many seconds rendering a page may wait for the plugins
+     *  running in the background.  Default is 30.
+     */
+    public static final String PROP_TIMEOUT    = "jspwiki.pluginManager.timeout";
+
+    private static final int   DEFAULT_THREADS = 4;
+    private static final int   DEFAULT_TIMEOUT = 30;
+
+    /** At most this many plugins wait for a thread. */
+    private static final int   MAX_QUEUED      = 100;
+
     Vector  m_searchPath = new Vector();
 
     Pattern m_pluginPattern;
@@ -132,6 +164,14 @@ public class PluginManager
     private boolean m_pluginsEnabled = true;
     private boolean m_initStage      = false;
 
+    /** Keeps the output of CacheablePlugins.  Null, if caching is off. */
+    private PluginCache m_cache;
+
+    /** Runs ConcurrentPlugins.  Null, if they are run like the others. */
+    private PluginExecutor m_executor;
+
+    private long    m_timeout;
+
     /**
      *  Create a new PluginManager.
      *
@@ -157,6 +197,22 @@ public class PluginManager
         m_searchPath.add( DEFAULT_PACKAGE );
         m_searchPath.add( DEFAULT_FORMS_PACKAGE );
 
+        int cacheSize = TextUtil.getIntegerProperty( props, PROP_CACHESIZE, DEFAULT_CACHESIZE );
+
+        if( cacheSize > 0 )
+        {
+            m_cache = new PluginCache( cacheSize );
+        }
+
+        int threads = TextUtil.getIntegerProperty( props, PROP_THREADS, DEFAULT_THREADS );
+
+        if( threads > 0 )
+        {
+            m_executor = new PluginExecutor( threads, MAX_QUEUED );
+        }
+
+        m_timeout = TextUtil.getIntegerProperty( props, PROP_TIMEOUT, DEFAULT_TIMEOUT ) * 1000L;
+
         PatternCompiler compiler = new Perl5Compiler();
 
         try
@@ -280,6 +336,30 @@ public class PluginManager
                            String classname,
                            Map params )
         throws PluginException
+    {
+        return execute( context, classname, params, null );
+    }
+
+    /**
+     *  Executes a plugin class in the given context, using the cached
+     *  output, if the plugin is a CacheablePlugin and there is valid
+     *  output for it.
+     *
+     *  @param context The current WikiContext.
+     *  @param classname The name of the class.
+     *  @param params A parsed map of key-value pairs.
+     *  @param cachedOutputs If not null, the PluginCache.Output which was
+     *         used or created is added here.  Nothing is added, if the output
+     *         was not cacheable.
+     *  @return Whatever the plugin returns.
+     *  @throws PluginException If the plugin execution failed.
+     *  @since 2.2.29
+     */
+    public String execute( WikiContext context,
+                           String classname,
+                           Map params,
+                           Collection cachedOutputs )
+        throws PluginException
     {
         if( !m_pluginsEnabled )
             return( "" );
@@ -316,6 +396,9 @@ public class PluginManager
             //
             //  ...and launch.
             //
+            RenderProfiler profiler = context.getEngine().getRenderProfiler();
+            long start = profiler.start();
+
             try
             {
                 if( m_initStage )
@@ -326,6 +409,11 @@ public class PluginManager
                     }
                     return "";
                 }
+                else if( m_cache != null && plugin instanceof CacheablePlugin )
+                {
+                    return executeCached( context, (CacheablePlugin) plugin,
+                                          params, cachedOutputs );
+                }
                 else
                 {
                     return plugin.execute( context, params );
@@ -352,6 +440,10 @@ public class PluginManager
 
                 throw new PluginException( "Plugin failed", t );
             }
+            finally
+            {
+                profiler.stop( RenderProfiler.PHASE_PLUGIN+pluginClass.getName(), start );
+            }
             
         }
         catch( ClassNotFoundException e )
@@ -365,6 +457,170 @@ public class PluginManager
     }
 
 
+    /**
+     *  Starts executing a plugin in the background, if it is a
+     *  ConcurrentPlugin.  The plugin gets a deep clone of the context.
+     *
+     *  @param context The current WikiContext.
+     *  @param commandline The full command line, including plugin name,
+     *         parameters and body.
+     *  @return A Job, from which the result can be fetched, or null, if
+     *          the plugin should be executed with execute() as usual.
+     *  @since 2.2.29
+     */
+    public PluginExecutor.Job executeLater( WikiContext context, String commandline )
+    {
+        if( m_executor == null || !m_pluginsEnabled || m_initStage ) return null;
+
+        PatternMatcher matcher = new Perl5Matcher();
+
+        if( !matcher.contains( commandline, m_pluginPattern ) ) return null;
+
+        try
+        {
+            Class pluginClass = findPluginClass( matcher.getMatch().group(2) );
+
+            if( !ConcurrentPlugin.class.isAssignableFrom( pluginClass ) ) return null;
+        }
+        catch( ClassNotFoundException e )
+        {
+            //  execute() will report this.
+            return null;
+        }
+
+        PluginExecutor.Job job = new PluginExecutor.Job( this, context.deepClone(), commandline );
+
+        m_executor.submit( job );
+
+        return job;
+    }
+
+    /**
+     *  Parses the parameters of a plugin command line without running
+     *  the plugin.
+     *
+     *  @param commandline The full command line, including plugin name,
+     *         parameters and body.
+     *  @return The parameters, with the body in PARAM_BODY, or an empty
+     *          Map, if the command line cannot be parsed.
+     *  @since 2.2.29
+     */
+    public Map parseCommandLine( String commandline )
+    {
+        PatternMatcher matcher = new Perl5Matcher();
+
+        try
+        {
+            if( matcher.contains( commandline, m_pluginPattern ) )
+            {
+                String args = commandline.substring( matcher.getMatch().endOffset(0),
+                                                     commandline.length() -
+                                                     (commandline.endsWith("}") ? 1 : 0) );
+
+                return parseArgs( args );
+            }
+        }
+        catch( IOException e )
+        {
+            log.debug( "Unable to parse plugin arguments: "+commandline, e );
+        }
+
+        return new HashMap();
+    }
+
+    /**
+     *  Stops the threads which run the plugins started with executeLater().
+     *  Plugins are executed in the calling thread after this.
+     *
+     *  @since 2.2.29
+     */
+    public void shutdown()
+    {
+        if( m_executor != null ) m_executor.shutdown();
+    }
+
+    /**
+     *  Returns the time in milliseconds a page may wait for the plugins
+     *  which were started with executeLater().
+     *
+     *  @since 2.2.29
+     */
+    public long getTimeout()
+    {
+        return m_timeout;
+    }
+
+    /**
+     *  Returns the output of a CacheablePlugin from the cache, or executes
+     *  it and caches the output.
+     */
+    private String executeCached( WikiContext context,
+                                  CacheablePlugin plugin,
+                                  Map params,
+                                  Collection cachedOutputs )
+        throws PluginException
+    {
+        String key = plugin.getCacheKey( context, params );
+
+        if( key == null )
+        {
+            return plugin.execute( context, params );
+        }
+
+        //
+        //  Links come out differently with absolute URLs.
+        //
+        key = plugin.getClass().getName()+":"+
+              context.getEngine().getVariable( context, WikiEngine.PROP_REFSTYLE )+":"+key;
+
+        PluginCache.Output output = m_cache.get( key );
+
+        if( output == null )
+        {
+            ReferenceManager refmgr = context.getEngine().getReferenceManager();
+
+            long changeCount = m_cache.getChangeCount();
+            long refCount    = refmgr != null ? refmgr.getModificationCount() : 0;
+
+            String html = plugin.execute( context, params );
+
+            output = m_cache.put( key, html,
+                                  plugin.getCacheTime( context, params ),
+                                  plugin.getInvalidation( context, params ),
+                                  plugin.getDependencies( context, params ),
+                                  refmgr,
+                                  changeCount, refCount );
+        }
+
+        if( cachedOutputs != null ) cachedOutputs.add( output );
+
+        return output.getHTML();
+    }
+
+    /**
+     *  Tells that a page was saved, created or removed, so that the
+     *  cached plugin outputs which depend on it are no longer used.
+     *
+     *  @param page The page.
+     *  @since 2.2.29
+     */
+    public void pageChanged( WikiPage page )
+    {
+        if( m_cache != null ) m_cache.pageChanged( page.getName() );
+    }
+
+    /**
+     *  Returns a human-readable description of the plugin cache status.
+     *
+     *  @since 2.2.29
+     */
+    public String getCacheInfo()
+    {
+        if( m_cache == null ) return "Plugin cache is disabled.";
+
+        return m_cache.getCacheInfo();
+    }
+
     /**
      *  Parses plugin arguments.  Handles quotes and all other kewl
      *  stuff.
@@ -499,6 +755,28 @@ public class PluginManager
     public String execute( WikiContext context,
                            String commandline )
         throws PluginException
+    {
+        return execute( context, commandline, (Collection) null );
+    }
+
+    /**
+     *  Parses the given command line and executes the plugin, using the
+     *  cached output if possible.
+     *
+     *  @param context The current WikiContext.
+     *  @param commandline The full command line, including plugin name,
+     *         parameters and body.
+     *  @param cachedOutputs If not null, the PluginCache.Output which was
+     *         used or created is added here.  Nothing is added, if the output
+     *         was not cacheable.
+     *  @return HTML as returned by the plugin, or possibly an error message.
+     *  @throws PluginException If the plugin execution failed.
+     *  @since 2.2.29
+     */
+    public String execute( WikiContext context,
+                           String commandline,
+                           Collection cachedOutputs )
+        throws PluginException
     {
         if( !m_pluginsEnabled )
             return( "" );
@@ -517,7 +795,7 @@ public class PluginManager
                                                         (commandline.charAt(commandline.length()-1) == '}' ? 1 : 0 ) );
                 Map arglist     = parseArgs( args );
 
-                return execute( context, plugin, arglist );
+                return execute( context, plugin, arglist, cachedOutputs );
             }
         }
         catch( NoSuchElementException e )
@@ -35,7 +35,7 @@ import java.text.SimpleDateFormat;
  *  @author Janne Jalkanen
  */
 public class RecentChangesPlugin
-    implements WikiPlugin
+    implements CacheablePlugin, ConcurrentPlugin
 {
     /** How many days we show by default. */
     private static final int    DEFAULT_DAYS = 100*365;
@@ -171,4 +171,26 @@ public class RecentChangesPlugin
         return out.toString();
     }
 
+    /**
+     *  The list only depends on the parameters, the pages and the date.
+     */
+    public String getCacheKey( WikiContext context, Map params )
+    {
+        return new TreeMap( params ).toString();
+    }
+
+    public int getCacheTime( WikiContext context, Map params )
+    {
+        return PluginCache.getSecondsUntilMidnight();
+    }
+
+    public int getInvalidation( WikiContext context, Map params )
+    {
+        return ANY_PAGE_CHANGE;
+    }
+
+    public Collection getDependencies( WikiContext context, Map params )
+    {
+        return null;
+    }
 }
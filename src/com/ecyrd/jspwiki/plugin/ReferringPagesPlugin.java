@@ -38,6 +38,7 @@ import java.util.*;
  */
 public class ReferringPagesPlugin
     extends AbstractReferralPlugin
+    implements CacheablePlugin, ConcurrentPlugin
 {
     private static Logger log = Logger.getLogger( ReferringPagesPlugin.class );
 
@@ -97,4 +98,26 @@ public class ReferringPagesPlugin
         return "";
     }
 
+    /**
+     *  The list depends on the page, unless it is given as a parameter.
+     */
+    public String getCacheKey( WikiContext context, Map params )
+    {
+        return context.getPage().getName()+"|"+new TreeMap( params ).toString();
+    }
+
+    public int getCacheTime( WikiContext context, Map params )
+    {
+        return 0;
+    }
+
+    public int getInvalidation( WikiContext context, Map params )
+    {
+        return REFERENCE_CHANGE;
+    }
+
+    public Collection getDependencies( WikiContext context, Map params )
+    {
+        return null;
+    }
 }
@@ -26,7 +26,8 @@ import java.io.StringReader;
 import java.io.IOException;
 
 /**
- *  Provides a table of contents.
+ *  Provides a table of contents.  The headings are taken from the parse
+ *  of the page which is being rendered, or from the cached parse.
  *
  *  @since 2.2
  *  @author Janne Jalkanen
@@ -83,21 +84,31 @@ public class TableOfContents
             sb.append("<h4>Table of Contents</h4>\n");
         }
 
-        try
+        //
+        //  The headings are found when the page is parsed, so they are
+        //  usually known already.
+        //
+        WikiDocument doc = (WikiDocument) context.getVariable( TranslatorReader.VAR_DOCUMENT );
+        List headings;
+
+        if( doc != null && doc.getPageName().equals( page.getName() ) )
         {
-            String wikiText = engine.getPureText( page );
-            
-            TranslatorReader in = new TranslatorReader( context,
-                                                        new StringReader(wikiText) );
-            in.enablePlugins( false );
-            in.addHeadingListener( this );
+            headings = doc.getHeadings();
+        }
+        else
+        {
+            headings = engine.getRenderingManager().getHeadings( context, page );
+        }
 
-            FileUtil.readContents( in );
+        for( Iterator i = headings.iterator(); i.hasNext(); )
+        {
+            headingAdded( context, (TranslatorReader.Heading) i.next() );
+        }
 
-            in.close();
-            
-            in = new TranslatorReader( context,
-                                       new StringReader( m_buf.toString() ) );
+        try
+        {
+            TranslatorReader in = new TranslatorReader( context,
+                                                        new StringReader( m_buf.toString() ) );
             sb.append(FileUtil.readContents( in ));
             
             in.close();
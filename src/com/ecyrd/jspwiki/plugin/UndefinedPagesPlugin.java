@@ -34,6 +34,7 @@ import java.util.*;
  */
 public class UndefinedPagesPlugin
     extends AbstractReferralPlugin
+    implements CacheablePlugin, ConcurrentPlugin
 {
     private static Logger log = Logger.getLogger( UndefinedPagesPlugin.class );
 
@@ -52,4 +53,27 @@ public class UndefinedPagesPlugin
         
         return makeHTML( context, wikitext );
     }
+
+    /**
+     *  The list only depends on the parameters and the references between pages.
+     */
+    public String getCacheKey( WikiContext context, Map params )
+    {
+        return new TreeMap( params ).toString();
+    }
+
+    public int getCacheTime( WikiContext context, Map params )
+    {
+        return 0;
+    }
+
+    public int getInvalidation( WikiContext context, Map params )
+    {
+        return REFERENCE_CHANGE;
+    }
+
+    public Collection getDependencies( WikiContext context, Map params )
+    {
+        return null;
+    }
 }
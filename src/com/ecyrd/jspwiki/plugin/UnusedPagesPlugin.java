@@ -37,6 +37,7 @@ import java.util.*;
  */
 public class UnusedPagesPlugin
     extends AbstractReferralPlugin
+    implements CacheablePlugin, ConcurrentPlugin
 {
     private static Logger log = Logger.getLogger( UnusedPagesPlugin.class );
 
@@ -57,4 +58,26 @@ public class UnusedPagesPlugin
         return makeHTML( context, wikitext );
     }
 
+    /**
+     *  The list only depends on the parameters and the references between pages.
+     */
+    public String getCacheKey( WikiContext context, Map params )
+    {
+        return new TreeMap( params ).toString();
+    }
+
+    public int getCacheTime( WikiContext context, Map params )
+    {
+        return 0;
+    }
+
+    public int getInvalidation( WikiContext context, Map params )
+    {
+        return REFERENCE_CHANGE;
+    }
+
+    public Collection getDependencies( WikiContext context, Map params )
+    {
+        return null;
+    }
 }
@@ -53,7 +53,8 @@ import java.util.*;
 // FIXME: Entries arrive in wrong order.
 
 public class WeblogPlugin 
-    implements WikiPlugin,
+    implements CacheablePlugin,
+               ConcurrentPlugin,
                InitializablePlugin
 {
     private static Logger     log = Logger.getLogger(WeblogPlugin.class);
@@ -294,6 +295,39 @@ public class WeblogPlugin
         return sb.toString();
     }
 
+    /**
+     *  The weblog depends on the page it is on, unless given as a parameter.
+     *  Weblogs which are browsed with HTTP parameters are not cached.
+     */
+    public String getCacheKey( WikiContext context, Map params )
+    {
+        if( context.getHttpParameter( "weblog."+PARAM_DAYS ) != null ||
+            context.getHttpParameter( "weblog."+PARAM_STARTDATE ) != null )
+        {
+            return null;
+        }
+
+        return context.getPage().getName()+"|"+new TreeMap( params ).toString();
+    }
+
+    public int getCacheTime( WikiContext context, Map params )
+    {
+        return PluginCache.getSecondsUntilMidnight();
+    }
+
+    /**
+     *  Any page may be a new entry, or a comment.
+     */
+    public int getInvalidation( WikiContext context, Map params )
+    {
+        return ANY_PAGE_CHANGE;
+    }
+
+    public Collection getDependencies( WikiContext context, Map params )
+    {
+        return null;
+    }
+
     private int guessNumberOfComments( WikiEngine engine, String commentpage )
         throws ProviderException
     {
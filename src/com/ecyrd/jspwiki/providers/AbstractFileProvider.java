@@ -29,6 +29,8 @@ import java.util.List;
 import org.apache.log4j.Logger;
 
 import com.ecyrd.jspwiki.*;
+import com.ecyrd.jspwiki.util.ReadWriteLock;
+import com.ecyrd.jspwiki.util.StripedLocks;
 
 /**
  *  Provides a simple directory based repository for Wiki pages.
@@ -66,6 +68,9 @@ public abstract class AbstractFileProvider
     public static final String DEFAULT_ENCODING = "ISO-8859-1";
 
     private boolean m_WindowsHackNeeded = false;
+
+    /** Keeps a page from being read while it is being written. */
+    private StripedLocks m_pageLocks = new StripedLocks( 64 );
     
     /**
      *  @throws FileNotFoundException If the specified page directory does not exist.
@@ -108,6 +113,19 @@ public abstract class AbstractFileProvider
         return m_pageDirectory;
     }
 
+    /**
+     *  Returns the lock of a page.  Hold its read lock while reading the
+     *  files of the page, and its write lock while changing them.  Pages
+     *  with different names seldom share a lock.
+     *
+     *  @param page The page name.
+     *  @since 2.2.29
+     */
+    protected ReadWriteLock getPageLock( String page )
+    {
+        return m_pageLocks.get( page );
+    }
+
     private static final String[] WINDOWS_DEVICE_NAMES =
     {
         "con", "prn", "nul", "aux", "lpt1", "lpt2", "lpt3", "lpt4", "lpt5", "lpt6", "lpt7", "lpt8", "lpt9",
@@ -183,7 +201,18 @@ public abstract class AbstractFileProvider
     public String getPageText( String page, int version )
         throws ProviderException
     {
-        return getPageText( page );
+        ReadWriteLock lock = getPageLock( page );
+
+        lock.readLock();
+
+        try
+        {
+            return getPageText( page );
+        }
+        finally
+        {
+            lock.readUnlock();
+        }
     }
 
     /**
@@ -238,23 +267,34 @@ public abstract class AbstractFileProvider
     public void putPageText( WikiPage page, String text )        
         throws ProviderException
     {
-        File file = findPage( page.getName() );
-        PrintWriter out = null;
+        ReadWriteLock lock = getPageLock( page.getName() );
+
+        lock.writeLock();
 
         try
         {
-            out = new PrintWriter(new OutputStreamWriter( new FileOutputStream( file ),
-                                                          m_encoding ));
+            File file = findPage( page.getName() );
+            PrintWriter out = null;
 
-            out.print( text );
-        }
-        catch( IOException e )
-        {
-            log.error( "Saving failed" );
+            try
+            {
+                out = new PrintWriter(new OutputStreamWriter( new FileOutputStream( file ),
+                                                              m_encoding ));
+
+                out.print( text );
+            }
+            catch( IOException e )
+            {
+                log.error( "Saving failed" );
+            }
+            finally
+            {
+                if( out != null ) out.close();
+            }
         }
         finally
         {
-            if( out != null ) out.close();
+            lock.writeUnlock();
         }
     }
 
@@ -368,17 +408,29 @@ public abstract class AbstractFileProvider
     public WikiPage getPageInfo( String page, int version )
         throws ProviderException
     {
-        File file = findPage( page );
+        ReadWriteLock lock = getPageLock( page );
+
+        lock.readLock();
 
-        if( !file.exists() )
+        try
         {
-            return null;
-        }
+            File file = findPage( page );
+
+            if( !file.exists() )
+            {
+                return null;
+            }
 
-        WikiPage p = new WikiPage( page );
-        p.setLastModified( new Date(file.lastModified()) );
+            WikiPage p = new WikiPage( page );
+            p.setLastModified( new Date(file.lastModified()) );
+            p.setSize( file.length() );
 
-        return p;
+            return p;
+        }
+        finally
+        {
+            lock.readUnlock();
+        }
     }
 
     /**
@@ -402,20 +454,42 @@ public abstract class AbstractFileProvider
     public void deleteVersion( String pageName, int version )
         throws ProviderException
     {
-        if( version == WikiProvider.LATEST_VERSION )
+        ReadWriteLock lock = getPageLock( pageName );
+
+        lock.writeLock();
+
+        try
         {
-            File f = findPage( pageName );
+            if( version == WikiProvider.LATEST_VERSION )
+            {
+                File f = findPage( pageName );
 
-            f.delete();
+                f.delete();
+            }
+        }
+        finally
+        {
+            lock.writeUnlock();
         }
     }
 
     public void deletePage( String pageName )
         throws ProviderException
     {
-        File f = findPage( pageName );
+        ReadWriteLock lock = getPageLock( pageName );
+
+        lock.writeLock();
+
+        try
+        {
+            File f = findPage( pageName );
 
-        f.delete();
+            f.delete();
+        }
+        finally
+        {
+            lock.writeUnlock();
+        }
     }
 
     public class WikiFileFilter
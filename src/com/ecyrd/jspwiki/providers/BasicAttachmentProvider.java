@@ -101,6 +101,24 @@ public class BasicAttachmentProvider
         }
     }
 
+    String getStorageDir()
+    {
+        return m_storageDir;
+    }
+
+    /**
+     *  Returns the name of the page whose attachments are kept in the
+     *  given directory, or null, if it is not an attachment directory.
+     *
+     *  @param dirName The name of the directory, without the storage dir.
+     */
+    static String getPageName( String dirName )
+    {
+        if( !dirName.endsWith( DIR_EXTENSION ) ) return null;
+
+        return unmangleName( dirName.substring( 0, dirName.length()-DIR_EXTENSION.length() ) );
+    }
+
     /**
      *  Finds storage dir, and if it exists, makes sure that it is valid.
      *
@@ -25,6 +25,7 @@ import java.util.Date;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Iterator;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import org.apache.log4j.Logger;
@@ -34,6 +35,7 @@ import com.opensymphony.module.oscache.base.NeedsRefreshException;
 
 import com.ecyrd.jspwiki.*;
 import com.ecyrd.jspwiki.util.ClassUtil;
+import com.ecyrd.jspwiki.util.DirectoryWatcher;
 import com.ecyrd.jspwiki.attachment.Attachment;
 import com.ecyrd.jspwiki.attachment.AttachmentManager;
 
@@ -59,17 +61,24 @@ public class CachingAttachmentProvider
 
     private WikiAttachmentProvider m_provider;
 
+    private WikiEngine m_engine;
+
     /**
      *  The cache contains Collection objects which contain Attachment objects.
      *  The key is the parent wiki page name (String).
      */
     private Cache m_cache;
 
+    /** Makes sure that only one thread at a time lists the attachments of a page. */
+    private SingleFlight m_loads = new SingleFlight();
+
     private long m_cacheMisses = 0;
     private long m_cacheHits   = 0;
 
     private boolean m_gotall = false;
 
+    private DirectoryWatcher m_watcher;
+
     // FIXME: Make settable.
     private int  m_refreshPeriod = 60*10; // 10 minutes at the moment
 
@@ -79,6 +88,8 @@ public class CachingAttachmentProvider
     {
         log.debug("Initing CachingAttachmentProvider");
 
+        m_engine = engine;
+
         //
         //  Construct an unlimited cache.
         //
@@ -116,6 +127,70 @@ public class CachingAttachmentProvider
             throw new IllegalArgumentException("illegal provider class");
         }
 
+        //
+        //  Watch the storage directory, if the real provider has one.
+        //
+        int watchInterval = TextUtil.getIntegerProperty( properties,
+                                                         CachingProvider.PROP_WATCHINTERVAL,
+                                                         0 );
+
+        if( watchInterval > 0 && m_provider instanceof BasicAttachmentProvider )
+        {
+            String dir = ((BasicAttachmentProvider) m_provider).getStorageDir();
+
+            log.info("Watching "+dir+" for changes every "+watchInterval+" s");
+
+            m_refreshPeriod = 24*60*60;
+
+            m_watcher = new DirectoryWatcher( new File( dir ),
+                                              watchInterval,
+                                              new DirectoryWatcher.Listener()
+                                              {
+                                                  public void entryChanged( String dirName )
+                                                  {
+                                                      String pageName = BasicAttachmentProvider.getPageName( dirName );
+
+                                                      if( pageName != null ) attachmentsChanged( pageName );
+                                                  }
+                                              } );
+            m_watcher.start();
+        }
+    }
+
+    /**
+     *  Stops watching the storage directory.  The WikiEngine calls this
+     *  when it is shut down.
+     */
+    public void shutdown()
+    {
+        if( m_watcher != null )
+        {
+            m_watcher.shutdown();
+            m_watcher = null;
+        }
+    }
+
+    /**
+     *  Flushes the attachments of a page, which have been changed outside
+     *  of JSPWiki, from the cache, and reindexes them.
+     */
+    private void attachmentsChanged( String pageName )
+    {
+        m_cache.flushEntry( pageName );
+
+        try
+        {
+            Collection c = listAttachments( new WikiPage( pageName ) );
+
+            for( Iterator i = c.iterator(); i.hasNext(); )
+            {
+                m_engine.getSearchManager().reindexPage( (Attachment) i.next() );
+            }
+        }
+        catch( ProviderException e )
+        {
+            log.warn("Unable to list the attachments of "+pageName, e);
+        }
     }
 
     public void putAttachmentData( Attachment att, InputStream data )
@@ -215,18 +290,26 @@ public class CachingAttachmentProvider
     }
 
     /**
-     *  Refreshes the cache content and updates counters.
+     *  Refreshes the cache content and updates counters.  If another thread
+     *  is already refreshing the same page, waits for it instead.
      *
      *  @return The newly fetched object from the provider.
      */
-    private final Collection refresh( WikiPage page )
+    private final Collection refresh( final WikiPage page )
         throws ProviderException
     {
-        m_cacheMisses++;
-        Collection c = m_provider.listAttachments( page );
-        m_cache.putInCache( page.getName(), c );
+        return (Collection)m_loads.load( page.getName(), new SingleFlight.Loader()
+        {
+            public Object load()
+                throws ProviderException
+            {
+                m_cacheMisses++;
+                Collection c = m_provider.listAttachments( page );
+                m_cache.putInCache( page.getName(), c );
 
-        return c;
+                return c;
+            }
+        } );
     }
 
     public Attachment getAttachmentInfo( WikiPage page, String name, int version )
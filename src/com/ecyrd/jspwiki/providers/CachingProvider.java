@@ -19,15 +19,24 @@
  */
 package com.ecyrd.jspwiki.providers;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Properties;
-import java.util.Set;
 import java.util.TreeSet;
 
 import org.apache.log4j.Logger;
@@ -42,10 +51,11 @@ import com.ecyrd.jspwiki.WikiContext;
 import com.ecyrd.jspwiki.WikiEngine;
 import com.ecyrd.jspwiki.WikiPage;
 import com.ecyrd.jspwiki.util.ClassUtil;
-import com.opensymphony.module.oscache.base.Cache;
-import com.opensymphony.module.oscache.base.NeedsRefreshException;
-import com.opensymphony.module.oscache.base.events.CacheEntryEvent;
-import com.opensymphony.module.oscache.base.events.CacheEntryEventListener;
+import com.ecyrd.jspwiki.util.CompressedTextCache;
+import com.ecyrd.jspwiki.util.DirectoryWatcher;
+import com.ecyrd.jspwiki.util.ReadWriteLock;
+import com.ecyrd.jspwiki.util.StripedCache;
+import com.ecyrd.jspwiki.util.StripedLocks;
 
 /**
  *  Provides a caching page provider.  This class rests on top of a
@@ -59,7 +69,9 @@ import com.opensymphony.module.oscache.base.events.CacheEntryEventListener;
  *  <p>
  *  Heavily based on ideas by Chris Brooking.
  *  <p>
- *  Since 2.1.52 uses the OSCache library from OpenSymphony.
+ *  Since 2.2.29 uses StripedCache instead of OSCache, so that readers of
+ *  different pages do not wait for each other, and the page texts are
+ *  limited by their size in bytes instead of their number.
  *
  *  @author Janne Jalkanen
  *  @since 1.6.4
@@ -78,17 +90,25 @@ public class CachingProvider
     // FIXME: Find another way to the search engine to use instead of from WikiEngine?
     private WikiEngine       m_engine;
 
-    private Cache            m_cache;
-    private Cache            m_negCache; // Cache for holding non-existing pages
+    /** Never evicts anything, since it doubles as the list of all pages. */
+    private StripedCache     m_cache;
+    private StripedCache     m_negCache; // Cache for holding non-existing pages
     
-    private Cache            m_textCache;
-    private Cache            m_historyCache;
+    private StripedCache     m_textCache;
+    private CompressedTextCache m_compressedCache; // Second level, may be null
 
-    private long             m_cacheMisses = 0;
-    private long             m_cacheHits   = 0;
+    // Old versions never change, so these are only flushed when versions are deleted.
+    private StripedCache     m_versionTextCache;
+    private StripedCache     m_versionInfoCache;
 
-    private long             m_historyCacheMisses = 0;
-    private long             m_historyCacheHits   = 0;
+    // Make sure that only one thread at a time loads the same page.
+    private SingleFlight     m_infoLoads    = new SingleFlight();
+    private SingleFlight     m_textLoads    = new SingleFlight();
+    private SingleFlight     m_historyLoads = new SingleFlight();
+    private StripedCache     m_historyCache;
+
+    // Saves and deletions of a page wait for its readers, and vice versa.
+    private StripedLocks     m_pageLocks    = new StripedLocks( 64 );
 
     private int              m_expiryPeriod = 30;
     
@@ -102,8 +122,15 @@ public class CachingProvider
 
     private boolean          m_gotall = false;
 
-    private CacheItemCollector m_allCollector = new CacheItemCollector();
-    
+    // True, when the snapshot has been read but not yet compared to the real provider.
+    private boolean          m_snapshotRead = false;
+
+    // Names of the pages changed while JSPWiki was not running, or null.
+    private List             m_snapshotChanges;
+
+    private DirectoryWatcher m_watcher;
+    private SnapshotWriter   m_snapshotWriter;
+
     /**
      *  Defines, in seconds, the amount of time a text will live in the cache
      *  at most before requiring a refresh.
@@ -112,9 +139,52 @@ public class CachingProvider
     public static final String PROP_CACHECHECKINTERVAL = "jspwiki.cachingProvider.cacheCheckInterval";
     public static final String PROP_CACHECAPACITY      = "jspwiki.cachingProvider.capacity";
 
+    /**
+     *  Defines, in kilobytes, how much page text is kept in the cache at most.
+     */
+    public static final String PROP_TEXTCACHESIZE      = "jspwiki.cachingProvider.textCacheSize";
+
     private static final int   DEFAULT_CACHECAPACITY   = 1000; // Good most wikis
 
-    private static final String OSCACHE_ALGORITHM      = "com.opensymphony.module.oscache.base.algorithm.LRUCache";
+    /**
+     *  Defines, in kilobytes, the size of the second level text cache, which
+     *  keeps the texts compressed outside of the Java heap.  Zero turns it off.
+     */
+    public static final String PROP_COMPRESSEDCACHESIZE = "jspwiki.cachingProvider.compressedCacheSize";
+
+    /**
+     *  Defines, in kilobytes, how much text of old page versions is kept
+     *  in the cache at most.
+     */
+    public static final String PROP_VERSIONCACHESIZE   = "jspwiki.cachingProvider.versionCacheSize";
+
+    /**
+     *  Defines, in seconds, how often the page directory is scanned for
+     *  changes made outside of JSPWiki.  When this is set, the cached pages
+     *  are no longer checked one by one every cacheCheckInterval seconds.
+     *  Zero turns the scanning off.  The attachment cache uses this as well.
+     */
+    public static final String PROP_WATCHINTERVAL      = "jspwiki.cachingProvider.watchInterval";
+
+    /**
+     *  Defines, in seconds, how often the page infos are written to the
+     *  work directory.  They are also written when the WikiEngine is shut
+     *  down, and read back at startup, so that the page infos are available
+     *  at once.  Zero turns this off.
+     */
+    public static final String PROP_SNAPSHOTINTERVAL   = "jspwiki.cachingProvider.snapshotInterval";
+
+    private static final String SNAPSHOT_FILE          = "pageinfo.ser";
+
+    /** Changed whenever the format of the snapshot file changes. */
+    private static final int   SNAPSHOT_VERSION        = 1;
+
+    private static final int   DEFAULT_TEXTCACHESIZE   = 16*1024;
+
+    private static final int   DEFAULT_VERSIONCACHESIZE = 4*1024;
+
+    /** The approximate size of a cache entry without the text, in bytes. */
+    private static final int   ENTRY_OVERHEAD          = 64;
 
     
     public void initialize( WikiEngine engine, Properties properties )
@@ -139,20 +209,38 @@ public class CachingProvider
                                                     PROP_CACHECAPACITY,
                                                     DEFAULT_CACHECAPACITY );
 
-        log.debug("Cache capacity "+capacity+" pages.");
+        int textSize = TextUtil.getIntegerProperty( properties,
+                                                    PROP_TEXTCACHESIZE,
+                                                    DEFAULT_TEXTCACHESIZE );
+
+        log.debug("Cache capacity "+capacity+" pages, "+textSize+" kB of text.");
 
-        m_cache = new Cache( true, false );
-        m_cache.addCacheEntryEventListener( m_allCollector );
+        m_cache = new StripedCache( 0 );
         
-        m_negCache = new Cache( true, false );
+        m_negCache = new StripedCache( capacity );
         
-        m_textCache = new Cache( true, false,
-                                 OSCACHE_ALGORITHM,
-                                 capacity );
+        m_textCache = new StripedCache( textSize*1024L );
+
+        int versionSize = TextUtil.getIntegerProperty( properties,
+                                                       PROP_VERSIONCACHESIZE,
+                                                       DEFAULT_VERSIONCACHESIZE );
+
+        m_versionTextCache = new StripedCache( versionSize*1024L );
+
+        m_versionInfoCache = new StripedCache( capacity );
+
+        int compressedSize = TextUtil.getIntegerProperty( properties,
+                                                          PROP_COMPRESSEDCACHESIZE,
+                                                          0 );
+
+        if( compressedSize > 0 )
+        {
+            log.debug("Compressed text cache "+compressedSize+" kB.");
+
+            m_compressedCache = new CompressedTextCache( compressedSize*1024 );
+        }
 
-        m_historyCache = new Cache( true, false,
-                                    OSCACHE_ALGORITHM,
-                                    capacity );
+        m_historyCache = new StripedCache( capacity );
                                     
         //
         //  Find and initialize real provider.
@@ -187,102 +275,469 @@ public class CachingProvider
             log.error("Illegal access to provider class "+classname,e);
             throw new IllegalArgumentException("illegal provider class");
         }
+
+        //
+        //  Watch the page directory, if the real provider has one.
+        //
+        int watchInterval = TextUtil.getIntegerProperty( properties,
+                                                         PROP_WATCHINTERVAL,
+                                                         0 );
+
+        if( watchInterval > 0 && m_provider instanceof AbstractFileProvider )
+        {
+            final AbstractFileProvider fileProvider = (AbstractFileProvider) m_provider;
+
+            log.info("Watching "+fileProvider.getPageDirectory()+" for changes every "+watchInterval+" s");
+
+            //  Changes are noticed by the watcher, so the cached pages need
+            //  not be checked often.
+            m_expiryPeriod = m_pageContentExpiryPeriod;
+
+            //  Only the page files are watched, so that the old versions
+            //  kept in subdirectories are not scanned each time.
+            FilenameFilter pageFiles = new FilenameFilter()
+            {
+                public boolean accept( File dir, String fileName )
+                {
+                    return fileName.endsWith( AbstractFileProvider.FILE_EXT );
+                }
+            };
+
+            m_watcher = new DirectoryWatcher( new File( fileProvider.getPageDirectory() ),
+                                              watchInterval,
+                                              pageFiles,
+                                              new DirectoryWatcher.Listener()
+                                              {
+                                                  public void entryChanged( String fileName )
+                                                  {
+                                                      if( fileName.endsWith( AbstractFileProvider.FILE_EXT ) )
+                                                      {
+                                                          String name = fileName.substring( 0, fileName.length()-AbstractFileProvider.FILE_EXT.length() );
+
+                                                          checkPage( fileProvider.unmangleName( name ) );
+                                                      }
+                                                  }
+                                              } );
+            m_watcher.start();
+        }
+
+        //
+        //  Start from the snapshot of the previous run, if there is one.
+        //
+        int snapshotInterval = TextUtil.getIntegerProperty( properties,
+                                                            PROP_SNAPSHOTINTERVAL,
+                                                            0 );
+
+        if( snapshotInterval > 0 )
+        {
+            readSnapshot();
+
+            m_snapshotWriter = new SnapshotWriter( snapshotInterval );
+            m_snapshotWriter.start();
+        }
     }
 
+    /**
+     *  Tells the rest of the WikiEngine about the pages which were changed
+     *  while JSPWiki was not running, so that their references and search
+     *  index entries are updated.  The WikiEngine calls this once all of
+     *  its managers have been started.
+     *
+     *  @throws ProviderException If the real provider cannot list the pages.
+     */
+    public void engineStarted()
+        throws ProviderException
+    {
+        //  Compares the snapshot to the real provider, if nobody has asked
+        //  for all pages yet.
+        getAllPages();
 
+        List changed;
 
+        synchronized( this )
+        {
+            changed = m_snapshotChanges;
+            m_snapshotChanges = null;
+        }
 
-    private WikiPage getPageInfoFromCache( String name )
-        throws ProviderException,
-               RepositoryModifiedException
+        if( changed == null ) return;
+
+        for( Iterator i = changed.iterator(); i.hasNext(); )
+        {
+            m_engine.getPageManager().pageChangedExternally( (String) i.next() );
+        }
+    }
+
+    /**
+     *  Stops the background threads and writes the final snapshot.  The
+     *  WikiEngine calls this when it is shut down.
+     */
+    public void shutdown()
     {
-        try
+        if( m_watcher != null )
         {
-            WikiPage item = (WikiPage)m_cache.getFromCache( name, m_expiryPeriod );
-            
-            if( item != null )
-                return item;
-            
-            return null;
+            m_watcher.shutdown();
+            m_watcher = null;
         }
-        catch( NeedsRefreshException e )
+
+        if( m_snapshotWriter != null )
         {
-            WikiPage cached = (WikiPage)e.getCacheContent();
-            
-            // int version = (cached != null) ? cached.getVersion() : WikiPageProvider.LATEST_VERSION;
-            
-            WikiPage refreshed = m_provider.getPageInfo( name, WikiPageProvider.LATEST_VERSION );
-  
-            if( refreshed == null && cached != null )
+            m_snapshotWriter.shutdown();
+            m_snapshotWriter = null;
+
+            writeSnapshot();
+        }
+    }
+
+    /**
+     *  Reads the page infos written by writeSnapshot() into the cache.
+     *  The list of all pages is still asked from the real provider, since
+     *  pages may have been added or removed while JSPWiki was not running.
+     *
+     *  @return True, if the snapshot was read.
+     */
+    private boolean readSnapshot()
+    {
+        File f = new File( m_engine.getWorkDir(), SNAPSHOT_FILE );
+
+        if( !f.exists() ) return false;
+
+        DataInputStream in = null;
+
+        try
+        {
+            long start = System.currentTimeMillis();
+
+            in = new DataInputStream( new BufferedInputStream( new FileInputStream(f) ) );
+
+            if( in.readInt() != SNAPSHOT_VERSION )
             {
-                //  Page has been removed evilly by a goon from outer space
+                log.info("Page info snapshot is in an old format, ignoring it.");
+                return false;
+            }
 
-                log.debug("Page "+name+" has been removed externally.");
-                
-                m_cache.putInCache( name, null );
-                m_textCache.putInCache( name, null );
-                m_historyCache.putInCache( name, null );
-                // We cache a page miss
-                m_negCache.putInCache( name, name );
+            in.readLong(); // Timestamp
+
+            int count = in.readInt();
+            ArrayList pages = new ArrayList( count );
+
+            for( int i = 0; i < count; i++ )
+            {
+                WikiPage p = new WikiPage( in.readUTF() );
+
+                p.setVersion( in.readInt() );
+                if( in.readBoolean() ) p.setAuthor( in.readUTF() );
+                p.setSize( in.readLong() );
+
+                long lastModified = in.readLong();
+                if( lastModified >= 0 ) p.setLastModified( new Date(lastModified) );
 
-                throw new RepositoryModifiedException( "Removed: "+name, name );
+                pages.add( p );
             }
-            else if( cached == null )
+
+            synchronized( this )
             {
-                // The page did not exist in the first place
-                
-                if( refreshed != null )
+                for( Iterator i = pages.iterator(); i.hasNext(); )
                 {
-                    // We must now add it
-                    m_cache.putInCache( name, refreshed );
-                    // Requests for this page are now no longer denied
-                    m_negCache.putInCache( name, null );
-                    
-                    throw new RepositoryModifiedException( "Added: "+name, name );
-                    // return refreshed;
-                }
-                else
-                {
-                    // Cache page miss
-                    m_negCache.putInCache( name, name );
+                    WikiPage p = (WikiPage) i.next();
+
+                    m_cache.put( p.getName(), p );
                 }
+
+                m_snapshotRead = true;
             }
-            else if( cached.getVersion() != refreshed.getVersion() )
+
+            log.info("Read "+count+" page infos from the snapshot in "+
+                     (System.currentTimeMillis()-start)+" ms");
+
+            return true;
+        }
+        catch( IOException e )
+        {
+            log.info("Unable to read the page info snapshot, ignoring it: "+e.getMessage());
+            return false;
+        }
+        finally
+        {
+            try
             {
-                //  The newest version has been deleted, but older versions still remain
-                log.debug("Page "+cached.getName()+" newest version deleted, reloading...");
-                
-                m_cache.putInCache( name, refreshed );
-                // Requests for this page are now no longer denied
-                m_negCache.putInCache( name, null );
+                if( in != null ) in.close();
+            }
+            catch( IOException e ) {}
+        }
+    }
 
-                m_textCache.flushEntry( name );
-                m_historyCache.flushEntry( name );
-                
-                return refreshed;
+    /**
+     *  Writes the infos of all pages into the work directory.  Does
+     *  nothing, if the list of all pages has not been read yet.
+     */
+    private synchronized void writeSnapshot()
+    {
+        if( !m_gotall ) return;
+
+        File f   = new File( m_engine.getWorkDir(), SNAPSHOT_FILE );
+        File tmp = new File( m_engine.getWorkDir(), SNAPSHOT_FILE+".tmp" );
+
+        DataOutputStream out = null;
+
+        try
+        {
+            List pages = m_cache.values();
+
+            out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream(tmp) ) );
+
+            out.writeInt( SNAPSHOT_VERSION );
+            out.writeLong( System.currentTimeMillis() );
+            out.writeInt( pages.size() );
+
+            for( Iterator i = pages.iterator(); i.hasNext(); )
+            {
+                WikiPage p = (WikiPage) i.next();
+
+                out.writeUTF( p.getName() );
+                out.writeInt( p.getVersion() );
+                out.writeBoolean( p.getAuthor() != null );
+                if( p.getAuthor() != null ) out.writeUTF( p.getAuthor() );
+                out.writeLong( p.getSize() );
+                out.writeLong( p.getLastModified() != null ? p.getLastModified().getTime() : -1L );
             }
-            else if( Math.abs(refreshed.getLastModified().getTime()-cached.getLastModified().getTime()) > 1000L )
+
+            out.close();
+            out = null;
+
+            //  Replace the old snapshot only when the new one is complete.
+            f.delete();
+
+            if( !tmp.renameTo( f ) )
             {
-                //  Yes, the page has been modified externally and nobody told us
-         
-                log.info("Page "+cached.getName()+" changed, reloading...");
+                log.warn("Unable to rename "+tmp+" to "+f);
+            }
+        }
+        catch( IOException e )
+        {
+            log.warn("Unable to write the page info snapshot: "+e.getMessage());
+        }
+        finally
+        {
+            try
+            {
+                if( out != null ) out.close();
+            }
+            catch( IOException e ) {}
+        }
+    }
 
-                m_cache.putInCache( name, refreshed );
-                // Requests for this page are now no longer denied
-                m_negCache.putInCache( name, null );
-                m_textCache.flushEntry( name );
-                m_historyCache.flushEntry( name );
+    /**
+     *  Compares the page infos read from the snapshot to the list of all
+     *  pages in the real provider, and updates the pages which have been
+     *  changed, added or removed while JSPWiki was not running.  The names
+     *  of these pages are kept for engineStarted().
+     */
+    private synchronized void validateSnapshot( Collection real )
+    {
+        HashSet    names   = new HashSet();
+        ArrayList  changed = new ArrayList();
+
+        for( Iterator i = real.iterator(); i.hasNext(); )
+        {
+            WikiPage p    = (WikiPage) i.next();
+            String   name = p.getName();
+
+            names.add( name );
 
-                throw new RepositoryModifiedException( "Modified: "+name, name );
+            StripedCache.Entry entry = m_cache.peek( name );
+            WikiPage cached = (entry != null) ? (WikiPage) entry.getValue() : null;
+
+            if( cached == null ||
+                cached.getVersion() != p.getVersion() ||
+                cached.getLastModified() == null ||
+                p.getLastModified() == null ||
+                Math.abs(p.getLastModified().getTime()-cached.getLastModified().getTime()) > 1000L )
+            {
+                m_cache.put( name, p );
+                m_negCache.remove( name );
+                flushText( name );
+                m_historyCache.remove( name );
+
+                changed.add( name );
             }
-            else
+        }
+
+        for( Iterator i = m_cache.values().iterator(); i.hasNext(); )
+        {
+            WikiPage p = (WikiPage) i.next();
+
+            if( !names.contains( p.getName() ) )
+            {
+                m_cache.put( p.getName(), null );
+                m_negCache.put( p.getName(), p.getName() );
+                flushText( p.getName() );
+                m_historyCache.remove( p.getName() );
+
+                changed.add( p.getName() );
+            }
+        }
+
+        log.info( changed.size()+" pages changed since the page info snapshot was written");
+
+        m_snapshotRead    = false;
+        m_snapshotChanges = changed.isEmpty() ? null : changed;
+    }
+
+    private WikiPage getPageInfoFromCache( final String name )
+        throws ProviderException,
+               RepositoryModifiedException
+    {
+        StripedCache.Entry entry = m_cache.getEntry( name );
+
+        if( isFresh( entry, m_expiryPeriod ) )
+        {
+            return (WikiPage)entry.getValue();
+        }
+
+        return (WikiPage)m_infoLoads.load( name, new SingleFlight.Loader()
+        {
+            public Object load()
+                throws ProviderException
             {
-                // Refresh the cache by putting the same object back
-                m_cache.putInCache( name, cached );
+                //  Someone may have just refreshed it.
+                StripedCache.Entry entry = m_cache.peek( name );
+
+                if( isFresh( entry, m_expiryPeriod ) )
+                {
+                    return entry.getValue();
+                }
+
+                return refreshPageInfo( name, (entry != null) ? (WikiPage)entry.getValue() : null );
+            }
+        } );
+    }
+
+    /**
+     *  Checks the cached info of a page against the real provider.
+     *
+     *  @param name The page name.
+     *  @param cached The cached info, or null, if the page was not known to exist.
+     *  @return The info of the page, or null.
+     *  @throws RepositoryModifiedException If the page has been added, removed
+     *          or modified behind our back.
+     */
+    private WikiPage refreshPageInfo( String name, WikiPage cached )
+        throws ProviderException,
+               RepositoryModifiedException
+    {
+        // int version = (cached != null) ? cached.getVersion() : WikiPageProvider.LATEST_VERSION;
+        
+        WikiPage refreshed = m_provider.getPageInfo( name, WikiPageProvider.LATEST_VERSION );
+  
+        if( refreshed == null && cached != null )
+        {
+            //  Page has been removed evilly by a goon from outer space
+
+            log.debug("Page "+name+" has been removed externally.");
+            
+            m_cache.put( name, null );
+            flushText( name );
+            m_historyCache.remove( name );
+            flushVersions( name, 1, cached.getVersion() );
+            // We cache a page miss
+            m_negCache.put( name, name );
+
+            throw new RepositoryModifiedException( "Removed: "+name, name );
+        }
+        else if( cached == null )
+        {
+            // The page did not exist in the first place
+            
+            if( refreshed != null )
+            {
+                // We must now add it
+                m_cache.put( name, refreshed );
+
+                // If an older page with the same name was removed behind
+                // our backs, its versions may still be cached.
+                flushVersions( name, 1, refreshed.getVersion() );
                 // Requests for this page are now no longer denied
-                m_negCache.putInCache( name, null );
+                m_negCache.remove( name );
+                
+                throw new RepositoryModifiedException( "Added: "+name, name );
+                // return refreshed;
+            }
+            else
+            {
+                // Cache page miss
+                m_negCache.put( name, name );
             }
-            return cached;
+        }
+        else if( cached.getVersion() != refreshed.getVersion() )
+        {
+            //  The newest version has been deleted, but older versions still remain
+            log.debug("Page "+cached.getName()+" newest version deleted, reloading...");
+            
+            m_cache.put( name, refreshed );
+            // Requests for this page are now no longer denied
+            m_negCache.remove( name );
+
+            flushText( name );
+            m_historyCache.remove( name );
+            flushVersions( name, refreshed.getVersion(), cached.getVersion() );
+            
+            return refreshed;
+        }
+        else if( Math.abs(refreshed.getLastModified().getTime()-cached.getLastModified().getTime()) > 1000L )
+        {
+            //  Yes, the page has been modified externally and nobody told us
+     
+            log.info("Page "+cached.getName()+" changed, reloading...");
+
+            m_cache.put( name, refreshed );
+            // Requests for this page are now no longer denied
+            m_negCache.remove( name );
+            flushText( name );
+            m_historyCache.remove( name );
+
+            throw new RepositoryModifiedException( "Modified: "+name, name );
+        }
+        else
+        {
+            // Refresh the cache by putting the same object back
+            m_cache.put( name, cached );
+            // Requests for this page are now no longer denied
+            m_negCache.remove( name );
+        }
+        return cached;
+    }
+
+    /**
+     *  Checks a page which may have been changed outside of JSPWiki, and
+     *  if it has, tells the PageManager to update everything which depends
+     *  on the page.
+     */
+    private void checkPage( String pageName )
+    {
+        WikiPage cached = (WikiPage)m_cache.get( pageName );
+
+        try
+        {
+            if( refreshPageInfo( pageName, cached ) == cached ) return; // Not changed
+        }
+        catch( RepositoryModifiedException e )
+        {
+            // Changed.
+        }
+        catch( ProviderException e )
+        {
+            log.warn("Unable to check page "+pageName, e);
+            return;
+        }
+
+        try
+        {
+            m_engine.getPageManager().pageChangedExternally( pageName );
+        }
+        catch( ProviderException e )
+        {
+            log.warn("Unable to update page "+pageName, e);
         }
     }
 
@@ -291,21 +746,11 @@ public class CachingProvider
         //
         //  First, check the negative cache if we've seen it before
         //
-        try
-        {        
-            String isNonExistant = (String) m_negCache.getFromCache( pageName, m_expiryPeriod );
+        StripedCache.Entry isNonExistant = m_negCache.getEntry( pageName );
             
-            if( isNonExistant != null ) return false; // No such page
-        }
-        catch( NeedsRefreshException e )
-        {
-            // OSCache 2.1 locks the Entry which leads to a deadlock. We must unlock the entry
-            // if there is no entry yet in there. If you want to use OSCache 2.1, uncomment the
-            // following line.
-            // m_negCache.cancelUpdate(pageName);
+        if( isFresh( isNonExistant, m_expiryPeriod ) ) return false; // No such page
 
-            // Let's just check if the page exists in the normal way
-        }
+        // Let's just check if the page exists in the normal way
 
         WikiPage p = null;
         
@@ -348,7 +793,8 @@ public class CachingProvider
         //
         //  FIXME: There's a problem here; if someone modifies the
         //         repository by adding a page outside JSPWiki, 
-        //         we won't notice it.
+        //         we won't notice it, unless the page directory
+        //         is being watched.
 
         if( m_gotall )
         {
@@ -374,30 +820,57 @@ public class CachingProvider
         throws ProviderException,
                RepositoryModifiedException
     {
-        String result = null;
+        ReadWriteLock lock = m_pageLocks.get( pageName );
 
-        if( version == WikiPageProvider.LATEST_VERSION )
-        {
-            result = getTextFromCache( pageName );
-        }
-        else
+        lock.readLock();
+
+        try
         {
-            WikiPage p = getPageInfoFromCache( pageName );
+            String result = null;
 
-            //
-            //  Or is this the latest version fetched by version number?
-            //
-            if( p != null && p.getVersion() == version )
+            if( version == WikiPageProvider.LATEST_VERSION )
             {
                 result = getTextFromCache( pageName );
             }
             else
             {
-                result = m_provider.getPageText( pageName, version );
+                WikiPage p = getPageInfoFromCache( pageName );
+
+                //
+                //  Or is this the latest version fetched by version number?
+                //
+                if( p != null && p.getVersion() == version )
+                {
+                    result = getTextFromCache( pageName );
+                }
+                else if( isOldVersion( p, version ) )
+                {
+                    String key = getVersionKey( pageName, version );
+
+                    result = (String)m_versionTextCache.get( key );
+
+                    if( result == null )
+                    {
+                        result = m_provider.getPageText( pageName, version );
+
+                        if( result != null )
+                        {
+                            m_versionTextCache.put( key, result, ENTRY_OVERHEAD + 2L*result.length() );
+                        }
+                    }
+                }
+                else
+                {
+                    result = m_provider.getPageText( pageName, version );
+                }
             }
-        }
 
-        return result;
+            return result;
+        }
+        finally
+        {
+            lock.readUnlock();
+        }
     }
 
 
@@ -412,44 +885,33 @@ public class CachingProvider
 
         WikiPage page = getPageInfoFromCache( pageName );
 
-        try
+        StripedCache.Entry entry = m_textCache.getEntry( pageName );
+
+        if( isFresh( entry, m_pageContentExpiryPeriod ) )
         {
-            text = (String)m_textCache.getFromCache( pageName,
-                                                     m_pageContentExpiryPeriod );
+            text = (String)entry.getValue();
             
             if( text == null )
             {
                 if( page != null )
                 {
-                    text = m_provider.getPageText( pageName, WikiPageProvider.LATEST_VERSION );
-                
-                    m_textCache.putInCache( pageName, text );
-
-                    m_cacheMisses++;
+                    text = loadText( pageName );
                 }
                 else
                 {
                     return null;
                 }
             }
-            else
-            {
-                m_cacheHits++;
-            }
         }
-        catch( NeedsRefreshException e )
+        else
         {            
             if( pageExists(pageName) )
             {
-                text = m_provider.getPageText( pageName, WikiPageProvider.LATEST_VERSION );
-                    
-                m_textCache.putInCache( pageName, text );
-
-                m_cacheMisses++;
+                text = loadText( pageName );
             }
             else
             {
-                m_textCache.putInCache( pageName, null );
+                putTextInCache( pageName, null );
                 return null; // No page exists
             }
         }
@@ -457,10 +919,114 @@ public class CachingProvider
         return text;
     }
 
+    /**
+     *  Gets the latest page text from the second level cache, or if it is
+     *  not there, from the real provider, and puts it in the text cache.
+     *  Only one thread at a time loads the text of a page.
+     */
+    private String loadText( final String pageName )
+        throws ProviderException
+    {
+        return (String)m_textLoads.load( pageName, new SingleFlight.Loader()
+        {
+            public Object load()
+                throws ProviderException
+            {
+                //  Someone may have just loaded it.
+                StripedCache.Entry entry = m_textCache.peek( pageName );
+
+                if( isFresh( entry, m_pageContentExpiryPeriod ) && entry.getValue() != null )
+                {
+                    return entry.getValue();
+                }
+
+                String text = null;
+
+                if( m_compressedCache != null )
+                {
+                    text = m_compressedCache.get( pageName, m_pageContentExpiryPeriod*1000L );
+                }
+
+                if( text == null )
+                {
+                    text = m_provider.getPageText( pageName, WikiPageProvider.LATEST_VERSION );
+
+                    if( m_compressedCache != null ) m_compressedCache.put( pageName, text );
+                }
+
+                putTextInCache( pageName, text );
+
+                return text;
+            }
+        } );
+    }
+
+    /**
+     *  Removes a page text from both levels of the text cache.
+     */
+    private void flushText( String pageName )
+    {
+        m_textCache.remove( pageName );
+
+        if( m_compressedCache != null ) m_compressedCache.remove( pageName );
+    }
+
+    /**
+     *  Returns true, if the version is older than the latest version of
+     *  the page.  Providers which do not keep versions return the latest
+     *  version for any version number, so nothing is an old version for them.
+     */
+    private static boolean isOldVersion( WikiPage latest, int version )
+    {
+        return latest != null && version > 0 && version < latest.getVersion();
+    }
+
+    private static String getVersionKey( String pageName, int version )
+    {
+        return pageName+"/"+version;
+    }
+
+    /**
+     *  Removes the given versions of a page from the old version caches.
+     */
+    private void flushVersions( String pageName, int from, int to )
+    {
+        for( int version = Math.max( from, 1 ); version <= to; version++ )
+        {
+            String key = getVersionKey( pageName, version );
+
+            m_versionTextCache.remove( key );
+            m_versionInfoCache.remove( key );
+        }
+    }
+
+    /**
+     *  Caches a page text, weighing it by its size in bytes.
+     */
+    private void putTextInCache( String pageName, String text )
+    {
+        long weight = ENTRY_OVERHEAD + ((text != null) ? 2L*text.length() : 0);
+
+        m_textCache.put( pageName, text, weight );
+    }
+
+    /**
+     *  Returns true, if the entry exists and is younger than the given
+     *  number of seconds.
+     */
+    private static boolean isFresh( StripedCache.Entry entry, int seconds )
+    {
+        return entry != null && entry.getAge() < seconds*1000L;
+    }
+
     public void putPageText( WikiPage page, String text )
         throws ProviderException
     {
-        synchronized(this)
+        ReadWriteLock lock = m_pageLocks.get( page.getName() );
+
+        lock.writeLock();
+
+        try
         {
             m_provider.putPageText( page, text );
 
@@ -468,10 +1034,10 @@ public class CachingProvider
             
             // Refresh caches properly
             
-            m_cache.flushEntry( page.getName() );
-            m_textCache.flushEntry( page.getName() );
-            m_historyCache.flushEntry( page.getName() );
-            m_negCache.flushEntry( page.getName() );
+            m_cache.remove( page.getName() );
+            flushText( page.getName() );
+            m_historyCache.remove( page.getName() );
+            m_negCache.remove( page.getName() );
             
             // Refresh caches
             try
@@ -480,6 +1046,10 @@ public class CachingProvider
             }
             catch(RepositoryModifiedException e) {} // Expected
         }
+        finally
+        {
+            lock.writeUnlock();
+        }
     }
 
 
@@ -496,13 +1066,20 @@ public class CachingProvider
 
             synchronized(this)
             {
-                for( Iterator i = all.iterator(); i.hasNext(); )
+                if( m_snapshotRead )
                 {
-                    WikiPage p = (WikiPage) i.next();
+                    validateSnapshot( all );
+                }
+                else
+                {
+                    for( Iterator i = all.iterator(); i.hasNext(); )
+                    {
+                        WikiPage p = (WikiPage) i.next();
                     
-                    m_cache.putInCache( p.getName(), p );
-                    // Requests for this page are now no longer denied
-                    m_negCache.putInCache( p.getName(), null );
+                        m_cache.put( p.getName(), p );
+                        // Requests for this page are now no longer denied
+                        m_negCache.remove( p.getName() );
+                    }
                 }
 
                 m_gotall = true;
@@ -510,7 +1087,7 @@ public class CachingProvider
         }
         else
         {
-            all = m_allCollector.getAllItems();
+            all = new TreeSet( m_cache.values() );
         }
 
         return all;
@@ -538,36 +1115,26 @@ public class CachingProvider
         // FIXME: Does not implement fast searching
     }
 
-    //
-    //  FIXME: Kludge: make sure that the page is also parsed and it gets all the
-    //         necessary variables.
-    //
-
+    /**
+     *  Makes sure that the page gets all the necessary variables.
+     */
     private void refreshMetadata( WikiPage page )
     {
         if( page != null && !page.hasMetadata() )
         {
-            StringReader in = null;
-            StringWriter out = null;
-                
             try
             {
-                in = new StringReader( m_provider.getPageText(page.getName(), page.getVersion()) ); 
-                                                    
-                TranslatorReader tr = new TranslatorReader( new WikiContext(m_engine, page), in );
-                
-                out = new StringWriter();
-                FileUtil.copyContents( tr, out );
+                String text = m_provider.getPageText( page.getName(), page.getVersion() );
+
+                if( text != null )
+                {
+                    m_engine.getMetadataManager().parseMetadata( page, text );
+                }
             }
             catch( Exception ex )
             {
                 log.debug("Failed to retrieve variables for wikipage "+page);
             }
-            finally
-            {
-                if( in != null ) in.close();
-                if( out != null ) try { out.close(); } catch( IOException ex ) {};
-            }
         }
     }
     
@@ -575,76 +1142,130 @@ public class CachingProvider
         throws ProviderException,
                RepositoryModifiedException
     {
-        WikiPage page = null;
-        WikiPage cached = getPageInfoFromCache( pageName );
-        
-        int latestcached = (cached != null) ? cached.getVersion() : Integer.MIN_VALUE;
-       
-        if( version == WikiPageProvider.LATEST_VERSION ||
-            version == latestcached )
+        ReadWriteLock lock = m_pageLocks.get( pageName );
+
+        lock.readLock();
+
+        try
         {
-            if( cached == null )
+            WikiPage page = null;
+            WikiPage cached = getPageInfoFromCache( pageName );
+
+            int latestcached = (cached != null) ? cached.getVersion() : Integer.MIN_VALUE;
+
+            if( version == WikiPageProvider.LATEST_VERSION ||
+                version == latestcached )
+            {
+                if( cached == null )
+                {
+                    WikiPage data = m_provider.getPageInfo( pageName, version );
+
+                    if( data != null )
+                    {
+                        m_cache.put( pageName, data );
+                        // Requests for this page are now no longer denied
+                        m_negCache.remove( pageName );
+                    }
+                    page = data;
+                }
+                else
+                {
+                    page = cached;
+                }
+            }        
+            else if( isOldVersion( cached, version ) )
             {
-                WikiPage data = m_provider.getPageInfo( pageName, version );
+                String key = getVersionKey( pageName, version );
+
+                page = (WikiPage)m_versionInfoCache.get( key );
 
-                if( data != null )
+                if( page == null )
                 {
-                    m_cache.putInCache( pageName, data );
-                    // Requests for this page are now no longer denied
-                    m_negCache.putInCache( pageName, null );
+                    page = m_provider.getPageInfo( pageName, version );
+                    refreshMetadata( page );
+
+                    if( page != null && page.getVersion() == version )
+                    {
+                        m_versionInfoCache.put( key, page );
+                    }
                 }
-                page = data;
             }
             else
             {
-                page = cached;
+                page = m_provider.getPageInfo( pageName, version );
+                refreshMetadata( page );
             }
-        }        
-        else
+
+            // refreshMetadata( page );
+
+            return page;
+        }
+        finally
         {
-            // We do not cache old versions.
-            page = m_provider.getPageInfo( pageName, version );
-            refreshMetadata( page );
+            lock.readUnlock();
         }
-        
-        // refreshMetadata( page );
-        
-        return page;
     }
 
-    public List getVersionHistory( String page )
+    public List getVersionHistory( final String page )
         throws ProviderException
     {
-        List history = null;
+        ReadWriteLock lock = m_pageLocks.get( page );
+
+        lock.readLock();
 
         try
         {
-            history = (List)m_historyCache.getFromCache( page,
-                                                         m_expiryPeriod );
+            List history = null;
 
-            log.debug("History cache hit for page "+page);
-            m_historyCacheHits++;
-        }
-        catch( NeedsRefreshException e )
-        {
-            history = m_provider.getVersionHistory( page );
+            StripedCache.Entry entry = m_historyCache.getEntry( page );
 
-            m_historyCache.putInCache( page, history );
+            if( isFresh( entry, m_expiryPeriod ) )
+            {
+                history = (List)entry.getValue();
 
-            log.debug("History cache miss for page "+page);
-            m_historyCacheMisses++;
-        }
+                log.debug("History cache hit for page "+page);
+            }
+            else
+            {
+                history = (List)m_historyLoads.load( page, new SingleFlight.Loader()
+                {
+                    public Object load()
+                        throws ProviderException
+                    {
+                        //  Someone may have just loaded it.
+                        StripedCache.Entry entry = m_historyCache.peek( page );
+
+                        if( isFresh( entry, m_expiryPeriod ) ) return entry.getValue();
+
+                        List versions = m_provider.getVersionHistory( page );
+
+                        m_historyCache.put( page, versions );
+
+                        return versions;
+                    }
+                } );
+
+                log.debug("History cache miss for page "+page);
+            }
 
-        return history;
+            return history;
+        }
+        finally
+        {
+            lock.readUnlock();
+        }
     }
 
-    public synchronized String getProviderInfo()
+    public String getProviderInfo()
     {              
         return("Real provider: "+m_provider.getClass().getName()+
-               "<br />Cache misses: "+m_cacheMisses+
-               "<br />Cache hits: "+m_cacheHits+
-               "<br />History cache hits: "+m_historyCacheHits+
-               "<br />History cache misses: "+m_historyCacheMisses+
+               "<br />Text cache: "+m_textCache.getStatistics()+
+               (m_compressedCache != null ?
+                "<br />Compressed text cache: "+m_compressedCache.getStatistics() : "")+
+               "<br />History cache: "+m_historyCache.getStatistics()+
+               "<br />Old version text cache: "+m_versionTextCache.getStatistics()+
+               "<br />Old version info cache: "+m_versionInfoCache.getStatistics()+
+               "<br />Page info cache: "+m_cache.getStatistics()+
                "<br />Cache consistency checks: "+m_expiryPeriod+"s");
     }
 
@@ -652,10 +1273,14 @@ public class CachingProvider
         throws ProviderException
     {
         //
-        //  Luckily, this is such a rare operation it is okay
-        //  to synchronize against the whole thing.
+        //  Only this page is locked, so that readers of other pages
+        //  are not held up.
         //
-        synchronized( this )
+        ReadWriteLock lock = m_pageLocks.get( pageName );
+
+        lock.writeLock();
+
+        try
         {
             WikiPage cached = getPageInfoFromCache( pageName );
 
@@ -667,118 +1292,117 @@ public class CachingProvider
             if( version == WikiPageProvider.LATEST_VERSION ||
                 version == latestcached )
             {
-                m_cache.flushEntry( pageName );
-                m_textCache.putInCache( pageName, null );
-                m_historyCache.putInCache( pageName, null );
+                m_cache.remove( pageName );
+                flushText( pageName );
+                m_historyCache.remove( pageName );
+            }
+
+            if( version == WikiPageProvider.LATEST_VERSION )
+            {
+                //  The versions are cached by their numbers.
+                WikiPage latest = (cached != null) ? cached : m_provider.getPageInfo( pageName, version );
+
+                if( latest != null ) flushVersions( pageName, latest.getVersion(), latest.getVersion() );
+            }
+            else
+            {
+                flushVersions( pageName, version, version );
             }
 
             m_provider.deleteVersion( pageName, version );
         }
+        finally
+        {
+            lock.writeUnlock();
+        }
     }
 
     public void deletePage( String pageName )
         throws ProviderException
     {
-        //
-        //  See note in deleteVersion().
-        //
-        synchronized(this)
+        ReadWriteLock lock = m_pageLocks.get( pageName );
+
+        lock.writeLock();
+
+        try
         {
-            m_cache.putInCache( pageName, null );
-            m_textCache.putInCache( pageName, null );
-            m_historyCache.putInCache( pageName, null );
-            m_negCache.putInCache( pageName, pageName );
+            WikiPage latest = m_provider.getPageInfo( pageName, WikiPageProvider.LATEST_VERSION );
+
+            if( latest != null ) flushVersions( pageName, 1, latest.getVersion() );
+
+            m_cache.put( pageName, null );
+            flushText( pageName );
+            m_historyCache.remove( pageName );
+            m_negCache.put( pageName, pageName );
             m_provider.deletePage( pageName );
         }
+        finally
+        {
+            lock.writeUnlock();
+        }
     }
 
     /**
-     *  Returns the actual used provider.
-     *  @since 2.0
-     */
-    public WikiPageProvider getRealProvider()
-    {
-        return m_provider;
-    }
-
-    /**
-     *  This is a simple class that keeps a list of all WikiPages that
-     *  we have in memory.  Because the OSCache cannot give us a list
-     *  of all pages currently in cache, we'll have to check this.
-     * 
-     *  @author jalkanen
-     *
-     *  @since
+     *  Writes the snapshot every now and then, in case JSPWiki is not
+     *  shut down cleanly.
      */
-    private class CacheItemCollector
-        implements CacheEntryEventListener
+    private class SnapshotWriter extends Thread
     {
-        private TreeSet m_allItems = new TreeSet();
-        
-        /**
-         * 
-         * Returns a clone of the set - you cannot manipulate this.
-         * @return
-         */
-        public Set getAllItems()
-        {
-            return (Set)m_allItems.clone();
-        }
-        
-        public void cacheEntryAdded( CacheEntryEvent arg0 )
-        {
-        }
+        private final long m_interval;
 
-        public void cacheEntryFlushed( CacheEntryEvent arg0 )
+        SnapshotWriter( int interval )
         {
-            WikiPage item = (WikiPage) arg0.getEntry().getContent();
+            super( "JSPWiki page info snapshot writer" );
+            setDaemon( true );
 
-            if( item != null )
-            {
-                m_allItems.remove( item );
-            }
+            m_interval = interval*1000L;
         }
 
-        public void cacheEntryRemoved( CacheEntryEvent arg0 )
+        private volatile boolean m_stopped = false;
+
+        /**
+         *  Stops the writer and waits for it to finish.
+         */
+        void shutdown()
         {
-            WikiPage item = (WikiPage) arg0.getEntry().getContent();
+            m_stopped = true;
+            interrupt();
 
-            if( item != null )
+            try
             {
-                m_allItems.remove( item );
+                join();
             }
+            catch( InterruptedException e ) {}
         }
 
-        public void cacheEntryUpdated( CacheEntryEvent arg0 )
+        public void run()
         {
-            WikiPage item = (WikiPage) arg0.getEntry().getContent();
-
-            if( item != null )
+            while( !m_stopped )
             {
-                // Item added or replaced.
-                m_allItems.add( item );
-            }
-            else
-            {
-                // Removed item
-                // FIXME: If the page system is changed during this time, we'll just fail gracefully
-                
                 try
                 {
-                    for( Iterator i = m_allItems.iterator(); i.hasNext(); )
-                    {
-                        WikiPage p = (WikiPage)i.next();
-                    
-                        if( p.getName().equals( arg0.getKey() ) )
-                        {
-                            i.remove();
-                            break;
-                        }
-                    }
+                    Thread.sleep( m_interval );
+
+                    writeSnapshot();
+                }
+                catch( InterruptedException e )
+                {
+                    return;
+                }
+                catch( Throwable t )
+                {
+                    log.warn("Unable to write the page info snapshot", t);
                 }
-                catch( Exception e )
-                {}
             }
         }
     }
+
+    /**
+     *  Returns the actual used provider.
+     *  @since 2.0
+     */
+    public WikiPageProvider getRealProvider()
+    {
+        return m_provider;
+    }
 }
@@ -24,6 +24,7 @@ import java.util.Properties;
 import org.apache.log4j.Logger;
 
 import com.ecyrd.jspwiki.*;
+import com.ecyrd.jspwiki.util.ReadWriteLock;
 
 /**
  *  Provides a simple directory based repository for Wiki pages.
@@ -46,6 +47,10 @@ public class FileSystemProvider
     public void putPageText( WikiPage page, String text )        
         throws ProviderException
     {
+        ReadWriteLock lock = getPageLock( page.getName() );
+
+        lock.writeLock();
+
         try
         {
             super.putPageText( page, text );
@@ -55,6 +60,10 @@ public class FileSystemProvider
         {
             log.error( "Saving failed" );
         }
+        finally
+        {
+            lock.writeUnlock();
+        }
     }
 
     /**
@@ -119,21 +128,32 @@ public class FileSystemProvider
     public WikiPage getPageInfo( String page, int version )
         throws ProviderException
     {
-        WikiPage p = super.getPageInfo( page, version );
+        ReadWriteLock lock = getPageLock( page );
+
+        lock.readLock();
 
-        if( p != null )
+        try
         {
-            try
-            {
-                getPageProperties( p );
-            }
-            catch( IOException e )
+            WikiPage p = super.getPageInfo( page, version );
+
+            if( p != null )
             {
-                log.error("Unable to read page properties", e );
-                throw new ProviderException("Unable to read page properties, check logs.");
+                try
+                {
+                    getPageProperties( p );
+                }
+                catch( IOException e )
+                {
+                    log.error("Unable to read page properties", e );
+                    throw new ProviderException("Unable to read page properties, check logs.");
+                }
             }
-        }
 
-        return p;
+            return p;
+        }
+        finally
+        {
+            lock.readUnlock();
+        }
     }
 }
@@ -0,0 +1,808 @@
+/*
+    JSPWiki - a JSP-based WikiWiki clone.
+
+    Copyright (C) 2001-2005 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 2.1 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.ecyrd.jspwiki.providers;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TimeZone;
+
+import com.ecyrd.jspwiki.TextUtil;
+
+/**
+ *  Reads and writes RCS archive files (the ",v" files described in
+ *  rcsfile(5)), so that the RCSFileProvider does not need to run the
+ *  RCS commands.  Only the trunk revisions 1.1, 1.2, ... are used as
+ *  page versions, but everything else in the file, like branches,
+ *  symbolic names and locks, is kept when the file is written back.
+ *  <p>
+ *  As in RCS, the head revision keeps its text in full, and every other
+ *  trunk revision keeps an edit script which turns the text of the next
+ *  newer revision into its own.  The scripts are the same that
+ *  VersionDeltas uses.
+ *
+ *  @author Janne Jalkanen
+ *  @since 2.2.29
+ */
+final class RCSArchive
+{
+    private static final SimpleDateFormat c_dateFormat = new SimpleDateFormat( "yyyy.MM.dd.HH.mm.ss" );
+
+    static
+    {
+        c_dateFormat.setTimeZone( TimeZone.getTimeZone( "UTC" ) );
+    }
+
+    /** The Phrases of the admin section, like "head" and "locks". */
+    private List    m_admin     = new ArrayList();
+
+    /** The Revisions, in the order they are in the file. */
+    private List    m_revisions = new ArrayList();
+
+    private HashMap m_byNumber  = new HashMap();
+
+    private String  m_desc      = "";
+
+    private RCSArchive()
+    {
+    }
+
+    /**
+     *  Creates an archive with no revisions.
+     *
+     *  @param locker The user who holds the lock to the head revision,
+     *         as after "ci -l".
+     */
+    static RCSArchive create( String locker )
+    {
+        RCSArchive archive = new RCSArchive();
+
+        archive.m_admin.add( new Phrase( "head" ) );
+        archive.m_admin.add( new Phrase( "access" ) );
+        archive.m_admin.add( new Phrase( "symbols" ) );
+
+        Phrase locks = new Phrase( "locks" );
+        locks.m_values.add( locker );
+        locks.m_values.add( ":" );
+        locks.m_values.add( "1.1" );
+        archive.m_admin.add( locks );
+
+        archive.m_admin.add( new Phrase( "strict" ) );
+
+        Phrase comment = new Phrase( "comment" );
+        comment.m_values.add( new Quoted( "# " ) );
+        archive.m_admin.add( comment );
+
+        return archive;
+    }
+
+    /**
+     *  Reads an archive file.
+     *
+     *  @param file The ",v" file.
+     *  @param encoding The encoding of the page texts.
+     *  @param withTexts If false, the texts of the revisions are skipped,
+     *         which is enough for reading the version history.  Such an
+     *         archive must not be written back.
+     *  @throws IOException If the file cannot be read.
+     *  @throws ProviderException If the file is not a valid RCS file.
+     */
+    static RCSArchive read( File file, String encoding, boolean withTexts )
+        throws IOException,
+               ProviderException
+    {
+        return parse( VersionDeltas.readFile( file, encoding ), withTexts );
+    }
+
+    static RCSArchive parse( String content, boolean withTexts )
+        throws ProviderException
+    {
+        Lexer      lex     = new Lexer( content );
+        RCSArchive archive = new RCSArchive();
+
+        while( isKeyword( lex.peek() ) )
+        {
+            archive.m_admin.add( readPhrase( lex ) );
+        }
+
+        while( isNumber( lex.peek() ) )
+        {
+            Revision rev = new Revision( (String) lex.next() );
+
+            while( isKeyword( lex.peek() ) )
+            {
+                rev.m_phrases.add( readPhrase( lex ) );
+            }
+
+            archive.m_revisions.add( rev );
+            archive.m_byNumber.put( rev.m_number, rev );
+        }
+
+        expect( lex, "desc" );
+        archive.m_desc = readString( lex );
+
+        while( lex.peek() != null )
+        {
+            Object   number = lex.next();
+            Revision rev    = (Revision) archive.m_byNumber.get( number );
+
+            if( rev == null )
+            {
+                throw new ProviderException( "Corrupted RCS file: text for unknown revision "+number );
+            }
+
+            expect( lex, "log" );
+            rev.m_log = readString( lex );
+
+            //  Skip any new phrases until the text.
+            while( isKeyword( lex.peek() ) && !"text".equals( lex.peek() ) )
+            {
+                readPhrase( lex );
+            }
+
+            expect( lex, "text" );
+
+            lex.setKeepStrings( withTexts );
+            rev.m_text = readString( lex );
+            lex.setKeepStrings( true );
+        }
+
+        return archive;
+    }
+
+    private static boolean isNumber( Object token )
+    {
+        return token instanceof String && Character.isDigit( ((String)token).charAt(0) );
+    }
+
+    /**
+     *  Returns true, if the token starts a phrase.  "desc" ends both
+     *  the admin and the delta sections.
+     */
+    private static boolean isKeyword( Object token )
+    {
+        return token instanceof String && !isNumber( token ) &&
+               !token.equals( ":" ) && !token.equals( ";" ) && !token.equals( "desc" );
+    }
+
+    private static void expect( Lexer lex, String keyword )
+        throws ProviderException
+    {
+        Object token = lex.next();
+
+        if( !keyword.equals( token ) )
+        {
+            throw new ProviderException( "Corrupted RCS file: expected "+keyword+", got "+token );
+        }
+    }
+
+    private static String readString( Lexer lex )
+        throws ProviderException
+    {
+        Object token = lex.next();
+
+        if( !(token instanceof Quoted) )
+        {
+            throw new ProviderException( "Corrupted RCS file: expected a string, got "+token );
+        }
+
+        return ((Quoted) token).m_value;
+    }
+
+    private static Phrase readPhrase( Lexer lex )
+        throws ProviderException
+    {
+        Phrase phrase = new Phrase( (String) lex.next() );
+        Object token;
+
+        while( !";".equals( token = lex.next() ) )
+        {
+            if( token == null )
+            {
+                throw new ProviderException( "Corrupted RCS file: missing ; after "+phrase.m_keyword );
+            }
+
+            phrase.m_values.add( token );
+        }
+
+        return phrase;
+    }
+
+    /**
+     *  Writes the archive.  The new file is first written as ",name,",
+     *  which RCS also uses as a lock file, and then renamed.
+     *
+     *  @param file The ",v" file.
+     *  @param encoding The encoding of the page texts.
+     */
+    void write( File file, String encoding )
+        throws IOException
+    {
+        StringBuffer out = new StringBuffer();
+
+        for( int i = 0; i < m_admin.size(); i++ )
+        {
+            ((Phrase) m_admin.get(i)).write( out );
+        }
+
+        out.append( "\n" );
+
+        for( int i = 0; i < m_revisions.size(); i++ )
+        {
+            Revision rev = (Revision) m_revisions.get(i);
+
+            out.append( "\n" ).append( rev.m_number ).append( "\n" );
+
+            for( int j = 0; j < rev.m_phrases.size(); j++ )
+            {
+                ((Phrase) rev.m_phrases.get(j)).write( out );
+            }
+        }
+
+        out.append( "\n\ndesc\n" );
+        quote( out, m_desc );
+        out.append( "\n" );
+
+        for( int i = 0; i < m_revisions.size(); i++ )
+        {
+            Revision rev = (Revision) m_revisions.get(i);
+
+            out.append( "\n\n" ).append( rev.m_number ).append( "\nlog\n" );
+            quote( out, rev.m_log );
+            out.append( "\ntext\n" );
+            quote( out, rev.m_text );
+            out.append( "\n" );
+        }
+
+        String name = file.getName();
+        File   tmp  = new File( file.getParentFile(), ","+name.substring( 0, name.length()-1 ) );
+
+        VersionDeltas.writeFile( tmp, out.toString(), encoding );
+
+        if( !tmp.renameTo( file ) )
+        {
+            //  Windows does not rename over existing files.
+            file.delete();
+
+            if( !tmp.renameTo( file ) )
+            {
+                tmp.delete();
+                throw new IOException( "Unable to rename "+tmp+" to "+file );
+            }
+        }
+    }
+
+    private static void quote( StringBuffer out, String s )
+    {
+        out.append( '@' ).append( TextUtil.replaceString( s, "@", "@@" ) ).append( '@' );
+    }
+
+    private Phrase getAdmin( String keyword )
+    {
+        for( int i = 0; i < m_admin.size(); i++ )
+        {
+            Phrase p = (Phrase) m_admin.get(i);
+
+            if( p.m_keyword.equals( keyword ) ) return p;
+        }
+
+        return null;
+    }
+
+    /**
+     *  Returns the head revision, or null, if there are no revisions.
+     */
+    Revision getHead()
+    {
+        Phrase head = getAdmin( "head" );
+
+        return (head != null) ? get( head.getValue() ) : null;
+    }
+
+    private Revision get( String number )
+    {
+        return (number != null) ? (Revision) m_byNumber.get( number ) : null;
+    }
+
+    /**
+     *  Returns the trunk revisions, newest first.
+     */
+    List getTrunk()
+    {
+        ArrayList trunk = new ArrayList();
+
+        for( Revision rev = getHead();
+             rev != null && trunk.size() < m_revisions.size();
+             rev = get( rev.getValue( "next" ) ) )
+        {
+            trunk.add( rev );
+        }
+
+        return trunk;
+    }
+
+    /**
+     *  Finds a trunk revision by its page version.
+     *
+     *  @return The Revision, or null, if there is no such version.
+     */
+    Revision getRevision( int version )
+    {
+        List trunk = getTrunk();
+
+        for( int i = 0; i < trunk.size(); i++ )
+        {
+            Revision rev = (Revision) trunk.get(i);
+
+            if( rev.getVersion() == version ) return rev;
+        }
+
+        return null;
+    }
+
+    /**
+     *  Returns the full texts of the trunk revisions, newest first.
+     *
+     *  @param downTo Stop after this revision.  Null means all of them.
+     */
+    List getTrunkTexts( Revision downTo )
+        throws ProviderException
+    {
+        List      trunk = getTrunk();
+        ArrayList texts = new ArrayList();
+        String    text  = null;
+
+        for( int i = 0; i < trunk.size(); i++ )
+        {
+            Revision rev = (Revision) trunk.get(i);
+
+            text = (i == 0) ? rev.m_text : VersionDeltas.applyDelta( text, rev.m_text );
+
+            texts.add( text );
+
+            if( rev == downTo ) break;
+        }
+
+        return texts;
+    }
+
+    /**
+     *  Returns the full text of a trunk revision.
+     */
+    String getText( Revision rev )
+        throws ProviderException
+    {
+        List texts = getTrunkTexts( rev );
+
+        return (String) texts.get( texts.size()-1 );
+    }
+
+    /**
+     *  Adds a new head revision, like "ci -l" does.
+     *
+     *  @param text The text of the new revision.
+     *  @param author The RCS user who makes the revision.
+     *  @param log The log message.
+     *  @param date The time of the revision.
+     *  @return The new Revision.
+     */
+    Revision addRevision( String text, String author, String log, Date date )
+        throws ProviderException
+    {
+        Revision head = getHead();
+        int      version = (head != null) ? head.getVersion()+1 : 1;
+        Revision rev  = new Revision( "1."+version );
+
+        rev.setValue( "date", formatDate( date ) );
+        rev.setValue( "author", author );
+        rev.setValue( "state", "Exp" );
+        rev.setValue( "branches", null );
+        rev.setValue( "next", (head != null) ? head.m_number : null );
+
+        rev.m_log  = log;
+        rev.m_text = text;
+
+        if( head != null )
+        {
+            head.m_text = VersionDeltas.makeDelta( text, head.m_text );
+        }
+
+        m_revisions.add( 0, rev );
+        m_byNumber.put( rev.m_number, rev );
+
+        setHead( rev );
+
+        return rev;
+    }
+
+    /**
+     *  Removes a trunk revision, like "rcs -o" does.
+     *
+     *  @return False, if this was the only revision, and the whole
+     *          archive should be removed instead.
+     */
+    boolean removeRevision( Revision rev )
+        throws ProviderException
+    {
+        List trunk = getTrunk();
+        int  idx   = trunk.indexOf( rev );
+
+        if( idx < 0 )
+        {
+            throw new NoSuchVersionException( "Revision "+rev.m_number );
+        }
+
+        Phrase branches = rev.getPhrase( "branches" );
+
+        if( branches != null && branches.m_values.size() > 0 )
+        {
+            throw new ProviderException( "Revision "+rev.m_number+" has branches, and cannot be removed" );
+        }
+
+        if( trunk.size() == 1 ) return false;
+
+        List texts = getTrunkTexts( idx+1 < trunk.size() ? (Revision) trunk.get( idx+1 ) : null );
+
+        if( idx == 0 )
+        {
+            Revision next = (Revision) trunk.get(1);
+
+            next.m_text = (String) texts.get(1);
+
+            setHead( next );
+        }
+        else
+        {
+            Revision newer = (Revision) trunk.get( idx-1 );
+
+            if( idx+1 < trunk.size() )
+            {
+                Revision older = (Revision) trunk.get( idx+1 );
+
+                older.m_text = VersionDeltas.makeDelta( (String) texts.get( idx-1 ),
+                                                        (String) texts.get( idx+1 ) );
+
+                newer.setValue( "next", older.m_number );
+            }
+            else
+            {
+                newer.setValue( "next", null );
+            }
+        }
+
+        m_revisions.remove( rev );
+        m_byNumber.remove( rev.m_number );
+
+        return true;
+    }
+
+    /**
+     *  Points "head" and the locks of the old head to the given revision.
+     */
+    private void setHead( Revision rev )
+    {
+        Phrase head    = getAdmin( "head" );
+        String oldHead = head.getValue();
+
+        head.m_values.clear();
+        head.m_values.add( rev.m_number );
+
+        Phrase locks = getAdmin( "locks" );
+
+        for( int i = 2; locks != null && oldHead != null && i < locks.m_values.size(); i++ )
+        {
+            if( ":".equals( locks.m_values.get(i-1) ) && oldHead.equals( locks.m_values.get(i) ) )
+            {
+                locks.m_values.set( i, rev.m_number );
+            }
+        }
+    }
+
+    static String formatDate( Date date )
+    {
+        synchronized( c_dateFormat )
+        {
+            return c_dateFormat.format( date );
+        }
+    }
+
+    /**
+     *  Parses an RCS date.  Years before 2000 have only two digits.
+     *
+     *  @return The Date, or null, if the date is not valid.
+     */
+    static Date parseDate( String date )
+    {
+        if( date == null ) return null;
+
+        if( date.indexOf('.') == 2 ) date = "19"+date;
+
+        try
+        {
+            synchronized( c_dateFormat )
+            {
+                return c_dateFormat.parse( date );
+            }
+        }
+        catch( ParseException e )
+        {
+            return null;
+        }
+    }
+
+    /**
+     *  A revision, with its delta and deltatext.
+     */
+    static final class Revision
+    {
+        final String m_number;
+
+        /** The Phrases of the delta, like "date" and "next". */
+        List         m_phrases = new ArrayList();
+
+        String       m_log     = "";
+
+        /** The full text for the head revision, else an edit script. */
+        String       m_text;
+
+        Revision( String number )
+        {
+            m_number = number;
+        }
+
+        /**
+         *  Returns the page version, which is the number after the
+         *  first dot, or -1 for branch revisions.
+         */
+        int getVersion()
+        {
+            int dot = m_number.indexOf('.');
+
+            if( dot < 0 || m_number.indexOf( '.', dot+1 ) >= 0 ) return -1;
+
+            return TextUtil.parseIntParameter( m_number.substring( dot+1 ), -1 );
+        }
+
+        Date getDate()
+        {
+            return parseDate( getValue( "date" ) );
+        }
+
+        Phrase getPhrase( String keyword )
+        {
+            for( int i = 0; i < m_phrases.size(); i++ )
+            {
+                Phrase p = (Phrase) m_phrases.get(i);
+
+                if( p.m_keyword.equals( keyword ) ) return p;
+            }
+
+            return null;
+        }
+
+        String getValue( String keyword )
+        {
+            Phrase p = getPhrase( keyword );
+
+            return (p != null) ? p.getValue() : null;
+        }
+
+        void setValue( String keyword, String value )
+        {
+            Phrase p = getPhrase( keyword );
+
+            if( p == null )
+            {
+                p = new Phrase( keyword );
+                m_phrases.add( p );
+            }
+
+            p.m_values.clear();
+
+            if( value != null ) p.m_values.add( value );
+        }
+    }
+
+    /**
+     *  A keyword followed by values and a semicolon.  The values are
+     *  Strings for numbers, ids and colons, and Quoted for strings.
+     */
+    private static final class Phrase
+    {
+        final String m_keyword;
+        final List   m_values = new ArrayList();
+
+        Phrase( String keyword )
+        {
+            m_keyword = keyword;
+        }
+
+        String getValue()
+        {
+            return (m_values.size() > 0 && m_values.get(0) instanceof String) ? (String) m_values.get(0) : null;
+        }
+
+        void write( StringBuffer out )
+        {
+            out.append( m_keyword );
+
+            for( int i = 0; i < m_values.size(); i++ )
+            {
+                Object  value = m_values.get(i);
+                boolean colon = ":".equals( value ) || (i > 0 && ":".equals( m_values.get(i-1) ));
+
+                if( !colon ) out.append( (i == 0) ? '\t' : ' ' );
+
+                if( value instanceof Quoted )
+                {
+                    quote( out, ((Quoted) value).m_value );
+                }
+                else
+                {
+                    out.append( value );
+                }
+            }
+
+            out.append( ";\n" );
+        }
+    }
+
+    /**
+     *  An @-quoted string.
+     */
+    private static final class Quoted
+    {
+        final String m_value;
+
+        Quoted( String value )
+        {
+            m_value = value;
+        }
+
+        public String toString()
+        {
+            return "@"+m_value+"@";
+        }
+    }
+
+    /**
+     *  Splits the file into words, colons, semicolons and strings.
+     */
+    private static final class Lexer
+    {
+        private final String  m_in;
+        private boolean       m_keepStrings = true;
+        private int           m_pos = 0;
+        private Object        m_next;
+        private boolean       m_hasNext = false;
+
+        Lexer( String in )
+        {
+            m_in = in;
+        }
+
+        /**
+         *  If false, the contents of the following strings are skipped,
+         *  and they are returned as null.
+         */
+        void setKeepStrings( boolean keepStrings )
+        {
+            m_keepStrings = keepStrings;
+        }
+
+        Object peek()
+            throws ProviderException
+        {
+            if( !m_hasNext )
+            {
+                m_next    = read();
+                m_hasNext = true;
+            }
+
+            return m_next;
+        }
+
+        Object next()
+            throws ProviderException
+        {
+            Object token = peek();
+
+            m_hasNext = false;
+
+            return token;
+        }
+
+        /**
+         *  Returns the next token, or null at the end.
+         */
+        private Object read()
+            throws ProviderException
+        {
+            int len = m_in.length();
+
+            while( m_pos < len && Character.isWhitespace( m_in.charAt( m_pos ) ) ) m_pos++;
+
+            if( m_pos == len ) return null;
+
+            char ch = m_in.charAt( m_pos );
+
+            if( ch == ':' || ch == ';' )
+            {
+                m_pos++;
+                return String.valueOf( ch );
+            }
+
+            if( ch == '@' )
+            {
+                return readString();
+            }
+
+            int start = m_pos;
+
+            while( m_pos < len )
+            {
+                ch = m_in.charAt( m_pos );
+
+                if( Character.isWhitespace( ch ) || ch == ':' || ch == ';' || ch == '@' ) break;
+
+                m_pos++;
+            }
+
+            return m_in.substring( start, m_pos );
+        }
+
+        private Quoted readString()
+            throws ProviderException
+        {
+            StringBuffer result = m_keepStrings ? new StringBuffer() : null;
+
+            m_pos++; // Opening @
+
+            for( ;; )
+            {
+                int at = m_in.indexOf( '@', m_pos );
+
+                if( at < 0 )
+                {
+                    throw new ProviderException( "Corrupted RCS file: unterminated string" );
+                }
+
+                if( result != null ) result.append( m_in.substring( m_pos, at ) );
+
+                m_pos = at+1;
+
+                if( m_pos < m_in.length() && m_in.charAt( m_pos ) == '@' )
+                {
+                    if( result != null ) result.append( '@' );
+                    m_pos++;
+                }
+                else
+                {
+                    return new Quoted( (result != null) ? result.toString() : null );
+                }
+            }
+        }
+    }
+}
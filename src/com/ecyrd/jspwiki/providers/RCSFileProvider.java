@@ -20,26 +20,21 @@
 package com.ecyrd.jspwiki.providers;
 
 import java.io.File;
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.InputStream;
 import java.io.IOException;
 import java.util.Properties;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Date;
-import java.util.Iterator;
-import java.text.SimpleDateFormat;
-import java.text.ParseException;
 import org.apache.log4j.Logger;
-import org.apache.oro.text.regex.*;
 
 import com.ecyrd.jspwiki.*;
+import com.ecyrd.jspwiki.util.ReadWriteLock;
 
 /**
- *  This class implements a simple RCS file provider.  NOTE: You MUST
- *  have the RCS package installed for this to work.  They must also
- *  be in your path...
+ *  This class implements a simple RCS file provider.  The RCS files
+ *  are read and written directly, so the RCS package does not need
+ *  to be installed, but the repository can still be used with the
+ *  RCS commands.
  *
  *  <P>
  *  The RCS file provider extends from the FileSystemProvider, which
@@ -47,41 +42,34 @@ import com.ecyrd.jspwiki.*;
  *  is that it implements the version history commands, and also in each
  *  checkin it writes the page to the RCS repository as well.
  *  <p>
- *  If you decide to dabble with the default commands, please make sure
- *  that you do not check the default archive suffix ",v".  File deletion
- *  depends on it.
+ *  The RCS files are kept in the "RCS" subdirectory of the page directory,
+ *  with the archive suffix ",v".  The wiki author of each version is
+ *  kept in the log message as "author=&lt;name&gt;".
  *
  *  @author Janne Jalkanen
  */
-// FIXME: Not all commands read their format from the property file yet.
 public class RCSFileProvider
     extends AbstractFileProvider
 {
-    private String m_checkinCommand  = "ci -q -m\"author=%u\" -l -t-none %s";
-    private String m_checkoutCommand = "co -l %s";
-    private String m_logCommand      = "rlog -zLT -r %s";
-    private String m_fullLogCommand  = "rlog -zLT %s";
-    private String m_checkoutVersionCommand = "co -p -r1.%v %s";
-    private String m_deleteVersionCommand = "rcs -o1.%v %s";
-    
     private static final Logger   log = Logger.getLogger(RCSFileProvider.class);
 
+    /** @deprecated The RCS commands are no longer run. */
     public static final String    PROP_CHECKIN  = "jspwiki.rcsFileProvider.checkinCommand";
+    /** @deprecated The RCS commands are no longer run. */
     public static final String    PROP_CHECKOUT = "jspwiki.rcsFileProvider.checkoutCommand";
+    /** @deprecated The RCS commands are no longer run. */
     public static final String    PROP_LOG      = "jspwiki.rcsFileProvider.logCommand";
+    /** @deprecated The RCS commands are no longer run. */
     public static final String    PROP_FULLLOG  = "jspwiki.rcsFileProvider.fullLogCommand";
+    /** @deprecated The RCS commands are no longer run. */
     public static final String    PROP_CHECKOUTVERSION = "jspwiki.rcsFileProvider.checkoutVersionCommand";
 
-    private static final String   PATTERN_DATE      = "^date:\\s*(.*\\d);";
-    private static final String   PATTERN_AUTHOR    = "^\"?author=([\\w\\.\\s\\+\\.\\%]*)\"?";
-    private static final String   PATTERN_REVISION  = "^revision \\d+\\.(\\d+)";
+    private static final String   RCSDIR        = "RCS";
+    private static final String   RCS_EXT       = ",v";
+    private static final String   AUTHOR_PREFIX = "author=";
 
-    private static final String   RCSFMT_DATE       = "yyyy-MM-dd HH:mm:ss";
-    private static final String   RCSFMT_DATE_UTC   = "yyyy/MM/dd HH:mm:ss";
-
-    // Date format parsers, placed here to save on object creation
-    private SimpleDateFormat m_rcsdatefmt     = new SimpleDateFormat( RCSFMT_DATE );
-    private SimpleDateFormat m_rcsdatefmt_utc = new SimpleDateFormat( RCSFMT_DATE_UTC );
+    /** The RCS user who makes the revisions and holds the locks. */
+    private String m_rcsUser;
 
     public void initialize( WikiEngine engine, Properties props )
         throws NoRequiredPropertyException,
@@ -90,382 +78,315 @@ public class RCSFileProvider
         log.debug("Initing RCS");
         super.initialize( engine, props );
 
-        m_checkinCommand = props.getProperty( PROP_CHECKIN, m_checkinCommand );
-        m_checkoutCommand = props.getProperty( PROP_CHECKOUT, m_checkoutCommand );
-        m_logCommand     = props.getProperty( PROP_LOG, m_logCommand );
-        m_fullLogCommand = props.getProperty( PROP_FULLLOG, m_fullLogCommand );
-        m_checkoutVersionCommand = props.getProperty( PROP_CHECKOUTVERSION, m_checkoutVersionCommand );
-        
-        File rcsdir = new File( getPageDirectory(), "RCS" );
+        String[] commands = { PROP_CHECKIN, PROP_CHECKOUT, PROP_LOG, PROP_FULLLOG, PROP_CHECKOUTVERSION };
+
+        for( int i = 0; i < commands.length; i++ )
+        {
+            if( props.getProperty( commands[i] ) != null )
+            {
+                log.warn( commands[i]+" is no longer used, since the RCS files are now read and written directly." );
+            }
+        }
+
+        File rcsdir = new File( getPageDirectory(), RCSDIR );
 
         if( !rcsdir.exists() )
         {
             rcsdir.mkdirs();
         }
 
-        log.debug("checkin="+m_checkinCommand);
-        log.debug("checkout="+m_checkoutCommand);
-        log.debug("log="+m_logCommand);
-        log.debug("fulllog="+m_fullLogCommand);
-        log.debug("checkoutversion="+m_checkoutVersionCommand);
+        m_rcsUser = toRCSId( System.getProperty( "user.name" ) );
+
+        log.debug("RCS user="+m_rcsUser);
     }
 
-    // NB: This is a very slow method.
+    /**
+     *  Turns a user name into a valid RCS identifier.
+     */
+    private static String toRCSId( String name )
+    {
+        StringBuffer id = new StringBuffer();
 
-    public WikiPage getPageInfo( String page, int version )
-        throws ProviderException
+        for( int i = 0; name != null && i < name.length(); i++ )
+        {
+            char ch = name.charAt(i);
+
+            id.append( Character.isLetterOrDigit( ch ) || ch == '_' || ch == '-' ? ch : '_' );
+        }
+
+        if( id.length() == 0 || !Character.isLetter( id.charAt(0) ) )
+        {
+            id.insert( 0, "jspwiki" );
+        }
+
+        return id.toString();
+    }
+
+    private File findRCSFile( String page )
     {
-        PatternMatcher  matcher  = new Perl5Matcher();
-        PatternCompiler compiler = new Perl5Compiler();
-        PatternMatcherInput input;
-        BufferedReader  stdout   = null;
+        return new File( new File( getPageDirectory(), RCSDIR ), mangleName(page)+FILE_EXT+RCS_EXT );
+    }
 
-        WikiPage info = super.getPageInfo( page, version );
+    /**
+     *  Reads the RCS file of the page.
+     *
+     *  @return The archive, or null, if the page has not been checked in.
+     */
+    private RCSArchive readArchive( String page, boolean withTexts )
+        throws ProviderException
+    {
+        File file = findRCSFile( page );
 
-        if( info == null ) return null;
+        if( !file.exists() ) return null;
 
         try
         {
-            String   cmd = m_fullLogCommand;
+            return RCSArchive.read( file, m_encoding, withTexts );
+        }
+        catch( IOException e )
+        {
+            log.error("Failed to read RCS file "+file, e);
+            throw new ProviderException("I/O error: "+e.getMessage());
+        }
+    }
 
-            cmd = TextUtil.replaceString( cmd, "%s", mangleName(page)+FILE_EXT );
+    /**
+     *  Returns the wiki author from the log message of the revision.
+     *  The RCS commands on Linux kept the quotation marks around it.
+     */
+    private static String getAuthor( RCSArchive.Revision rev )
+    {
+        String msg = rev.m_log.trim();
 
-            Process process = Runtime.getRuntime().exec( cmd, null, new File(getPageDirectory()) );
+        //  The author is on the first line of the log.
+        int eol = msg.indexOf('\n');
 
-            // FIXME: Should this use encoding as well?
-            stdout = new BufferedReader( new InputStreamReader(process.getInputStream() ) );
+        if( eol >= 0 ) msg = msg.substring( 0, eol );
 
-            String line;
-            Pattern headpattern = compiler.compile( PATTERN_REVISION );
-            // This complicated pattern is required, since on Linux RCS adds
-            // quotation marks, but on Windows, it does not.
-            Pattern userpattern = compiler.compile( PATTERN_AUTHOR );
-            Pattern datepattern = compiler.compile( PATTERN_DATE );
-            boolean found = false;
+        if( msg.startsWith("\"") ) msg = msg.substring(1);
 
-            while( (line = stdout.readLine()) != null )
-            {
-                if( matcher.contains( line, headpattern ) )
-                {                    
-                    MatchResult result = matcher.getMatch();
-                    int vernum = Integer.parseInt( result.group(1) );
+        if( !msg.startsWith( AUTHOR_PREFIX ) ) return null;
 
-                    if( vernum == version || version == WikiPageProvider.LATEST_VERSION )
-                    {
-                        info.setVersion( vernum );
-                        found = true;
-                    }
-                }
-                else if( matcher.contains( line, datepattern ) && found )
-                {
-                    MatchResult result = matcher.getMatch();
-                    Date d = parseDate( result.group(1) );
+        msg = msg.substring( AUTHOR_PREFIX.length() );
 
-                    if( d != null )
-                    {
-                        info.setLastModified( d );
-                    }
-                    else
-                    {
-                        log.info("WikiPage "+info.getName()+
-                                 " has null modification date for version "+
-                                 version);
-                    }
-                }
-                else if( matcher.contains( line, userpattern ) && found )
-                {
-                    MatchResult result = matcher.getMatch();
-                    info.setAuthor( TextUtil.urlDecodeUTF8(result.group(1)) );
-                }
-                else if( found && line.startsWith("----")  )
-                {
-                    // End of line sign from RCS
-                    break;
-                }
-            }
+        int end = msg.indexOf('"');
 
-            //
-            //  Especially with certain versions of RCS on Windows,
-            //  process.waitFor() hangs unless you read all of the
-            //  standard output.  So we make sure it's all emptied.
-            //
+        if( end >= 0 ) msg = msg.substring( 0, end );
 
-            while( (line = stdout.readLine()) != null ) 
-            { 
-            }
+        return TextUtil.urlDecodeUTF8( msg.trim() );
+    }
 
-            process.waitFor();
+    /**
+     *  Copies the version information of the revision into the page.
+     */
+    private static void setRevisionInfo( WikiPage info, RCSArchive.Revision rev )
+    {
+        info.setVersion( rev.getVersion() );
 
-            // we must close all by exec(..) opened streams: http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=4784692
-            process.getInputStream().close();
-            process.getOutputStream().close();
-            process.getErrorStream().close(); 
+        Date d = rev.getDate();
 
-        }
-        catch( Exception e )
+        if( d != null )
         {
-            // This also occurs when 'info' was null.
-            log.warn("Failed to read RCS info",e);
+            info.setLastModified( d );
         }
-        finally
+        else
         {
-            try
-            {
-                if( stdout != null ) stdout.close();
-            }
-            catch( IOException e ) {}
+            log.info("WikiPage "+info.getName()+
+                     " has null modification date for version "+
+                     rev.getVersion());
         }
 
-        return info;
+        String author = getAuthor( rev );
+
+        if( author != null )
+        {
+            info.setAuthor( author );
+        }
     }
 
-    public String getPageText( String page, int version )
+    public WikiPage getPageInfo( String page, int version )
         throws ProviderException
     {
-        String result = null;
-        InputStream stdout = null;
+        ReadWriteLock lock = getPageLock( page );
 
-        // Let parent handle latest fetches, since the FileSystemProvider
-        // can do the file reading just as well.
-
-        if( version == WikiPageProvider.LATEST_VERSION )
-            return super.getPageText( page, version );
-
-        log.debug("Fetching specific version "+version+" of page "+page);
+        lock.readLock();
 
         try
         {
-            PatternMatcher  matcher           = new Perl5Matcher();
-            PatternCompiler compiler          = new Perl5Compiler();
-            int             checkedOutVersion = -1;
-            String          line;
-            String          cmd               = m_checkoutVersionCommand;
-
-            cmd = TextUtil.replaceString( cmd, "%s", mangleName(page)+FILE_EXT );
-            cmd = TextUtil.replaceString( cmd, "%v", Integer.toString(version ) );
+            WikiPage info = super.getPageInfo( page, WikiPageProvider.LATEST_VERSION );
 
-            log.debug("Command = '"+cmd+"'");
+            if( info == null ) return null;
 
-            Process process = Runtime.getRuntime().exec( cmd, null, new File(getPageDirectory()) );
-            stdout = process.getInputStream();
-            result = FileUtil.readContents( stdout, m_encoding );
+            RCSArchive archive = readArchive( page, false );
 
-            BufferedReader stderr = new BufferedReader(new InputStreamReader(process.getErrorStream()));
+            //
+            //  The page has not been checked in yet, so the file is
+            //  the only version.
+            //
+            if( archive == null ) return info;
 
-            Pattern headpattern = compiler.compile( PATTERN_REVISION );
+            RCSArchive.Revision head = archive.getHead();
+            RCSArchive.Revision rev  = (version == WikiPageProvider.LATEST_VERSION) ? head : archive.getRevision( version );
 
-            while( (line = stderr.readLine()) != null )
+            if( rev == null )
             {
-                if( matcher.contains( line, headpattern ) )
-                {
-                    MatchResult mr = matcher.getMatch();
-                    checkedOutVersion = Integer.parseInt( mr.group(1) );
-                }
+                return (version == WikiPageProvider.LATEST_VERSION) ? info : null;
             }
 
-            process.waitFor();
+            if( rev != head ) info = new WikiPage( page );
 
-            int exitVal = process.exitValue();
-            
-            // we must close all by exec(..) opened streams: http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=4784692
-            process.getInputStream().close();
-            process.getOutputStream().close();
-            process.getErrorStream().close(); 
+            setRevisionInfo( info, rev );
 
-            log.debug("Done, returned = "+exitVal);
+            return info;
+        }
+        finally
+        {
+            lock.readUnlock();
+        }
+    }
+
+    public String getPageText( String page, int version )
+        throws ProviderException
+    {
+        // Let parent handle latest fetches, since the FileSystemProvider
+        // can do the file reading just as well.
+
+        if( version == WikiPageProvider.LATEST_VERSION )
+            return super.getPageText( page, version );
+
+        log.debug("Fetching specific version "+version+" of page "+page);
+
+        ReadWriteLock lock = getPageLock( page );
+
+        lock.readLock();
+
+        try
+        {
+            RCSArchive archive = readArchive( page, true );
 
             //
-            //  If fetching failed, assume that this is because of the user
-            //  has just migrated from FileSystemProvider, and check
-            //  if he's getting version 1.  Else he might be trying to find
-            //  a version that has been deleted.
+            //  If there is no RCS file, assume that the user has just
+            //  migrated from FileSystemProvider, and check if he's
+            //  getting version 1.
             //
-            if( exitVal != 0 || checkedOutVersion == -1 )
+            if( archive == null )
             {
                 if( version == 1 )
                 {
-                    System.out.println("Migrating, fetching super.");
-                    result = super.getPageText( page, WikiProvider.LATEST_VERSION );
-                }
-                else
-                {
-                    throw new NoSuchVersionException( "Page: "+page+", version="+version);
+                    return super.getPageText( page, WikiProvider.LATEST_VERSION );
                 }
+
+                throw new NoSuchVersionException( "Page: "+page+", version="+version);
             }
-            else
+
+            RCSArchive.Revision rev = archive.getRevision( version );
+
+            if( rev == null )
             {
-                //
-                //  Check which version we actually got out!
-                //
-            
-                if( checkedOutVersion != version )
-                {
-                    throw new NoSuchVersionException( "Page: "+page+", version="+version);
-                }
+                throw new NoSuchVersionException( "Page: "+page+", version="+version);
             }
 
-        }
-        catch( MalformedPatternException e )
-        {
-            throw new InternalWikiException("Malformed pattern in RCSFileProvider!");
-        }
-        catch( InterruptedException e )
-        {
-            // This is fine, we'll just log it.
-            log.info("RCS process was interrupted, we'll just return whatever we found.");
-        }
-        catch( IOException e )
-        {
-            log.error("RCS checkout failed",e);
+            return archive.getText( rev );
         }
         finally
         {
-            try
-            {
-                if( stdout != null ) stdout.close();
-            }
-            catch( Exception e ) {}
+            lock.readUnlock();
         }
-
-        return result;
     }
 
     /**
      *  Puts the page into RCS and makes sure there is a fresh copy in
-     *  the directory as well.
+     *  the directory as well.  Like "ci", does not make a new revision
+     *  if the text has not changed.
      */
     public void putPageText( WikiPage page, String text )
         throws ProviderException
     {
         String pagename = page.getName();
-        // Writes it in the dir.
-        super.putPageText( page, text );
 
-        log.debug( "Checking in text..." );
+        ReadWriteLock lock = getPageLock( pagename );
+
+        lock.writeLock();
 
         try
         {
-            String cmd = m_checkinCommand;
-            
-            String author = page.getAuthor();
-            if( author == null ) author = "unknown";
+            // Writes it in the dir.
+            super.putPageText( page, text );
 
-            cmd = TextUtil.replaceString( cmd, "%s", mangleName(pagename)+FILE_EXT );
-            cmd = TextUtil.replaceString( cmd, "%u", TextUtil.urlEncodeUTF8(author) );
+            log.debug( "Checking in text..." );
 
-            log.debug("Command = '"+cmd+"'");
+            File       file    = findRCSFile( pagename );
+            RCSArchive archive = readArchive( pagename, true );
 
-            Process process = Runtime.getRuntime().exec( cmd, null, new File(getPageDirectory()) );
+            if( archive == null )
+            {
+                archive = RCSArchive.create( m_rcsUser );
+            }
+
+            RCSArchive.Revision head = archive.getHead();
 
-            process.waitFor();
+            if( head != null && head.m_text.equals( text ) )
+            {
+                log.debug( "Text of "+pagename+" has not changed, not checking in" );
+                return;
+            }
 
-            log.debug("Done, returned = "+process.exitValue());
+            String author = page.getAuthor();
+            if( author == null ) author = "unknown";
 
-            // we must close all by exec(..) opened streams: http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=4784692
-            process.getInputStream().close();
-            process.getOutputStream().close();
-            process.getErrorStream().close(); 
+            archive.addRevision( text, m_rcsUser,
+                                 AUTHOR_PREFIX+TextUtil.urlEncodeUTF8(author)+"\n",
+                                 new Date() );
+
+            archive.write( file, m_encoding );
         }
-        catch( Exception e )
+        catch( IOException e )
         {
             log.error("RCS checkin failed",e);
         }
+        finally
+        {
+            lock.writeUnlock();
+        }
     }
 
-    // FIXME: Put the rcs date formats into properties as well.
     public List getVersionHistory( String page )
     {
-        PatternMatcher matcher = new Perl5Matcher();
-        PatternCompiler compiler = new Perl5Compiler();
-        PatternMatcherInput input;
-        BufferedReader stdout  = null;
-
         log.debug("Getting RCS version history");
 
         ArrayList list = new ArrayList();        
 
-        try
-        {
-            Pattern revpattern  = compiler.compile( PATTERN_REVISION );
-            Pattern datepattern = compiler.compile( PATTERN_DATE );
-            // This complicated pattern is required, since on Linux RCS adds
-            // quotation marks, but on Windows, it does not.
-            Pattern userpattern = compiler.compile( PATTERN_AUTHOR );
-
-            String cmd = TextUtil.replaceString( m_fullLogCommand,
-                                                 "%s",
-                                                 mangleName(page)+FILE_EXT );
-            
-            Process process = Runtime.getRuntime().exec( cmd, null, new File(getPageDirectory()) );
+        ReadWriteLock lock = getPageLock( page );
 
-            // FIXME: Should this use encoding as well?
-            stdout = new BufferedReader( new InputStreamReader(process.getInputStream()) );
+        lock.readLock();
 
-            String line;
+        try
+        {
+            //  The sizes are not known without applying the deltas,
+            //  so they are left unset, as they were with rlog.
+            RCSArchive archive = readArchive( page, false );
 
-            WikiPage info = null;
+            if( archive != null )
+            {
+                List trunk = archive.getTrunk();
 
-            while( (line = stdout.readLine()) != null )
-            { 
-                if( matcher.contains( line, revpattern ) )
+                for( int i = 0; i < trunk.size(); i++ )
                 {
-                    info = new WikiPage( page );
-
-                    MatchResult result = matcher.getMatch();
+                    WikiPage info = new WikiPage( page );
 
-                    int vernum = Integer.parseInt( result.group(1) );
-                    info.setVersion( vernum );
+                    setRevisionInfo( info, (RCSArchive.Revision) trunk.get(i) );
 
                     list.add( info );
                 }
-
-                if( matcher.contains( line, datepattern ) )
-                {
-                    MatchResult result = matcher.getMatch();
-
-                    Date d = parseDate( result.group(1) );
-
-                    info.setLastModified( d );
-                }
-
-                if( matcher.contains( line, userpattern ) )
-                {
-                    MatchResult result = matcher.getMatch();
-
-                    info.setAuthor( TextUtil.urlDecodeUTF8(result.group(1)) );
-                }
-            }
-
-            process.waitFor();
-
-            // we must close all by exec(..) opened streams: http://bugs.sun.com/bugdatabase/view_bug.do?bug_id=4784692
-            process.getInputStream().close();
-            process.getOutputStream().close();
-            process.getErrorStream().close(); 
-
-            //
-            // FIXME: This is very slow
-            //
-            for( Iterator i = list.iterator(); i.hasNext(); )
-            {
-                WikiPage p = (WikiPage) i.next();
-
-                String content = getPageText( p.getName(), p.getVersion() );
-
-                p.setSize( content.length() );
             }
         }
-        catch( Exception e )
+        catch( ProviderException e )
         {
             log.error( "RCS log failed", e );
         }
         finally
         {
-            try
-            {
-                if( stdout != null ) stdout.close();
-            }
-            catch( IOException e ) {}
+            lock.readUnlock();
         }
 
         return list;
@@ -473,104 +394,100 @@ public class RCSFileProvider
 
     /**
      *  Removes the page file and the RCS archive from the repository.
-     *  This method assumes that the page archive ends with ",v".
      */
     public void deletePage( String page )
         throws ProviderException
     {
-        log.debug( "Deleting page "+page );
-        super.deletePage( page );
+        ReadWriteLock lock = getPageLock( page );
 
-        File rcsdir  = new File( getPageDirectory(), "RCS" );
+        lock.writeLock();
 
-        if( rcsdir.exists() && rcsdir.isDirectory() )
+        try
         {
-            File rcsfile = new File( rcsdir, mangleName(page)+FILE_EXT+",v" );
+            log.debug( "Deleting page "+page );
+            super.deletePage( page );
+
+            File rcsdir  = new File( getPageDirectory(), RCSDIR );
 
-            if( rcsfile.exists() )
+            if( rcsdir.exists() && rcsdir.isDirectory() )
             {
-                if( rcsfile.delete() == false )
+                File rcsfile = findRCSFile( page );
+
+                if( rcsfile.exists() )
+                {
+                    if( rcsfile.delete() == false )
+                    {
+                        log.warn( "Deletion of RCS file "+rcsfile.getAbsolutePath()+" failed!" );
+                    }
+                }
+                else
                 {
-                    log.warn( "Deletion of RCS file "+rcsfile.getAbsolutePath()+" failed!" );
+                    log.info( "RCS file does not exist for page: "+page );
                 }
             }
             else
             {
-                log.info( "RCS file does not exist for page: "+page );
+                log.info( "No RCS directory at "+rcsdir.getAbsolutePath() );
             }
         }
-        else
+        finally
         {
-            log.info( "No RCS directory at "+rcsdir.getAbsolutePath() );
+            lock.writeUnlock();
         }
     }
 
+    /**
+     *  Removes a version from the RCS file, like "rcs -o".  If the
+     *  latest version is removed, the page file gets the text of the
+     *  previous one.  Removing the only version removes the page.
+     */
     public void deleteVersion( String page, int version )
-    {        
-        String         line = "<rcs not run>";
-        BufferedReader stderr;
-        boolean        success = false;
-        String         cmd     = m_deleteVersionCommand;
-
+        throws ProviderException
+    {
         log.debug("Deleting version "+version+" of page "+page);
 
-        cmd = TextUtil.replaceString( cmd, "%s", mangleName(page)+FILE_EXT );
-        cmd = TextUtil.replaceString( cmd, "%v", Integer.toString( version ) );
+        ReadWriteLock lock = getPageLock( page );
+
+        lock.writeLock();
 
-        log.debug("Running command "+cmd);
         try
         {
-            Process process = Runtime.getRuntime().exec( cmd, null, new File(getPageDirectory()) );
+            RCSArchive          archive = readArchive( page, true );
+            RCSArchive.Revision rev     = null;
 
-            // 
-            // 'rcs' command outputs to stderr methinks.
-            //
+            if( archive != null )
+            {
+                rev = (version == WikiPageProvider.LATEST_VERSION) ? archive.getHead() : archive.getRevision( version );
+            }
 
-            // FIXME: Should this use encoding as well?
-            
-            stderr = new BufferedReader( new InputStreamReader(process.getErrorStream() ) );
-        
-            while( (line = stderr.readLine()) != null )
+            if( rev == null )
             {
-                log.debug( "LINE="+line );
-                if( line.equals("done") )
-                {
-                    success = true;
-                }
+                throw new NoSuchVersionException( "Page: "+page+", version="+version );
             }
-        }
-        catch( IOException e )
-        {
-            log.error("Page deletion failed: ",e);
-        }
 
-        if( !success )
-        {
-            log.error("Version deletion failed. Last info from RCS is: "+line);
-        }
-    }
+            boolean wasHead = (rev == archive.getHead());
 
-    /**
-     *  util method to parse a date string in Local and UTC formats
-     */
-    private Date parseDate( String str )
-    {
-        Date d = null;
+            if( !archive.removeRevision( rev ) )
+            {
+                deletePage( page );
+                return;
+            }
 
-        try
+            archive.write( findRCSFile( page ), m_encoding );
+
+            if( wasHead )
+            {
+                super.putPageText( new WikiPage( page ), archive.getHead().m_text );
+            }
+        }
+        catch( IOException e )
         {
-            d = m_rcsdatefmt.parse( str );
-            return d;
+            log.error("Version deletion failed: ",e);
+            throw new ProviderException("Version deletion failed: "+e.getMessage());
         }
-        catch ( ParseException pe ) { }
-
-        try
+        finally
         {
-            d = m_rcsdatefmt_utc.parse( str );
-            return d;
+            lock.writeUnlock();
         }
-        catch ( ParseException pe ) { }
-
-        return d;
     }
 }
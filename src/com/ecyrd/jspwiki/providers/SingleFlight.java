@@ -0,0 +1,149 @@
+/*
+    JSPWiki - a JSP-based WikiWiki clone.
+
+    Copyright (C) 2001-2005 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 2.1 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.ecyrd.jspwiki.providers;
+
+import java.util.HashMap;
+
+/**
+ *  Makes sure that only one thread at a time loads the value of a key
+ *  from a provider.  Threads which ask for the same key while it is being
+ *  loaded wait for the load to finish, and get the same value.  This keeps
+ *  a popular page which has just dropped out of a cache from being loaded
+ *  by every concurrent request.
+ *  <p>
+ *  If the load fails, the exception goes to the thread which did the
+ *  loading, and the waiting threads try again themselves.  Loaders should
+ *  therefore first check whether someone else has just cached the value.
+ *
+ *  @author Janne Jalkanen
+ *  @since 2.2.29
+ */
+class SingleFlight
+{
+    /** Contains Calls, keyed by the key being loaded. */
+    private HashMap m_calls = new HashMap();
+
+    /**
+     *  Loads the value of a key, or waits for another thread to load it.
+     *
+     *  @param key The key.
+     *  @param loader Loads the value, if no other thread is loading it.
+     *  @return The value.  May be null.
+     *  @throws ProviderException If the loader failed.
+     */
+    public Object load( Object key, Loader loader )
+        throws ProviderException
+    {
+        while( true )
+        {
+            Call    call;
+            boolean isLoader = false;
+
+            synchronized( m_calls )
+            {
+                call = (Call) m_calls.get( key );
+
+                if( call == null )
+                {
+                    call = new Call();
+                    m_calls.put( key, call );
+                    isLoader = true;
+                }
+            }
+
+            if( isLoader )
+            {
+                boolean ok = false;
+
+                try
+                {
+                    Object value = loader.load();
+
+                    call.m_value = value;
+                    ok = true;
+
+                    return value;
+                }
+                finally
+                {
+                    synchronized( m_calls )
+                    {
+                        m_calls.remove( key );
+                    }
+
+                    call.finish( ok );
+                }
+            }
+
+            if( !call.await() )
+            {
+                //  Interrupted; do not wait any longer.
+                return loader.load();
+            }
+
+            if( call.m_ok ) return call.m_value;
+        }
+    }
+
+    /**
+     *  Loads a value from the provider.
+     */
+    interface Loader
+    {
+        public Object load()
+            throws ProviderException;
+    }
+
+    private static final class Call
+    {
+        private boolean m_done  = false;
+        private boolean m_ok    = false;
+        private Object  m_value = null;
+
+        synchronized void finish( boolean ok )
+        {
+            m_ok   = ok;
+            m_done = true;
+            notifyAll();
+        }
+
+        /**
+         *  Waits until the load finishes.  Returns false, if the thread
+         *  was interrupted.
+         */
+        synchronized boolean await()
+        {
+            while( !m_done )
+            {
+                try
+                {
+                    wait();
+                }
+                catch( InterruptedException e )
+                {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+
+            return true;
+        }
+    }
+}
@@ -0,0 +1,402 @@
+/*
+    JSPWiki - a JSP-based WikiWiki clone.
+
+    Copyright (C) 2001-2005 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 2.1 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.ecyrd.jspwiki.providers;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Properties;
+
+import org.apache.commons.jrcs.diff.AddDelta;
+import org.apache.commons.jrcs.diff.ChangeDelta;
+import org.apache.commons.jrcs.diff.Chunk;
+import org.apache.commons.jrcs.diff.DeleteDelta;
+import org.apache.commons.jrcs.diff.Diff;
+import org.apache.commons.jrcs.diff.DifferentiationFailedException;
+import org.apache.commons.jrcs.diff.Revision;
+import org.apache.commons.jrcs.diff.RevisionVisitor;
+import org.apache.commons.jrcs.diff.myers.MyersDiff;
+
+import com.ecyrd.jspwiki.FileUtil;
+
+/**
+ *  Stores old page versions of the VersioningFileProvider as reverse
+ *  deltas.  A reverse delta turns the text of the next newer version
+ *  into the text of the old version.  It is kept in the OLD directory
+ *  as "&lt;version&gt;.diff", next to the full "&lt;version&gt;.txt" files.
+ *  <p>
+ *  The delta is an RCS style edit script.  "d&lt;line&gt; &lt;count&gt;"
+ *  removes count lines starting at the given line, and
+ *  "a&lt;line&gt; &lt;count&gt;" adds the count lines that follow
+ *  after the given line.  Lines are numbered from 1, and they keep their
+ *  own line terminators, so that the text comes back exactly as it was.
+ *  <p>
+ *  This class can also be run from the command line, to convert the
+ *  full copies in an existing page directory into deltas:
+ *  <pre>
+ *  java com.ecyrd.jspwiki.providers.VersionDeltas &lt;pagedir&gt; &lt;checkpoint&gt; [encoding]
+ *  </pre>
+ *  Stop JSPWiki before converting.
+ *
+ *  @author Janne Jalkanen
+ *  @since 2.2.29
+ */
+public final class VersionDeltas
+{
+    /** The extension of the delta files. */
+    public static final String DELTA_EXT = ".diff";
+
+    private VersionDeltas()
+    {
+    }
+
+    /**
+     *  Splits the text into lines, which include their line terminators.
+     */
+    private static String[] toLines( String text )
+    {
+        ArrayList lines = new ArrayList();
+        int       start = 0;
+        int       end;
+
+        while( (end = text.indexOf( '\n', start )) >= 0 )
+        {
+            lines.add( text.substring( start, end+1 ) );
+            start = end+1;
+        }
+
+        if( start < text.length() )
+        {
+            lines.add( text.substring( start ) );
+        }
+
+        return (String[]) lines.toArray( new String[lines.size()] );
+    }
+
+    /**
+     *  Makes a delta which turns the newer text into the older one.
+     *
+     *  @param newer The text of the newer version.
+     *  @param older The text of the older version.
+     *  @return The delta.
+     *  @throws ProviderException If the texts could not be compared.
+     */
+    static String makeDelta( String newer, String older )
+        throws ProviderException
+    {
+        try
+        {
+            Revision rev = Diff.diff( toLines( newer ), toLines( older ), new MyersDiff() );
+
+            StringBuffer result = new StringBuffer();
+
+            rev.accept( new DeltaWriter( result ) );
+
+            return result.toString();
+        }
+        catch( DifferentiationFailedException e )
+        {
+            throw new ProviderException( "Unable to make delta: "+e.getMessage() );
+        }
+    }
+
+    /**
+     *  Applies a delta made by makeDelta().
+     *
+     *  @param newer The text of the newer version.
+     *  @param delta The delta.
+     *  @return The text of the older version.
+     *  @throws ProviderException If the delta does not fit the text.
+     */
+    static String applyDelta( String newer, String delta )
+        throws ProviderException
+    {
+        String[]     base   = toLines( newer );
+        String[]     script = toLines( delta );
+        StringBuffer result = new StringBuffer( newer.length() );
+        int          pos    = 0; // Lines of base used so far
+        int          i      = 0;
+
+        try
+        {
+            while( i < script.length )
+            {
+                String cmd   = script[i++].trim();
+                int    space = cmd.indexOf( ' ' );
+                int    line  = Integer.parseInt( cmd.substring( 1, space ) );
+                int    count = Integer.parseInt( cmd.substring( space+1 ) );
+                char   type  = cmd.charAt( 0 );
+
+                int copyTo = (type == 'd') ? line-1 : line;
+
+                if( copyTo < pos || copyTo > base.length || count < 0 )
+                {
+                    throw new ProviderException( "Corrupted delta at \""+cmd+"\"" );
+                }
+
+                while( pos < copyTo ) result.append( base[pos++] );
+
+                if( type == 'd' && pos+count <= base.length )
+                {
+                    pos += count;
+                }
+                else if( type == 'a' && i+count <= script.length )
+                {
+                    while( count-- > 0 ) result.append( script[i++] );
+                }
+                else
+                {
+                    throw new ProviderException( "Corrupted delta at \""+cmd+"\"" );
+                }
+            }
+        }
+        catch( RuntimeException e )
+        {
+            // Bad numbers or missing spaces.
+            throw new ProviderException( "Corrupted delta: "+e.getMessage() );
+        }
+
+        while( pos < base.length ) result.append( base[pos++] );
+
+        return result.toString();
+    }
+
+    /**
+     *  Writes the changes of a Revision as a delta.
+     */
+    private static final class DeltaWriter
+        implements RevisionVisitor
+    {
+        private StringBuffer m_result;
+
+        DeltaWriter( StringBuffer result )
+        {
+            m_result = result;
+        }
+
+        public void visit( Revision rev )
+        {
+        }
+
+        public void visit( AddDelta delta )
+        {
+            add( delta.getOriginal().anchor(), delta.getRevised() );
+        }
+
+        public void visit( ChangeDelta delta )
+        {
+            Chunk orig = delta.getOriginal();
+
+            m_result.append( "d"+(orig.first()+1)+" "+orig.size()+"\n" );
+            add( orig.first()+orig.size(), delta.getRevised() );
+        }
+
+        public void visit( DeleteDelta delta )
+        {
+            Chunk orig = delta.getOriginal();
+
+            m_result.append( "d"+(orig.first()+1)+" "+orig.size()+"\n" );
+        }
+
+        private void add( int after, Chunk lines )
+        {
+            m_result.append( "a"+after+" "+lines.size()+"\n" );
+
+            for( int i = 0; i < lines.size(); i++ )
+            {
+                m_result.append( lines.chunk().get( i ) );
+            }
+        }
+    }
+
+    /**
+     *  Reads a whole file.
+     */
+    static String readFile( File file, String encoding )
+        throws IOException
+    {
+        InputStream in = new FileInputStream( file );
+
+        try
+        {
+            return FileUtil.readContents( in, encoding );
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     *  Writes a whole file.
+     */
+    static void writeFile( File file, String content, String encoding )
+        throws IOException
+    {
+        Writer out = new OutputStreamWriter( new FileOutputStream( file ), encoding );
+
+        try
+        {
+            out.write( content );
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     *  Returns true, if the version should be kept in full.
+     *
+     *  @param version The version number.
+     *  @param checkpoint Every checkpoint'th version is kept in full.
+     *         Zero means that no deltas are used.
+     */
+    static boolean isCheckpoint( int version, int checkpoint )
+    {
+        return checkpoint <= 0 || version % checkpoint == 0;
+    }
+
+    /**
+     *  Converts the old versions of all pages in a VersioningFileProvider
+     *  page directory into deltas.  Versions which are already deltas,
+     *  or which are checkpoints, are left alone.
+     *
+     *  @param pageDir The page directory.
+     *  @param checkpoint Every checkpoint'th version is kept in full.
+     *  @param encoding The encoding of the page files.
+     *  @return The number of versions which were converted.
+     *  @throws IOException If the files could not be read or written.
+     *  @throws ProviderException If a delta could not be made or applied.
+     */
+    public static int convert( File pageDir, int checkpoint, String encoding )
+        throws IOException,
+               ProviderException
+    {
+        File[] dirs = new File( pageDir, VersioningFileProvider.PAGEDIR ).listFiles();
+        int    converted = 0;
+
+        for( int i = 0; dirs != null && i < dirs.length; i++ )
+        {
+            File page = new File( pageDir, dirs[i].getName()+AbstractFileProvider.FILE_EXT );
+
+            if( dirs[i].isDirectory() && page.exists() )
+            {
+                converted += convertPage( dirs[i], readFile( page, encoding ), checkpoint, encoding );
+            }
+        }
+
+        return converted;
+    }
+
+    private static int convertPage( File dir, String latestText, int checkpoint, String encoding )
+        throws IOException,
+               ProviderException
+    {
+        File       propertyFile = new File( dir, VersioningFileProvider.PROPERTYFILE );
+        Properties props        = new Properties();
+
+        if( propertyFile.exists() )
+        {
+            InputStream in = new FileInputStream( propertyFile );
+
+            try
+            {
+                props.load( in );
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+
+        int    converted = 0;
+        String newer     = latestText;
+
+        for( int version = VersioningFileProvider.findLatestVersion( props )-1; version > 0; version-- )
+        {
+            File full  = new File( dir, version+AbstractFileProvider.FILE_EXT );
+            File delta = new File( dir, version+DELTA_EXT );
+
+            String text;
+
+            if( full.exists() )
+            {
+                text = readFile( full, encoding );
+
+                if( !isCheckpoint( version, checkpoint ) )
+                {
+                    writeFile( delta, makeDelta( newer, text ), encoding );
+
+                    delta.setLastModified( full.lastModified() );
+                    props.setProperty( version+".size", Long.toString( full.length() ) );
+
+                    full.delete();
+                    converted++;
+                }
+            }
+            else if( delta.exists() )
+            {
+                text = applyDelta( newer, readFile( delta, encoding ) );
+            }
+            else
+            {
+                continue; // Deleted version
+            }
+
+            newer = text;
+        }
+
+        if( converted > 0 )
+        {
+            OutputStream out = new FileOutputStream( propertyFile );
+
+            try
+            {
+                props.store( out, " JSPWiki page properties for "+dir.getName()+". DO NOT MODIFY!" );
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+
+        return converted;
+    }
+
+    /**
+     *  Converts a page directory from the command line.
+     */
+    public static void main( String argv[] )
+        throws Exception
+    {
+        if( argv.length < 2 )
+        {
+            System.out.println("Usage: java "+VersionDeltas.class.getName()+
+                               " <pagedir> <checkpoint> [encoding]");
+            return;
+        }
+
+        String encoding = (argv.length > 2) ? argv[2] : AbstractFileProvider.DEFAULT_ENCODING;
+
+        int converted = convert( new File(argv[0]), Integer.parseInt( argv[1] ), encoding );
+
+        System.out.println("Converted "+converted+" old versions into deltas.");
+    }
+}
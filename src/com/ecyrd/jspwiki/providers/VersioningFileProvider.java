@@ -21,6 +21,7 @@ package com.ecyrd.jspwiki.providers;
 
 import java.io.*;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Properties;
 import java.util.Date;
@@ -29,6 +30,8 @@ import java.util.List;
 import org.apache.log4j.Logger;
 
 import com.ecyrd.jspwiki.*;
+import com.ecyrd.jspwiki.util.ReadWriteLock;
+import com.ecyrd.jspwiki.util.StripedCache;
 
 /**
  *  Provides a simple directory based repository for Wiki pages.
@@ -55,6 +58,18 @@ import com.ecyrd.jspwiki.*;
  *  who insist on using Windows or other software which makes assumptions
  *  on the files contents based on its name.
  *
+ *  <P>
+ *  The version numbers, authors, dates and sizes of each page are read
+ *  into memory the first time the page is used, and kept up to date
+ *  as the page changes.  This means that the OLD directory must not
+ *  be modified while JSPWiki is running.
+ *
+ *  <P>
+ *  If "jspwiki.versioningFileProvider.deltaCheckpoint" is set, old
+ *  versions are stored as reverse deltas (see VersionDeltas), except for
+ *  every checkpoint'th version, which is stored in full.  Reading an old
+ *  version then takes at most that many deltas.
+ *
  *  @author Janne Jalkanen
  */
 public class VersioningFileProvider
@@ -65,11 +80,40 @@ public class VersioningFileProvider
     public static final String      PAGEDIR      = "OLD";
     public static final String      PROPERTYFILE = "page.properties";
 
+    /**
+     *  How many versions the in-memory version index may describe
+     *  in total.  The value is {@value}.
+     */
+    public static final String      PROP_INDEXSIZE = "jspwiki.versioningFileProvider.indexSize";
+
+    private static final int        DEFAULT_INDEXSIZE = 100000;
+
+    /**
+     *  If set to a positive number, old versions are stored as deltas,
+     *  and only every n'th version in full.  The value is {@value}.
+     */
+    public static final String      PROP_CHECKPOINT = "jspwiki.versioningFileProvider.deltaCheckpoint";
+
+    /** Contains VersionIndexes, keyed by the page name. */
+    private StripedCache            m_indexes;
+
+    private int                     m_checkpoint = 0;
+
     public void initialize( WikiEngine engine, Properties properties )
         throws NoRequiredPropertyException,
                IOException
     {
         super.initialize( engine, properties );
+
+        int indexSize = TextUtil.getIntegerProperty( properties,
+                                                     PROP_INDEXSIZE,
+                                                     DEFAULT_INDEXSIZE );
+
+        m_indexes = new StripedCache( indexSize );
+
+        m_checkpoint = TextUtil.getIntegerProperty( properties,
+                                                    PROP_CHECKPOINT,
+                                                    m_checkpoint );
     }
 
     /**
@@ -136,44 +180,222 @@ public class VersioningFileProvider
 */
     private int findLatestVersion( String page )
         throws ProviderException
+    {
+        return getVersionIndex( page ).m_latest;
+    }
+
+    /**
+     *  Returns the highest version which has an author in the page properties.
+     */
+    static int findLatestVersion( Properties props )
     {
         int version = -1;
-        
-        try
+
+        for( Iterator i = props.keySet().iterator(); i.hasNext(); )
         {
-            Properties props = getPageProperties( page );
-            
-            for( Iterator i = props.keySet().iterator(); i.hasNext(); )
-            {
-                String key = (String)i.next();
+            String key = (String)i.next();
                 
-                if( key.endsWith(".author") )
+            if( key.endsWith(".author") )
+            {
+                int cutpoint = key.indexOf('.');
+                if( cutpoint > 0 )
                 {
-                    int cutpoint = key.indexOf('.');
-                    if( cutpoint > 0 )
-                    {
-                        String pageNum = key.substring(0,cutpoint);
+                    String pageNum = key.substring(0,cutpoint);
                         
-                        try
-                        {
-                            int res = Integer.parseInt( pageNum );
+                    try
+                    {
+                        int res = Integer.parseInt( pageNum );
                             
-                            if( res > version )
-                            {
-                                version = res;
-                            }
+                        if( res > version )
+                        {
+                            version = res;
                         }
-                        catch( NumberFormatException e ) {} // It's okay to skip these. 
                     }
+                    catch( NumberFormatException e ) {} // It's okay to skip these. 
                 }
             }
         }
+
+        return version;
+    }
+
+    /**
+     *  Returns the version index of the page, reading it from the
+     *  file system if it is not in memory.  The caller must hold the
+     *  page lock.
+     */
+    private VersionIndex getVersionIndex( String page )
+        throws ProviderException
+    {
+        VersionIndex index = (VersionIndex)m_indexes.get( page );
+
+        if( index == null )
+        {
+            index = new VersionIndex();
+
+            try
+            {
+                index.m_properties = getPageProperties( page );
+            }
+            catch( IOException e )
+            {
+                log.error("Unable to figure out latest version - dying...",e);
+                throw new ProviderException("Could not read page properties");
+            }
+
+            index.m_latest = findLatestVersion( index.m_properties );
+
+            File[] files = findOldPageDir( page ).listFiles( new VersionFileFilter() );
+
+            for( int i = 0; files != null && i < files.length; i++ )
+            {
+                String  name  = files[i].getName();
+                boolean delta = name.endsWith( VersionDeltas.DELTA_EXT );
+
+                try
+                {
+                    int version = Integer.parseInt( name.substring( 0, name.lastIndexOf('.') ) );
+
+                    if( delta )
+                    {
+                        //  A full copy wins, if a save was interrupted.
+                        if( index.getVersion( version ) != null ) continue;
+
+                        long size = TextUtil.parseIntParameter( index.m_properties.getProperty( version+".size" ), -1 );
+
+                        index.putVersion( version, files[i].lastModified(), size, true );
+                    }
+                    else
+                    {
+                        index.putVersion( version, files[i].lastModified(), files[i].length(), false );
+                    }
+                }
+                catch( NumberFormatException e ) {} // It's okay to skip these.
+            }
+
+            m_indexes.put( page, index, index.getWeight() );
+        }
+
+        return index;
+    }
+
+    /**
+     *  Reads the text of an old version, applying deltas if needed.
+     *
+     *  @throws NoSuchVersionException if there is no such version.
+     */
+    private String readOldVersion( String page, VersionIndex index, int version )
+        throws ProviderException
+    {
+        if( index.getVersion( version ) == null )
+        {
+            throw new NoSuchVersionException("Version "+version+" does not exist.");
+        }
+
+        File dir = findOldPageDir( page );
+
+        try
+        {
+            //
+            //  Go up until a version which is stored in full, and
+            //  then come back down through the deltas.
+            //
+            ArrayList deltas = new ArrayList();
+            String    text;
+
+            for( int v = version; ; v++ )
+            {
+                if( v >= index.m_latest )
+                {
+                    text = super.getPageText( page, WikiPageProvider.LATEST_VERSION );
+
+                    if( text == null ) throw new ProviderException("Latest version of "+page+" is missing");
+                    break;
+                }
+
+                if( index.getVersion( v ) == null ) continue; // Deleted
+
+                if( !index.isDelta( v ) )
+                {
+                    text = VersionDeltas.readFile( new File( dir, v+FILE_EXT ), m_encoding );
+                    break;
+                }
+
+                deltas.add( new File( dir, v+VersionDeltas.DELTA_EXT ) );
+            }
+
+            for( int i = deltas.size()-1; i >= 0; i-- )
+            {
+                text = VersionDeltas.applyDelta( text,
+                                                 VersionDeltas.readFile( (File)deltas.get(i), m_encoding ) );
+            }
+
+            return text;
+        }
         catch( IOException e )
         {
-            log.error("Unable to figure out latest version - dying...",e);
+            log.error("Failed to read", e);
+            throw new ProviderException("I/O error: "+e.getMessage());
         }
-        
-        return version;
+    }
+
+    /**
+     *  Reads the text of any version.
+     */
+    private String readVersion( String page, VersionIndex index, int version )
+        throws ProviderException
+    {
+        if( version >= index.m_latest )
+        {
+            return super.getPageText( page, WikiPageProvider.LATEST_VERSION );
+        }
+
+        return readOldVersion( page, index, version );
+    }
+
+    /**
+     *  Stores an old version either in full or as a delta against the
+     *  next newer version, and removes the other kind of file.  The
+     *  page properties must be written by the caller.
+     */
+    private void storeOldVersion( String page, VersionIndex index, int version,
+                                  String text, String newerText, long lastModified )
+        throws IOException,
+               ProviderException
+    {
+        File    dir   = findOldPageDir( page );
+        File    full  = new File( dir, version+FILE_EXT );
+        File    delta = new File( dir, version+VersionDeltas.DELTA_EXT );
+        boolean isFull = VersionDeltas.isCheckpoint( version, m_checkpoint );
+
+        File file = isFull ? full : delta;
+
+        VersionDeltas.writeFile( file, isFull ? text : VersionDeltas.makeDelta( newerText, text ), m_encoding );
+        file.setLastModified( lastModified );
+
+        (isFull ? delta : full).delete();
+
+        long size = isFull ? full.length() : text.getBytes( m_encoding ).length;
+
+        if( isFull )
+        {
+            index.m_properties.remove( version+".size" );
+        }
+        else
+        {
+            index.m_properties.setProperty( version+".size", Long.toString( size ) );
+        }
+
+        index.putVersion( version, lastModified, size, !isFull );
+    }
+
+    /**
+     *  Stores the index again after it has been changed, so that its
+     *  weight is updated.
+     */
+    private void updateVersionIndex( String page, VersionIndex index )
+    {
+        m_indexes.put( page, index, index.getWeight() );
     }
 
     /**
@@ -247,77 +469,32 @@ public class VersioningFileProvider
         return requestedVersion;
     }
 
-    public synchronized String getPageText( String page, int version )
+    public String getPageText( String page, int version )
         throws ProviderException
     {
-        File dir = findOldPageDir( page );
-
-        version = realVersion( page, version );
-        if( version == -1 )
-        {
-            // We can let the FileSystemProvider take care
-            // of these requests.
-            return super.getPageText( page, WikiPageProvider.LATEST_VERSION );
-        }
-
-        File pageFile = new File( dir, ""+version+FILE_EXT );
+        ReadWriteLock lock = getPageLock( page );
 
-        if( !pageFile.exists() )
-            throw new NoSuchVersionException("Version "+version+"does not exist.");
-        
-        return readFile( pageFile );
-    }
-
-
-    // FIXME: Should this really be here?
-    private String readFile( File pagedata )
-        throws ProviderException
-    {
-        String      result = null;
-        InputStream in     = null;
+        lock.readLock();
 
-        if( pagedata.exists() )
+        try
         {
-            if( pagedata.canRead() )
+            version = realVersion( page, version );
+            if( version == -1 )
             {
-                try
-                {          
-                    in = new FileInputStream( pagedata );
-                    result = FileUtil.readContents( in, m_encoding );
-                }
-                catch( IOException e )
-                {
-                    log.error("Failed to read", e);
-                    throw new ProviderException("I/O error: "+e.getMessage());
-                }
-                finally
-                {
-                    try
-                    {
-                        if( in  != null ) in.close();
-                    }
-                    catch( Exception e ) 
-                    {
-                        log.fatal("Closing failed",e);
-                    }
-                }
-            }
-            else
-            {
-                log.warn("Failed to read page from '"+pagedata.getAbsolutePath()+"', possibly a permissions problem");
-                throw new ProviderException("I cannot read the requested page.");
+                // We can let the FileSystemProvider take care
+                // of these requests.
+                return super.getPageText( page, WikiPageProvider.LATEST_VERSION );
             }
+
+            return readOldVersion( page, getVersionIndex( page ), version );
         }
-        else
+        finally
         {
-            // This is okay.
-            // FIXME: is it?
-            log.info("New page");
+            lock.readUnlock();
         }
-
-        return result;
     }
 
+
     // FIXME: This method has no rollback whatsoever.
     
     /*
@@ -329,160 +506,198 @@ public class VersioningFileProvider
            2         Main.txt (2)  1.txt
            3         Main.txt (3)  1.txt, 2.txt
     */
-    public synchronized void putPageText( WikiPage page, String text )
+    public void putPageText( WikiPage page, String text )
         throws ProviderException
     {
-        //
-        //  This is a bit complicated.  We'll first need to
-        //  copy the old file to be the newest file.
-        //
+        ReadWriteLock lock = getPageLock( page.getName() );
 
-        File pageDir = findOldPageDir( page.getName() );
-
-        if( !pageDir.exists() )
-        {
-            pageDir.mkdirs();
-        }
-
-        int  latest  = findLatestVersion( page.getName() );
+        lock.writeLock();
 
         try
         {
             //
-            // Copy old data, if one exists.
+            //  This is a bit complicated.  We'll first need to
+            //  copy the old file to be the newest file.
             //
 
-            File oldFile = findPage( page.getName() );
+            File pageDir = findOldPageDir( page.getName() );
+
+            if( !pageDir.exists() )
+            {
+                pageDir.mkdirs();
+            }
 
-            // Figure out which version should the old page be?
-            // Numbers should always start at 1.
-            // "most recent" = -1 ==> 1
-            // "first"       = 1  ==> 2
+            VersionIndex index = getVersionIndex( page.getName() );
 
-            int versionNumber = (latest > 0) ? latest : 1;
+            int  latest  = index.m_latest;
 
-            if( oldFile != null && oldFile.exists() )
+            try
             {
-                InputStream in = new BufferedInputStream( new FileInputStream( oldFile ) );
-                File pageFile = new File( pageDir, Integer.toString( versionNumber )+FILE_EXT );
-                OutputStream out = new BufferedOutputStream( new FileOutputStream( pageFile ) );
+                //
+                // Copy old data, if one exists.
+                //
+
+                File oldFile = findPage( page.getName() );
+
+                // Figure out which version should the old page be?
+                // Numbers should always start at 1.
+                // "most recent" = -1 ==> 1
+                // "first"       = 1  ==> 2
+
+                int versionNumber = (latest > 0) ? latest : 1;
+
+                if( oldFile != null && oldFile.exists() &&
+                    !VersionDeltas.isCheckpoint( versionNumber, m_checkpoint ) )
+                {
+                    String oldText = VersionDeltas.readFile( oldFile, m_encoding );
+
+                    storeOldVersion( page.getName(), index, versionNumber,
+                                     oldText, text, oldFile.lastModified() );
+
+                    versionNumber++;
+                }
+                else if( oldFile != null && oldFile.exists() )
+                {
+                    InputStream in = new BufferedInputStream( new FileInputStream( oldFile ) );
+                    File pageFile = new File( pageDir, Integer.toString( versionNumber )+FILE_EXT );
+                    OutputStream out = new BufferedOutputStream( new FileOutputStream( pageFile ) );
+
+                    FileUtil.copyContents( in, out );
+
+                    out.close();
+                    in.close();
+
+                    //
+                    // We need also to set the date, since we rely on this.
+                    //
+                    pageFile.setLastModified( oldFile.lastModified() );
 
-                FileUtil.copyContents( in, out );
+                    //
+                    // Remove the delta of an earlier version with the same number.
+                    //
+                    new File( pageDir, versionNumber+VersionDeltas.DELTA_EXT ).delete();
+                    index.m_properties.remove( versionNumber+".size" );
 
-                out.close();
-                in.close();
+                    index.putVersion( versionNumber, oldFile.lastModified(), pageFile.length(), false );
+
+                    //
+                    // Kludge to make the property code to work properly.
+                    //
+                    versionNumber++;
+                }
 
                 //
-                // We need also to set the date, since we rely on this.
+                //  Let superclass handler writing data to a new version.
                 //
-                pageFile.setLastModified( oldFile.lastModified() );
+
+                super.putPageText( page, text );
 
                 //
-                // Kludge to make the property code to work properly.
+                //  Finally, write page version data.
                 //
-                versionNumber++;
-            }
 
-            //
-            //  Let superclass handler writing data to a new version.
-            //
+                // FIXME: No rollback available.
+                Properties props = index.m_properties;
 
-            super.putPageText( page, text );
+                props.setProperty( versionNumber+".author", (page.getAuthor() != null) ? page.getAuthor() : "unknown" );
 
-            //
-            //  Finally, write page version data.
-            //
+                putPageProperties( page.getName(), props );
 
-            // FIXME: No rollback available.
-            Properties props = getPageProperties( page.getName() );
+                index.m_latest = versionNumber;
 
-            props.setProperty( versionNumber+".author", (page.getAuthor() != null) ? page.getAuthor() : "unknown" );
+                updateVersionIndex( page.getName(), index );
+            }
+            catch( IOException e )
+            {
+                log.error( "Saving failed", e );
 
-            putPageProperties( page.getName(), props );
+                // Reread everything the next time.
+                m_indexes.remove( page.getName() );
+            }
         }
-        catch( IOException e )
+        finally
         {
-            log.error( "Saving failed", e );
+            lock.writeUnlock();
         }
     }
 
     public WikiPage getPageInfo( String page, int version )
         throws ProviderException
     {
-        int latest = findLatestVersion(page);
-        int realVersion;
+        ReadWriteLock lock = getPageLock( page );
 
-        WikiPage p = null;
+        lock.readLock();
 
-        if( version == WikiPageProvider.LATEST_VERSION ||
-            version == latest || 
-            (version == 1 && latest == -1) )
+        try
         {
-            //
-            // Yes, we need to talk to the top level directory
-            // to get this version.
-            //
-            // I am listening to Press Play On Tape's guitar version of
-            // the good old C64 "Wizardry" -tune at this moment.
-            // Oh, the memories...
-            //
-            realVersion = (latest >= 0) ? latest : 1;
+            VersionIndex index = getVersionIndex( page );
 
-            p = super.getPageInfo( page, WikiPageProvider.LATEST_VERSION );
+            int latest = index.m_latest;
+            int realVersion;
 
-            if( p != null )
-            {
-                p.setVersion( realVersion );
-            }
-        }
-        else
-        {
-            //
-            //  The file is not the most recent, so we'll need to
-            //  find it from the deep trenches of the "OLD" directory
-            //  structure.
-            //
-            realVersion = version;
-            File dir = findOldPageDir( page );
+            WikiPage p = null;
 
-            if( !dir.exists() || !dir.isDirectory() )
+            if( version == WikiPageProvider.LATEST_VERSION ||
+                version == latest || 
+                (version == 1 && latest == -1) )
             {
-                return null;
-            }
+                //
+                // Yes, we need to talk to the top level directory
+                // to get this version.
+                //
+                // I am listening to Press Play On Tape's guitar version of
+                // the good old C64 "Wizardry" -tune at this moment.
+                // Oh, the memories...
+                //
+                realVersion = (latest >= 0) ? latest : 1;
 
-            File file = new File( dir, version+FILE_EXT );
+                p = super.getPageInfo( page, WikiPageProvider.LATEST_VERSION );
 
-            if( file != null && file.exists() )
+                if( p != null )
+                {
+                    p.setVersion( realVersion );
+                }
+            }
+            else
             {
-                p = new WikiPage( page );
+                //
+                //  The file is not the most recent, so we'll need to
+                //  find it from the deep trenches of the "OLD" directory
+                //  structure.
+                //
+                realVersion = version;
+
+                long[] data = index.getVersion( version );
 
-                p.setLastModified( new Date(file.lastModified()) );
-                p.setVersion( version );
+                if( data != null )
+                {
+                    p = new WikiPage( page );
+
+                    p.setLastModified( new Date(data[0]) );
+                    p.setSize( data[1] );
+                    p.setVersion( version );
+                }
             }
-        }
 
-        //
-        //  Get author and other metadata information
-        //  (Modification date has already been set.)
-        //
-        if( p != null )
-        {
-            try
+            //
+            //  Get author and other metadata information
+            //  (Modification date has already been set.)
+            //
+            if( p != null )
             {
-                Properties props = getPageProperties( page );
-                String author = props.getProperty( realVersion+".author" );
+                String author = index.m_properties.getProperty( realVersion+".author" );
                 if( author != null )
                 {
                     p.setAuthor( author );
                 }
             }
-            catch( IOException e )
-            {
-                log.error( "Cannot get author for page"+page+": ", e );
-            }
-        }
 
-        return p;
+            return p;
+        }
+        finally
+        {
+            lock.readUnlock();
+        }
     }
 
     /**
@@ -491,23 +706,34 @@ public class VersioningFileProvider
     public List getVersionHistory( String page )
         throws ProviderException
     {
-        ArrayList list = new ArrayList();
+        ReadWriteLock lock = getPageLock( page );
 
-        int latest = findLatestVersion( page );
+        lock.readLock();
 
-        // list.add( getPageInfo(page,WikiPageProvider.LATEST_VERSION) );
-        
-        for( int i = latest; i > 0; i-- )
+        try
         {
-            WikiPage info = getPageInfo( page, i );
+            ArrayList list = new ArrayList();
+
+            int latest = findLatestVersion( page );
+
+            // list.add( getPageInfo(page,WikiPageProvider.LATEST_VERSION) );
 
-            if( info != null )
+            for( int i = latest; i > 0; i-- )
             {
-                list.add( info );
+                WikiPage info = getPageInfo( page, i );
+
+                if( info != null )
+                {
+                    list.add( info );
+                }
             }
-        }
 
-        return list;
+            return list;
+        }
+        finally
+        {
+            lock.readUnlock();
+        }
     }
 
     /**
@@ -519,107 +745,187 @@ public class VersioningFileProvider
     public void deletePage( String page )
         throws ProviderException
     {
-        super.deletePage( page );
+        ReadWriteLock lock = getPageLock( page );
 
-        File dir = findOldPageDir( page );
+        lock.writeLock();
 
-        if( dir.exists() && dir.isDirectory() )
+        try
         {
-            File[] files = dir.listFiles( new WikiFileFilter() );
+            super.deletePage( page );
 
-            for( int i = 0; i < files.length; i++ )
+            File dir = findOldPageDir( page );
+
+            if( dir.exists() && dir.isDirectory() )
             {
-                files[i].delete();
-            }
+                File[] files = dir.listFiles( new VersionFileFilter() );
 
-            File propfile = new File( dir, PROPERTYFILE );
+                for( int i = 0; i < files.length; i++ )
+                {
+                    files[i].delete();
+                }
 
-            if( propfile.exists() )
-            {
-                propfile.delete();
+                File propfile = new File( dir, PROPERTYFILE );
+
+                if( propfile.exists() )
+                {
+                    propfile.delete();
+                }
+
+                dir.delete();
             }
 
-            dir.delete();
+            m_indexes.remove( page );
+        }
+        finally
+        {
+            lock.writeUnlock();
         }
     }
 
     public void deleteVersion( String page, int version )
         throws ProviderException
     {
-        File dir = findOldPageDir( page );
+        ReadWriteLock lock = getPageLock( page );
 
-        int latest = findLatestVersion( page );
+        lock.writeLock();
 
-        if( version == WikiPageProvider.LATEST_VERSION ||
-            version == latest || 
-            (version == 1 && latest == -1) )
+        try
         {
-            //
-            //  Delete the properties
-            //
-            try
-            {
-                Properties props = getPageProperties( page );
-                props.remove( ((latest > 0) ? latest : 1)+".author" );
-                putPageProperties( page, props );
-            }
-            catch( IOException e )
-            {
-                log.error("Unable to modify page properties",e);
-                throw new ProviderException("Could not modify page properties");
-            }
+            File dir = findOldPageDir( page );
 
-            // We can let the FileSystemProvider take care
-            // of the actual deletion
-            super.deleteVersion( page, WikiPageProvider.LATEST_VERSION );
-            
-            //
-            //  Copy the old file to the new location
-            //
-            latest = findLatestVersion( page );
-            
-            File pageDir = findOldPageDir( page );
-            File previousFile = new File( pageDir, Integer.toString(latest)+FILE_EXT );
+            VersionIndex index = getVersionIndex( page );
 
-            try
+            int latest = index.m_latest;
+
+            if( version == WikiPageProvider.LATEST_VERSION ||
+                version == latest || 
+                (version == 1 && latest == -1) )
             {
-                if( previousFile != null && previousFile.exists() )
+                //
+                //  Delete the properties
+                //
+                try
                 {
-                    InputStream in = new BufferedInputStream( new FileInputStream( previousFile ) );
-                    File pageFile = findPage(page);
-                    OutputStream out = new BufferedOutputStream( new FileOutputStream( pageFile ) );
+                    Properties props = index.m_properties;
+                    props.remove( ((latest > 0) ? latest : 1)+".author" );
+                    putPageProperties( page, props );
+                }
+                catch( IOException e )
+                {
+                    m_indexes.remove( page );
+                    log.error("Unable to modify page properties",e);
+                    throw new ProviderException("Could not modify page properties");
+                }
 
-                    FileUtil.copyContents( in, out );
+                //
+                //  A delta needs the text which is about to be deleted.
+                //
+                int    previous     = findLatestVersion( index.m_properties );
+                String previousText = index.isDelta( previous ) ? readOldVersion( page, index, previous ) : null;
 
-                    out.close();
-                    in.close();
+                // We can let the FileSystemProvider take care
+                // of the actual deletion
+                super.deleteVersion( page, WikiPageProvider.LATEST_VERSION );
 
-                    //
-                    // We need also to set the date, since we rely on this.
-                    //
-                    pageFile.setLastModified( previousFile.lastModified() );
+                //
+                //  Copy the old file to the new location
+                //
+                latest = findLatestVersion( index.m_properties );
+
+                index.m_latest = latest;
+
+                File pageDir = findOldPageDir( page );
+                File previousFile = new File( pageDir, Integer.toString(latest)+FILE_EXT );
+
+                try
+                {
+                    if( previousText != null )
+                    {
+                        File pageFile = findPage( page );
+
+                        VersionDeltas.writeFile( pageFile, previousText, m_encoding );
+
+                        pageFile.setLastModified( index.getVersion( latest )[0] );
+                    }
+                    else if( previousFile != null && previousFile.exists() )
+                    {
+                        InputStream in = new BufferedInputStream( new FileInputStream( previousFile ) );
+                        File pageFile = findPage(page);
+                        OutputStream out = new BufferedOutputStream( new FileOutputStream( pageFile ) );
+
+                        FileUtil.copyContents( in, out );
+
+                        out.close();
+                        in.close();
+
+                        //
+                        // We need also to set the date, since we rely on this.
+                        //
+                        pageFile.setLastModified( previousFile.lastModified() );
+                    }
                 }
+                catch( IOException e )
+                {
+                    log.fatal("Something wrong with the page directory - you may have just lost data!",e);
+                }
+
+                return;
             }
-            catch( IOException e )
+
+            if( index.getVersion( version ) == null )
             {
-                log.fatal("Something wrong with the page directory - you may have just lost data!",e);
+                throw new NoSuchVersionException("Page "+page+", version="+version);
             }
-                        
-            return;
-        }
 
-        File pageFile = new File( dir, ""+version+FILE_EXT );
+            //
+            //  The delta of the next older version was made against
+            //  this one, so it must be made again.
+            //
+            int older = version-1;
+
+            while( older > 0 && index.getVersion( older ) == null ) older--;
+
+            String olderText = index.isDelta( older ) ? readOldVersion( page, index, older ) : null;
+
+            File pageFile = new File( dir, version+(index.isDelta( version ) ? VersionDeltas.DELTA_EXT : FILE_EXT) );
 
-        if( pageFile.exists() )
-        {
             if( !pageFile.delete() )
             {
                 log.error("Unable to delete page.");
             }
+            else
+            {
+                index.removeVersion( version );
+                index.m_properties.remove( version+".size" );
+
+                try
+                {
+                    if( olderText != null )
+                    {
+                        int newer = version+1;
+
+                        while( newer < index.m_latest && index.getVersion( newer ) == null ) newer++;
+
+                        storeOldVersion( page, index, older, olderText,
+                                         readVersion( page, index, newer ),
+                                         index.getVersion( older )[0] );
+                    }
+
+                    putPageProperties( page, index.m_properties );
+                }
+                catch( IOException e )
+                {
+                    m_indexes.remove( page );
+                    log.error("Unable to rewrite version "+older,e);
+                    throw new ProviderException("Could not rewrite version "+older);
+                }
+
+                updateVersionIndex( page, index );
+            }
         }
-        else
+        finally
         {
-            throw new NoSuchVersionException("Page "+page+", version="+version);
+            lock.writeUnlock();
         }
     }
 
@@ -641,9 +947,66 @@ public class VersioningFileProvider
         return returnedPages;
     }
     
+    /**
+     *  Accepts both full copies and deltas of old versions.
+     */
+    private static class VersionFileFilter
+        implements FilenameFilter
+    {
+        public boolean accept( File dir, String name )
+        {
+            return name.endsWith( FILE_EXT ) || name.endsWith( VersionDeltas.DELTA_EXT );
+        }
+    }
+
     public String getProviderInfo()
     {
-        return "";
+        return "Version index: "+m_indexes.getStatistics();
+    }
+
+    /**
+     *  The version metadata of a single page.  Only the latest version
+     *  is read from the page file itself, since it may be edited outside
+     *  of JSPWiki.
+     */
+    private static final class VersionIndex
+    {
+        /** The contents of the page properties file. */
+        Properties m_properties = new Properties();
+
+        /** The latest version, or -1, if the page has no versions yet. */
+        int        m_latest = -1;
+
+        /** Maps the numbers of the files in the OLD directory into
+            long[] { lastModified, size, 1 if delta else 0 }. */
+        private HashMap m_versions = new HashMap();
+
+        void putVersion( int version, long lastModified, long size, boolean delta )
+        {
+            m_versions.put( new Integer(version), new long[] { lastModified, size, delta ? 1 : 0 } );
+        }
+
+        boolean isDelta( int version )
+        {
+            long[] data = getVersion( version );
+
+            return data != null && data[2] != 0;
+        }
+
+        long[] getVersion( int version )
+        {
+            return (long[]) m_versions.get( new Integer(version) );
+        }
+
+        void removeVersion( int version )
+        {
+            m_versions.remove( new Integer(version) );
+        }
+
+        long getWeight()
+        {
+            return 1 + m_versions.size();
+        }
     }
 
 }
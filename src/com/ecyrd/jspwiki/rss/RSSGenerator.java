@@ -89,6 +89,9 @@ public class RSSGenerator
     public static final String PROP_INTERVAL            = "jspwiki.rss.interval";
 
     private static final int MAX_CHARACTERS             = Integer.MAX_VALUE;
+
+    /** Entry titles are cut to this many characters. */
+    private static final int MAX_TITLE_CHARACTERS       = 200;
     
     /**
      *  Initialize the RSS generator.
@@ -196,6 +199,26 @@ public class RSSGenerator
         return res;
     }
 
+    /**
+     *  Removes the wiki formatting from a line of WikiText, so that it
+     *  can be used as a title.
+     */
+    private String getPlainTitle( WikiPage page, String line )
+    {
+        WikiContext context = new WikiContext( m_engine, new WikiPage( page.getName() ) );
+
+        String title = m_engine.getRenderingManager().textToPlainText( context,
+                                                                       line,
+                                                                       MAX_TITLE_CHARACTERS ).trim();
+
+        //  Headings are underlined in plain text.
+        int eol = title.indexOf( '\n' );
+
+        if( eol != -1 ) title = title.substring( 0, eol ).trim();
+
+        return title;
+    }
+
     private String getEntryTitle( WikiPage page )
     {
         return page.getName();
@@ -405,14 +428,11 @@ public class RSSGenerator
 
             if( firstLine > 0 )
             {
-                title = pageText.substring( 0, firstLine );
+                title = getPlainTitle( page, pageText.substring( 0, firstLine ) );
             }
             
-            if( title.trim().length() == 0 ) title = page.getName();
+            if( title.length() == 0 ) title = page.getName();
 
-            // Remove wiki formatting
-            while( title.startsWith("!") ) title = title.substring(1);
-            
             e.setTitle( title );
             
             //
@@ -29,6 +29,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Vector;
 
@@ -40,7 +41,7 @@ import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.queryParser.ParseException;
-import org.apache.lucene.queryParser.QueryParser;
+import org.apache.lucene.queryParser.MultiFieldQueryParser;
 import org.apache.lucene.search.Hits;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
@@ -51,7 +52,9 @@ import org.apache.lucene.store.FSDirectory;
 import com.ecyrd.jspwiki.FileUtil;
 import com.ecyrd.jspwiki.NoRequiredPropertyException;
 import com.ecyrd.jspwiki.SearchResult;
+import com.ecyrd.jspwiki.StringTransmutator;
 import com.ecyrd.jspwiki.TextUtil;
+import com.ecyrd.jspwiki.WikiContext;
 import com.ecyrd.jspwiki.WikiEngine;
 import com.ecyrd.jspwiki.WikiPage;
 import com.ecyrd.jspwiki.WikiProvider;
@@ -86,6 +89,7 @@ public class LuceneSearchProvider implements SearchProvider
     public static final int LUCENE_OPTIMIZE_COUNT      = 10;
     private static final String LUCENE_ID              = "id";
     private static final String LUCENE_PAGE_CONTENTS   = "contents";
+    private static final String LUCENE_REFERENCES      = "references";
     private static final String LUCENE_AUTHOR          = "author";
     private static final String LUCENE_ATTACHMENTS     = "attachment";
     private static final String LUCENE_PAGE_NAME       = "name";
@@ -427,7 +431,7 @@ public class LuceneSearchProvider implements SearchProvider
         return analyzer;
     }
 
-    private void luceneIndexPage( WikiPage page, String text, IndexWriter writer )
+    void luceneIndexPage( WikiPage page, String text, IndexWriter writer )
         throws IOException
     {
         // make a new, empty document
@@ -436,6 +440,22 @@ public class LuceneSearchProvider implements SearchProvider
         // Raw name is the keyword we'll use to refer to this document for updates.
         doc.add(Field.Keyword(LUCENE_ID, page.getName()));
 
+        // Index what the readers see, not the markup.  The page gets
+        // a copy, so that the metadata in the text does not end up in it.
+        if( !(page instanceof Attachment) )
+        {
+            WikiContext context = new WikiContext( m_engine, new WikiPage( page.getName() ) );
+
+            String plainText = m_engine.getRenderingManager().textToPlainText( context, text, 0 );
+
+            // Link targets, plugin parameters and variable values are
+            // not in the plain text, so they get a field of their own.
+            doc.add(Field.Text(LUCENE_REFERENCES, 
+                               new StringReader(getReferences( context, text ))));
+
+            text = plainText;
+        }
+
         // Body text is indexed, but not stored in doc. We add in the
         // title text as well to make sure it gets considered.
         doc.add(Field.Text(LUCENE_PAGE_CONTENTS, 
@@ -475,6 +495,51 @@ public class LuceneSearchProvider implements SearchProvider
         writer.addDocument(doc);
     }
 
+    /**
+     *  Collects the link targets, the plugin parameter values and the
+     *  values of the variables set on a page, separated by spaces.
+     */
+    private String getReferences( WikiContext context, String text )
+    {
+        final StringBuffer refs = new StringBuffer();
+
+        StringTransmutator linkHook = new StringTransmutator()
+        {
+            public String mutate( WikiContext ctx, String link )
+            {
+                refs.append( link ).append( ' ' );
+                return link;
+            }
+        };
+
+        StringTransmutator pluginHook = new StringTransmutator()
+        {
+            public String mutate( WikiContext ctx, String commandline )
+            {
+                Map params = m_engine.getPluginManager().parseCommandLine( commandline );
+
+                for( Iterator i = params.values().iterator(); i.hasNext(); )
+                {
+                    refs.append( i.next() ).append( ' ' );
+                }
+                return commandline;
+            }
+        };
+
+        m_engine.getRenderingManager().scanLinks( context, text,
+                                                  linkHook, linkHook, linkHook,
+                                                  pluginHook );
+
+        for( Iterator i = context.getPage().getAttributes().values().iterator(); i.hasNext(); )
+        {
+            Object value = i.next();
+
+            if( value instanceof String ) refs.append( value ).append( ' ' );
+        }
+
+        return refs.toString();
+    }
+
     public void pageRemoved( WikiPage page )
     {
         try
@@ -531,8 +596,7 @@ public class LuceneSearchProvider implements SearchProvider
               
         try
         {
-            QueryParser qp = new QueryParser( LUCENE_PAGE_CONTENTS, getLuceneAnalyzer() );
-            Query luceneQuery = qp.parse( query );
+            Query luceneQuery = parseQuery( query );
             
             try
             {
@@ -602,6 +666,21 @@ public class LuceneSearchProvider implements SearchProvider
     }
 
 
+    /**
+     *  Parses a search query.  Words without a field are looked up both
+     *  in the page contents and in the references.
+     */
+    Query parseQuery( String query )
+        throws ParseException,
+               ClassNotFoundException,
+               InstantiationException,
+               IllegalAccessException
+    {
+        return MultiFieldQueryParser.parse( query,
+                                            new String[] { LUCENE_PAGE_CONTENTS, LUCENE_REFERENCES },
+                                            getLuceneAnalyzer() );
+    }
+
     public String getProviderInfo()
     {
         return "LuceneSearchProvider";
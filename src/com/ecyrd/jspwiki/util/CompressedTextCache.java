@@ -0,0 +1,325 @@
+/*
+    JSPWiki - a JSP-based WikiWiki clone.
+
+    Copyright (C) 2001-2005 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 2.1 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.ecyrd.jspwiki.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.TreeMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ *  Keeps texts compressed in a direct ByteBuffer, that is, outside of the
+ *  Java heap.  The size of the buffer is fixed, so the cache does not make
+ *  the heap grow, and the garbage collector never needs to look at the
+ *  texts.  The texts are decompressed again when they are read.
+ *  <p>
+ *  The buffer is written as a ring: new texts are appended after the
+ *  previous one, and when the end of the buffer is reached, writing starts
+ *  again from the beginning, overwriting the oldest texts.
+ *
+ *  @author Janne Jalkanen
+ *  @since 2.2.29
+ */
+public class CompressedTextCache
+{
+    private final ByteBuffer m_buffer;
+
+    /** The position where the next text is written. */
+    private int              m_writePos = 0;
+
+    /** Contains Slots, keyed by the key. */
+    private HashMap          m_slots    = new HashMap();
+
+    /** Contains keys, by the offset (as Integer) of their Slots. */
+    private TreeMap          m_offsets  = new TreeMap();
+
+    private long             m_hits        = 0;
+    private long             m_misses      = 0;
+    private long             m_evictions   = 0;
+    private long             m_textBytes   = 0;
+
+    /**
+     *  Creates a cache.
+     *
+     *  @param size The size of the buffer in bytes.
+     */
+    public CompressedTextCache( int size )
+    {
+        m_buffer = ByteBuffer.allocateDirect( size );
+    }
+
+    /**
+     *  Returns a text from the cache, or null, if it is not there or is
+     *  older than allowed.
+     *
+     *  @param key The key.
+     *  @param maxAge The maximum age of the text in milliseconds.
+     *  @return The text, or null.
+     */
+    public String get( Object key, long maxAge )
+    {
+        byte[] compressed;
+        Slot   slot;
+
+        synchronized( this )
+        {
+            slot = (Slot) m_slots.get( key );
+
+            if( slot != null && System.currentTimeMillis() - slot.m_created >= maxAge )
+            {
+                removeSlot( key, slot );
+                slot = null;
+            }
+
+            if( slot == null )
+            {
+                m_misses++;
+                return null;
+            }
+
+            m_hits++;
+
+            compressed = new byte[slot.m_length];
+
+            ByteBuffer b = m_buffer.duplicate();
+            b.position( slot.m_offset );
+            b.get( compressed );
+        }
+
+        return decompress( compressed, slot.m_textLength );
+    }
+
+    /**
+     *  Puts a text in the cache, replacing the old text of the key.  If the
+     *  compressed text does not fit in the buffer, it is not stored.
+     *
+     *  @param key The key.
+     *  @param text The text.  Null texts are not stored.
+     */
+    public void put( Object key, String text )
+    {
+        if( text == null )
+        {
+            remove( key );
+            return;
+        }
+
+        byte[] textBytes;
+
+        try
+        {
+            textBytes = text.getBytes( "UTF-8" );
+        }
+        catch( UnsupportedEncodingException e )
+        {
+            throw new InternalError( "UTF-8 not supported" );
+        }
+
+        byte[] compressed = compress( textBytes );
+
+        synchronized( this )
+        {
+            Slot old = (Slot) m_slots.get( key );
+
+            if( old != null ) removeSlot( key, old );
+
+            if( compressed.length > m_buffer.capacity() ) return;
+
+            if( m_writePos + compressed.length > m_buffer.capacity() )
+            {
+                //  The rest of the buffer is too short; start over from the beginning.
+                evict( m_writePos, m_buffer.capacity() );
+                m_writePos = 0;
+            }
+
+            evict( m_writePos, m_writePos + compressed.length );
+
+            ByteBuffer b = m_buffer.duplicate();
+            b.position( m_writePos );
+            b.put( compressed );
+
+            Slot slot = new Slot( m_writePos, compressed.length, textBytes.length );
+
+            m_slots.put( key, slot );
+            m_offsets.put( new Integer(m_writePos), key );
+            m_textBytes += textBytes.length;
+
+            m_writePos += compressed.length;
+        }
+    }
+
+    /**
+     *  Removes a text from the cache.  Does nothing, if it is not there.
+     *
+     *  @param key The key.
+     */
+    public synchronized void remove( Object key )
+    {
+        Slot slot = (Slot) m_slots.get( key );
+
+        if( slot != null ) removeSlot( key, slot );
+    }
+
+    /**
+     *  Removes everything from the cache.
+     */
+    public synchronized void clear()
+    {
+        m_slots.clear();
+        m_offsets.clear();
+        m_writePos  = 0;
+        m_textBytes = 0;
+    }
+
+    /**
+     *  Returns the number of texts in the cache.
+     */
+    public synchronized int size()
+    {
+        return m_slots.size();
+    }
+
+    /**
+     *  Returns a human-readable summary of the cache statistics.
+     */
+    public synchronized String getStatistics()
+    {
+        long compressed = 0;
+
+        for( Iterator i = m_slots.values().iterator(); i.hasNext(); )
+        {
+            compressed += ((Slot) i.next()).m_length;
+        }
+
+        return "hits: "+m_hits+", misses: "+m_misses+", evictions: "+m_evictions+
+               ", entries: "+m_slots.size()+", bytes: "+compressed+"/"+m_buffer.capacity()+
+               " (uncompressed "+m_textBytes+")";
+    }
+
+    /**
+     *  Removes the texts which start between the given offsets.
+     */
+    private void evict( int start, int end )
+    {
+        ArrayList keys = new ArrayList( m_offsets.subMap( new Integer(start), new Integer(end) ).values() );
+
+        for( Iterator i = keys.iterator(); i.hasNext(); )
+        {
+            Object key = i.next();
+
+            removeSlot( key, (Slot) m_slots.get( key ) );
+            m_evictions++;
+        }
+    }
+
+    private void removeSlot( Object key, Slot slot )
+    {
+        m_slots.remove( key );
+        m_offsets.remove( new Integer(slot.m_offset) );
+        m_textBytes -= slot.m_textLength;
+    }
+
+    private static byte[] compress( byte[] data )
+    {
+        Deflater deflater = new Deflater( Deflater.BEST_SPEED );
+
+        try
+        {
+            deflater.setInput( data );
+            deflater.finish();
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream( data.length/2 + 16 );
+            byte[] buf = new byte[4096];
+
+            while( !deflater.finished() )
+            {
+                int len = deflater.deflate( buf );
+                out.write( buf, 0, len );
+            }
+
+            return out.toByteArray();
+        }
+        finally
+        {
+            deflater.end();
+        }
+    }
+
+    private static String decompress( byte[] data, int textLength )
+    {
+        Inflater inflater = new Inflater();
+
+        try
+        {
+            byte[] text = new byte[textLength];
+
+            inflater.setInput( data );
+
+            int len = 0;
+
+            while( len < textLength && !inflater.finished() )
+            {
+                int n = inflater.inflate( text, len, textLength-len );
+
+                if( n == 0 && inflater.needsInput() ) break;
+
+                len += n;
+            }
+
+            return new String( text, 0, len, "UTF-8" );
+        }
+        catch( DataFormatException e )
+        {
+            throw new InternalError( "Corrupted compressed text: "+e.getMessage() );
+        }
+        catch( UnsupportedEncodingException e )
+        {
+            throw new InternalError( "UTF-8 not supported" );
+        }
+        finally
+        {
+            inflater.end();
+        }
+    }
+
+    /**
+     *  The place of a compressed text in the buffer.
+     */
+    private static final class Slot
+    {
+        final int  m_offset;
+        final int  m_length;
+        final int  m_textLength;
+        final long m_created = System.currentTimeMillis();
+
+        Slot( int offset, int length, int textLength )
+        {
+            m_offset     = offset;
+            m_length     = length;
+            m_textLength = textLength;
+        }
+    }
+}
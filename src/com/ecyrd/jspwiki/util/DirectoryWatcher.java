@@ -0,0 +1,254 @@
+/*
+    JSPWiki - a JSP-based WikiWiki clone.
+
+    Copyright (C) 2001-2005 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 2.1 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.ecyrd.jspwiki.util;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+/**
+ *  Watches a directory for changes made by someone else than JSPWiki,
+ *  like a text editor or a version control checkout.  The directory is
+ *  scanned periodically, and the listener is told about every entry
+ *  which has been added, modified or removed since the previous scan.
+ *  For subdirectories, any change in the files inside them counts as a
+ *  change of the subdirectory.  A FilenameFilter can limit the scan to
+ *  the entries the listener is interested in, so that large
+ *  subdirectories are not scanned in vain.
+ *  <p>
+ *  One scan of the directory is much cheaper than checking each cached
+ *  page separately whenever it is read.
+ *
+ *  @author Janne Jalkanen
+ *  @since 2.2.29
+ */
+public class DirectoryWatcher
+    extends Thread
+{
+    private static final Logger log = Logger.getLogger(DirectoryWatcher.class);
+
+    private final File     m_directory;
+    private final Listener m_listener;
+    private final long     m_interval;
+    private final FilenameFilter m_filter;
+
+    /** Maps entry names into Signatures, as seen in the previous scan. */
+    private Map            m_entries;
+
+    private volatile boolean m_stopped = false;
+
+    /**
+     *  Creates a watcher and takes the first look at the directory.  Call
+     *  start() to start watching.
+     *
+     *  @param directory The directory to watch.
+     *  @param interval How often to scan the directory, in seconds.
+     *  @param listener The Listener to tell about the changes.
+     */
+    public DirectoryWatcher( File directory, int interval, Listener listener )
+    {
+        this( directory, interval, null, listener );
+    }
+
+    /**
+     *  Creates a watcher which watches only some of the entries in the
+     *  directory, and takes the first look at it.  Call start() to start
+     *  watching.
+     *
+     *  @param directory The directory to watch.
+     *  @param interval How often to scan the directory, in seconds.
+     *  @param filter Accepts the names of the entries to watch.  Other
+     *         entries, and everything inside them, are not looked at.
+     *         Null watches all entries.
+     *  @param listener The Listener to tell about the changes.
+     */
+    public DirectoryWatcher( File directory, int interval, FilenameFilter filter, Listener listener )
+    {
+        super( "JSPWiki directory watcher: "+directory.getName() );
+
+        m_directory = directory;
+        m_interval  = interval*1000L;
+        m_filter    = filter;
+        m_listener  = listener;
+        m_entries   = readEntries();
+
+        setDaemon( true );
+    }
+
+    /**
+     *  Stops watching the directory and waits for the watcher to finish.
+     */
+    public void shutdown()
+    {
+        m_stopped = true;
+        interrupt();
+
+        try
+        {
+            join();
+        }
+        catch( InterruptedException e ) {}
+    }
+
+    public void run()
+    {
+        while( !m_stopped )
+        {
+            try
+            {
+                Thread.sleep( m_interval );
+
+                scan();
+            }
+            catch( InterruptedException e )
+            {
+                return;
+            }
+            catch( Throwable t )
+            {
+                log.warn( "Scanning "+m_directory+" failed", t );
+            }
+        }
+    }
+
+    /**
+     *  Scans the directory now and tells the listener about the changes.
+     */
+    public void scan()
+    {
+        Map current = readEntries();
+        Set changed = new HashSet();
+
+        for( Iterator i = current.entrySet().iterator(); i.hasNext(); )
+        {
+            Map.Entry e = (Map.Entry) i.next();
+
+            if( !e.getValue().equals( m_entries.get( e.getKey() ) ) ) changed.add( e.getKey() );
+        }
+
+        for( Iterator i = m_entries.keySet().iterator(); i.hasNext(); )
+        {
+            Object name = i.next();
+
+            if( !current.containsKey( name ) ) changed.add( name );
+        }
+
+        m_entries = current;
+
+        for( Iterator i = changed.iterator(); i.hasNext(); )
+        {
+            String name = (String) i.next();
+
+            log.debug( "Noticed a change in "+name );
+
+            try
+            {
+                m_listener.entryChanged( name );
+            }
+            catch( Exception e )
+            {
+                log.warn( "Handling a change in "+name+" failed", e );
+            }
+        }
+    }
+
+    private Map readEntries()
+    {
+        HashMap entries = new HashMap();
+        File[]  files   = m_directory.listFiles( m_filter );
+
+        if( files != null )
+        {
+            for( int i = 0; i < files.length; i++ )
+            {
+                Signature s = new Signature();
+
+                s.add( files[i] );
+
+                entries.put( files[i].getName(), s );
+            }
+        }
+
+        return entries;
+    }
+
+    /**
+     *  Receives the changes noticed by a DirectoryWatcher.
+     */
+    public interface Listener
+    {
+        /**
+         *  Called when an entry has been added, modified or removed.
+         *
+         *  @param name The name of the entry, without the directory.
+         */
+        public void entryChanged( String name );
+    }
+
+    /**
+     *  Sums up the state of a file, or a directory and everything in it.
+     */
+    private static final class Signature
+    {
+        private long m_lastModified = 0;
+        private long m_length       = 0;
+        private int  m_count        = 0;
+
+        void add( File f )
+        {
+            m_lastModified = Math.max( m_lastModified, f.lastModified() );
+            m_count++;
+
+            File[] children = f.listFiles();
+
+            if( children != null )
+            {
+                for( int i = 0; i < children.length; i++ )
+                {
+                    add( children[i] );
+                }
+            }
+            else
+            {
+                m_length += f.length();
+            }
+        }
+
+        public boolean equals( Object o )
+        {
+            if( !(o instanceof Signature) ) return false;
+
+            Signature s = (Signature) o;
+
+            return m_lastModified == s.m_lastModified && m_length == s.m_length && m_count == s.m_count;
+        }
+
+        public int hashCode()
+        {
+            return (int) m_lastModified ^ m_count;
+        }
+    }
+}
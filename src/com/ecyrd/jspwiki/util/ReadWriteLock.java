@@ -0,0 +1,168 @@
+/*
+    JSPWiki - a JSP-based WikiWiki clone.
+
+    Copyright (C) 2001-2005 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 2.1 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.ecyrd.jspwiki.util;
+
+import java.util.HashMap;
+
+/**
+ *  A lock which many threads can hold for reading at the same time, but
+ *  only one thread for writing.  A thread waiting for the write lock keeps
+ *  new readers out, so that writers do not starve under heavy reading.
+ *  <p>
+ *  The lock is reentrant: a thread which holds the read or the write lock
+ *  may take the read lock again, and a thread which holds the write lock
+ *  may take it again.  A thread which holds the read lock may only take
+ *  the write lock, if no other thread is reading.  Every lock must be
+ *  released as many times as it was taken.
+ *
+ *  @author Janne Jalkanen
+ *  @since 2.2.29
+ */
+public class ReadWriteLock
+{
+    private Thread  m_writer         = null;
+    private int     m_writeHolds     = 0;
+    private int     m_waitingWriters = 0;
+
+    /** Maps reading Threads into the number of times (as int[1]) they hold the lock. */
+    private HashMap m_readers        = new HashMap();
+
+    /**
+     *  Takes the read lock, waiting if another thread holds or waits
+     *  for the write lock.
+     */
+    public synchronized void readLock()
+    {
+        Thread t     = Thread.currentThread();
+        int[]  holds = (int[]) m_readers.get( t );
+
+        if( holds != null )
+        {
+            holds[0]++;
+            return;
+        }
+
+        if( m_writer != t )
+        {
+            boolean interrupted = false;
+
+            while( m_writer != null || m_waitingWriters > 0 )
+            {
+                try
+                {
+                    wait();
+                }
+                catch( InterruptedException e )
+                {
+                    interrupted = true;
+                }
+            }
+
+            if( interrupted ) t.interrupt();
+        }
+
+        m_readers.put( t, new int[] { 1 } );
+    }
+
+    /**
+     *  Releases the read lock.
+     */
+    public synchronized void readUnlock()
+    {
+        Thread t     = Thread.currentThread();
+        int[]  holds = (int[]) m_readers.get( t );
+
+        if( holds == null )
+        {
+            throw new IllegalStateException( "Read lock not held" );
+        }
+
+        if( --holds[0] == 0 )
+        {
+            m_readers.remove( t );
+            notifyAll();
+        }
+    }
+
+    /**
+     *  Takes the write lock, waiting until no other thread holds the
+     *  read or the write lock.
+     */
+    public synchronized void writeLock()
+    {
+        Thread t = Thread.currentThread();
+
+        if( m_writer == t )
+        {
+            m_writeHolds++;
+            return;
+        }
+
+        boolean interrupted = false;
+
+        m_waitingWriters++;
+
+        try
+        {
+            while( m_writer != null || hasOtherReaders( t ) )
+            {
+                try
+                {
+                    wait();
+                }
+                catch( InterruptedException e )
+                {
+                    interrupted = true;
+                }
+            }
+        }
+        finally
+        {
+            m_waitingWriters--;
+        }
+
+        if( interrupted ) t.interrupt();
+
+        m_writer     = t;
+        m_writeHolds = 1;
+    }
+
+    /**
+     *  Releases the write lock.
+     */
+    public synchronized void writeUnlock()
+    {
+        if( m_writer != Thread.currentThread() )
+        {
+            throw new IllegalStateException( "Write lock not held" );
+        }
+
+        if( --m_writeHolds == 0 )
+        {
+            m_writer = null;
+            notifyAll();
+        }
+    }
+
+    private boolean hasOtherReaders( Thread t )
+    {
+        return m_readers.size() > (m_readers.containsKey( t ) ? 1 : 0);
+    }
+}
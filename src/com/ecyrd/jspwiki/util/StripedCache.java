@@ -0,0 +1,603 @@
+/*
+    JSPWiki - a JSP-based WikiWiki clone.
+
+    Copyright (C) 2001-2005 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 2.1 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.ecyrd.jspwiki.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *  A cache which is split into segments, each with its own lock, so that
+ *  threads asking for different keys seldom wait for each other.  Every
+ *  entry has a weight - for example the size of a page text in bytes -
+ *  and when a segment would grow over its share of the maximum weight,
+ *  its least recently used entries are evicted.
+ *  <p>
+ *  A new entry is not let in, if the keys of the entries it would push out
+ *  have been asked for more often than its own key.  The frequencies are
+ *  estimated with a count-min sketch in each segment, which grows with the
+ *  number of entries, and whose counts
+ *  are halved every now and then, so that old popularity fades away.  This
+ *  keeps a single sweep through all the keys - by a search engine robot,
+ *  for example - from flushing out the entries which are really used.
+ *  <p>
+ *  Null values can be cached.  Use getEntry() to tell them apart from
+ *  keys which are not in the cache.  Keys may not be null.
+ *
+ *  @author Janne Jalkanen
+ *  @since 2.2.29
+ */
+public class StripedCache
+{
+    private static final int DEFAULT_SEGMENTS = 16;
+
+    /** Segments are not made smaller than this, so that small caches
+        are not split into uselessly tiny pieces. */
+    private static final long MIN_SEGMENT_WEIGHT = 16;
+
+    /** The number of entries a new frequency sketch is made for. */
+    private static final int INITIAL_SKETCH_SIZE = 256;
+
+    /** Sketches do not grow larger than this many counters. */
+    private static final int MAX_SKETCH_WIDTH = 1 << 22;
+
+    private final Segment[] m_segments;
+
+    private final long      m_maxWeight;
+
+    /**
+     *  Creates a cache with the default number of segments.
+     *
+     *  @param maxWeight The maximum total weight of the entries.  Zero means
+     *         that the cache is never full.
+     */
+    public StripedCache( long maxWeight )
+    {
+        this( maxWeight, DEFAULT_SEGMENTS );
+    }
+
+    /**
+     *  Creates a cache.
+     *
+     *  @param maxWeight The maximum total weight of the entries.  Zero means
+     *         that the cache is never full.
+     *  @param segments The number of segments.  This is rounded up to a
+     *         power of two, and reduced if the cache is very small.
+     */
+    public StripedCache( long maxWeight, int segments )
+    {
+        int n = 1;
+
+        while( n < segments ) n <<= 1;
+
+        while( n > 1 && maxWeight > 0 && maxWeight / n < MIN_SEGMENT_WEIGHT ) n >>= 1;
+
+        m_maxWeight = maxWeight;
+        m_segments  = new Segment[n];
+
+        for( int i = 0; i < n; i++ )
+        {
+            m_segments[i] = new Segment( maxWeight > 0 ? maxWeight / n : 0 );
+        }
+    }
+
+    private static int spread( int h )
+    {
+        h ^= (h >>> 20) ^ (h >>> 12);
+        return h ^ (h >>> 7) ^ (h >>> 4);
+    }
+
+    private Segment getSegment( Object key )
+    {
+        return m_segments[ spread( key.hashCode() ) & (m_segments.length-1) ];
+    }
+
+    /**
+     *  Returns the entry of the given key, or null, if the key is not
+     *  in the cache.  The entry is marked as used.
+     *
+     *  @param key The key.
+     *  @return An Entry, or null.
+     */
+    public Entry getEntry( Object key )
+    {
+        return getSegment( key ).get( key );
+    }
+
+    /**
+     *  Returns the entry of the given key, or null, if the key is not
+     *  in the cache.  Unlike getEntry(), this is not counted as a use of
+     *  the key, nor as a hit or a miss.
+     *
+     *  @param key The key.
+     *  @return An Entry, or null.
+     */
+    public Entry peek( Object key )
+    {
+        return getSegment( key ).peek( key );
+    }
+
+    /**
+     *  Returns the value of the given key, or null, if the key is not
+     *  in the cache, or its value is null.
+     *
+     *  @param key The key.
+     *  @return The cached value, or null.
+     */
+    public Object get( Object key )
+    {
+        Entry e = getEntry( key );
+
+        return e != null ? e.m_value : null;
+    }
+
+    /**
+     *  Puts a value with weight one in the cache.
+     *
+     *  @param key The key.
+     *  @param value The value.  May be null.
+     *  @return True, if the value was stored.
+     */
+    public boolean put( Object key, Object value )
+    {
+        return put( key, value, 1 );
+    }
+
+    /**
+     *  Puts a value in the cache, replacing the old value of the key.  If the
+     *  key is new and the cache is full, the value is stored only if the
+     *  key is used more often than the entries which would be evicted.
+     *
+     *  @param key The key.
+     *  @param value The value.  May be null.
+     *  @param weight The weight of the value.
+     *  @return True, if the value was stored.
+     */
+    public boolean put( Object key, Object value, long weight )
+    {
+        return getSegment( key ).put( key, new Entry( value, weight ) );
+    }
+
+    /**
+     *  Removes a key from the cache.  Does nothing, if the key is not there.
+     *
+     *  @param key The key.
+     */
+    public void remove( Object key )
+    {
+        getSegment( key ).remove( key );
+    }
+
+    /**
+     *  Removes everything from the cache.
+     */
+    public void clear()
+    {
+        for( int i = 0; i < m_segments.length; i++ )
+        {
+            m_segments[i].clear();
+        }
+    }
+
+    /**
+     *  Returns the values in the cache which are not null.  The List is
+     *  a copy, which is not updated when the cache changes.
+     */
+    public List values()
+    {
+        ArrayList result = new ArrayList();
+
+        for( int i = 0; i < m_segments.length; i++ )
+        {
+            m_segments[i].addValues( result );
+        }
+
+        return result;
+    }
+
+    /**
+     *  Returns the number of entries in the cache.
+     */
+    public int size()
+    {
+        int size = 0;
+
+        for( int i = 0; i < m_segments.length; i++ )
+        {
+            synchronized( m_segments[i] )
+            {
+                size += m_segments[i].m_entries.size();
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     *  Returns the total weight of the entries in the cache.
+     */
+    public long getWeight()
+    {
+        long weight = 0;
+
+        for( int i = 0; i < m_segments.length; i++ )
+        {
+            synchronized( m_segments[i] )
+            {
+                weight += m_segments[i].m_weight;
+            }
+        }
+
+        return weight;
+    }
+
+    /**
+     *  Returns the number of lookups which found the key.
+     */
+    public long getHits()
+    {
+        long count = 0;
+
+        for( int i = 0; i < m_segments.length; i++ )
+        {
+            synchronized( m_segments[i] )
+            {
+                count += m_segments[i].m_hits;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     *  Returns the number of lookups which did not find the key.
+     */
+    public long getMisses()
+    {
+        long count = 0;
+
+        for( int i = 0; i < m_segments.length; i++ )
+        {
+            synchronized( m_segments[i] )
+            {
+                count += m_segments[i].m_misses;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     *  Returns the number of entries evicted to make room for others.
+     */
+    public long getEvictions()
+    {
+        long count = 0;
+
+        for( int i = 0; i < m_segments.length; i++ )
+        {
+            synchronized( m_segments[i] )
+            {
+                count += m_segments[i].m_evictions;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     *  Returns the number of values which were not let in, because they
+     *  were used less often than the entries they would have evicted,
+     *  or were too heavy.
+     */
+    public long getRejections()
+    {
+        long count = 0;
+
+        for( int i = 0; i < m_segments.length; i++ )
+        {
+            synchronized( m_segments[i] )
+            {
+                count += m_segments[i].m_rejections;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     *  Returns a human-readable summary of the cache statistics.
+     */
+    public String getStatistics()
+    {
+        return "hits: "+getHits()+", misses: "+getMisses()+
+               ", evictions: "+getEvictions()+", rejected: "+getRejections()+
+               ", entries: "+size()+", weight: "+getWeight()+
+               (m_maxWeight > 0 ? "/"+m_maxWeight : "");
+    }
+
+    /**
+     *  A cached value.
+     */
+    public static final class Entry
+    {
+        private final Object m_value;
+        private final long   m_weight;
+        private final long   m_created = System.currentTimeMillis();
+
+        Entry( Object value, long weight )
+        {
+            m_value  = value;
+            m_weight = weight;
+        }
+
+        /**
+         *  Returns the cached value.  May be null.
+         */
+        public Object getValue()
+        {
+            return m_value;
+        }
+
+        /**
+         *  Returns the number of milliseconds since the value was put in
+         *  the cache.
+         */
+        public long getAge()
+        {
+            return System.currentTimeMillis() - m_created;
+        }
+    }
+
+    /**
+     *  A part of the cache with its own lock, entries and frequency sketch.
+     */
+    private static final class Segment
+    {
+        private final long          m_maxWeight;
+
+        /** Contains Entries, least recently used first. */
+        private final LinkedHashMap m_entries = new LinkedHashMap( 16, 0.75f, true );
+
+        /** Null, if the segment is never full. */
+        private FrequencySketch m_sketch;
+
+        private long m_weight     = 0;
+        private long m_hits       = 0;
+        private long m_misses     = 0;
+        private long m_evictions  = 0;
+        private long m_rejections = 0;
+
+        Segment( long maxWeight )
+        {
+            m_maxWeight = maxWeight;
+
+            if( maxWeight > 0 )
+            {
+                //  The weights may be anything, so start small and grow
+                //  with the entries.
+                m_sketch = new FrequencySketch( (int) Math.min( maxWeight, INITIAL_SKETCH_SIZE ) );
+            }
+        }
+
+        synchronized Entry get( Object key )
+        {
+            if( m_sketch != null ) m_sketch.increment( key );
+
+            Entry e = (Entry) m_entries.get( key );
+
+            if( e != null ) m_hits++; else m_misses++;
+
+            return e;
+        }
+
+        synchronized Entry peek( Object key )
+        {
+            return (Entry) m_entries.get( key );
+        }
+
+        synchronized boolean put( Object key, Entry entry )
+        {
+            Entry old    = (Entry) m_entries.get( key );
+            long  weight = m_weight - (old != null ? old.m_weight : 0) + entry.m_weight;
+
+            if( m_maxWeight > 0 && entry.m_weight > m_maxWeight )
+            {
+                if( old != null ) remove( key );
+
+                m_rejections++;
+                return false;
+            }
+
+            if( m_maxWeight > 0 && weight > m_maxWeight )
+            {
+                //
+                //  Find the victims first, so that nothing is evicted if
+                //  the new entry is not let in.  Replacing an old value is
+                //  always allowed.
+                //
+                int       frequency = m_sketch.frequency( key );
+                ArrayList victims   = new ArrayList();
+                long      freed     = 0;
+
+                for( Iterator i = m_entries.entrySet().iterator(); i.hasNext() && weight-freed > m_maxWeight; )
+                {
+                    Map.Entry e = (Map.Entry) i.next();
+
+                    if( e.getKey().equals( key ) ) continue;
+
+                    if( old == null && m_sketch.frequency( e.getKey() ) > frequency )
+                    {
+                        m_rejections++;
+                        return false;
+                    }
+
+                    victims.add( e.getKey() );
+                    freed += ((Entry) e.getValue()).m_weight;
+                }
+
+                for( Iterator i = victims.iterator(); i.hasNext(); )
+                {
+                    m_entries.remove( i.next() );
+                    m_evictions++;
+                }
+
+                weight -= freed;
+            }
+
+            m_entries.put( key, entry );
+            m_weight = weight;
+
+            if( m_sketch != null && m_entries.size() > m_sketch.getCapacity() )
+            {
+                m_sketch = m_sketch.grow( 2*m_entries.size() );
+            }
+
+            return true;
+        }
+
+        synchronized void remove( Object key )
+        {
+            Entry e = (Entry) m_entries.remove( key );
+
+            if( e != null ) m_weight -= e.m_weight;
+        }
+
+        synchronized void clear()
+        {
+            m_entries.clear();
+            m_weight = 0;
+        }
+
+        synchronized void addValues( List list )
+        {
+            for( Iterator i = m_entries.values().iterator(); i.hasNext(); )
+            {
+                Object value = ((Entry) i.next()).m_value;
+
+                if( value != null ) list.add( value );
+            }
+        }
+    }
+
+    /**
+     *  Estimates how often keys have been used.  Each key is counted in
+     *  four places of a table of small counters, and the smallest of the
+     *  four counts is the estimate.  When ten times as many keys as there
+     *  are entries have been counted, all counts are halved.
+     */
+    private static final class FrequencySketch
+    {
+        private static final int[] SEEDS = { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F };
+
+        private static final int   MAX_COUNT = 15;
+
+        private final byte[] m_table;
+        private final int    m_mask;
+        private final int    m_capacity;
+        private final int    m_sampleSize;
+        private int          m_additions = 0;
+
+        /**
+         *  @param capacity The number of entries whose keys are counted.
+         */
+        FrequencySketch( int capacity )
+        {
+            m_capacity = Math.max( capacity, 16 );
+
+            //  A few counters per entry keep the collisions rare.
+            int width = 64;
+
+            while( width < 8*m_capacity && width < MAX_SKETCH_WIDTH ) width <<= 1;
+
+            m_table      = new byte[width];
+            m_mask       = width-1;
+            m_sampleSize = 10*m_capacity;
+        }
+
+        int getCapacity()
+        {
+            return m_capacity;
+        }
+
+        /**
+         *  Returns a sketch for more entries, with the same counts.  The
+         *  low bits of an index stay the same when the table grows, so
+         *  each count is copied to all the counters which replace it.
+         */
+        FrequencySketch grow( int capacity )
+        {
+            FrequencySketch s = new FrequencySketch( capacity );
+
+            for( int i = 0; i < s.m_table.length; i++ )
+            {
+                s.m_table[i] = m_table[ i & m_mask ];
+            }
+
+            s.m_additions = m_additions;
+
+            return s;
+        }
+
+        private int index( int hash, int i )
+        {
+            int h = hash * SEEDS[i];
+
+            return (h ^ (h >>> 16)) & m_mask;
+        }
+
+        int frequency( Object key )
+        {
+            int hash = spread( key.hashCode() );
+            int min  = MAX_COUNT;
+
+            for( int i = 0; i < SEEDS.length; i++ )
+            {
+                min = Math.min( min, m_table[ index( hash, i ) ] );
+            }
+
+            return min;
+        }
+
+        void increment( Object key )
+        {
+            int hash = spread( key.hashCode() );
+
+            for( int i = 0; i < SEEDS.length; i++ )
+            {
+                int idx = index( hash, i );
+
+                if( m_table[idx] < MAX_COUNT ) m_table[idx]++;
+            }
+
+            if( ++m_additions >= m_sampleSize )
+            {
+                for( int i = 0; i < m_table.length; i++ )
+                {
+                    m_table[i] >>= 1;
+                }
+
+                m_additions /= 2;
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+    JSPWiki - a JSP-based WikiWiki clone.
+
+    Copyright (C) 2001-2005 Janne Jalkanen (Janne.Jalkanen@iki.fi)
+
+    This program is free software; you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation; either version 2.1 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program; if not, write to the Free Software
+    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package com.ecyrd.jspwiki.util;
+
+/**
+ *  A fixed set of ReadWriteLocks shared by any number of keys, like page
+ *  names.  The same key always gets the same lock, and different keys
+ *  seldom do, so threads working on different pages do not wait for each
+ *  other, and no lock needs to be created or removed per page.
+ *
+ *  @author Janne Jalkanen
+ *  @since 2.2.29
+ */
+public class StripedLocks
+{
+    private final ReadWriteLock[] m_locks;
+
+    /**
+     *  Creates a set of locks.
+     *
+     *  @param stripes The number of locks.  This is rounded up to a power of two.
+     */
+    public StripedLocks( int stripes )
+    {
+        int n = 1;
+
+        while( n < stripes ) n <<= 1;
+
+        m_locks = new ReadWriteLock[n];
+
+        for( int i = 0; i < n; i++ )
+        {
+            m_locks[i] = new ReadWriteLock();
+        }
+    }
+
+    /**
+     *  Returns the lock of a key.
+     *
+     *  @param key The key.
+     */
+    public ReadWriteLock get( Object key )
+    {
+        int h = key.hashCode();
+
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+
+        return m_locks[ h & (m_locks.length-1) ];
+    }
+}
@@ -42,12 +42,17 @@ public class AllTests extends TestCase
         TestSuite suite = new TestSuite("JSPWiki Unit Tests");
 
         suite.addTest( FileUtilTest.suite() );
+        suite.addTest( LinkScannerTest.suite() );
         suite.addTest( PageManagerTest.suite() );
+        suite.addTest( PageNameIndexTest.suite() );
         suite.addTest( TextUtilTest.suite() );
         suite.addTest( TranslatorReaderTest.suite() );
         suite.addTest( VariableManagerTest.suite() );
         suite.addTest( WikiEngineTest.suite() );
         suite.addTest( ReferenceManagerTest.suite() );
+        suite.addTest( RenderingManagerTest.suite() );
+        suite.addTest( MetadataManagerTest.suite() );
+        suite.addTest( RenderProfilerTest.suite() );
         suite.addTest( com.ecyrd.jspwiki.plugin.AllTests.suite() );
         suite.addTest( com.ecyrd.jspwiki.xmlrpc.AllTests.suite() );
         suite.addTest( com.ecyrd.jspwiki.providers.AllTests.suite() );
@@ -60,6 +65,7 @@ public class AllTests extends TestCase
         suite.addTest( com.ecyrd.jspwiki.rss.AllTests.suite() );
         suite.addTest( com.ecyrd.jspwiki.htmltowiki.AllTests.suite() );
         suite.addTest( com.ecyrd.jspwiki.dav.AllTests.suite() );
+        suite.addTest( com.ecyrd.jspwiki.search.AllTests.suite() );
         
         return suite;
     }
@@ -0,0 +1,102 @@
+package com.ecyrd.jspwiki;
+
+import junit.framework.*;
+
+import org.apache.oro.text.regex.*;
+
+public class LinkScannerTest extends TestCase
+{
+    /** The pattern LinkScanner.findCamelCase() replaces. */
+    private static final String CAMELCASE_PATTERN =
+        "^([[:^alnum:]]*|\\~)([[:upper:]]+[[:lower:]]+[[:upper:]]+[[:alnum:]]*)[[:^alnum:]]*$";
+
+    public LinkScannerTest( String s )
+    {
+        super( s );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( LinkScannerTest.class );
+    }
+
+    /**
+     *  Does the same as the old regexp based code in TranslatorReader.
+     */
+    private String regexpCamelCase( String word )
+        throws Exception
+    {
+        Pattern ptrn = new Perl5Compiler().compile( CAMELCASE_PATTERN );
+        PatternMatcher matcher = new Perl5Matcher();
+
+        if( matcher.contains( new PatternMatcherInput( word ), ptrn ) )
+        {
+            MatchResult res = matcher.getMatch();
+
+            if( res.group(1) != null &&
+                (res.group(1).equals("~") || res.group(1).indexOf('[') != -1) )
+            {
+                return null;
+            }
+
+            return res.group(2);
+        }
+
+        return null;
+    }
+
+    public void testCamelCase()
+    {
+        assertEquals( "HyperLink", LinkScanner.findCamelCase( "HyperLink" ) );
+        assertEquals( "HyperLink", LinkScanner.findCamelCase( "__HyperLink__" ) );
+        assertEquals( "ABCdefGhi2", LinkScanner.findCamelCase( "(ABCdefGhi2)." ) );
+        assertNull( LinkScanner.findCamelCase( "nonHyperLink" ) );
+        assertNull( LinkScanner.findCamelCase( "Hyperlink" ) );
+        assertNull( LinkScanner.findCamelCase( "~HyperLink" ) );
+        assertNull( LinkScanner.findCamelCase( "[HyperLink" ) );
+        assertNull( LinkScanner.findCamelCase( "" ) );
+    }
+
+    public void testSameAsRegexp()
+        throws Exception
+    {
+        String[] words = { "HyperLink", "__HyperLink__", "~HyperLink", "~~HyperLink",
+                           "[HyperLink]", "HyperLink]", "Hyper-Link", "HyperLink-Two",
+                           "HYPERLink", "HyperLINK", "Hyper2Link", "H2yperLink",
+                           "HyperLinks.", "a", "", "~", "AbC", "Abc", "aBcD",
+                           "http://www.foo.bar/ANewHope/", "\u00c4\u00e4kk\u00f6nen\u00d6\u00f6" };
+
+        for( int i = 0; i < words.length; i++ )
+        {
+            assertEquals( words[i], regexpCamelCase( words[i] ), LinkScanner.findCamelCase( words[i] ) );
+        }
+    }
+
+    private boolean linearIsExternalLink( String link )
+    {
+        for( int i = 0; i < TranslatorReader.c_externalLinks.length; i++ )
+        {
+            if( link.startsWith( TranslatorReader.c_externalLinks[i] ) ) return true;
+        }
+
+        return false;
+    }
+
+    public void testExternalLinks()
+    {
+        for( int i = 0; i < TranslatorReader.c_externalLinks.length; i++ )
+        {
+            String link = TranslatorReader.c_externalLinks[i];
+
+            String shorter = link.substring( 0, link.length()-1 );
+
+            assertTrue( link, LinkScanner.isExternalLink( link+"foo" ) );
+            assertEquals( shorter, linearIsExternalLink( shorter ), LinkScanner.isExternalLink( shorter ) );
+        }
+
+        assertTrue( LinkScanner.isExternalLink( new StringBuffer("http://www.jspwiki.org/") ) );
+        assertFalse( LinkScanner.isExternalLink( "HyperLink" ) );
+        assertFalse( LinkScanner.isExternalLink( "httpx:" ) );
+        assertFalse( LinkScanner.isExternalLink( "" ) );
+    }
+}
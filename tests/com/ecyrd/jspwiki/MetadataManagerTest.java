@@ -0,0 +1,125 @@
+package com.ecyrd.jspwiki;
+
+import junit.framework.*;
+import java.io.*;
+import java.util.*;
+
+import com.ecyrd.jspwiki.providers.*;
+
+public class MetadataManagerTest extends TestCase
+{
+    Properties props = new Properties();
+
+    TestEngine m_engine;
+
+    public MetadataManagerTest( String s )
+    {
+        super( s );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( MetadataManagerTest.class );
+    }
+
+    public void setUp()
+        throws Exception
+    {
+        props.load( TestEngine.findTestProperties() );
+
+        TestEngine.emptyWorkDir();
+        m_engine = new TestEngine(props);
+    }
+
+    public void tearDown()
+    {
+        String files = props.getProperty( FileSystemProvider.PROP_PAGEDIR );
+
+        if( files != null )
+        {
+            TestEngine.deleteAll( new File( files ) );
+        }
+
+        TestEngine.emptyWorkDir();
+    }
+
+    private WikiPage extract( String src )
+    {
+        WikiPage page = new WikiPage( "Foobar" );
+
+        m_engine.getMetadataManager().extractMetadata( new WikiContext( m_engine, page ), src );
+
+        return page;
+    }
+
+    public void testSet()
+    {
+        WikiPage page = extract( "Text [{SET foo=bar}] and [{SET quoted='a b'}] text" );
+
+        assertEquals( "bar", page.getAttribute("foo") );
+        assertEquals( "a b", page.getAttribute("quoted") );
+        assertTrue( page.hasMetadata() );
+    }
+
+    public void testSetSkipsPreformatted()
+    {
+        WikiPage page = extract( "{{{ [{SET foo=bar}] }}} [{SET bar=foo}]" );
+
+        assertNull( page.getAttribute("foo") );
+        assertEquals( "foo", page.getAttribute("bar") );
+    }
+
+    public void testSetSkipsEscapes()
+    {
+        WikiPage page = extract( "[[{SET foo=bar}] ~[{SET bar=foo}]" );
+
+        assertNull( page.getAttribute("foo") );
+        assertNull( page.getAttribute("bar") );
+    }
+
+    public void testSetAfterLinks()
+    {
+        WikiPage page = extract( "[Link] [{INSERT Plugin WHERE a=[b]}] [{SET foo=bar}]" );
+
+        assertEquals( "bar", page.getAttribute("foo") );
+    }
+
+    public void testSameAsRendering()
+        throws Exception
+    {
+        String src = "!Heading\n[{SET foo=bar}]\n{{{\n[{SET foo=wrong}]\n}}}\n* [{SET baz=1}]";
+
+        m_engine.saveText( "Foobar", src );
+
+        WikiPage rendered = new WikiPage( "Foobar" );
+        m_engine.textToHTML( new WikiContext( m_engine, rendered ), src );
+
+        WikiPage extracted = extract( src );
+
+        assertEquals( rendered.getAttribute("foo"), extracted.getAttribute("foo") );
+        assertEquals( rendered.getAttribute("baz"), extracted.getAttribute("baz") );
+    }
+
+    public void testParseMetadataCached()
+        throws Exception
+    {
+        m_engine.saveText( "Foobar", "[{SET foo=bar}]" );
+
+        WikiPage page = m_engine.getPage( "Foobar" );
+        page.invalidateMetadata();
+
+        m_engine.getMetadataManager().parseMetadata( page, "[{SET foo=bar}]" );
+
+        assertEquals( "bar", page.getAttribute("foo") );
+
+        //
+        //  The same version comes from the cache, without looking at the text.
+        //
+        WikiPage page2 = m_engine.getPage( "Foobar" );
+        page2.invalidateMetadata();
+
+        m_engine.getMetadataManager().parseMetadata( page2, "[{SET foo=other}]" );
+
+        assertEquals( "bar", page2.getAttribute("foo") );
+    }
+}
@@ -0,0 +1,72 @@
+package com.ecyrd.jspwiki;
+
+import junit.framework.*;
+import java.util.*;
+
+public class PageNameIndexTest extends TestCase
+{
+    public PageNameIndexTest( String s )
+    {
+        super( s );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( PageNameIndexTest.class );
+    }
+
+    private PageNameIndex createIndex( String[] names, boolean plurals )
+    {
+        return new PageNameIndex( Arrays.asList( names ), plurals );
+    }
+
+    public void testExactNames()
+    {
+        PageNameIndex index = createIndex( new String[] { "Foobar", "Test" }, false );
+
+        assertEquals( "Foobar", index.getFinalPageName( "Foobar" ) );
+        assertNull( "plural", index.getFinalPageName( "Foobars" ) );
+        assertNull( "case", index.getFinalPageName( "foobar" ) );
+    }
+
+    public void testPlurals()
+    {
+        PageNameIndex index = createIndex( new String[] { "Foobar", "Tests" }, true );
+
+        assertEquals( "Foobar", index.getFinalPageName( "Foobars" ) );
+        assertEquals( "Tests", index.getFinalPageName( "Test" ) );
+    }
+
+    public void testPluralPrefersExactPage()
+    {
+        PageNameIndex index = createIndex( new String[] { "Foobar", "Foobars" }, true );
+
+        assertEquals( "Foobar", index.getFinalPageName( "Foobar" ) );
+        assertEquals( "Foobars", index.getFinalPageName( "Foobars" ) );
+    }
+
+    public void testAddAndRemove()
+    {
+        PageNameIndex index = createIndex( new String[] { "Foobar" }, true );
+
+        index.addPage( "Foobars" );
+        assertEquals( "Foobars", index.getFinalPageName( "Foobars" ) );
+
+        index.removePage( "Foobars" );
+        assertEquals( "Foobar", index.getFinalPageName( "Foobars" ) );
+
+        index.removePage( "Foobar" );
+        assertNull( index.getFinalPageName( "Foobar" ) );
+        assertNull( index.getFinalPageName( "Foobars" ) );
+    }
+
+    public void testBatch()
+    {
+        PageNameIndex index = createIndex( new String[] { "Foobar" }, true );
+
+        Map result = index.getFinalPageNames( Arrays.asList( new String[] { "Foobars", "Nothing" } ) );
+
+        assertEquals( 1, result.size() );
+        assertEquals( "Foobar", result.get( "Foobars" ) );
+    }
+}
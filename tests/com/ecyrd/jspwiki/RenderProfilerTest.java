@@ -0,0 +1,164 @@
+package com.ecyrd.jspwiki;
+
+import junit.framework.*;
+import java.io.*;
+import java.util.*;
+
+import com.ecyrd.jspwiki.providers.*;
+
+public class RenderProfilerTest extends TestCase
+{
+    Properties props = new Properties();
+
+    TestEngine m_engine;
+
+    public RenderProfilerTest( String s )
+    {
+        super( s );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( RenderProfilerTest.class );
+    }
+
+    public void setUp()
+        throws Exception
+    {
+        props.load( TestEngine.findTestProperties() );
+        props.setProperty( RenderProfiler.PROP_SAMPLERATE, "1" );
+
+        TestEngine.emptyWorkDir();
+        m_engine = new TestEngine(props);
+    }
+
+    public void tearDown()
+    {
+        String files = props.getProperty( FileSystemProvider.PROP_PAGEDIR );
+
+        if( files != null )
+        {
+            TestEngine.deleteAll( new File( files ) );
+        }
+
+        TestEngine.emptyWorkDir();
+    }
+
+    private List getPhases()
+    {
+        return Arrays.asList( m_engine.getRenderProfiler().getPhases() );
+    }
+
+    public void testPhases()
+        throws Exception
+    {
+        m_engine.saveText( "Foobar", "[Barfoo] [{SamplePlugin text=foo}]" );
+
+        RenderProfiler profiler = m_engine.getRenderProfiler();
+        profiler.reset();
+
+        m_engine.getHTML( "Foobar" );
+
+        List phases = getPhases();
+
+        assertTrue( phases.toString(), phases.contains( RenderProfiler.PHASE_TOTAL ) );
+        assertTrue( phases.toString(), phases.contains( RenderProfiler.PHASE_PARSE ) );
+        assertTrue( phases.toString(), phases.contains( RenderProfiler.PHASE_RENDER ) );
+        assertTrue( phases.toString(), phases.contains( RenderProfiler.PHASE_LINKS ) );
+        assertTrue( phases.toString(),
+                    phases.contains( RenderProfiler.PHASE_PLUGIN+"com.ecyrd.jspwiki.plugin.SamplePlugin" ) );
+
+        assertEquals( 1, profiler.getSampledRenders() );
+        assertTrue( profiler.getPhaseSummary( RenderProfiler.PHASE_TOTAL ),
+                    profiler.getPhaseSummary( RenderProfiler.PHASE_TOTAL ).startsWith( "total: count=1," ) );
+    }
+
+    public void testNestedRendersCountOnce()
+        throws Exception
+    {
+        m_engine.saveText( "Barfoo", "Inserted" );
+        m_engine.saveText( "Foobar", "[{InsertPage page=Barfoo}]" );
+
+        RenderProfiler profiler = m_engine.getRenderProfiler();
+        profiler.reset();
+
+        m_engine.getHTML( "Foobar" );
+
+        assertEquals( 1, profiler.getSampledRenders() );
+        assertTrue( getPhases().toString(),
+                    getPhases().contains( RenderProfiler.PHASE_PLUGIN+"com.ecyrd.jspwiki.plugin.InsertPage" ) );
+    }
+
+    public void testSampling()
+        throws Exception
+    {
+        m_engine.saveText( "Foobar", "Text" );
+
+        RenderProfiler profiler = m_engine.getRenderProfiler();
+        profiler.reset();
+        profiler.setSampleRate( 3 );
+
+        for( int i = 0; i < 6; i++ )
+        {
+            m_engine.getHTML( "Foobar" );
+        }
+
+        assertEquals( 2, profiler.getSampledRenders() );
+    }
+
+    public void testDisabled()
+        throws Exception
+    {
+        m_engine.saveText( "Foobar", "Text" );
+
+        RenderProfiler profiler = m_engine.getRenderProfiler();
+        profiler.reset();
+        profiler.setSampleRate( 0 );
+
+        m_engine.getHTML( "Foobar" );
+
+        assertEquals( 0, profiler.getSampledRenders() );
+        assertEquals( 0, profiler.getPhases().length );
+        assertEquals( "Render profiling is off.",
+                      m_engine.textToHTML( new WikiContext( m_engine, new WikiPage("Test") ),
+                                           "[{$renderprofile}]" ) );
+    }
+
+    public void testVariable()
+        throws Exception
+    {
+        m_engine.saveText( "Foobar", "[{$renderprofile}]" );
+
+        m_engine.getHTML( "Foobar" );
+
+        String html = m_engine.getHTML( "Foobar" );
+
+        assertTrue( html, html.startsWith( "Sampled renders: 2 (one in 1)<br />" ) );
+        assertTrue( html, html.indexOf( "total: count=1," ) != -1 );
+    }
+
+    /**
+     *  A restarted engine takes over the MBean; shutting down the old one
+     *  must not unregister the new one.
+     */
+    public void testShutdownUnregisters()
+        throws Exception
+    {
+        RenderProfiler old = m_engine.getRenderProfiler();
+
+        assertTrue( "registered", old.isRegistered() );
+
+        TestEngine engine = new TestEngine( props );
+        RenderProfiler profiler = engine.getRenderProfiler();
+
+        assertFalse( "old replaced", old.isRegistered() );
+
+        m_engine.shutdown();
+
+        assertTrue( "new still registered", profiler.isRegistered() );
+
+        engine.shutdown();
+
+        assertFalse( "unregistered", profiler.isRegistered() );
+    }
+}
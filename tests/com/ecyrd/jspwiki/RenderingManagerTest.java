@@ -0,0 +1,469 @@
+package com.ecyrd.jspwiki;
+
+import junit.framework.*;
+import java.io.*;
+import java.util.*;
+
+import com.ecyrd.jspwiki.providers.*;
+import com.ecyrd.jspwiki.plugin.SlowPlugin;
+
+public class RenderingManagerTest extends TestCase
+{
+    Properties props = new Properties();
+
+    TestEngine m_engine;
+
+    public RenderingManagerTest( String s )
+    {
+        super( s );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( RenderingManagerTest.class );
+    }
+
+    public void setUp()
+        throws Exception
+    {
+        props.load( TestEngine.findTestProperties() );
+
+        TestEngine.emptyWorkDir();
+        m_engine = new TestEngine(props);
+    }
+
+    public void tearDown()
+    {
+        String files = props.getProperty( FileSystemProvider.PROP_PAGEDIR );
+
+        if( files != null )
+        {
+            TestEngine.deleteAll( new File( files ) );
+        }
+
+        TestEngine.emptyWorkDir();
+    }
+
+    public void testCachedCopyIsSame()
+        throws Exception
+    {
+        m_engine.saveText( "Foobar", "Some __bold__ text." );
+
+        String first  = m_engine.getHTML( "Foobar" );
+        String second = m_engine.getHTML( "Foobar" );
+
+        assertEquals( first, second );
+        assertTrue( m_engine.getRenderingManager().getCacheInfo(),
+                    m_engine.getRenderingManager().getCacheInfo().indexOf("hits: 1") != -1 );
+    }
+
+    public void testSaveFlushes()
+        throws Exception
+    {
+        m_engine.saveText( "Foobar", "First" );
+
+        assertEquals( "First\n", m_engine.getHTML( "Foobar" ) );
+
+        m_engine.saveText( "Foobar", "Second" );
+
+        assertEquals( "Second\n", m_engine.getHTML( "Foobar" ) );
+    }
+
+    /**
+     *  Viewing an old version must not push the latest one out of the cache.
+     */
+    public void testOldVersionNotCached()
+        throws Exception
+    {
+        props.setProperty( PageManager.PROP_PAGEPROVIDER, "VersioningFileProvider" );
+        m_engine = new TestEngine( props );
+
+        m_engine.saveText( "Foobar", "First" );
+        m_engine.saveText( "Foobar", "Second" );
+
+        assertEquals( "Second\n", m_engine.getHTML( "Foobar" ) );
+        assertEquals( "First\n", m_engine.getHTML( "Foobar", 1 ) );
+        assertEquals( "Second\n", m_engine.getHTML( "Foobar" ) );
+
+        assertTrue( m_engine.getRenderingManager().getCacheInfo(),
+                    m_engine.getRenderingManager().getCacheInfo().indexOf("hits: 1") != -1 );
+    }
+
+    public void testCreatingLinkedPageFlushes()
+        throws Exception
+    {
+        m_engine.saveText( "Foobar", "[Barfoo]" );
+
+        String html = m_engine.getHTML( "Foobar" );
+
+        assertTrue( "no edit link: "+html, html.indexOf("editpage") != -1 );
+
+        m_engine.saveText( "Barfoo", "Exists now" );
+
+        html = m_engine.getHTML( "Foobar" );
+
+        assertTrue( "edit link still there: "+html, html.indexOf("editpage") == -1 );
+        assertTrue( "no view link: "+html, html.indexOf("wikipage") != -1 );
+    }
+
+    public void testDeletingLinkedPageFlushes()
+        throws Exception
+    {
+        m_engine.saveText( "Barfoo", "Exists" );
+        m_engine.saveText( "Foobar", "[Barfoo]" );
+
+        String html = m_engine.getHTML( "Foobar" );
+
+        assertTrue( "no view link: "+html, html.indexOf("wikipage") != -1 );
+
+        m_engine.deletePage( "Barfoo" );
+
+        html = m_engine.getHTML( "Foobar" );
+
+        assertTrue( "no edit link: "+html, html.indexOf("editpage") != -1 );
+    }
+
+    public void testMetadataRestored()
+        throws Exception
+    {
+        m_engine.saveText( "Foobar", "[{SET foo=bar}]Text" );
+
+        m_engine.getHTML( "Foobar" );
+
+        WikiPage page = m_engine.getPage( "Foobar" );
+        page.invalidateMetadata();
+
+        WikiContext context = new WikiContext( m_engine, page );
+        m_engine.getHTML( context, page );
+
+        assertEquals( "bar", page.getAttribute("foo") );
+    }
+
+    public void testVariablesNotCached()
+        throws Exception
+    {
+        m_engine.saveText( "Foobar", "[{$foo}]" );
+
+        WikiPage page = m_engine.getPage( "Foobar" );
+
+        WikiContext context = new WikiContext( m_engine, page );
+        context.setVariable( "foo", "first" );
+
+        assertEquals( "first\n", m_engine.getHTML( context, page ) );
+
+        context = new WikiContext( m_engine, page );
+        context.setVariable( "foo", "second" );
+
+        assertEquals( "second\n", m_engine.getHTML( context, page ) );
+    }
+
+    public void testDocumentReusedWithVariables()
+        throws Exception
+    {
+        m_engine.saveText( "Foobar", "[{$pagename}]" );
+
+        assertEquals( "Foobar\n", m_engine.getHTML( "Foobar" ) );
+        assertEquals( "Foobar\n", m_engine.getHTML( "Foobar" ) );
+
+        assertTrue( m_engine.getRenderingManager().getCacheInfo(),
+                    m_engine.getRenderingManager().getCacheInfo().indexOf("hits: 1") != -1 );
+    }
+
+    public void testStreamingSame()
+        throws Exception
+    {
+        m_engine.saveText( "Foobar", "!Heading\n\nSome __bold__ text, [{$pagename}] and [Nolink]." );
+
+        WikiPage page = m_engine.getPage( "Foobar" );
+
+        StringWriter out = new StringWriter();
+        m_engine.getHTML( new WikiContext( m_engine, page ), page, out );
+
+        assertEquals( m_engine.getHTML( "Foobar" ), out.toString() );
+
+        out = new StringWriter();
+        m_engine.textToHTML( new WikiContext( m_engine, page ), "__bold__ [Nolink]", out );
+
+        assertEquals( m_engine.textToHTML( new WikiContext( m_engine, page ), "__bold__ [Nolink]" ),
+                      out.toString() );
+    }
+
+    public void testStreamingFilter()
+        throws Exception
+    {
+        m_engine.getFilterManager().addPageFilter( new com.ecyrd.jspwiki.filters.FilterManagerTest.UpperCaseFilter(), 0 );
+
+        m_engine.saveText( "Foobar", "[{$pagename}] text" );
+
+        WikiPage page = m_engine.getPage( "Foobar" );
+
+        StringWriter out = new StringWriter();
+        m_engine.getHTML( new WikiContext( m_engine, page ), page, out );
+
+        assertEquals( "FOOBAR TEXT\n", out.toString() );
+    }
+
+    public void testCacheDisabled()
+        throws Exception
+    {
+        props.setProperty( RenderingManager.PROP_USECACHE, "false" );
+        m_engine = new TestEngine( props );
+
+        m_engine.saveText( "Foobar", "Text" );
+
+        assertEquals( "Text\n", m_engine.getHTML( "Foobar" ) );
+        assertEquals( "Text\n", m_engine.getHTML( "Foobar" ) );
+        assertEquals( "Rendering cache is disabled.",
+                      m_engine.getRenderingManager().getCacheInfo() );
+    }
+
+    /**
+     *  Checks that rendering the page in sections gives the same result
+     *  as rendering the whole text at once.
+     */
+    private void assertSectionsSame( String src )
+        throws Exception
+    {
+        m_engine.saveText( "Foobar", src );
+
+        WikiPage page = m_engine.getPage( "Foobar" );
+        String   text = m_engine.getPureText( "Foobar", WikiProvider.LATEST_VERSION );
+
+        String whole = m_engine.textToHTML( new WikiContext( m_engine, page ), text );
+
+        assertEquals( src, whole, m_engine.getHTML( "Foobar" ) );
+    }
+
+    public void testSectionsSameAsWhole()
+        throws Exception
+    {
+        assertSectionsSame( "First\n----\nSecond\n----\nThird" );
+        assertSectionsSame( "!Heading\n\nText\n\n!!Another\nMore text" );
+        assertSectionsSame( "Para\n\n----\n\nPara\n\n----" );
+        assertSectionsSame( "* list\n* list\n----\n# list\n----\n" );
+        assertSectionsSame( "|table|row\n----\n|another|table\n" );
+        assertSectionsSame( "__bold\n----\nstill bold__\n----\nplain" );
+        assertSectionsSame( "{{{\n----\n!Not a heading\n}}}\n----\nafter" );
+        assertSectionsSame( "%%small\n----\n!Heading\n%%\n----\nafter" );
+        assertSectionsSame( "[Link\n----\nText]\n----\n[Link]" );
+        assertSectionsSame( "Text ---- not a break\n--------\nRest" );
+        assertSectionsSame( ";term:definition\n----\n!Heading\ntext" );
+        assertSectionsSame( "----FooBar\n----\n!Heading ''italic\n''text''\n" );
+    }
+
+    public void testSectionMetadata()
+        throws Exception
+    {
+        m_engine.saveText( "Foobar", "[{SET foo=first}]\n----\n[{SET bar=second}]\n----\n[{SET foo=third}]" );
+
+        WikiPage page = m_engine.getPage( "Foobar" );
+        page.invalidateMetadata();
+
+        m_engine.getHTML( new WikiContext( m_engine, page ), page );
+
+        assertEquals( "third", page.getAttribute("foo") );
+        assertEquals( "second", page.getAttribute("bar") );
+    }
+
+    public void testSectionsReused()
+        throws Exception
+    {
+        m_engine.saveText( "Foobar", "!Notes\nOne\n----\nTwo\n----\nThree" );
+        m_engine.getHTML( "Foobar" );
+
+        RenderingManager mgr = m_engine.getRenderingManager();
+
+        assertTrue( mgr.getCacheInfo(), mgr.getCacheInfo().indexOf("sections reused: 0, parsed: 4") != -1 );
+
+        m_engine.saveText( "Foobar", "!Notes\nOne\n----\nTwo\n----\nThree and four" );
+
+        String html = m_engine.getHTML( "Foobar" );
+
+        assertTrue( mgr.getCacheInfo(), mgr.getCacheInfo().indexOf("sections reused: 3, parsed: 5") != -1 );
+        assertTrue( html, html.indexOf("Three and four") != -1 );
+    }
+
+    public void testSectionsDisabled()
+        throws Exception
+    {
+        props.setProperty( RenderingManager.PROP_USESECTIONS, "false" );
+        m_engine = new TestEngine( props );
+
+        m_engine.saveText( "Foobar", "One\n----\nTwo" );
+
+        assertEquals( "One\n<hr />\nTwo\n", m_engine.getHTML( "Foobar" ) );
+        assertEquals( -1, m_engine.getRenderingManager().getCacheInfo().indexOf("sections") );
+    }
+
+    public void testCacheablePluginCached()
+        throws Exception
+    {
+        m_engine.saveText( "Foobar", "[{INSERT IndexPlugin}]" );
+
+        String first  = m_engine.getHTML( "Foobar" );
+        String second = m_engine.getHTML( "Foobar" );
+
+        assertEquals( first, second );
+        assertTrue( m_engine.getRenderingManager().getCacheInfo(),
+                    m_engine.getRenderingManager().getCacheInfo().indexOf("hits: 1") != -1 );
+
+        //
+        //  The whole page came from the cache, so the plugin was executed once.
+        //
+        assertEquals( "Plugin cache hits: 0, misses: 1",
+                      m_engine.getPluginManager().getCacheInfo() );
+    }
+
+    public void testCacheablePluginInvalidated()
+        throws Exception
+    {
+        m_engine.saveText( "Foobar", "[{INSERT IndexPlugin}]" );
+
+        String html = m_engine.getHTML( "Foobar" );
+
+        assertTrue( html, html.indexOf("Barfoo") == -1 );
+
+        m_engine.saveText( "Barfoo", "New page" );
+
+        html = m_engine.getHTML( "Foobar" );
+
+        assertTrue( html, html.indexOf("Barfoo") != -1 );
+    }
+
+    private String stream( String name )
+        throws Exception
+    {
+        WikiPage page = m_engine.getPage( name );
+
+        StringWriter out = new StringWriter();
+        m_engine.getHTML( new WikiContext( m_engine, page ), page, out );
+
+        return out.toString();
+    }
+
+    /**
+     *  Streamed pages with cacheable plugins get their HTML cached, also
+     *  after the plugin output has changed.
+     */
+    public void testStreamingCacheablePlugin()
+        throws Exception
+    {
+        m_engine.saveText( "Foobar", "[{INSERT IndexPlugin}]" );
+
+        String first = stream( "Foobar" );
+
+        assertEquals( first, stream( "Foobar" ) );
+        assertEquals( first, stream( "Foobar" ) );
+
+        assertEquals( "Plugin cache hits: 1, misses: 1",
+                      m_engine.getPluginManager().getCacheInfo() );
+
+        m_engine.saveText( "Barfoo", "New page" );
+
+        String html = stream( "Foobar" );
+
+        assertTrue( html, html.indexOf("Barfoo") != -1 );
+        assertEquals( html, stream( "Foobar" ) );
+
+        assertEquals( "Plugin cache hits: 1, misses: 2",
+                      m_engine.getPluginManager().getCacheInfo() );
+    }
+
+    public void testReferencePluginInvalidated()
+        throws Exception
+    {
+        m_engine.saveText( "Foobar", "[{INSERT ReferringPagesPlugin}]" );
+
+        String html = m_engine.getHTML( "Foobar" );
+
+        assertTrue( html, html.indexOf("Barfoo") == -1 );
+
+        m_engine.saveText( "Barfoo", "[Foobar]" );
+
+        html = m_engine.getHTML( "Foobar" );
+
+        assertTrue( html, html.indexOf("Barfoo") != -1 );
+    }
+
+    public void testConcurrentPlugins()
+        throws Exception
+    {
+        SlowPlugin.reset();
+
+        //  Each plugin waits until all three have been running at once.
+        m_engine.saveText( "Foobar", "[{SlowPlugin text=one together=3}] "+
+                                     "[{SlowPlugin text=two together=3}] "+
+                                     "[{SlowPlugin text=three together=3}]" );
+
+        String html = m_engine.getHTML( "Foobar" );
+
+        assertEquals( "one two three\n", html );
+        assertEquals( "plugins run at once", 3, SlowPlugin.getMaxRunning() );
+    }
+
+    private static String repeat( String s, int times )
+    {
+        StringBuffer sb = new StringBuffer();
+
+        for( int i = 0; i < times; i++ ) sb.append( s );
+
+        return sb.toString();
+    }
+
+    public void testOutputBudget()
+        throws Exception
+    {
+        props.setProperty( TranslatorReader.PROP_MAXOUTPUTSIZE, "2000" );
+        m_engine = new TestEngine( props );
+
+        m_engine.saveText( "Foobar", "[{ALLOW view Admin}] <b>\n"+repeat( "*", 3000 )+" deep" );
+
+        //  Saving looks for the links, which goes over the budget too.
+        m_engine.getRenderProfiler().reset();
+
+        String html = m_engine.getHTML( "Foobar" );
+
+        assertTrue( html, html.startsWith( "<div class=\"error\">" ) );
+        assertTrue( html, html.indexOf( "<pre>[{ALLOW view Admin}] &lt;b&gt;" ) != -1 );
+        assertTrue( html, html.endsWith( "\n...</pre>\n" ) );
+        assertEquals( 1, m_engine.getRenderProfiler().getRendersOverBudget() );
+
+        assertNotNull( "access rules lost", m_engine.getPage( "Foobar" ).getAcl() );
+    }
+
+    public void testTimeBudget()
+        throws Exception
+    {
+        props.setProperty( TranslatorReader.PROP_MAXTIME, "100" );
+        m_engine = new TestEngine( props );
+
+        String text = "[{SlowPlugin text=one delay=300}]\n"+repeat( "More text. ", 200 );
+
+        String html = m_engine.textToHTML( new WikiContext( m_engine, new WikiPage("Foobar") ), text );
+
+        assertTrue( html, html.startsWith( "<div class=\"error\">" ) );
+        assertTrue( html, html.indexOf( "<pre>[{SlowPlugin" ) != -1 );
+        assertEquals( 1, m_engine.getRenderProfiler().getRendersOverBudget() );
+    }
+
+    public void testLongLineLookahead()
+        throws Exception
+    {
+        m_engine.saveText( "Foobar", "%%foo "+repeat( "x", 20*1024 ) );
+
+        String html = m_engine.getHTML( "Foobar" );
+
+        assertTrue( html, html.startsWith( "<div class=\"error\">" ) );
+    }
+
+    public void testWithinBudget()
+        throws Exception
+    {
+        m_engine.saveText( "Foobar", repeat( "Some text.\n", 1000 ) );
+
+        String html = m_engine.getHTML( "Foobar" );
+
+        assertTrue( html.startsWith( "Some text." ) );
+        assertEquals( 0, m_engine.getRenderProfiler().getRendersOverBudget() );
+    }
+}
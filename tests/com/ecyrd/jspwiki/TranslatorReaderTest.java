@@ -313,6 +313,21 @@ public class TranslatorReaderTest extends TestCase
                       translate(src) );
     }
 
+    /** The old regexp code gives the same results. */
+    public void testHyperlinksCCRegexpScanner()
+        throws Exception
+    {
+        newPage("HyperLink");
+
+        props.setProperty( TranslatorReader.PROP_USEREGEXPSCANNER, "true" );
+        TestEngine testEngine2 = new TestEngine( props );
+
+        String src = "This should be a HyperLink, and ~NotThis, and http://www.foo.bar/ANewHope/";
+
+        assertEquals( "This should be a <a class=\"wikipage\" href=\"Wiki.jsp?page=HyperLink\">HyperLink</a>, and NotThis, and <a class=\"external\" href=\"http://www.foo.bar/ANewHope/\">http://www.foo.bar/ANewHope/</a>",
+                      translate(testEngine2, src) );
+    }
+
     /** Hyperlinks inside URIs. */
 
     public void testHyperlinksCCURLs()
@@ -2020,6 +2035,283 @@ public class TranslatorReaderTest extends TestCase
         "author: [Asser], [Ebu], [JanneJalkanen], [Jarmo|mailto:jarmo@regex.com.au]\n";
     
 
+    private WikiDocument parse( String src )
+        throws IOException
+    {
+        WikiContext context = new WikiContext( testEngine,
+                                               new WikiPage(PAGE_NAME) );
+        TranslatorReader r = new TranslatorReader( context,
+                                                   new StringReader(src) );
+
+        return r.parse();
+    }
+
+    private String render( WikiContext context, WikiDocument doc )
+        throws IOException
+    {
+        TranslatorReader r = new TranslatorReader( context,
+                                                   new StringReader("") );
+        StringWriter out = new StringWriter();
+
+        r.render( doc, out );
+
+        return out.toString();
+    }
+
+    private String render( WikiDocument doc )
+        throws IOException
+    {
+        return render( new WikiContext( testEngine, new WikiPage(PAGE_NAME) ), doc );
+    }
+
+    public void testParseAndRenderSame()
+        throws Exception
+    {
+        newPage("HyperLink");
+
+        String src = "!Title\n[HyperLink] and [nolink] and [here|HyperLink#heading] "+
+                     "and HyperLink and [{$pagename}] and [http://www.ecyrd.com/]\n\n"+
+                     "* [{INSERT com.ecyrd.jspwiki.plugin.SamplePlugin WHERE text=foo}]";
+
+        assertEquals( translate(src), render( parse(src) ) );
+    }
+
+    public void testParseLinksResolvedOnRender()
+        throws Exception
+    {
+        WikiDocument doc = parse( "[HyperLink]" );
+
+        assertEquals( "<a class=\"editpage\" title=\"Create 'HyperLink'\" href=\"Edit.jsp?page=HyperLink\">HyperLink</a>",
+                      render( doc ) );
+
+        newPage("HyperLink");
+
+        assertEquals( "<a class=\"wikipage\" href=\"Wiki.jsp?page=HyperLink\">HyperLink</a>",
+                      render( doc ) );
+    }
+
+    public void testParseVariablesResolvedOnRender()
+        throws Exception
+    {
+        WikiDocument doc = parse( "[{$foo}]" );
+
+        assertFalse( doc.isCacheable() );
+        assertTrue( doc.isReusable() );
+
+        WikiContext context = new WikiContext( testEngine, new WikiPage(PAGE_NAME) );
+        context.setVariable( "foo", "first" );
+
+        assertEquals( "first", render( context, doc ) );
+
+        context.setVariable( "foo", "second" );
+
+        assertEquals( "second", render( context, doc ) );
+    }
+
+    /**
+     *  Text which looks like a node placeholder must not pull in the node,
+     *  but the characters must still be shown.
+     */
+    public void testParsePlaceholderInText()
+        throws Exception
+    {
+        String src = "a\uE0000\uE001b [{INSERT com.ecyrd.jspwiki.plugin.SamplePlugin WHERE text=foo}]";
+
+        assertEquals( "a&#57344;0&#57345;b foo", render( parse(src) ) );
+    }
+
+    public void testPlaceholderInTranslate()
+        throws Exception
+    {
+        assertEquals( "a&#57344;0&#57345;b", translate( "a\uE0000\uE001b" ) );
+    }
+
+    public void testPlaceholderInLinkText()
+        throws Exception
+    {
+        String src = "[a\uE0000\uE001b|http://www.example.com/]";
+
+        assertEquals( "<a class=\"external\" href=\"http://www.example.com/\">a&#57344;0&#57345;b</a>",
+                      render( parse(src) ) );
+    }
+
+    public void testParseHeadings()
+        throws Exception
+    {
+        WikiDocument doc = parse( "!!!Big\n!Small\n" );
+
+        List headings = doc.getHeadings();
+
+        assertEquals( 2, headings.size() );
+        assertEquals( "Big", ((TranslatorReader.Heading)headings.get(0)).m_titleText );
+        assertEquals( "Small", ((TranslatorReader.Heading)headings.get(1)).m_titleText );
+        assertTrue( doc.isCacheable() );
+    }
+
+    public void testParseMetadata()
+        throws Exception
+    {
+        WikiDocument doc = parse( "[{SET foo=bar}]" );
+
+        WikiPage page = new WikiPage( PAGE_NAME );
+
+        doc.applyMetadata( page );
+
+        assertEquals( "bar", page.getAttribute("foo") );
+    }
+
+    public void testReset()
+        throws Exception
+    {
+        newPage("HyperLink");
+
+        String src1 = "__bold [HyperLink]\n!Heading\n{{{ code";
+        String src2 = "!Heading\n[nolink] and ''italic''";
+
+        WikiContext context = new WikiContext( testEngine, new WikiPage(PAGE_NAME) );
+        TranslatorReader r = new TranslatorReader( context, new StringReader(src1) );
+
+        final ArrayList links = new ArrayList();
+        r.addLocalLinkHook( new StringTransmutator()
+            {
+                public String mutate( WikiContext ctx, String text )
+                {
+                    links.add( text );
+                    return text;
+                }
+            } );
+
+        assertEquals( translate(src1), FileUtil.readContents( r ) );
+        assertEquals( 1, links.size() );
+
+        r.reset( new WikiContext( testEngine, new WikiPage(PAGE_NAME) ),
+                 new StringReader(src2) );
+
+        assertEquals( translate(src2), FileUtil.readContents( r ) );
+        assertEquals( "hook not removed", 1, links.size() );
+    }
+
+    public void testTranslateToWriter()
+        throws Exception
+    {
+        String src = "!Heading\n* list\n* __bold\n{{{\ncode";
+
+        WikiContext context = new WikiContext( testEngine, new WikiPage(PAGE_NAME) );
+        TranslatorReader r = new TranslatorReader( context, new StringReader(src) );
+        StringWriter out = new StringWriter();
+
+        r.translate( out );
+
+        assertEquals( translate(src), out.toString() );
+    }
+
+    public void testReadArray()
+        throws Exception
+    {
+        String src = "!Heading\n* list\n* __bold\n{{{\ncode";
+
+        WikiContext context = new WikiContext( testEngine, new WikiPage(PAGE_NAME) );
+        TranslatorReader r = new TranslatorReader( context, new StringReader(src) );
+        StringWriter out = new StringWriter();
+        char[] buf = new char[7];
+        int len;
+
+        while( (len = r.read( buf, 0, buf.length )) != -1 )
+        {
+            out.write( buf, 0, len );
+        }
+
+        assertEquals( translate(src), out.toString() );
+    }
+
+    public void testScanLinks()
+        throws Exception
+    {
+        newPage("HyperLink");
+
+        String src = "[HyperLink] and [foo bar] and [text|Some Page#section] and "+
+                     "[{$pagename}] and [http://www.ecyrd.com/] and "+
+                     "[{INSERT com.ecyrd.jspwiki.plugin.SamplePlugin WHERE text=[NotLink]}]\n"+
+                     "{{{[NotLink]}}} [[NotLink] ~NotLink [HyperLink]";
+
+        WikiContext context = new WikiContext( testEngine, new WikiPage(PAGE_NAME) );
+        TranslatorReader r = new TranslatorReader( context, new StringReader(src) );
+
+        final ArrayList links = new ArrayList();
+        r.addLocalLinkHook( new StringTransmutator()
+            {
+                public String mutate( WikiContext ctx, String text )
+                {
+                    links.add( text );
+                    return text;
+                }
+            } );
+
+        r.scanLinks();
+
+        assertEquals( links.toString(), 4, links.size() );
+        assertEquals( "HyperLink", links.get(0) );
+        assertEquals( "FooBar", links.get(1) );
+        assertEquals( "SomePage", links.get(2) );
+        assertEquals( "HyperLink", links.get(3) );
+    }
+
+    private String toPlainText( String src, int maxLength )
+        throws Exception
+    {
+        WikiContext context = new WikiContext( testEngine, new WikiPage(PAGE_NAME) );
+        TranslatorReader r = new TranslatorReader( context, new StringReader(src) );
+
+        return r.toPlainText( maxLength );
+    }
+
+    public void testPlainText()
+        throws Exception
+    {
+        newPage("HyperLink");
+
+        String src = "__Bold__ and ''italic'' <b>\"tag\"</b> [HyperLink] and [text|Some Page] "+
+                     "[{$pagename}][{INSERT com.ecyrd.jspwiki.plugin.SamplePlugin WHERE text=foo}]";
+
+        assertEquals( "Bold and italic <b>\"tag\"</b> HyperLink and text ", toPlainText( src, 0 ) );
+    }
+
+    public void testPlainTextStructure()
+        throws Exception
+    {
+        String src = "!!Title\n* one\n* two\n{{{<pre>}}}";
+
+        String text = toPlainText( src, 0 );
+
+        assertTrue( text, text.startsWith( "Title\n-----\n" ) );
+        assertTrue( text, text.indexOf( "-  one\n" ) != -1 );
+        assertTrue( text, text.indexOf( "-  two\n" ) != -1 );
+        assertTrue( text, text.indexOf( "<pre>" ) != -1 );
+    }
+
+    public void testPlainTextLimit()
+        throws Exception
+    {
+        StringBuffer src = new StringBuffer();
+
+        for( int i = 0; i < 1000; i++ ) src.append( "__Some__ text. " );
+
+        String text = toPlainText( src.toString(), 20 );
+
+        assertEquals( "Some text. Some text", text );
+    }
+
+    public void testPlainTextMetadata()
+        throws Exception
+    {
+        WikiContext context = new WikiContext( testEngine, new WikiPage(PAGE_NAME) );
+        TranslatorReader r = new TranslatorReader( context,
+                                                   new StringReader("[{SET foo=bar}]Text") );
+
+        assertEquals( "Text", r.toPlainText( 0 ) );
+        assertEquals( "bar", context.getPage().getAttribute("foo") );
+    }
+
     public static Test suite()
     {
         return new TestSuite( TranslatorReaderTest.class );
@@ -161,6 +161,38 @@ public class WikiEngineTest extends TestCase
         assertEquals( "singular mistake", "Foobars",
                       m_engine.getFinalPageName( "Foobar" ) );
     }
+
+    public void testFinalPageNames()
+        throws Exception
+    {
+        m_engine.saveText( "Foobar", "1" );
+
+        ArrayList names = new ArrayList();
+        names.add( "Foobar" );
+        names.add( "Foobars" );
+        names.add( "NoSuchPage" );
+        names.add( "RecentChanges" );
+
+        Map result = m_engine.getFinalPageNames( names );
+
+        assertEquals( "Foobar", result.get( "Foobar" ) );
+        assertEquals( "Foobar", result.get( "Foobars" ) );
+        assertEquals( "RecentChanges", result.get( "RecentChanges" ) );
+        assertFalse( "NoSuchPage", result.containsKey( "NoSuchPage" ) );
+    }
+
+    public void testFinalPageNameAfterDelete()
+        throws Exception
+    {
+        m_engine.saveText( "Foobar", "1" );
+
+        assertEquals( "Foobar", m_engine.getFinalPageName( "Foobar" ) );
+
+        m_engine.deletePage( "Foobar" );
+
+        assertNull( "still there", m_engine.getFinalPageName( "Foobar" ) );
+        assertNull( "plural still there", m_engine.getFinalPageName( "Foobars" ) );
+    }
     
     public void testPutPage()
         throws Exception
@@ -2,6 +2,7 @@
 package com.ecyrd.jspwiki.filters;
 
 import junit.framework.*;
+import java.io.*;
 import java.util.*;
 
 import org.apache.log4j.*;
@@ -68,6 +69,82 @@ public class FilterManagerTest extends TestCase
         assertEquals("no blatblaa", "5", p.getProperty( "blatblaa" ) );
     }
 
+    public void testPostTranslateWriter()
+        throws Exception
+    {
+        FilterManager m = new FilterManager( engine, props );
+
+        m.addPageFilter( new UpperCaseFilter(), 0 );
+
+        WikiContext context = new WikiContext( engine, new WikiPage("Foobar") );
+        StringWriter out = new StringWriter();
+
+        Writer w = m.getPostTranslateWriter( context, out );
+
+        assertNotNull( "no writer", w );
+
+        w.write( "Some text" );
+        w.close();
+
+        assertEquals( "SOME TEXT", out.toString() );
+        assertEquals( "String", "SOME TEXT", m.doPostTranslateFiltering( context, "Some text" ) );
+    }
+
+    public void testPostTranslateWriterNotStreaming()
+        throws Exception
+    {
+        FilterManager m = new FilterManager( engine, props );
+
+        m.addPageFilter( new BasicPageFilter()
+            {
+                public String postTranslate( WikiContext ctx, String html )
+                {
+                    return html;
+                }
+            }, 0 );
+
+        WikiContext context = new WikiContext( engine, new WikiPage("Foobar") );
+
+        assertNull( m.getPostTranslateWriter( context, new StringWriter() ) );
+    }
+
+    /**
+     *  Uppercases the HTML, both on the fly and from a String.
+     */
+    public static class UpperCaseFilter
+        extends BasicPageFilter
+        implements StreamingPageFilter
+    {
+        public String postTranslate( WikiContext ctx, String html )
+        {
+            return html.toUpperCase();
+        }
+
+        public Writer postTranslate( WikiContext ctx, Writer out )
+        {
+            return new FilterWriter( out )
+            {
+                public void write( int c )
+                    throws IOException
+                {
+                    out.write( Character.toUpperCase( (char)c ) );
+                }
+
+                public void write( char[] buf, int off, int len )
+                    throws IOException
+                {
+                    for( int i = 0; i < len; i++ ) write( buf[off+i] );
+                }
+
+                public void write( String str, int off, int len )
+                    throws IOException
+                {
+                    write( str.toCharArray(), off, len );
+                }
+            };
+        }
+    }
+
     public static Test suite()
     {
         return new TestSuite( FilterManagerTest.class );
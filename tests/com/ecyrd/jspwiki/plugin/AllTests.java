@@ -20,6 +20,7 @@ public class AllTests extends TestCase
         suite.addTest( UndefinedPagesPluginTest.suite() );
         suite.addTest( TableOfContentsTest.suite() );
         suite.addTest( InsertPageTest.suite() );
+        suite.addTest( PluginCacheTest.suite() );
         
         return suite;
     }
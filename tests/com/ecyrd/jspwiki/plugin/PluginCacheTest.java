@@ -0,0 +1,124 @@
+
+package com.ecyrd.jspwiki.plugin;
+
+import junit.framework.*;
+import java.util.*;
+
+public class PluginCacheTest extends TestCase
+{
+    PluginCache m_cache;
+
+    public PluginCacheTest( String s )
+    {
+        super( s );
+    }
+
+    public void setUp()
+    {
+        m_cache = new PluginCache( 2 );
+    }
+
+    private PluginCache.Output put( String key, int invalidation, Collection dependencies )
+    {
+        return m_cache.put( key, key+" output", 0, invalidation, dependencies,
+                            null, m_cache.getChangeCount(), 0 );
+    }
+
+    public void testPutAndGet()
+    {
+        put( "a", 0, null );
+
+        PluginCache.Output output = m_cache.get( "a" );
+
+        assertNotNull( output );
+        assertEquals( "a output", output.getHTML() );
+        assertTrue( output.isValid() );
+        assertNull( m_cache.get( "b" ) );
+        assertEquals( "Plugin cache hits: 1, misses: 1", m_cache.getCacheInfo() );
+    }
+
+    public void testAnyPageChange()
+    {
+        PluginCache.Output any   = put( "any", CacheablePlugin.ANY_PAGE_CHANGE, null );
+        PluginCache.Output fixed = put( "fixed", 0, null );
+
+        m_cache.pageChanged( "Foobar" );
+
+        assertFalse( any.isValid() );
+        assertNull( m_cache.get( "any" ) );
+        assertTrue( fixed.isValid() );
+        assertNotNull( m_cache.get( "fixed" ) );
+    }
+
+    public void testDependencies()
+    {
+        PluginCache.Output output = put( "a", 0, Arrays.asList( new String[] { "Foobar" } ) );
+
+        m_cache.pageChanged( "Barfoo" );
+
+        assertTrue( output.isValid() );
+
+        m_cache.pageChanged( "Foobar" );
+
+        assertFalse( output.isValid() );
+        assertNull( m_cache.get( "a" ) );
+    }
+
+    public void testChangeDuringExecution()
+    {
+        long changeCount = m_cache.getChangeCount();
+
+        m_cache.pageChanged( "Foobar" );
+
+        PluginCache.Output output = m_cache.put( "a", "stale", 0,
+                                                 CacheablePlugin.ANY_PAGE_CHANGE, null,
+                                                 null, changeCount, 0 );
+
+        assertFalse( output.isValid() );
+        assertNull( m_cache.get( "a" ) );
+    }
+
+    public void testReferenceChangeNeedsReferenceManager()
+    {
+        PluginCache.Output output = put( "a", CacheablePlugin.REFERENCE_CHANGE, null );
+
+        assertFalse( output.isValid() );
+        assertNull( m_cache.get( "a" ) );
+    }
+
+    public void testLeastRecentlyUsedDropped()
+    {
+        put( "a", 0, null );
+        put( "b", 0, null );
+
+        m_cache.get( "a" );
+
+        put( "c", 0, null );
+
+        assertNotNull( m_cache.get( "a" ) );
+        assertNull( m_cache.get( "b" ) );
+        assertNotNull( m_cache.get( "c" ) );
+    }
+
+    public void testFlushAll()
+    {
+        PluginCache.Output output = put( "a", 0, null );
+
+        m_cache.flushAll();
+
+        assertFalse( output.isValid() );
+        assertNull( m_cache.get( "a" ) );
+    }
+
+    public void testSecondsUntilMidnight()
+    {
+        int seconds = PluginCache.getSecondsUntilMidnight();
+
+        assertTrue( "seconds "+seconds, seconds > 0 && seconds <= 24*60*60+3600 );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( PluginCacheTest.class );
+    }
+}
@@ -156,7 +156,75 @@ public class PluginManagerTest extends TestCase
                       res );
     }
 
-    
+    public void testExecuteLater()
+        throws Exception
+    {
+        PluginExecutor.Job job = manager.executeLater( context,
+                                                       "{SlowPlugin WHERE text=foobar}" );
+
+        assertNotNull( job );
+        assertEquals( "foobar", job.getResult( System.currentTimeMillis()+10000 ) );
+
+        //  The plugin got a copy of the context.
+        assertNull( context.getVariable( "slowplugin" ) );
+        assertNull( context.getPage().getAttribute( "slowplugin" ) );
+    }
+
+    public void testExecuteLaterInterrupted()
+        throws Exception
+    {
+        SlowPlugin.reset();
+
+        PluginExecutor.Job job = manager.executeLater( context,
+                                                       "{SlowPlugin WHERE text=foobar delay=60000}" );
+
+        assertTrue( "not started", SlowPlugin.waitForRunning( 1 ) );
+
+        try
+        {
+            job.getResult( System.currentTimeMillis()+100 );
+            fail( "Did not time out" );
+        }
+        catch( PluginException e )
+        {
+            // Expected.
+        }
+
+        assertTrue( "still running", SlowPlugin.waitForRunning( 0 ) );
+        assertEquals( "interrupted", 1, SlowPlugin.getInterrupted() );
+    }
+
+    public void testExecuteLaterNotConcurrent()
+        throws Exception
+    {
+        assertNull( manager.executeLater( context, "{SamplePlugin WHERE text=foobar}" ) );
+    }
+
+    public void testExecuteLaterDeadline()
+        throws Exception
+    {
+        PluginExecutor.Job job = manager.executeLater( context,
+                                                       "{SlowPlugin WHERE text=foobar delay=2000}" );
+
+        try
+        {
+            job.getResult( System.currentTimeMillis()-1 );
+            fail( "Did not time out" );
+        }
+        catch( PluginException e )
+        {
+            // Expected.
+        }
+    }
+
+    public void testExecuteLaterDisabled()
+        throws Exception
+    {
+        props.setProperty( PluginManager.PROP_THREADS, "0" );
+        manager = new PluginManager( props );
+
+        assertNull( manager.executeLater( context, "{SlowPlugin WHERE text=foobar}" ) );
+    }
 
     public static Test suite()
     {
@@ -0,0 +1,113 @@
+package com.ecyrd.jspwiki.plugin;
+
+import com.ecyrd.jspwiki.*;
+import java.util.*;
+
+/**
+ *  Returns its text after sleeping for a while.  Can be run
+ *  concurrently with other plugins.
+ *  <P>
+ *  Parameters: text - text to return, delay - milliseconds to sleep,
+ *  together - waits until this many SlowPlugins have run at the same time.
+ */
+public class SlowPlugin
+    implements ConcurrentPlugin
+{
+    /** How long to wait for the other plugins, in milliseconds. */
+    private static final long WAIT_TIME = 5000L;
+
+    private static int c_running     = 0;
+    private static int c_maxRunning  = 0;
+    private static int c_interrupted = 0;
+
+    public static synchronized void reset()
+    {
+        c_maxRunning  = c_running;
+        c_interrupted = 0;
+    }
+
+    /**
+     *  Returns the largest number of SlowPlugins which have been running
+     *  at the same time.
+     */
+    public static synchronized int getMaxRunning()
+    {
+        return c_maxRunning;
+    }
+
+    public static synchronized int getInterrupted()
+    {
+        return c_interrupted;
+    }
+
+    /**
+     *  Waits until the given number of SlowPlugins are running.
+     *
+     *  @return True, if they were.
+     */
+    public static synchronized boolean waitForRunning( int count )
+        throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + WAIT_TIME;
+
+        while( c_running != count && System.currentTimeMillis() < deadline )
+        {
+            SlowPlugin.class.wait( 100 );
+        }
+
+        return c_running == count;
+    }
+
+    private static synchronized void waitForMaxRunning( int count )
+        throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + WAIT_TIME;
+
+        while( c_maxRunning < count && System.currentTimeMillis() < deadline )
+        {
+            SlowPlugin.class.wait( 100 );
+        }
+    }
+
+    private static synchronized void changeRunning( int delta )
+    {
+        c_running += delta;
+        c_maxRunning = Math.max( c_maxRunning, c_running );
+
+        SlowPlugin.class.notifyAll();
+    }
+
+    public String execute( WikiContext context, Map params )
+        throws PluginException
+    {
+        int delay    = TextUtil.parseIntParameter( (String) params.get("delay"), 0 );
+        int together = TextUtil.parseIntParameter( (String) params.get("together"), 0 );
+
+        changeRunning( 1 );
+
+        try
+        {
+            waitForMaxRunning( together );
+
+            Thread.sleep( delay );
+        }
+        catch( InterruptedException e )
+        {
+            synchronized( SlowPlugin.class )
+            {
+                c_interrupted++;
+            }
+
+            throw new PluginException( "Interrupted" );
+        }
+        finally
+        {
+            changeRunning( -1 );
+        }
+
+        context.setVariable( "slowplugin", params.get("text") );
+        context.getPage().setAttribute( "slowplugin", params.get("text") );
+
+        return (String) params.get("text");
+    }
+}
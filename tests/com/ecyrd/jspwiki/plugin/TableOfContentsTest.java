@@ -7,6 +7,9 @@ package com.ecyrd.jspwiki.plugin;
 import java.util.Properties;
 
 import com.ecyrd.jspwiki.TestEngine;
+import com.ecyrd.jspwiki.TranslatorReader;
+import com.ecyrd.jspwiki.WikiContext;
+import com.ecyrd.jspwiki.WikiPage;
 
 import junit.framework.Test;
 import junit.framework.TestCase;
@@ -65,6 +68,39 @@ public class TableOfContentsTest extends TestCase
                       res );
     }
 
+    public void testHeadingsOfCachedParse()
+        throws Exception
+    {
+        String src="[{TableOfContents}]\n\n!!!Heading\n\n!Small";
+
+        testEngine.saveText( "Test", src );
+
+        String res = testEngine.getHTML( "Test" );
+
+        //
+        //  Translating the text directly has no parsed document to use.
+        //
+        WikiPage page = testEngine.getPage( "Test" );
+        String res2 = testEngine.textToHTML( new WikiContext( testEngine, page ), src );
+
+        assertEquals( res.substring( 0, res.indexOf("</div>") ),
+                      res2.substring( 0, res2.indexOf("</div>") ) );
+        assertTrue( res, res.indexOf( "href=\"Wiki.jsp?page=Test#section-Test-Small\">Small</a>" ) != -1 );
+    }
+
+    public void testDocumentVariableRestored()
+        throws Exception
+    {
+        testEngine.saveText( "Test", "[{TableOfContents}]\n\n!!!Heading" );
+
+        WikiPage page = testEngine.getPage( "Test" );
+        WikiContext context = new WikiContext( testEngine, page );
+
+        testEngine.getHTML( context, page );
+
+        assertNull( context.getVariable( TranslatorReader.VAR_DOCUMENT ) );
+    }
+
     public static Test suite()
     {
         return new TestSuite( TableOfContentsTest.class );
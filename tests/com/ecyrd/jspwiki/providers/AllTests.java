@@ -17,8 +17,10 @@ public class AllTests extends TestCase
         suite.addTest( FileSystemProviderTest.suite() );
         suite.addTest( RCSFileProviderTest.suite() );
         suite.addTest( VersioningFileProviderTest.suite() );
+        suite.addTest( VersionDeltasTest.suite() );
         suite.addTest( BasicAttachmentProviderTest.suite() );
         suite.addTest( CachingProviderTest.suite() );
+        suite.addTest( SingleFlightTest.suite() );
 
         return suite;
     }
@@ -57,13 +57,47 @@ public class CachingProviderTest extends TestCase
         assertEquals("init", 1, p.m_initCalls);
         assertEquals("getAllPages", 1, p.m_getAllPagesCalls);
         assertEquals("pageExists", 0, p.m_pageExistsCalls);
-        assertEquals("getPage", 2, p.m_getPageCalls); // These two are for non-existant pages (with and without s)
+        assertEquals("getPage", 0, p.m_getPageCalls); // Scanning for links does not check whether pages exist
         assertEquals("getPageText", 4, p.m_getPageTextCalls);
 
         WikiPage wp = engine.getPage( "Foo" );
 
         assertEquals("pageExists2", 0, p.m_pageExistsCalls);
-        assertEquals("getPage2", 2, p.m_getPageCalls);
+        assertEquals("getPage2", 0, p.m_getPageCalls);
+    }
+
+    /**
+     *  The infos of all pages stay in the cache, whatever its capacity.
+     */
+    public void testAllPagesKept()
+        throws Exception
+    {
+        Properties props = new Properties();
+        props.load( TestEngine.findTestProperties() );
+
+        props.setProperty( "jspwiki.usePageCache", "true" );
+        props.setProperty( "jspwiki.pageProvider", "com.ecyrd.jspwiki.providers.CounterProvider" );
+        props.setProperty( "jspwiki.cachingProvider.capacity", "2" );
+
+        TestEngine engine = new TestEngine( props );
+
+        CachingProvider cp = (CachingProvider)engine.getPageManager().getProvider();
+        CounterProvider p = (CounterProvider)cp.getRealProvider();
+
+        Collection all = engine.getPageManager().getAllPages();
+        int calls = p.m_getAllPagesCalls;
+
+        //  The page infos do not count against the capacity, so none of
+        //  them may look like an external addition.
+        for( Iterator i = all.iterator(); i.hasNext(); )
+        {
+            WikiPage page = (WikiPage) i.next();
+
+            assertNotNull( page.getName(), cp.getPageInfo( page.getName(), WikiPageProvider.LATEST_VERSION ) );
+        }
+
+        assertEquals( "all pages", 4, engine.getPageManager().getAllPages().size() );
+        assertEquals( "getAllPages", calls, p.m_getAllPagesCalls );
     }
 
     public void testSneakyAdd()
@@ -96,6 +130,200 @@ public class CachingProviderTest extends TestCase
         // TODO: ReferenceManager check as well
     }
     
+    /**
+     *  A page added behind our back must show up in the list of all pages.
+     */
+    public void testWatcher()
+        throws Exception
+    {
+        Properties props = new Properties();
+        props.load( TestEngine.findTestProperties() );
+
+        props.setProperty( "jspwiki.cachingProvider.watchInterval", "1" );
+        
+        TestEngine engine = new TestEngine( props );
+
+        assertFalse( "exists", engine.pageExists( "Testi" ) );
+        
+        String dir = props.getProperty( FileSystemProvider.PROP_PAGEDIR );
+        
+        File f = new File( dir, "Testi.txt" );
+        
+        PrintWriter out = new PrintWriter( new FileWriter(f) );
+        FileUtil.copyContents( new StringReader("[Foobar]"), out );
+        out.close();
+        
+        Thread.sleep( 3000L );
+
+        boolean found = false;
+
+        for( Iterator i = engine.getPageManager().getAllPages().iterator(); i.hasNext(); )
+        {
+            if( ((WikiPage) i.next()).getName().equals( "Testi" ) ) found = true;
+        }
+
+        assertTrue( "not in all pages", found );
+        assertTrue( "references", engine.getReferenceManager().findReferrers( "Foobar" ).contains( "Testi" ) );
+
+        f.delete();
+
+        Thread.sleep( 3000L );
+
+        assertFalse( "still exists", engine.pageExists( "Testi" ) );
+    }
+
+    private static boolean containsPage( Collection pages, String name )
+    {
+        for( Iterator i = pages.iterator(); i.hasNext(); )
+        {
+            if( ((WikiPage) i.next()).getName().equals( name ) ) return true;
+        }
+
+        return false;
+    }
+
+    /**
+     *  The page infos are read from the snapshot at startup, and pages
+     *  added while JSPWiki was not running are found when the engine starts.
+     */
+    public void testSnapshot()
+        throws Exception
+    {
+        Properties props = new Properties();
+        props.load( TestEngine.findTestProperties() );
+
+        props.setProperty( "jspwiki.cachingProvider.snapshotInterval", "3600" );
+
+        TestEngine engine = new TestEngine( props );
+
+        engine.saveText( "Testi", "Snapshot" );
+
+        File snapshot = new File( engine.getWorkDir(), "pageinfo.ser" );
+        snapshot.delete();
+
+        engine.shutdown();
+
+        assertTrue( "no snapshot", snapshot.exists() );
+        assertFalse( "writer still running", isThreadAlive( "JSPWiki page info snapshot writer" ) );
+
+        String dir = props.getProperty( FileSystemProvider.PROP_PAGEDIR );
+        
+        File f = new File( dir, "Testi2.txt" );
+
+        TestEngine engine2 = null;
+
+        try
+        {
+            PrintWriter out = new PrintWriter( new FileWriter(f) );
+            FileUtil.copyContents( new StringReader("[Testi]"), out );
+            out.close();
+
+            engine2 = new TestEngine( props );
+
+            assertTrue( "Testi", containsPage( engine2.getPageManager().getAllPages(), "Testi" ) );
+            assertTrue( "Testi2", containsPage( engine2.getPageManager().getAllPages(), "Testi2" ) );
+            assertTrue( "Testi2 exists", engine2.pageExists( "Testi2" ) );
+            assertTrue( "references",
+                        engine2.getReferenceManager().findReferrers( "Testi" ).contains( "Testi2" ) );
+        }
+        finally
+        {
+            f.delete();
+            if( engine2 != null ) engine2.shutdown();
+        }
+    }
+
+    private static boolean isThreadAlive( String name )
+    {
+        Thread[] threads = new Thread[Thread.activeCount()+10];
+        int count = Thread.enumerate( threads );
+
+        for( int i = 0; i < count; i++ )
+        {
+            if( threads[i].getName().equals( name ) ) return true;
+        }
+
+        return false;
+    }
+
+    /**
+     *  Old versions are cached, but must not survive the removal of the page.
+     */
+    public void testOldVersions()
+        throws Exception
+    {
+        Properties props = new Properties();
+        props.load( TestEngine.findTestProperties("/jspwiki_vers.properties") );
+
+        props.setProperty( "jspwiki.usePageCache", "true" );
+
+        TestEngine engine = new TestEngine( props );
+
+        try
+        {
+            engine.saveText( "Testi", "First" );
+            engine.saveText( "Testi", "Second" );
+            engine.saveText( "Testi", "Third" );
+
+            assertEquals( "v1", "First", engine.getText( "Testi", 1 ).trim() );
+            assertEquals( "v1 again", "First", engine.getText( "Testi", 1 ).trim() );
+            assertEquals( "v2 info", 2, engine.getPage( "Testi", 2 ).getVersion() );
+
+            engine.deletePage( "Testi" );
+
+            engine.saveText( "Testi", "New" );
+            engine.saveText( "Testi", "Newer" );
+
+            assertEquals( "new v1", "New", engine.getText( "Testi", 1 ).trim() );
+        }
+        finally
+        {
+            String files = props.getProperty( FileSystemProvider.PROP_PAGEDIR );
+
+            TestEngine.deleteAll( new File( files, "OLD" ) );
+        }
+    }
+
+    /**
+     *  Deleting the latest version must also drop its cached text, since
+     *  the next save gets the same version number.
+     */
+    public void testDeleteLatestVersion()
+        throws Exception
+    {
+        Properties props = new Properties();
+        props.load( TestEngine.findTestProperties("/jspwiki_vers.properties") );
+
+        props.setProperty( "jspwiki.usePageCache", "true" );
+
+        TestEngine engine = new TestEngine( props );
+
+        try
+        {
+            engine.saveText( "Testi", "First" );
+            engine.saveText( "Testi", "Second" );
+            engine.saveText( "Testi", "Third" );
+
+            assertEquals( "v2", "Second", engine.getText( "Testi", 2 ).trim() );
+
+            engine.deleteVersion( new WikiPage( "Testi" ) );
+            engine.deleteVersion( new WikiPage( "Testi" ) );
+
+            assertEquals( "deleted v2", "", engine.getText( "Testi", 2 ) );
+
+            engine.saveText( "Testi", "New" );
+            engine.saveText( "Testi", "Newer" );
+
+            assertEquals( "new v2", "New", engine.getText( "Testi", 2 ).trim() );
+        }
+        finally
+        {
+            String files = props.getProperty( FileSystemProvider.PROP_PAGEDIR );
+
+            TestEngine.deleteAll( new File( files, "OLD" ) );
+        }
+    }
+
     public static Test suite()
     {
         return new TestSuite( CachingProviderTest.class );
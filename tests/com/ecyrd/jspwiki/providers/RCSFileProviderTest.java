@@ -7,8 +7,7 @@ import java.util.*;
 import com.ecyrd.jspwiki.*;
 
 /**
- *  Tests the RCSFileProvider.  If you are getting strange errors, please check that you
- *  actually <i>have</i> RCS installed and in your path...
+ *  Tests the RCSFileProvider.
  * 
  *  @author jalkanen
  *
@@ -196,6 +195,168 @@ public class RCSFileProviderTest extends TestCase
         }
     }
 
+    /**
+     *  Reads a file written by the RCS commands, and checks in a new
+     *  version to it.
+     */
+    public void testExistingRCSFile()
+        throws Exception
+    {
+        String files = props.getProperty( FileSystemProvider.PROP_PAGEDIR );
+
+        String rcs = "head\t1.2;\naccess;\nsymbols;\nlocks\n\tjanne:1.2; strict;\ncomment\t@# @;\n\n\n"+
+                     "1.2\ndate\t2005.03.01.12.00.00;\tauthor janne;\tstate Exp;\nbranches;\nnext\t1.1;\n\n"+
+                     "1.1\ndate\t2005.02.28.10.30.00;\tauthor janne;\tstate Exp;\nbranches;\nnext\t;\n\n\n"+
+                     "desc\n@@\n\n\n"+
+                     "1.2\nlog\n@\"author=Janne+Jalkanen\"\n@\ntext\n@First line\nSecond line with @@ sign\n@\n\n\n"+
+                     "1.1\nlog\n@\"author=Anonymous\"\n@\ntext\n@d2 1\na2 1\nOld second line\n@\n";
+
+        Writer out = new FileWriter( new File( files+File.separator+"RCS", NAME1+FileSystemProvider.FILE_EXT+",v" ) );
+        FileUtil.copyContents( new StringReader( rcs ), out );
+        out.close();
+
+        out = new FileWriter( new File( files, NAME1+FileSystemProvider.FILE_EXT ) );
+        FileUtil.copyContents( new StringReader( "First line\nSecond line with @ sign\n" ), out );
+        out.close();
+
+        WikiPageProvider provider = engine.getPageManager().getProvider();
+
+        WikiPage p = provider.getPageInfo( NAME1, WikiProvider.LATEST_VERSION );
+
+        assertEquals( "version", 2, p.getVersion() );
+        assertEquals( "author", "Janne Jalkanen", p.getAuthor() );
+
+        p = provider.getPageInfo( NAME1, 1 );
+
+        assertEquals( "old author", "Anonymous", p.getAuthor() );
+
+        Calendar cal = Calendar.getInstance( TimeZone.getTimeZone("UTC") );
+        cal.setTime( p.getLastModified() );
+
+        assertEquals( "year", 2005, cal.get( Calendar.YEAR ) );
+        assertEquals( "hour", 10, cal.get( Calendar.HOUR_OF_DAY ) );
+
+        assertEquals( "old text", "First line\nOld second line\n", provider.getPageText( NAME1, 1 ) );
+
+        WikiPage page = new WikiPage( NAME1 );
+        page.setAuthor( "Somebody Else" );
+
+        provider.putPageText( page, "First line\nThird line\n" );
+
+        List history = provider.getVersionHistory( NAME1 );
+
+        assertEquals( "history", 3, history.size() );
+        assertEquals( "new author", "Somebody Else", ((WikiPage) history.get(0)).getAuthor() );
+
+        assertEquals( "v1", "First line\nOld second line\n", provider.getPageText( NAME1, 1 ) );
+        assertEquals( "v2", "First line\nSecond line with @ sign\n", provider.getPageText( NAME1, 2 ) );
+        assertEquals( "v3", "First line\nThird line\n", provider.getPageText( NAME1, 3 ) );
+
+        String archive = FileUtil.readContents( new FileReader( new File( files+File.separator+"RCS", NAME1+FileSystemProvider.FILE_EXT+",v" ) ) );
+
+        assertTrue( "lock moved", archive.indexOf( "janne:1.3;" ) >= 0 );
+    }
+
+    /**
+     *  Reads an archive checked in with the real ci, with multi-line logs,
+     *  escaped @ signs, a branch and symbols.  After a new version has been
+     *  added, the archive is checked with co -p, if RCS is installed.
+     */
+    public void testCheckedInRCSFile()
+        throws Exception
+    {
+        String files = props.getProperty( FileSystemProvider.PROP_PAGEDIR );
+
+        File rcsFile = new File( files+File.separator+"RCS", NAME1+FileSystemProvider.FILE_EXT+",v" );
+        rcsFile.getParentFile().mkdirs();
+
+        InputStream in = TestEngine.class.getResourceAsStream( "/RCSFixture.txt,v" );
+        OutputStream fout = new FileOutputStream( rcsFile );
+        FileUtil.copyContents( in, fout );
+        fout.close();
+        in.close();
+
+        String v1 = "First line\nOld second line\nThird line\n";
+        String v2 = "First line\nSecond line with @ sign\nThird line\n";
+        String v3 = "First line\nSecond line with @ sign\nThird line, changed\nFourth line\n";
+        String v4 = "First line\nFifth line\n";
+
+        Writer out = new FileWriter( new File( files, NAME1+FileSystemProvider.FILE_EXT ) );
+        FileUtil.copyContents( new StringReader( v3 ), out );
+        out.close();
+
+        WikiPageProvider provider = engine.getPageManager().getProvider();
+
+        WikiPage p = provider.getPageInfo( NAME1, WikiProvider.LATEST_VERSION );
+
+        assertEquals( "version", 3, p.getVersion() );
+        assertEquals( "author", "Janne Jalkanen", p.getAuthor() );
+        assertEquals( "quoted author", "Anonymous", provider.getPageInfo( NAME1, 2 ).getAuthor() );
+
+        List history = provider.getVersionHistory( NAME1 );
+
+        assertEquals( "history", 3, history.size() );
+        assertEquals( "oldest author", "Somebody Else", ((WikiPage) history.get(2)).getAuthor() );
+
+        assertEquals( "v1", v1, provider.getPageText( NAME1, 1 ) );
+        assertEquals( "v2", v2, provider.getPageText( NAME1, 2 ) );
+        assertEquals( "v3", v3, provider.getPageText( NAME1, 3 ) );
+
+        WikiPage page = new WikiPage( NAME1 );
+        page.setAuthor( "Somebody Else" );
+
+        provider.putPageText( page, v4 );
+
+        assertEquals( "new v1", v1, provider.getPageText( NAME1, 1 ) );
+        assertEquals( "new v2", v2, provider.getPageText( NAME1, 2 ) );
+        assertEquals( "new v3", v3, provider.getPageText( NAME1, 3 ) );
+        assertEquals( "new v4", v4, provider.getPageText( NAME1, 4 ) );
+
+        String archive = FileUtil.readContents( new FileReader( rcsFile ) );
+
+        assertTrue( "symbols", archive.indexOf( "REL_1_0:1.2" ) >= 0 );
+        assertTrue( "branch", archive.indexOf( "1.2.1.1" ) >= 0 );
+        assertTrue( "log", archive.indexOf( "Mail janne@@ecyrd.com about it." ) >= 0 );
+
+        //
+        //  The rest needs the RCS commands.
+        //
+        if( !isRCSInstalled() ) return;
+
+        assertEquals( "co v1", v1, checkOut( rcsFile, "1.1" ) );
+        assertEquals( "co v2", v2, checkOut( rcsFile, "1.2" ) );
+        assertEquals( "co v3", v3, checkOut( rcsFile, "1.3" ) );
+        assertEquals( "co v4", v4, checkOut( rcsFile, "1.4" ) );
+        assertEquals( "co branch", v2+"Branch line\n", checkOut( rcsFile, "1.2.1.1" ) );
+    }
+
+    private static boolean isRCSInstalled()
+    {
+        try
+        {
+            Process p = Runtime.getRuntime().exec( new String[] { "co", "-V" } );
+            p.waitFor();
+
+            return true;
+        }
+        catch( Exception e )
+        {
+            return false;
+        }
+    }
+
+    private static String checkOut( File rcsFile, String revision )
+        throws Exception
+    {
+        Process p = Runtime.getRuntime().exec( new String[] { "co", "-q", "-p", "-r"+revision, rcsFile.getAbsolutePath() } );
+
+        String text = FileUtil.readContents( p.getInputStream(), "ISO-8859-1" );
+
+        assertEquals( "co "+revision+" failed", 0, p.waitFor() );
+
+        return text;
+    }
+
     public static Test suite()
     {
         return new TestSuite( RCSFileProviderTest.class );
@@ -0,0 +1,106 @@
+package com.ecyrd.jspwiki.providers;
+
+import junit.framework.*;
+
+public class SingleFlightTest extends TestCase
+{
+    private SingleFlight m_flight = new SingleFlight();
+
+    private int          m_loads = 0;
+
+    public SingleFlightTest( String s )
+    {
+        super( s );
+    }
+
+    /**
+     *  A loader which is slow enough for the other threads to arrive.
+     */
+    private SingleFlight.Loader m_slowLoader = new SingleFlight.Loader()
+    {
+        public Object load()
+            throws ProviderException
+        {
+            synchronized( SingleFlightTest.this )
+            {
+                m_loads++;
+            }
+
+            try
+            {
+                Thread.sleep( 500L );
+            }
+            catch( InterruptedException e ) {}
+
+            return "Value";
+        }
+    };
+
+    public void testCoalescing()
+        throws Exception
+    {
+        final Object[] results = new Object[5];
+        Thread[] threads = new Thread[results.length];
+
+        for( int i = 0; i < threads.length; i++ )
+        {
+            final int idx = i;
+
+            threads[i] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        results[idx] = m_flight.load( "Key", m_slowLoader );
+                    }
+                    catch( ProviderException e ) {}
+                }
+            };
+
+            threads[i].start();
+        }
+
+        for( int i = 0; i < threads.length; i++ )
+        {
+            threads[i].join();
+        }
+
+        assertEquals( "loads", 1, m_loads );
+
+        for( int i = 0; i < results.length; i++ )
+        {
+            assertEquals( "result "+i, "Value", results[i] );
+        }
+    }
+
+    public void testFailure()
+        throws Exception
+    {
+        try
+        {
+            m_flight.load( "Key", new SingleFlight.Loader()
+            {
+                public Object load()
+                    throws ProviderException
+                {
+                    throw new ProviderException( "Failed" );
+                }
+            } );
+
+            fail( "no exception" );
+        }
+        catch( ProviderException e )
+        {
+            assertEquals( "Failed", e.getMessage() );
+        }
+
+        //  A failed load is not remembered.
+        assertEquals( "Value", m_flight.load( "Key", m_slowLoader ) );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( SingleFlightTest.class );
+    }
+}
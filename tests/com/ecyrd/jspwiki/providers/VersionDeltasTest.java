@@ -0,0 +1,130 @@
+
+package com.ecyrd.jspwiki.providers;
+
+import junit.framework.*;
+import java.io.*;
+import java.util.*;
+
+import com.ecyrd.jspwiki.*;
+
+public class VersionDeltasTest extends TestCase
+{
+    public VersionDeltasTest( String s )
+    {
+        super( s );
+    }
+
+    private void roundTrip( String newer, String older )
+        throws Exception
+    {
+        String delta = VersionDeltas.makeDelta( newer, older );
+
+        assertEquals( "delta "+delta, older, VersionDeltas.applyDelta( newer, delta ) );
+    }
+
+    public void testAdd()
+        throws Exception
+    {
+        roundTrip( "a\nb\n", "a\nx\nb\ny\n" );
+    }
+
+    public void testDelete()
+        throws Exception
+    {
+        roundTrip( "a\nx\nb\ny\n", "a\nb\n" );
+    }
+
+    public void testChange()
+        throws Exception
+    {
+        roundTrip( "a\r\nb\r\nc\r\n", "a\r\nB\r\nB2\r\nc\r\n" );
+    }
+
+    public void testNoFinalNewline()
+        throws Exception
+    {
+        roundTrip( "a\nb", "a\nc" );
+        roundTrip( "a\nb\n", "a\nb" );
+        roundTrip( "a\nb", "a\nb\n" );
+    }
+
+    public void testEmpty()
+        throws Exception
+    {
+        roundTrip( "", "a\n" );
+        roundTrip( "a\n", "" );
+        roundTrip( "same\n", "same\n" );
+    }
+
+    public void testCorrupted()
+        throws Exception
+    {
+        try
+        {
+            VersionDeltas.applyDelta( "a\n", "d5 1\n" );
+            fail( "no exception" );
+        }
+        catch( ProviderException e ) {}
+    }
+
+    public void testIsCheckpoint()
+    {
+        assertTrue( "off", VersionDeltas.isCheckpoint( 7, 0 ) );
+        assertTrue( "6", VersionDeltas.isCheckpoint( 6, 3 ) );
+        assertFalse( "7", VersionDeltas.isCheckpoint( 7, 3 ) );
+    }
+
+    public void testConvert()
+        throws Exception
+    {
+        File pageDir = new File( System.getProperty( "java.io.tmpdir" ), "versiondeltas-test" );
+        File dir     = new File( pageDir, VersioningFileProvider.PAGEDIR+File.separator+"Test" );
+
+        dir.mkdirs();
+
+        try
+        {
+            Properties props = new Properties();
+
+            for( int i = 1; i <= 4; i++ )
+            {
+                props.setProperty( i+".author", "Janne" );
+            }
+
+            OutputStream out = new FileOutputStream( new File( dir, VersioningFileProvider.PROPERTYFILE ) );
+            props.store( out, null );
+            out.close();
+
+            VersionDeltas.writeFile( new File( pageDir, "Test.txt" ), "v4\nend\n", "UTF-8" );
+
+            for( int i = 1; i <= 3; i++ )
+            {
+                VersionDeltas.writeFile( new File( dir, i+".txt" ), "v"+i+"\nend\n", "UTF-8" );
+            }
+
+            assertEquals( "converted", 2, VersionDeltas.convert( pageDir, 2, "UTF-8" ) );
+
+            assertFalse( "1.txt", new File( dir, "1.txt" ).exists() );
+            assertTrue( "1.diff", new File( dir, "1.diff" ).exists() );
+            assertTrue( "2.txt", new File( dir, "2.txt" ).exists() );
+            assertTrue( "3.diff", new File( dir, "3.diff" ).exists() );
+
+            String v3 = VersionDeltas.applyDelta( "v4\nend\n",
+                                                  VersionDeltas.readFile( new File( dir, "3.diff" ), "UTF-8" ) );
+
+            assertEquals( "v3", "v3\nend\n", v3 );
+
+            //  Converting again changes nothing.
+            assertEquals( "converted again", 0, VersionDeltas.convert( pageDir, 2, "UTF-8" ) );
+        }
+        finally
+        {
+            TestEngine.deleteAll( pageDir );
+        }
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( VersionDeltasTest.class );
+    }
+}
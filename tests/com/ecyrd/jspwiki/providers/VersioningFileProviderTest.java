@@ -266,6 +266,89 @@ public class VersioningFileProviderTest extends TestCase
         }
     }
 
+    /**
+     *  Once the version index has been read, the page properties are
+     *  only written, not read.
+     */
+    public void testVersionIndex()
+        throws Exception
+    {
+        engine.saveText( NAME1, "v1\r\n" );
+        engine.saveText( NAME1, "v2\r\n" );
+        engine.saveText( NAME1, "v3\r\n" );
+
+        WikiPageProvider provider = engine.getPageManager().getProvider();
+
+        assertEquals( "history", 3, provider.getVersionHistory( NAME1 ).size() );
+
+        String files = props.getProperty( FileSystemProvider.PROP_PAGEDIR );
+        File dir = new File( files, VersioningFileProvider.PAGEDIR+File.separator+NAME1 );
+
+        assertTrue( "properties", new File( dir, VersioningFileProvider.PROPERTYFILE ).delete() );
+
+        WikiPage p = provider.getPageInfo( NAME1, WikiPageProvider.LATEST_VERSION );
+
+        assertEquals( "latest", 3, p.getVersion() );
+        assertEquals( "latest size", 4, p.getSize() );
+
+        p = provider.getPageInfo( NAME1, 1 );
+
+        assertEquals( "author", "unknown", p.getAuthor() );
+        assertEquals( "size", 4, p.getSize() );
+
+        engine.saveText( NAME1, "v4\r\n" );
+
+        assertEquals( "new history", 4, provider.getVersionHistory( NAME1 ).size() );
+        assertEquals( "new text", "v3\r\n", provider.getPageText( NAME1, 3 ) );
+    }
+
+    public void testDeltas()
+        throws Exception
+    {
+        props.setProperty( VersioningFileProvider.PROP_CHECKPOINT, "3" );
+        engine = new TestEngine( props );
+
+        for( int i = 1; i <= 7; i++ )
+        {
+            engine.saveText( NAME1, "line\r\nv"+i+"\r\nend\r\n" );
+        }
+
+        String files = props.getProperty( FileSystemProvider.PROP_PAGEDIR );
+        File dir = new File( files, VersioningFileProvider.PAGEDIR+File.separator+NAME1 );
+
+        assertTrue( "1 delta", new File( dir, "1"+VersionDeltas.DELTA_EXT ).exists() );
+        assertTrue( "3 full", new File( dir, "3"+FileSystemProvider.FILE_EXT ).exists() );
+        assertFalse( "5 full", new File( dir, "5"+FileSystemProvider.FILE_EXT ).exists() );
+
+        WikiPageProvider provider = engine.getPageManager().getProvider();
+
+        for( int i = 1; i <= 7; i++ )
+        {
+            assertEquals( "v"+i, "line\r\nv"+i+"\r\nend\r\n", provider.getPageText( NAME1, i ) );
+        }
+
+        assertEquals( "size", 15, provider.getPageInfo( NAME1, 1 ).getSize() );
+
+        //  The delta of version 4 must be remade against version 6.
+        provider.deleteVersion( NAME1, 5 );
+
+        assertEquals( "v4", "line\r\nv4\r\nend\r\n", provider.getPageText( NAME1, 4 ) );
+
+        //  Version 6 becomes the latest.
+        provider.deleteVersion( NAME1, 7 );
+
+        assertEquals( "latest", "line\r\nv6\r\nend\r\n", provider.getPageText( NAME1, WikiPageProvider.LATEST_VERSION ) );
+        assertEquals( "v1", "line\r\nv1\r\nend\r\n", provider.getPageText( NAME1, 1 ) );
+
+        //  Everything is found again after a restart.
+        engine = new TestEngine( props );
+        provider = engine.getPageManager().getProvider();
+
+        assertEquals( "history", 5, provider.getVersionHistory( NAME1 ).size() );
+        assertEquals( "v2", "line\r\nv2\r\nend\r\n", provider.getPageText( NAME1, 2 ) );
+        assertEquals( "size after restart", 15, provider.getPageInfo( NAME1, 1 ).getSize() );
+    }
+
     public static Test suite()
     {
         return new TestSuite( VersioningFileProviderTest.class );
@@ -0,0 +1,104 @@
+package com.ecyrd.jspwiki.search;
+
+import java.io.File;
+import java.util.Properties;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.search.Hits;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.RAMDirectory;
+
+import com.ecyrd.jspwiki.TestEngine;
+import com.ecyrd.jspwiki.WikiPage;
+import com.ecyrd.jspwiki.providers.FileSystemProvider;
+
+public class LuceneSearchProviderTest extends TestCase
+{
+    Properties props = new Properties();
+    TestEngine engine;
+    LuceneSearchProvider provider;
+
+    public LuceneSearchProviderTest( String s )
+    {
+        super( s );
+    }
+
+    public void setUp()
+        throws Exception
+    {
+        props.load( TestEngine.findTestProperties() );
+
+        engine = new TestEngine( props );
+
+        provider = new LuceneSearchProvider();
+        provider.initialize( engine, props );
+    }
+
+    public void tearDown()
+    {
+        TestEngine.deleteAll( new File( props.getProperty( FileSystemProvider.PROP_PAGEDIR ) ) );
+    }
+
+    private int hits( String text, String query )
+        throws Exception
+    {
+        RAMDirectory dir = new RAMDirectory();
+
+        IndexWriter writer = new IndexWriter( dir, new StandardAnalyzer(), true );
+        provider.luceneIndexPage( new WikiPage( "TestPage" ), text, writer );
+        writer.close();
+
+        IndexSearcher searcher = new IndexSearcher( dir );
+        Hits h = searcher.search( provider.parseQuery( query ) );
+        int count = h.length();
+        searcher.close();
+
+        return count;
+    }
+
+    public void testFindsPlainText()
+        throws Exception
+    {
+        assertEquals( 1, hits( "Some __bold__ words.", "bold" ) );
+    }
+
+    public void testFindsLinkTarget()
+        throws Exception
+    {
+        assertEquals( 1, hits( "See [the other page|SomeLinkTarget].", "SomeLinkTarget" ) );
+    }
+
+    public void testFindsPluginParameter()
+        throws Exception
+    {
+        assertEquals( 1, hits( "[{InsertPage page='IncludedThing'}]", "IncludedThing" ) );
+    }
+
+    public void testFindsVariableValue()
+        throws Exception
+    {
+        assertEquals( 1, hits( "[{SET alias='OtherName'}]", "OtherName" ) );
+    }
+
+    public void testNoMarkup()
+        throws Exception
+    {
+        String text = "%%small tiny%% [{InsertPage page='IncludedThing'}] [{SET alias='OtherName'}]";
+
+        assertEquals( "style", 0, hits( text, "small" ) );
+        assertEquals( "plugin", 0, hits( text, "InsertPage" ) );
+        assertEquals( "SET", 0, hits( text, "SET" ) );
+        assertEquals( "variable", 0, hits( text, "alias" ) );
+        assertEquals( "text", 1, hits( text, "tiny" ) );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( LuceneSearchProviderTest.class );
+    }
+}
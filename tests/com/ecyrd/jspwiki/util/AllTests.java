@@ -15,7 +15,11 @@ public class AllTests extends TestCase
         TestSuite suite = new TestSuite("Utility suite tests");
 
         suite.addTest( ClassUtilTest.suite() );
+        suite.addTest( CompressedTextCacheTest.suite() );
+        suite.addTest( DirectoryWatcherTest.suite() );
         suite.addTest( PriorityListTest.suite() );
+        suite.addTest( ReadWriteLockTest.suite() );
+        suite.addTest( StripedCacheTest.suite() );
 
         return suite;
     }
@@ -0,0 +1,93 @@
+
+package com.ecyrd.jspwiki.util;
+
+import junit.framework.*;
+
+public class CompressedTextCacheTest extends TestCase
+{
+    private static final long MAXAGE = 60000L;
+
+    public CompressedTextCacheTest( String s )
+    {
+        super( s );
+    }
+
+    private static String makeText( int seed, int length )
+    {
+        StringBuffer sb = new StringBuffer();
+        long x = seed;
+
+        while( sb.length() < length )
+        {
+            x = (x * 1103515245L + 12345L) & 0x7fffffffL;
+            sb.append( (char)('a' + (x >> 16) % 26) );
+        }
+
+        return sb.toString();
+    }
+
+    public void testGetPut()
+    {
+        CompressedTextCache c = new CompressedTextCache( 10000 );
+
+        String text = "Foo bar  foo bar foo bar foo bar\r\nfoo bar";
+
+        c.put( "Page", text );
+
+        assertEquals( "text", text, c.get( "Page", MAXAGE ) );
+        assertNull( "missing", c.get( "Other", MAXAGE ) );
+    }
+
+    public void testReplace()
+    {
+        CompressedTextCache c = new CompressedTextCache( 10000 );
+
+        c.put( "Page", "Old" );
+        c.put( "Page", "New" );
+
+        assertEquals( "text", "New", c.get( "Page", MAXAGE ) );
+        assertEquals( "size", 1, c.size() );
+
+        c.put( "Page", null );
+
+        assertNull( "removed", c.get( "Page", MAXAGE ) );
+    }
+
+    public void testWrap()
+    {
+        CompressedTextCache c = new CompressedTextCache( 4000 );
+
+        for( int i = 0; i < 20; i++ )
+        {
+            c.put( "Page"+i, makeText( i, 500 ) );
+        }
+
+        assertNull( "first evicted", c.get( "Page0", MAXAGE ) );
+        assertEquals( "last", makeText( 19, 500 ), c.get( "Page19", MAXAGE ) );
+        assertTrue( "size", c.size() < 20 );
+    }
+
+    public void testTooLarge()
+    {
+        CompressedTextCache c = new CompressedTextCache( 100 );
+
+        c.put( "Page", makeText( 1, 1000 ) );
+
+        assertNull( "stored", c.get( "Page", MAXAGE ) );
+    }
+
+    public void testExpiry()
+    {
+        CompressedTextCache c = new CompressedTextCache( 10000 );
+
+        c.put( "Page", "Text" );
+
+        assertNull( "expired", c.get( "Page", 0 ) );
+        assertEquals( "size", 0, c.size() );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( CompressedTextCacheTest.class );
+    }
+}
@@ -0,0 +1,144 @@
+
+package com.ecyrd.jspwiki.util;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.*;
+
+public class DirectoryWatcherTest extends TestCase
+{
+    private File m_dir;
+
+    private List m_changes = new ArrayList();
+
+    private DirectoryWatcher.Listener m_listener = new DirectoryWatcher.Listener()
+    {
+        public void entryChanged( String name )
+        {
+            m_changes.add( name );
+        }
+    };
+
+    public DirectoryWatcherTest( String s )
+    {
+        super( s );
+    }
+
+    public void setUp()
+    {
+        m_dir = new File( System.getProperty("java.io.tmpdir"), "DirectoryWatcherTest" );
+        m_dir.mkdirs();
+    }
+
+    public void tearDown()
+    {
+        File[] files = m_dir.listFiles();
+
+        for( int i = 0; i < files.length; i++ )
+        {
+            files[i].delete();
+        }
+
+        m_dir.delete();
+    }
+
+    private void write( String name, String content )
+        throws Exception
+    {
+        FileWriter out = new FileWriter( new File( m_dir, name ) );
+        out.write( content );
+        out.close();
+    }
+
+    public void testChanges()
+        throws Exception
+    {
+        write( "Old.txt", "Old" );
+        write( "Removed.txt", "Removed" );
+
+        DirectoryWatcher w = new DirectoryWatcher( m_dir, 1, m_listener );
+
+        w.scan();
+
+        assertEquals( "no changes", 0, m_changes.size() );
+
+        write( "New.txt", "New" );
+        write( "Old.txt", "Changed" );
+        new File( m_dir, "Removed.txt" ).delete();
+
+        w.scan();
+
+        assertEquals( "changes", 3, m_changes.size() );
+        assertTrue( "New", m_changes.contains( "New.txt" ) );
+        assertTrue( "Old", m_changes.contains( "Old.txt" ) );
+        assertTrue( "Removed", m_changes.contains( "Removed.txt" ) );
+
+        m_changes.clear();
+
+        w.scan();
+
+        assertEquals( "no more changes", 0, m_changes.size() );
+    }
+
+    public void testSubdirectory()
+        throws Exception
+    {
+        File sub = new File( m_dir, "Sub" );
+        sub.mkdir();
+
+        DirectoryWatcher w = new DirectoryWatcher( m_dir, 1, m_listener );
+
+        FileWriter out = new FileWriter( new File( sub, "file" ) );
+        out.write( "Content" );
+        out.close();
+
+        w.scan();
+
+        new File( sub, "file" ).delete();
+        sub.delete();
+
+        assertEquals( "changes", 1, m_changes.size() );
+        assertEquals( "Sub", "Sub", m_changes.get(0) );
+    }
+
+    public void testFilter()
+        throws Exception
+    {
+        File sub = new File( m_dir, "Sub" );
+        sub.mkdir();
+
+        FilenameFilter filter = new FilenameFilter()
+        {
+            public boolean accept( File dir, String name )
+            {
+                return name.endsWith( ".txt" );
+            }
+        };
+
+        DirectoryWatcher w = new DirectoryWatcher( m_dir, 1, filter, m_listener );
+
+        write( "Page.txt", "Page" );
+        write( "Page.properties", "author=Foo" );
+
+        FileWriter out = new FileWriter( new File( sub, "file" ) );
+        out.write( "Content" );
+        out.close();
+
+        w.scan();
+
+        new File( sub, "file" ).delete();
+        sub.delete();
+
+        assertEquals( "changes", 1, m_changes.size() );
+        assertEquals( "Page", "Page.txt", m_changes.get(0) );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( DirectoryWatcherTest.class );
+    }
+}
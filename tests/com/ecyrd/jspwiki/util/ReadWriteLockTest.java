@@ -0,0 +1,168 @@
+
+package com.ecyrd.jspwiki.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.*;
+
+public class ReadWriteLockTest extends TestCase
+{
+    private ReadWriteLock m_lock = new ReadWriteLock();
+
+    /** The names of the Lockers, in the order they got the lock. */
+    private List          m_order = new ArrayList();
+
+    public ReadWriteLockTest( String s )
+    {
+        super( s );
+    }
+
+    /**
+     *  Takes the lock, notes it down and releases the lock.
+     */
+    private class Locker extends Thread
+    {
+        private boolean m_write;
+
+        Locker( String name, boolean write )
+        {
+            super( name );
+            m_write = write;
+        }
+
+        public void run()
+        {
+            if( m_write ) m_lock.writeLock(); else m_lock.readLock();
+
+            synchronized( m_order )
+            {
+                m_order.add( getName() );
+            }
+
+            if( m_write ) m_lock.writeUnlock(); else m_lock.readUnlock();
+        }
+    }
+
+    private Locker start( String name, boolean write )
+        throws InterruptedException
+    {
+        Locker locker = new Locker( name, write );
+
+        locker.start();
+        Thread.sleep( 200L );
+
+        return locker;
+    }
+
+    public void testSharedReaders()
+        throws Exception
+    {
+        m_lock.readLock();
+
+        start( "reader", false ).join( 5000L );
+
+        assertEquals( "reader was blocked", 1, m_order.size() );
+
+        m_lock.readUnlock();
+    }
+
+    public void testWriterExcludesReaders()
+        throws Exception
+    {
+        m_lock.writeLock();
+
+        Locker reader = start( "reader", false );
+
+        assertEquals( "reader got in", 0, m_order.size() );
+
+        m_lock.writeUnlock();
+        reader.join( 5000L );
+
+        assertEquals( "reader did not get in", 1, m_order.size() );
+    }
+
+    public void testReaderExcludesWriter()
+        throws Exception
+    {
+        m_lock.readLock();
+
+        Locker writer = start( "writer", true );
+
+        assertEquals( "writer got in", 0, m_order.size() );
+
+        m_lock.readUnlock();
+        writer.join( 5000L );
+
+        assertEquals( "writer did not get in", 1, m_order.size() );
+    }
+
+    public void testWaitingWriterBlocksReaders()
+        throws Exception
+    {
+        m_lock.readLock();
+
+        Locker writer = start( "writer", true );
+        Locker reader = start( "reader", false );
+
+        assertEquals( "someone got in", 0, m_order.size() );
+
+        m_lock.readUnlock();
+        writer.join( 5000L );
+        reader.join( 5000L );
+
+        assertEquals( "order", "[writer, reader]", m_order.toString() );
+    }
+
+    public void testReentrancy()
+        throws Exception
+    {
+        m_lock.writeLock();
+        m_lock.writeLock();
+        m_lock.readLock();
+        m_lock.readUnlock();
+        m_lock.writeUnlock();
+        m_lock.writeUnlock();
+
+        //  The only reader may upgrade.
+        m_lock.readLock();
+        m_lock.readLock();
+        m_lock.writeLock();
+        m_lock.writeUnlock();
+        m_lock.readUnlock();
+        m_lock.readUnlock();
+
+        start( "writer", true ).join( 5000L );
+
+        assertEquals( "lock was not released", 1, m_order.size() );
+    }
+
+    public void testUnlockWithoutLock()
+    {
+        try
+        {
+            m_lock.readUnlock();
+            fail( "read" );
+        }
+        catch( IllegalStateException e ) {}
+
+        try
+        {
+            m_lock.writeUnlock();
+            fail( "write" );
+        }
+        catch( IllegalStateException e ) {}
+    }
+
+    public void testStripes()
+    {
+        StripedLocks locks = new StripedLocks( 16 );
+
+        assertSame( locks.get( "TestPage" ), locks.get( new String("TestPage") ) );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( ReadWriteLockTest.class );
+    }
+}
@@ -0,0 +1,156 @@
+
+package com.ecyrd.jspwiki.util;
+
+import junit.framework.*;
+
+public class StripedCacheTest extends TestCase
+{
+    public StripedCacheTest( String s )
+    {
+        super( s );
+    }
+
+    public void testGetPut()
+    {
+        StripedCache c = new StripedCache( 0 );
+
+        c.put( "One", "1" );
+        c.put( "Two", null );
+
+        assertEquals( "One", "1", c.get("One") );
+        assertNotNull( "Two entry", c.getEntry("Two") );
+        assertNull( "Two value", c.getEntry("Two").getValue() );
+        assertNull( "Three", c.getEntry("Three") );
+
+        assertEquals( "hits", 3, c.getHits() );
+        assertEquals( "misses", 1, c.getMisses() );
+        assertEquals( "values", 1, c.values().size() );
+
+        c.remove( "One" );
+
+        assertNull( "removed", c.getEntry("One") );
+        assertEquals( "size", 1, c.size() );
+    }
+
+    public void testWeight()
+    {
+        StripedCache c = new StripedCache( 100, 1 );
+
+        assertTrue( "A", c.put( "A", "a", 40 ) );
+        assertTrue( "B", c.put( "B", "b", 40 ) );
+
+        //  Make C more popular than A and B.
+        c.get( "C" );
+        c.get( "C" );
+
+        assertTrue( "C", c.put( "C", "c", 40 ) );
+
+        assertNull( "A evicted", c.getEntry("A") );
+        assertNotNull( "B kept", c.getEntry("B") );
+        assertEquals( "weight", 80, c.getWeight() );
+        assertEquals( "evictions", 1, c.getEvictions() );
+    }
+
+    public void testTooHeavy()
+    {
+        StripedCache c = new StripedCache( 100, 1 );
+
+        assertFalse( "heavy", c.put( "A", "a", 101 ) );
+        assertEquals( "rejections", 1, c.getRejections() );
+        assertEquals( "weight", 0, c.getWeight() );
+    }
+
+    /**
+     *  A key read once must not push out keys which are read often.
+     */
+    public void testAdmission()
+    {
+        StripedCache c = new StripedCache( 20, 1 );
+
+        for( int i = 0; i < 20; i++ )
+        {
+            String key = "Hot"+i;
+            c.get( key );
+            c.get( key );
+            c.put( key, key );
+        }
+
+        c.get( "Cold" );
+
+        assertFalse( "cold admitted", c.put( "Cold", "cold" ) );
+        assertNull( "cold", c.getEntry("Cold") );
+        assertEquals( "rejections", 1, c.getRejections() );
+        assertEquals( "size", 20, c.size() );
+
+        //  Replacing an old value is always allowed.
+        assertTrue( "replace", c.put( "Hot0", "new" ) );
+        assertEquals( "new value", "new", c.get("Hot0") );
+    }
+
+    /**
+     *  A new key is let in, if it has been used as often as the keys
+     *  it would push out.
+     */
+    public void testAdmissionTie()
+    {
+        StripedCache c = new StripedCache( 20, 1 );
+
+        for( int i = 0; i < 20; i++ )
+        {
+            String key = "Old"+i;
+            c.get( key );
+            c.put( key, key );
+        }
+
+        c.get( "New" );
+
+        assertTrue( "new rejected", c.put( "New", "new" ) );
+        assertNull( "oldest kept", c.getEntry("Old0") );
+    }
+
+    /**
+     *  The frequencies of a large cache are counted as well as those of
+     *  a small one.
+     */
+    public void testAdmissionLarge()
+    {
+        int size = 20000;
+
+        StripedCache c = new StripedCache( size, 1 );
+
+        for( int i = 0; i < size; i++ )
+        {
+            String key = "Hot"+i;
+            c.get( key );
+            c.get( key );
+            c.put( key, key );
+        }
+
+        for( int i = 0; i < size; i++ )
+        {
+            String key = "Cold"+i;
+            c.get( key );
+            c.put( key, key );
+        }
+
+        assertTrue( "cold admitted "+(size-c.getRejections())+" times",
+                    c.getRejections() > size*9/10 );
+    }
+
+    public void testAge()
+        throws Exception
+    {
+        StripedCache c = new StripedCache( 0 );
+
+        c.put( "A", "a" );
+
+        Thread.sleep( 50L );
+
+        assertTrue( "age", c.getEntry("A").getAge() >= 40 );
+    }
+
+    public static Test suite()
+    {
+        return new TestSuite( StripedCacheTest.class );
+    }
+}